@@ -1,10 +1,15 @@
 package com.pyatkin.net_6_socks;
 
+import com.pyatkin.net_6_socks.auth.PasswordHasher;
 import com.pyatkin.net_6_socks.conf.ConfigLoader;
+import com.pyatkin.net_6_socks.conf.LiveConfig;
 import com.pyatkin.net_6_socks.conf.ProxyConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * Main application class for SOCKS5 proxy server.
  *
@@ -12,47 +17,50 @@ import org.slf4j.LoggerFactory;
  *   java -jar socks5-proxy.jar [options]
  *
  * Options:
+ *   --config=<file>                External configuration file, reloaded on change
  *   --listen-port=<port>           Port to listen on (default: 1080)
  *   --default-strategy=<strategy>  Default strategy: direct, redirect, segment (default: direct)
  *   --upstream-host=<host>         Upstream proxy host (default: 127.0.0.1)
  *   --upstream-port=<port>         Upstream proxy port (default: 9050)
+ *   --reuse-port                   Bind the listener with SO_REUSEPORT
+ *   --handoff-pid=<pid>            Drain the given previous instance once the listener is bound
+ *   --hash-password=<user>:<pass>  Print a credentials file entry and exit
  *
  * Examples:
  *   java -jar socks5-proxy.jar
  *   java -jar socks5-proxy.jar --default-strategy=segment
  *   java -jar socks5-proxy.jar --upstream-host=proxy.example.com --upstream-port=1080
+ *   java -jar socks5-proxy.jar --reuse-port --handoff-pid=12345
+ *   java -jar socks5-proxy.jar --config=/etc/socks5/application.yml
  */
 public class Socks5ProxyApp {
     private static final Logger log = LoggerFactory.getLogger(Socks5ProxyApp.class);
 
     public static void main(String[] args) {
-        try {
-            // Load base configuration from YAML
-            ProxyConfig cfg = ConfigLoader.load();
+        for (String arg : args) {
+            if (arg.startsWith("--hash-password=")) {
+                printCredentialsEntry(extractValue(arg));
+                return;
+            }
+        }
 
-            // Parse command-line arguments and override configuration
-            parseArguments(args, cfg);
+        try {
+            Path configFile = findConfigFile(args);
 
-            // Validate final configuration
-            cfg.validate();
+            // Load base configuration from YAML, apply command-line overrides and validate
+            ProxyConfig cfg = loadConfiguration(configFile, args);
 
             // Log final configuration
             logConfiguration(cfg);
 
+            LiveConfig liveConfig = new LiveConfig(cfg);
+            if (configFile != null) {
+                // CLI overrides keep precedence over the file on every reload
+                liveConfig.watch(configFile, () -> loadConfiguration(configFile, args));
+            }
+
             // Create and start server
-            Socks5ProxyServer server = new Socks5ProxyServer(
-                    cfg.server.listenPort,
-                    cfg.upstream.host,
-                    cfg.upstream.port,
-                    cfg.strategy.defaultStrategy,
-                    cfg.rules.blacklist,
-                    cfg.rules.whitelist,
-                    cfg.rules.redirect,
-                    cfg.rules.segment,
-                    cfg.segment.blockSize,
-                    cfg.segment.segmentSize,
-                    cfg.segment.delayMs
-            );
+            Socks5ProxyServer server = new Socks5ProxyServer(liveConfig);
 
             server.start();
 
@@ -62,6 +70,34 @@ public class Socks5ProxyApp {
         }
     }
 
+    private static void printCredentialsEntry(String value) {
+        int idx = value.indexOf(':');
+        if (idx < 1) {
+            System.err.println("Expected --hash-password=<user>:<password>");
+            System.exit(1);
+        }
+        System.out.println(PasswordHasher.entry(value.substring(0, idx), value.substring(idx + 1)));
+    }
+
+    private static ProxyConfig loadConfiguration(Path configFile, String[] args) {
+        ProxyConfig cfg = configFile != null ? ConfigLoader.load(configFile) : ConfigLoader.load();
+        parseArguments(args, cfg);
+        cfg.validate();
+        return cfg;
+    }
+
+    private static Path findConfigFile(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                String value = extractValue(arg);
+                if (!value.isEmpty()) {
+                    return Paths.get(value);
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Parses command-line arguments and updates configuration.
      */
@@ -114,6 +150,24 @@ public class Socks5ProxyApp {
                 cfg.server.listenPort = value;
                 log.info("CLI override: listen-port={}", value);
 
+            } else if (arg.startsWith("--config=") || arg.startsWith("--hash-password=")) {
+                // Handled before the configuration is loaded
+
+            } else if (arg.equals("--reuse-port")) {
+                cfg.server.reusePort = true;
+                log.info("CLI override: reuse-port=true");
+
+            } else if (arg.startsWith("--handoff-pid=")) {
+                long value = Long.parseLong(extractValue(arg));
+                if (value <= 0 || value == ProcessHandle.current().pid()) {
+                    log.warn("Invalid handoff-pid: {}", value);
+                    return;
+                }
+                cfg.server.handoffPid = value;
+                // The previous instance is still bound, so we can only share the port
+                cfg.server.reusePort = true;
+                log.info("CLI override: handoff-pid={}", value);
+
             } else {
                 log.warn("Unknown argument: {}", arg);
             }
@@ -134,9 +188,12 @@ public class Socks5ProxyApp {
         log.info("Final configuration:");
         log.info("  Server:");
         log.info("    - listenPort: {}", cfg.server.listenPort);
+        log.info("    - reusePort: {}", cfg.server.reusePort);
+        log.info("    - drainTimeoutSec: {}", cfg.server.drainTimeoutSec);
         log.info("  Upstream:");
         log.info("    - host: {}", cfg.upstream.host);
         log.info("    - port: {}", cfg.upstream.port);
+        log.info("    - fallbacks: {}", cfg.upstream.fallbacks);
         log.info("  Strategy:");
         log.info("    - defaultStrategy: {}", cfg.strategy.defaultStrategy);
         log.info("  Segmentation:");
@@ -148,6 +205,22 @@ public class Socks5ProxyApp {
         log.info("    - whitelist: {}", cfg.rules.whitelist);
         log.info("    - redirect: {}", cfg.rules.redirect);
         log.info("    - segment: {}", cfg.rules.segment);
+        if (!cfg.listeners.isEmpty()) {
+            log.info("  Listeners (server.listenPort ignored):");
+            for (ProxyConfig.Listener listener : cfg.listeners) {
+                log.info("    - {}", listener.describeBinding());
+            }
+        }
+        log.info("  Limits:");
+        log.info("    - maxSessions: {}", cfg.limits.maxSessions);
+        log.info("  Auth:");
+        log.info("    - enabled: {}", cfg.auth.enabled);
+        log.info("    - credentialsFile: {}", cfg.auth.credentialsFile);
+        log.info("  Timeouts:");
+        log.info("    - handshakeMs: {}", cfg.timeouts.handshakeMs);
+        log.info("    - connectMs: {}", cfg.timeouts.connectMs);
+        log.info("    - upstreamConnectMs: {}", cfg.timeouts.upstreamConnectMs);
+        log.info("    - relayMaxSec: {}", cfg.timeouts.relayMaxSec);
     }
 
     private static void printUsage() {
@@ -157,15 +230,21 @@ public class Socks5ProxyApp {
         System.out.println("  java -jar socks5-proxy.jar [options]");
         System.out.println();
         System.out.println("Options:");
+        System.out.println("  --config=<file>                External configuration file, reloaded on change");
         System.out.println("  --listen-port=<port>           Port to listen on (default: 1080)");
         System.out.println("  --default-strategy=<strategy>  Default strategy: direct, redirect, segment");
         System.out.println("  --upstream-host=<host>         Upstream proxy host (default: 127.0.0.1)");
         System.out.println("  --upstream-port=<port>         Upstream proxy port (default: 9050)");
+        System.out.println("  --reuse-port                   Bind the listener with SO_REUSEPORT");
+        System.out.println("  --handoff-pid=<pid>            Drain the given previous instance once the listener is bound");
+        System.out.println("  --hash-password=<user>:<pass>  Print a credentials file entry and exit");
         System.out.println("  -h, --help                     Show this help message");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  java -jar socks5-proxy.jar");
         System.out.println("  java -jar socks5-proxy.jar --default-strategy=segment");
         System.out.println("  java -jar socks5-proxy.jar --upstream-host=proxy.example.com --upstream-port=1080");
+        System.out.println("  java -jar socks5-proxy.jar --reuse-port --handoff-pid=12345");
+        System.out.println("  java -jar socks5-proxy.jar --config=/etc/socks5/application.yml");
     }
 }
\ No newline at end of file
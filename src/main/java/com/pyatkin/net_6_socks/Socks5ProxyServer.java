@@ -1,19 +1,53 @@
 package com.pyatkin.net_6_socks;
 
+import com.pyatkin.net_6_socks.admin.ProxyAdmin;
+import com.pyatkin.net_6_socks.auth.Authenticator;
+import com.pyatkin.net_6_socks.auth.FileCredentialStore;
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.conf.LiveConfig;
+import com.pyatkin.net_6_socks.conf.ProxyConfig;
+import com.pyatkin.net_6_socks.diag.HeavyHitters;
+import com.pyatkin.net_6_socks.diag.SlowSessionRecorder;
+import com.pyatkin.net_6_socks.handler.AcceptFilter;
 import com.pyatkin.net_6_socks.handler.ClientHandler;
+import com.pyatkin.net_6_socks.mux.MuxClient;
 import com.pyatkin.net_6_socks.rules.RuleManager;
-import com.pyatkin.net_6_socks.traffic.TrafficSegmenter;
+import com.pyatkin.net_6_socks.rules.ShadowRules;
+import com.pyatkin.net_6_socks.session.BindPortPool;
+import com.pyatkin.net_6_socks.session.Bulkheads;
+import com.pyatkin.net_6_socks.session.CircuitBreakers;
+import com.pyatkin.net_6_socks.session.ConnectLatencies;
+import com.pyatkin.net_6_socks.session.SessionContext;
+import com.pyatkin.net_6_socks.session.WarmConnectionPool;
+import com.pyatkin.net_6_socks.state.RecentHosts;
+import com.pyatkin.net_6_socks.state.StateStore;
+import com.pyatkin.net_6_socks.trace.TraceWriter;
+import com.pyatkin.net_6_socks.traffic.BufferAutotuner;
+import com.pyatkin.net_6_socks.traffic.BufferPool;
+import com.pyatkin.net_6_socks.traffic.RelayScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -21,46 +55,42 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class Socks5ProxyServer {
     private static final Logger log = LoggerFactory.getLogger(Socks5ProxyServer.class);
+    // With SO_REUSEPORT, how long an accept may find nothing before the backlog counts as empty
+    private static final int BACKLOG_POLL_MS = 100;
+    private static final long BACKLOG_DRAIN_MS = 2000;
 
-    private final int listenPort;
-    private final String upstreamHost;
-    private final int upstreamPort;
-    private final String defaultStrategy;
-    private final String blacklistFile;
-    private final String whitelistFile;
-    private final String redirectFile;
-    private final String segmentFile;
-    private final int segmentBlockSize;
-    private final int segmentSize;
-    private final int segmentDelay;
+    private final LiveConfig config;
+    private final List<ProxyConfig.Listener> listeners;
+    private final boolean namedListeners;
+    private final boolean reusePort;
+    private final int drainTimeoutSec;
+    private final int drainProgressSec;
+    private final long handoffPid;
 
+    private final BindPortPool bindPorts;
     private final ExecutorService clientPool;
     private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
     private final AtomicLong acceptedConnections = new AtomicLong(0);
-    private ServerSocket serverSocket;
-
-    public Socks5ProxyServer(int listenPort,
-                             String upstreamHost,
-                             int upstreamPort,
-                             String defaultStrategy,
-                             String blacklistFile,
-                             String whitelistFile,
-                             String redirectFile,
-                             String segmentFile,
-                             int segmentBlockSize,
-                             int segmentSize,
-                             int segmentDelay) {
-        this.listenPort = listenPort;
-        this.upstreamHost = upstreamHost;
-        this.upstreamPort = upstreamPort;
-        this.defaultStrategy = defaultStrategy == null ? "direct" : defaultStrategy.toLowerCase();
-        this.blacklistFile = blacklistFile;
-        this.whitelistFile = whitelistFile;
-        this.redirectFile = redirectFile;
-        this.segmentFile = segmentFile;
-        this.segmentBlockSize = segmentBlockSize;
-        this.segmentSize = segmentSize;
-        this.segmentDelay = segmentDelay;
+    private final AtomicInteger activeSessions = new AtomicInteger(0);
+    private final AcceptFilter acceptFilter = new AcceptFilter();
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
+    // Accept loops still running, waited for before listeners are closed; guarded by acceptLock
+    private final Object acceptLock = new Object();
+    private int acceptLoops;
+    private volatile WarmConnectionPool warmPool;
+    private volatile MuxClient muxClient;
+
+    public Socks5ProxyServer(LiveConfig config) {
+        ProxyConfig cfg = config.startup();
+        this.config = config;
+        this.listeners = cfg.effectiveListeners();
+        this.namedListeners = !cfg.listeners.isEmpty();
+        this.reusePort = cfg.server.reusePort;
+        this.drainTimeoutSec = cfg.server.drainTimeoutSec;
+        this.drainProgressSec = cfg.server.drainProgressSec;
+        this.handoffPid = cfg.server.handoffPid;
+        this.bindPorts = new BindPortPool(cfg.bind.portRangeStart, cfg.bind.portRangeEnd);
 
         this.clientPool = Executors.newCachedThreadPool(r -> {
             Thread thread = new Thread(r);
@@ -81,124 +111,398 @@ public class Socks5ProxyServer {
 
         log.info("=".repeat(60));
         log.info("Starting SOCKS5 Proxy Server");
-        log.info("  Listen Port: {}", listenPort);
-        log.info("  Default Strategy: {}", defaultStrategy);
-        log.info("  Upstream: {}:{}", upstreamHost, upstreamPort);
-        log.info("  Segmentation: blockSize={}, segmentSize={}, delayMs={}",
-                segmentBlockSize, segmentSize, segmentDelay);
+        for (ProxyConfig.Listener listener : listeners) {
+            ConfigSnapshot snapshot = config.current().forListener(listener.getName());
+            log.info("  Listener {}: port={}, strategy={}, segmentation: blockSize={}, segmentSize={}, delayMs={}",
+                    listener.getName(), listener.port, snapshot.getDefaultStrategy(),
+                    snapshot.getSegmenter().getSegmentBlockSize(),
+                    snapshot.getSegmenter().getSegmentSize(),
+                    snapshot.getSegmenter().getSegmentDelayMs());
+        }
+        log.info("  Upstreams: {}", config.current().getUpstreams());
         log.info("=".repeat(60));
 
-        // Initialize rule manager
-        RuleManager ruleManager = new RuleManager(
-                blacklistFile,
-                whitelistFile,
-                redirectFile,
-                segmentFile
-        );
-
-        // Initialize traffic segmenter
-        TrafficSegmenter segmenter = new TrafficSegmenter(
-                segmentBlockSize,
-                segmentSize,
-                segmentDelay
-        );
+        Authenticator authenticator = null;
+        ProxyConfig.Auth auth = config.startup().auth;
+        if (auth.enabled) {
+            authenticator = new Authenticator(new FileCredentialStore(auth.credentialsFile), auth.cacheTtlSec);
+            log.info("Username/password authentication enabled ({})", auth.credentialsFile);
+        }
+
+        // Everything but the rules and the listener's own settings is shared by all listeners
+        muxClient = new MuxClient();
+        BufferAutotuner bufferAutotuner = new BufferAutotuner();
+        CircuitBreakers circuitBreakers = new CircuitBreakers();
+        warmPool = new WarmConnectionPool(config, circuitBreakers);
+        SlowSessionRecorder slowSessions = new SlowSessionRecorder();
+        TraceWriter traces = new TraceWriter();
+        Bulkheads bulkheads = new Bulkheads(config.current());
+        RelayScheduler relayScheduler = new RelayScheduler(new BufferPool(config.startup().relay.poolBytes));
+        RecentHosts recentHosts = new RecentHosts();
+        HeavyHitters heavyHitters = new HeavyHitters();
+        ConnectLatencies connectLatencies = new ConnectLatencies();
+
+        // Listeners naming the same rule files share one compiled rule set
+        Map<List<String>, RuleManager> compiledRules = new LinkedHashMap<>();
+        Map<List<String>, ShadowRules> shadowRules = new LinkedHashMap<>();
+        List<SessionContext> contexts = new ArrayList<>();
+        for (ProxyConfig.Listener listener : listeners) {
+            ProxyConfig.Rules files = config.startup().forListener(listener).rules;
+            List<String> key = Arrays.asList(files.blacklist, files.whitelist, files.redirect, files.segment);
+            RuleManager ruleManager = compiledRules.computeIfAbsent(key,
+                    k -> new RuleManager(files.blacklist, files.whitelist, files.redirect, files.segment));
+            ShadowRules shadow = shadowRules.computeIfAbsent(key,
+                    k -> new ShadowRules(files.blacklist, files.whitelist, files.redirect, files.segment));
+
+            SessionContext context = new SessionContext(ruleManager, config.forListener(listener.getName()),
+                    bindPorts, authenticator, bufferAutotuner, warmPool, circuitBreakers, slowSessions, muxClient,
+                    traces, bulkheads, relayScheduler, shadow, recentHosts, heavyHitters, connectLatencies);
+            new ProxyAdmin(this, context).register(listener.port, namedListeners ? listener.getName() : null);
+            contexts.add(context);
+        }
+        if (compiledRules.size() < listeners.size()) {
+            log.info("{} listeners share {} compiled rule sets", listeners.size(), compiledRules.size());
+        }
+
+        // Learned state from the previous run, loaded while we already accept connections
+        ProxyConfig.State state = config.startup().state;
+        StateStore stateStore = state.file == null ? null : new StateStore(Paths.get(state.file),
+                state.intervalSec, state.maxAgeSec,
+                List.of(bufferAutotuner, circuitBreakers, warmPool, recentHosts, connectLatencies));
+        if (stateStore != null) {
+            stateStore.start();
+        }
 
         // Add shutdown hook
+        SessionContext shared = contexts.get(0);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("Shutdown signal received");
             shutdown();
-            ruleManager.logHitStatistics();
+            if (stateStore != null) {
+                stateStore.close();
+            }
+            acceptFilter.logStatistics();
+            compiledRules.values().forEach(RuleManager::logHitStatistics);
+            shadowRules.values().forEach(ShadowRules::logStatistics);
+            warmPool.logStatistics();
+            circuitBreakers.logStatistics();
+            connectLatencies.logStatistics();
+            slowSessions.logStatistics();
+            bulkheads.logStatistics();
+            relayScheduler.logStatistics();
+            traces.close();
+            traces.logStatistics();
+            if (shared.getAuthenticator() != null) {
+                shared.getAuthenticator().logStatistics();
+            }
         }, "ShutdownHook"));
 
+        String binding = null;
         try {
-            serverSocket = new ServerSocket(listenPort);
-            serverSocket.setReuseAddress(true);
-            log.info("Server listening on port {}", listenPort);
+            for (ProxyConfig.Listener listener : listeners) {
+                binding = describeAddress(listener);
+                serverSockets.add(openServerSocket(listener));
+                log.info("Listener {} accepting on {}", listener.getName(), binding);
+            }
+            binding = null;
 
-            while (running.get()) {
-                try {
-                    Socket client = serverSocket.accept();
-                    long connNumber = acceptedConnections.incrementAndGet();
+            if (handoffPid > 0) {
+                handOffFrom(handoffPid);
+            }
 
-                    log.info("Accepted connection #{} from {}",
-                            connNumber, client.getRemoteSocketAddress());
+            // The first listener accepts on this thread, every other one on its own
+            for (int i = 1; i < listeners.size(); i++) {
+                ServerSocket socket = serverSockets.get(i);
+                SessionContext context = contexts.get(i);
+                new Thread(() -> acceptLoop(socket, context), "Acceptor-" + listeners.get(i).getName()).start();
+            }
+            acceptLoop(serverSockets.get(0), contexts.get(0));
 
-                    ClientHandler handler = new ClientHandler(
-                            client,
-                            ruleManager,
-                            segmenter,
-                            defaultStrategy,
-                            upstreamHost,
-                            upstreamPort
-                    );
+        } catch (IOException e) {
+            log.error("Failed to start server on {}: {}", binding, e.getMessage(), e);
+        } finally {
+            shutdown();
+            log.info("Server stopped. Total connections accepted: {}", acceptedConnections.get());
+        }
+    }
 
-                    clientPool.submit(handler);
+    /**
+     * Accepts connections on one listener until the server stops, handing each admitted
+     * one to the shared client pool with the listener's context.
+     */
+    private void acceptLoop(ServerSocket serverSocket, SessionContext context) {
+        synchronized (acceptLock) {
+            acceptLoops++;
+        }
+        try {
+            acceptConnections(serverSocket, context);
+        } finally {
+            synchronized (acceptLock) {
+                acceptLoops--;
+                acceptLock.notifyAll();
+            }
+        }
+    }
 
-                } catch (SocketException e) {
+    /**
+     * Accepts until the server stops. A listener sharing its port through SO_REUSEPORT
+     * keeps accepting after that until its backlog is empty, since closing it would
+     * reset the connections the kernel has already queued on it.
+     */
+    private void acceptConnections(ServerSocket serverSocket, SessionContext context) {
+        while (running.get() || reusePort) {
+            try {
+                Socket client;
+                try {
+                    client = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
                     if (running.get()) {
-                        log.error("Socket error: {}", e.getMessage());
-                    } else {
-                        log.debug("Server socket closed during shutdown");
+                        continue;
                     }
+                    log.info("Listener {} backlog empty", serverSocket.getLocalPort());
                     break;
-                } catch (IOException e) {
-                    if (running.get()) {
-                        log.error("Error accepting connection: {}", e.getMessage());
-                    }
+                }
+                ConfigSnapshot snapshot = context.getConfig().current();
+                if (!acceptFilter.admit(client.getInetAddress(), snapshot)) {
+                    reset(client);
+                    continue;
+                }
+                long connNumber = acceptedConnections.incrementAndGet();
+
+                log.info("Accepted connection #{} from {} on {}",
+                        connNumber, client.getRemoteSocketAddress(), client.getLocalPort());
+
+                int maxSessions = snapshot.getMaxSessions();
+                if (maxSessions > 0 && activeSessions.get() >= maxSessions) {
+                    log.warn("Session limit ({}) reached - rejecting {}",
+                            maxSessions, client.getRemoteSocketAddress());
+                    closeQuietly(client);
+                    continue;
+                }
+
+                ClientHandler handler = new ClientHandler(client, context);
+
+                activeSessions.incrementAndGet();
+                try {
+                    clientPool.submit(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            activeSessions.decrementAndGet();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Accepted from the backlog just as the drain gave up waiting for it
+                    activeSessions.decrementAndGet();
+                    reset(client);
+                }
+
+            } catch (SocketException e) {
+                if (running.get()) {
+                    log.error("Socket error: {}", e.getMessage());
+                } else {
+                    log.debug("Server socket closed during shutdown");
+                }
+                break;
+            } catch (IOException e) {
+                if (running.get()) {
+                    log.error("Error accepting connection: {}", e.getMessage());
                 }
             }
+        }
+    }
 
+    /**
+     * Opens a listening socket, with SO_REUSEPORT when configured so that
+     * a replacement process can bind the same port before this one drains.
+     */
+    private ServerSocket openServerSocket(ProxyConfig.Listener listener) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+
+        if (reusePort) {
+            if (socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                // Lets the accept loop notice an empty backlog while draining
+                socket.setSoTimeout(BACKLOG_POLL_MS);
+                log.info("SO_REUSEPORT enabled on listener {}", listener.getName());
+            } else {
+                log.warn("SO_REUSEPORT is not supported on this platform - restart handoff disabled");
+            }
+        }
+
+        try {
+            socket.bind(listener.bindAddress == null ? new InetSocketAddress(listener.port)
+                    : new InetSocketAddress(listener.bindAddress, listener.port));
         } catch (IOException e) {
-            log.error("Failed to start server on port {}: {}", listenPort, e.getMessage(), e);
-        } finally {
-            shutdown();
-            log.info("Server stopped. Total connections accepted: {}", acceptedConnections.get());
+            socket.close();
+            throw e;
         }
+        return socket;
+    }
+
+    private static String describeAddress(ProxyConfig.Listener listener) {
+        return (listener.bindAddress != null ? listener.bindAddress : "*") + ":" + listener.port;
+    }
+
+    /**
+     * Asks the previous instance to drain once our listener is bound.
+     * The old process receives SIGTERM and drains through its shutdown hook.
+     */
+    private void handOffFrom(long pid) {
+        ProcessHandle.of(pid).ifPresentOrElse(old -> {
+            log.info("Listener bound - asking previous instance (pid {}) to drain", pid);
+            if (!old.destroy()) {
+                log.warn("Failed to signal previous instance (pid {})", pid);
+            }
+        }, () -> log.warn("Previous instance (pid {}) not found - nothing to hand off", pid));
     }
 
     /**
      * Stops the proxy server gracefully.
      */
     public void shutdown() {
-        if (!running.getAndSet(false)) {
+        drain(drainTimeoutSec);
+    }
+
+    /**
+     * Stops accepting new connections and lets existing tunnels run to their
+     * natural end, reporting progress periodically.
+     *
+     * @param timeoutSec how long to wait before forcing shutdown, 0 to wait indefinitely
+     */
+    public void drain(int timeoutSec) {
+        running.set(false);
+        if (stopped.getAndSet(true)) {
             return;
         }
 
-        log.info("Shutting down server...");
+        log.info("Draining server - no new connections will be accepted");
+        config.close();
+        if (warmPool != null) {
+            warmPool.close();
+        }
+        if (reusePort) {
+            awaitEmptyBacklogs();
+        }
 
-        // Close server socket
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-                log.info("Server socket closed");
-            } catch (IOException e) {
-                log.error("Error closing server socket: {}", e.getMessage());
+        // Close server sockets
+        for (ServerSocket serverSocket : serverSockets) {
+            if (!serverSocket.isClosed()) {
+                try {
+                    serverSocket.close();
+                    log.info("Server socket {} closed", serverSocket.getLocalPort());
+                } catch (IOException e) {
+                    log.error("Error closing server socket: {}", e.getMessage());
+                }
             }
         }
 
         // Shutdown thread pool
         clientPool.shutdown();
+        long startNanos = System.nanoTime();
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSec);
         try {
-            log.info("Waiting for active connections to complete (timeout: 30s)...");
-            if (!clientPool.awaitTermination(30, TimeUnit.SECONDS)) {
-                log.warn("Timeout waiting for connections - forcing shutdown");
-                clientPool.shutdownNow();
+            log.info("Waiting for {} active sessions to complete (timeout: {})",
+                    activeSessions.get(), timeoutSec > 0 ? timeoutSec + "s" : "none");
+
+            // Mux connections from edges never end on their own; drop them once their streams are done
+            closeIdleMux();
+            while (!clientPool.awaitTermination(waitSlice(startNanos, timeoutNanos), TimeUnit.MILLISECONDS)) {
+                closeIdleMux();
+                long elapsedNanos = System.nanoTime() - startNanos;
+                long elapsedSec = TimeUnit.NANOSECONDS.toSeconds(elapsedNanos);
+                if (timeoutNanos > 0 && elapsedNanos >= timeoutNanos) {
+                    log.warn("Drain timeout after {}s with {} sessions active - forcing shutdown",
+                            elapsedSec, activeSessions.get());
+                    if (muxClient != null) {
+                        muxClient.close();
+                    }
+                    clientPool.shutdownNow();
 
-                if (!clientPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                    log.error("Thread pool did not terminate");
+                    if (!clientPool.awaitTermination(10, TimeUnit.SECONDS)) {
+                        log.error("Thread pool did not terminate");
+                    }
+                    break;
                 }
-            } else {
+                log.info("Draining: {} sessions active, {}s elapsed", activeSessions.get(), elapsedSec);
+            }
+
+            if (clientPool.isTerminated() && activeSessions.get() == 0) {
                 log.info("All connections completed gracefully");
             }
         } catch (InterruptedException e) {
-            log.warn("Shutdown interrupted - forcing shutdown");
+            log.warn("Drain interrupted - forcing shutdown");
             clientPool.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        if (muxClient != null) {
+            muxClient.close();
+        }
 
         log.info("Server shutdown complete");
     }
 
+    /**
+     * Waits, for at most {@value #BACKLOG_DRAIN_MS} ms, until the accept loops have taken
+     * every connection already queued on their listeners. Connects that reach a listener
+     * between its last accept and its close are still reset, unless the kernel moves
+     * them to the replacement process (net.ipv4.tcp_migrate_req).
+     */
+    private void awaitEmptyBacklogs() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BACKLOG_DRAIN_MS);
+        synchronized (acceptLock) {
+            try {
+                long remainingMs;
+                while (acceptLoops > 0
+                        && (remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                    acceptLock.wait(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (acceptLoops > 0) {
+                log.warn("Listeners still busy after {}ms - closing them with connections queued",
+                        BACKLOG_DRAIN_MS);
+            }
+        }
+    }
+
+    private void closeIdleMux() {
+        if (muxClient != null) {
+            muxClient.closeIdleAccepted();
+        }
+    }
+
+    /**
+     * Closes a rejected connection with a reset, so it leaves no TIME_WAIT behind.
+     */
+    private void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+            log.debug("Error resetting rejected socket: {}", e.getMessage());
+        }
+        closeQuietly(socket);
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Error closing rejected socket: {}", e.getMessage());
+        }
+    }
+
+    private long waitSlice(long startNanos, long timeoutNanos) {
+        long sliceMs = TimeUnit.SECONDS.toMillis(drainProgressSec);
+        if (timeoutNanos <= 0) {
+            return sliceMs;
+        }
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(timeoutNanos - (System.nanoTime() - startNanos));
+        return Math.max(1, Math.min(sliceMs, remainingMs));
+    }
+
     /**
      * Checks if server is running.
      */
@@ -212,4 +516,18 @@ public class Socks5ProxyServer {
     public long getAcceptedConnections() {
         return acceptedConnections.get();
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the number of sessions that have not finished yet.
+     */
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * Connections closed right after accept, by the client ACL or the per-source connect rate.
+     */
+    public AcceptFilter getAcceptFilter() {
+        return acceptFilter;
+    }
+}
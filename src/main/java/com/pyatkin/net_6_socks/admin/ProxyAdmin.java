@@ -0,0 +1,138 @@
+package com.pyatkin.net_6_socks.admin;
+
+import com.pyatkin.net_6_socks.Socks5ProxyServer;
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.session.SessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * JMX view of one proxy server and the services its sessions share.
+ */
+public class ProxyAdmin implements ProxyAdminMBean {
+    private static final Logger log = LoggerFactory.getLogger(ProxyAdmin.class);
+
+    private final Socks5ProxyServer server;
+    private final SessionContext context;
+
+    public ProxyAdmin(Socks5ProxyServer server, SessionContext context) {
+        this.server = server;
+        this.context = context;
+    }
+
+    /**
+     * Registers this bean as {@code com.pyatkin.net_6_socks:type=ProxyAdmin,port=<listenPort>},
+     * with a {@code listener} key as well for configured listeners.
+     * Failures are logged - monitoring must never keep the proxy from starting.
+     *
+     * @param listenerName name of a configured listener, or null for the single default one
+     */
+    public void register(int listenPort, String listenerName) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.pyatkin.net_6_socks:type=ProxyAdmin,port=" + listenPort +
+                    (listenerName != null ? ",listener=" + ObjectName.quote(listenerName) : ""));
+            mbeans.registerMBean(this, name);
+            log.info("Management bean registered as {}", name);
+        } catch (JMException e) {
+            log.warn("Failed to register management bean: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return server.getActiveSessions();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return server.getAcceptedConnections();
+    }
+
+    @Override
+    public long getRejectedByAcl() {
+        return server.getAcceptFilter().getDenied();
+    }
+
+    @Override
+    public long getRejectedByConnectRate() {
+        return server.getAcceptFilter().getRateLimited();
+    }
+
+    @Override
+    public long getConfigVersion() {
+        return context.getConfig().current().getVersion();
+    }
+
+    @Override
+    public long getCircuitTrips() {
+        return context.getCircuitBreakers().getTrips();
+    }
+
+    @Override
+    public long getCircuitFastFailures() {
+        return context.getCircuitBreakers().getRejected();
+    }
+
+    @Override
+    public String[] getCircuitStates() {
+        return context.getCircuitBreakers().describe().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] dumpSlowSessions() {
+        return context.getSlowSessions().dump().toArray(new String[0]);
+    }
+
+    @Override
+    public void resetSlowSessions() {
+        context.getSlowSessions().reset();
+    }
+
+    @Override
+    public String[] getMuxConnections() {
+        return context.getMuxClient().describe().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getBulkheads() {
+        return context.getBulkheads().describe().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getShadowRules() {
+        return context.getShadowRules().describe().toArray(new String[0]);
+    }
+
+    @Override
+    public void reloadShadowRules() {
+        context.getShadowRules().reload();
+    }
+
+    @Override
+    public String getRelayScheduling() {
+        return context.getRelayScheduler().describe();
+    }
+
+    @Override
+    public String[] getConnectTimes() {
+        return context.getConnectLatencies().describe().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getBufferEstimates() {
+        ConfigSnapshot config = context.getConfig().current();
+        return context.getBufferAutotuner().describe(config.getMinBufferBytes(), config.getMaxBufferBytes())
+                .toArray(new String[0]);
+    }
+
+    @Override
+    public String[] heavyHitters(String window, int k) {
+        return context.getHeavyHitters().describe(window, k).toArray(new String[0]);
+    }
+}
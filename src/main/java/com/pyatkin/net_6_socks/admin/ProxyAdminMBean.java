@@ -0,0 +1,94 @@
+package com.pyatkin.net_6_socks.admin;
+
+/**
+ * Management interface of a running proxy, exposed over JMX
+ * (jconsole, VisualVM, or any JMX client).
+ */
+public interface ProxyAdminMBean {
+
+    /**
+     * Sessions in progress, across all listeners of the process.
+     */
+    int getActiveSessions();
+
+    /**
+     * Connections accepted since start, across all listeners of the process.
+     */
+    long getAcceptedConnections();
+
+    /**
+     * Connections closed right after accept because the client ACL denies their address.
+     */
+    long getRejectedByAcl();
+
+    /**
+     * Connections closed right after accept because their address exceeded clients.connectsPerSec.
+     */
+    long getRejectedByConnectRate();
+
+    long getConfigVersion();
+
+    /**
+     * Times any destination's circuit breaker has opened.
+     */
+    long getCircuitTrips();
+
+    /**
+     * Connects refused immediately because a circuit was open.
+     */
+    long getCircuitFastFailures();
+
+    /**
+     * One line per destination currently tracked by a circuit breaker.
+     */
+    String[] getCircuitStates();
+
+    /**
+     * Sessions with the longest setup time, slowest first, with their phase breakdown.
+     */
+    String[] dumpSlowSessions();
+
+    void resetSlowSessions();
+
+    /**
+     * One line per mux upstream with its live connections and streams.
+     */
+    String[] getMuxConnections();
+
+    /**
+     * One line per strategy: tunnels running and waiting, admissions, rejections and queue wait.
+     */
+    String[] getBulkheads();
+
+    /**
+     * How the candidate rules compare with the active ones: differing decisions by kind,
+     * with example hosts, and rule evaluation cost of both.
+     */
+    String[] getShadowRules();
+
+    /**
+     * Re-reads the candidate rule files on the next sample and starts the comparison over.
+     */
+    void reloadShadowRules();
+
+    /**
+     * Interactive and bulk tunnels now, and how often bulk tunnels waited for a turn.
+     */
+    String getRelayScheduling();
+
+    /**
+     * Shortened timeouts and hedged connects so far, then recent connect times per destination.
+     */
+    String[] getConnectTimes();
+
+    /**
+     * Throughput, RTT and recommended buffer size per endpoint, as the socket autotuner sees them.
+     */
+    String[] getBufferEstimates();
+
+    /**
+     * Top {@code k} destinations and clients by connections and by bytes over the last
+     * "1m", "5m" or "1h". Estimates, never below the true counts.
+     */
+    String[] heavyHitters(String window, int k);
+}
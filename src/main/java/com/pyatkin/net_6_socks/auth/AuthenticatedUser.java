@@ -0,0 +1,38 @@
+package com.pyatkin.net_6_socks.auth;
+
+import com.pyatkin.net_6_socks.traffic.RateLimiter;
+
+/**
+ * User attached to a session after successful authentication.
+ */
+public final class AuthenticatedUser {
+    private final String username;
+    private final UserPolicy policy;
+    private final RateLimiter bandwidthLimiter;
+
+    AuthenticatedUser(String username, UserPolicy policy, RateLimiter bandwidthLimiter) {
+        this.username = username;
+        this.policy = policy;
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public UserPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Limiter shared by all sessions of this user, or null if bandwidth is unlimited.
+     */
+    public RateLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+}
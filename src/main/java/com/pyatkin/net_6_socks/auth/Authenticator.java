@@ -0,0 +1,138 @@
+package com.pyatkin.net_6_socks.auth;
+
+import com.pyatkin.net_6_socks.traffic.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Username/password authentication in front of a {@link CredentialStore}.
+ *
+ * Successful verifications are cached as a keyed SHA-256 digest for
+ * {@code cacheTtlSec}, so the slow store check only runs once per user and
+ * TTL instead of on every connection. Also tracks per-user session quotas.
+ */
+public class Authenticator {
+    private static final Logger log = LoggerFactory.getLogger(Authenticator.class);
+    private static final int MAX_CACHED_USERS = 10_000;
+
+    private final CredentialStore store;
+    private final long cacheTtlNanos;
+    private final byte[] cacheKey = new byte[32];
+
+    private final Map<String, CachedCredential> cache = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> activeSessions = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong storeChecks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public Authenticator(CredentialStore store, int cacheTtlSec) {
+        this.store = store;
+        this.cacheTtlNanos = TimeUnit.SECONDS.toNanos(cacheTtlSec);
+        new SecureRandom().nextBytes(cacheKey);
+    }
+
+    /**
+     * Verifies credentials. Returns the authenticated user, or null on failure.
+     */
+    public AuthenticatedUser authenticate(String username, byte[] password) {
+        byte[] digest = digest(username, password);
+        long now = System.nanoTime();
+
+        CachedCredential cached = cache.get(username);
+        if (cached != null && now - cached.verifiedAt < cacheTtlNanos && MessageDigest.isEqual(cached.digest, digest)) {
+            cacheHits.incrementAndGet();
+            return user(username);
+        }
+
+        storeChecks.incrementAndGet();
+        if (!store.verify(username, password)) {
+            failures.incrementAndGet();
+            cache.remove(username);
+            return null;
+        }
+
+        if (cacheTtlNanos > 0) {
+            if (cache.size() >= MAX_CACHED_USERS) {
+                cache.clear();
+            }
+            cache.put(username, new CachedCredential(digest, now));
+        }
+        return user(username);
+    }
+
+    private AuthenticatedUser user(String username) {
+        UserPolicy policy = store.policy(username);
+        RateLimiter limiter = null;
+        if (policy.getBandwidthBytesPerSec() > 0) {
+            limiter = limiters.computeIfAbsent(username, u -> new RateLimiter(policy.getBandwidthBytesPerSec()));
+        }
+        return new AuthenticatedUser(username, policy, limiter);
+    }
+
+    /**
+     * Reserves a session slot for the user. Returns false if the user is at the limit.
+     */
+    public boolean acquireSession(AuthenticatedUser user) {
+        int max = user.getPolicy().getMaxConnections();
+        AtomicInteger counter = activeSessions.computeIfAbsent(user.getUsername(), u -> new AtomicInteger());
+        while (true) {
+            int current = counter.get();
+            if (max > 0 && current >= max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseSession(AuthenticatedUser user) {
+        AtomicInteger counter = activeSessions.get(user.getUsername());
+        if (counter != null) {
+            counter.decrementAndGet();
+        }
+    }
+
+    public void logStatistics() {
+        log.info("=== Authentication Statistics ===");
+        log.info("  cache hits: {}", cacheHits.get());
+        log.info("  credential store checks: {}", storeChecks.get());
+        log.info("  failures: {}", failures.get());
+        log.info("=================================");
+    }
+
+    private byte[] digest(String username, byte[] password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(cacheKey);
+            sha.update(username.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update(password);
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class CachedCredential {
+        final byte[] digest;
+        final long verifiedAt;
+
+        CachedCredential(byte[] digest, long verifiedAt) {
+            this.digest = digest;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+}
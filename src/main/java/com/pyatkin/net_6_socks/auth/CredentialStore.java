@@ -0,0 +1,18 @@
+package com.pyatkin.net_6_socks.auth;
+
+/**
+ * Source of user credentials and policies.
+ * Implementations may be slow (e.g. key-stretching hashes); callers cache results.
+ */
+public interface CredentialStore {
+
+    /**
+     * Checks a username/password pair.
+     */
+    boolean verify(String username, byte[] password);
+
+    /**
+     * Policy for a known user.
+     */
+    UserPolicy policy(String username);
+}
@@ -0,0 +1,149 @@
+package com.pyatkin.net_6_socks.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Credentials file with one user per line:
+ * <pre>
+ *   username:iterations:saltBase64:hashBase64 [strategy=segment] [maxConnections=10] [bandwidth=1048576]
+ * </pre>
+ * Hashes are PBKDF2-HMAC-SHA256, see {@link PasswordHasher}.
+ */
+public class FileCredentialStore implements CredentialStore {
+    private static final Logger log = LoggerFactory.getLogger(FileCredentialStore.class);
+
+    private final Map<String, Entry> users = new HashMap<>();
+
+    public FileCredentialStore(String path) {
+        File file = new File(path);
+        if (file.exists() && file.isFile()) {
+            try (Reader reader = new FileReader(file, StandardCharsets.UTF_8)) {
+                load(reader, file.getAbsolutePath());
+            } catch (IOException e) {
+                log.error("Failed to read credentials file {}: {}", file.getAbsolutePath(), e.getMessage());
+            }
+        } else {
+            try (InputStream is = FileCredentialStore.class.getClassLoader().getResourceAsStream(path)) {
+                if (is == null) {
+                    log.warn("Credentials {} not found - no user will be able to log in", path);
+                    return;
+                }
+                load(new InputStreamReader(is, StandardCharsets.UTF_8), path);
+            } catch (IOException e) {
+                log.error("Failed to read classpath credentials {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    private void load(Reader source, String name) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                Entry entry = parseLine(line);
+                users.put(entry.username, entry);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid credentials entry in {} at line {}: {}", name, lineNumber, e.getMessage());
+            }
+        }
+
+        log.info("Loaded {} users from {}", users.size(), name);
+    }
+
+    private Entry parseLine(String line) {
+        String[] parts = line.split("\\s+");
+        String[] fields = parts[0].split(":");
+        if (fields.length != 4 || fields[0].isEmpty()) {
+            throw new IllegalArgumentException("expected username:iterations:salt:hash");
+        }
+
+        String strategy = null;
+        int maxConnections = 0;
+        long bandwidth = 0;
+        for (int i = 1; i < parts.length; i++) {
+            int idx = parts[i].indexOf('=');
+            if (idx < 1) {
+                throw new IllegalArgumentException("invalid option: " + parts[i]);
+            }
+            String key = parts[i].substring(0, idx);
+            String value = parts[i].substring(idx + 1);
+            switch (key) {
+                case "strategy":
+                    if (!value.matches("direct|redirect|segment")) {
+                        throw new IllegalArgumentException("invalid strategy: " + value);
+                    }
+                    strategy = value;
+                    break;
+                case "maxConnections":
+                    maxConnections = Integer.parseInt(value);
+                    break;
+                case "bandwidth":
+                    bandwidth = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + key);
+            }
+        }
+
+        Base64.Decoder b64 = Base64.getDecoder();
+        return new Entry(fields[0], Integer.parseInt(fields[1]), b64.decode(fields[2]), b64.decode(fields[3]),
+                new UserPolicy(strategy, maxConnections, bandwidth));
+    }
+
+    @Override
+    public boolean verify(String username, byte[] password) {
+        Entry entry = users.get(username);
+        if (entry == null) {
+            return false;
+        }
+        byte[] hash = PasswordHasher.hash(password, entry.salt, entry.iterations);
+        return MessageDigest.isEqual(hash, entry.hash);
+    }
+
+    @Override
+    public UserPolicy policy(String username) {
+        Entry entry = users.get(username);
+        return entry != null ? entry.policy : UserPolicy.DEFAULT;
+    }
+
+    private static final class Entry {
+        final String username;
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+        final UserPolicy policy;
+
+        Entry(String username, int iterations, byte[] salt, byte[] hash, UserPolicy policy) {
+            if (iterations < 1) {
+                throw new IllegalArgumentException("invalid iterations: " + iterations);
+            }
+            this.username = username;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.pyatkin.net_6_socks.auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes.
+ */
+public final class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 120_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    public static byte[] hash(byte[] password, byte[] salt, int iterations) {
+        char[] chars = toChars(password);
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * Builds a credentials file entry: {@code user:iterations:salt:hash}.
+     */
+    public static String entry(String username, String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = hash(password.getBytes(StandardCharsets.UTF_8), salt, DEFAULT_ITERATIONS);
+
+        Base64.Encoder b64 = Base64.getEncoder();
+        return username + ":" + DEFAULT_ITERATIONS + ":" + b64.encodeToString(salt) + ":" + b64.encodeToString(hash);
+    }
+
+    private static char[] toChars(byte[] password) {
+        CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(password));
+        char[] chars = new char[decoded.remaining()];
+        decoded.get(chars);
+        Arrays.fill(decoded.array(), '\0');
+        return chars;
+    }
+}
@@ -0,0 +1,45 @@
+package com.pyatkin.net_6_socks.auth;
+
+/**
+ * Per-user settings attached to an authenticated session.
+ */
+public final class UserPolicy {
+    public static final UserPolicy DEFAULT = new UserPolicy(null, 0, 0);
+
+    private final String defaultStrategy;
+    private final int maxConnections;
+    private final long bandwidthBytesPerSec;
+
+    public UserPolicy(String defaultStrategy, int maxConnections, long bandwidthBytesPerSec) {
+        this.defaultStrategy = defaultStrategy;
+        this.maxConnections = maxConnections;
+        this.bandwidthBytesPerSec = bandwidthBytesPerSec;
+    }
+
+    /**
+     * Strategy used instead of the global default when no rule matches, or null.
+     */
+    public String getDefaultStrategy() {
+        return defaultStrategy;
+    }
+
+    /**
+     * Maximum concurrent sessions for the user, 0 = unlimited.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Total bandwidth shared by all sessions of the user, 0 = unlimited.
+     */
+    public long getBandwidthBytesPerSec() {
+        return bandwidthBytesPerSec;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserPolicy{strategy=%s, maxConnections=%d, bandwidth=%d B/s}",
+                defaultStrategy != null ? defaultStrategy : "default", maxConnections, bandwidthBytesPerSec);
+    }
+}
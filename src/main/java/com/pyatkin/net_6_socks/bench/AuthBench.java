@@ -0,0 +1,111 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handshake throughput through a proxy with username/password authentication.
+ *
+ * Starts a local sink on {@code --sink-port} that accepts and closes. Logs in once
+ * alone, which pays the password hash unless the cache already holds it, then
+ * {@code --clients} threads each run {@code --handshakes} complete handshakes
+ * (method negotiation, RFC 1929 login, CONNECT to the sink) and close. Prints the
+ * first login time, the handshakes per second and their latency. Run it against a
+ * proxy with {@code auth.enabled} and a credentials file holding {@code --user};
+ * without {@code --user} it measures the handshake with no authentication.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.AuthBench --proxy=127.0.0.1:1080 \
+ *      --user=alice --password=secret --clients=8 --handshakes=1000
+ * </pre>
+ */
+public final class AuthBench {
+
+    private AuthBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        String user = null;
+        String password = "";
+        int sinkPort = 19051;
+        int clients = 8;
+        int handshakes = 1000;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--user=")) {
+                user = value;
+            } else if (arg.startsWith("--password=")) {
+                password = value;
+            } else if (arg.startsWith("--sink-port=")) {
+                sinkPort = Integer.parseInt(value);
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--handshakes=")) {
+                handshakes = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("AuthBench [--proxy=host:port] [--user=<name> --password=<password>]"
+                        + " [--sink-port=<port>] [--clients=<n>] [--handshakes=<per client>]");
+            }
+        }
+
+        InetSocketAddress proxyAddress = BenchClient.address(proxy);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket sink = new ServerSocket(sinkPort, 1024, loopback)) {
+            Thread acceptor = new Thread(() -> closeAccepted(sink), "AuthBenchSink");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            long firstStart = System.nanoTime();
+            BenchClient.open(proxyAddress, loopback, sinkPort, user, password).close();
+            System.out.printf("First login: %.2fms%n", (System.nanoTime() - firstStart) / 1e6);
+
+            System.out.printf("Running %d x %d handshakes through %s %s%n", clients, handshakes, proxy,
+                    user != null ? "as " + user : "without authentication");
+            LatencyReport latency = new LatencyReport();
+            String username = user;
+            String pass = password;
+            int port = sinkPort;
+            int perClient = handshakes;
+            List<Thread> threads = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                Thread client = new Thread(() -> {
+                    for (int j = 0; j < perClient; j++) {
+                        long begin = System.nanoTime();
+                        try {
+                            BenchClient.open(proxyAddress, loopback, port, username, pass).close();
+                            latency.add(System.nanoTime() - begin);
+                        } catch (IOException e) {
+                            latency.failure();
+                        }
+                    }
+                }, "AuthBenchClient");
+                client.start();
+                threads.add(client);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Handshakes: %.0f/s%n", latency.count() / seconds);
+            System.out.println("Handshake latency: " + latency.summary());
+        }
+    }
+
+    private static void closeAccepted(ServerSocket sink) {
+        try {
+            while (true) {
+                sink.accept().close();
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+}
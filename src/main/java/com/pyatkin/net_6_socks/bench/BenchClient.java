@@ -0,0 +1,125 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal SOCKS5 client and argument helpers shared by the benchmark mains.
+ */
+final class BenchClient {
+    static final int TIMEOUT_MS = 30000;
+    static final int CMD_CONNECT = 0x01;
+    static final int CMD_UDP_ASSOCIATE = 0x03;
+
+    private BenchClient() {
+    }
+
+    /**
+     * Opens a tunnel to {@code target:port} through {@code proxy}; with a username,
+     * authenticates with username/password first.
+     *
+     * @throws IOException if the proxy refuses the method, the credentials or the request
+     */
+    static Socket open(InetSocketAddress proxy, InetAddress target, int port, String username, String password)
+            throws IOException {
+        return open(proxy, null, target, port, username, password);
+    }
+
+    /**
+     * Same as {@link #open(InetSocketAddress, InetAddress, int, String, String)}, from
+     * {@code local} if it is not null.
+     */
+    static Socket open(InetSocketAddress proxy, InetAddress local, InetAddress target, int port, String username,
+                       String password) throws IOException {
+        Socket socket = handshake(proxy, local, username, password);
+        try {
+            request(socket, CMD_CONNECT, target, port);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to {@code proxy} and completes the method negotiation and, with a
+     * username, the username/password exchange.
+     */
+    static Socket handshake(InetSocketAddress proxy, InetAddress local, String username, String password)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (local != null) {
+                socket.bind(new InetSocketAddress(local, 0));
+            }
+            socket.setTcpNoDelay(true);
+            socket.connect(proxy, TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            out.write(new byte[]{0x05, 0x01, (byte) (username != null ? 0x02 : 0x00)});
+            if (in.readUnsignedByte() != 0x05 || in.readUnsignedByte() != (username != null ? 0x02 : 0x00)) {
+                throw new IOException("Proxy refused the authentication method");
+            }
+            if (username != null) {
+                byte[] user = username.getBytes(StandardCharsets.UTF_8);
+                byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+                out.write(0x01);
+                out.write(user.length);
+                out.write(user);
+                out.write(pass.length);
+                out.write(pass);
+                in.readUnsignedByte();
+                if (in.readUnsignedByte() != 0x00) {
+                    throw new IOException("Proxy rejected the credentials");
+                }
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request with command {@code cmd} on a negotiated connection.
+     *
+     * @return the bound address of the reply
+     * @throws IOException if the proxy replies with an error
+     */
+    static InetSocketAddress request(Socket socket, int cmd, InetAddress target, int port) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        byte[] address = target.getAddress();
+        out.write(new byte[]{0x05, (byte) cmd, 0x00, (byte) (address.length == 4 ? 0x01 : 0x04)});
+        out.write(address);
+        out.writeShort(port);
+        out.flush();
+        in.readUnsignedByte();
+        int reply = in.readUnsignedByte();
+        in.readUnsignedByte();
+        byte[] bound = new byte[in.readUnsignedByte() == 0x04 ? 16 : 4];
+        in.readFully(bound);
+        int boundPort = in.readUnsignedShort();
+        if (reply != 0x00) {
+            throw new IOException("Proxy replied " + reply);
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(bound), boundPort);
+    }
+
+    static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    static void usage(String usage) {
+        System.err.println("Usage: " + usage);
+        System.exit(2);
+    }
+}
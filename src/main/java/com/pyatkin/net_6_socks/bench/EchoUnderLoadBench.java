@@ -0,0 +1,166 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Small echo round trips through a proxy while bulk downloads run through it.
+ *
+ * Starts a local source that sends without end and a local echo. Opens
+ * {@code --bulk} download tunnels to the source and waits {@code --warmup-ms} so the
+ * proxy classifies them as bulk. Then one tunnel sends {@code --echoes} messages of
+ * {@code --size} bytes to the echo, one every {@code --interval-ms}, and times each
+ * round trip. Prints the echo latency and the download rate meanwhile. Compare runs
+ * with {@code relay.prioritize} on and off, and with {@code --bulk=0} as a baseline.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.EchoUnderLoadBench --proxy=127.0.0.1:1080 \
+ *      --bulk=4 --echoes=2000 --size=64 --interval-ms=5
+ * </pre>
+ */
+public final class EchoUnderLoadBench {
+
+    private EchoUnderLoadBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        int bulk = 4;
+        int echoes = 2000;
+        int size = 64;
+        int intervalMs = 5;
+        int warmupMs = 1000;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--bulk=")) {
+                bulk = Integer.parseInt(value);
+            } else if (arg.startsWith("--echoes=")) {
+                echoes = Integer.parseInt(value);
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(value);
+            } else if (arg.startsWith("--interval-ms=")) {
+                intervalMs = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup-ms=")) {
+                warmupMs = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("EchoUnderLoadBench [--proxy=host:port] [--bulk=<tunnels>] [--echoes=<n>]"
+                        + " [--size=<bytes>] [--interval-ms=<ms>] [--warmup-ms=<ms>]");
+            }
+        }
+
+        InetSocketAddress proxyAddress = BenchClient.address(proxy);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket source = new ServerSocket(0, 50, loopback);
+             ServerSocket echo = new ServerSocket(0, 50, loopback)) {
+            start(() -> acceptEach(source, EchoUnderLoadBench::sendForever), "BulkSource");
+            start(() -> acceptEach(echo, EchoUnderLoadBench::echo), "EchoServer");
+
+            AtomicLong downloaded = new AtomicLong();
+            List<Socket> downloads = new ArrayList<>();
+            try {
+                for (int i = 0; i < bulk; i++) {
+                    Socket socket = BenchClient.open(proxyAddress, loopback, source.getLocalPort(), null, null);
+                    downloads.add(socket);
+                    start(() -> drain(socket, downloaded), "BulkDownload");
+                }
+                TimeUnit.MILLISECONDS.sleep(warmupMs);
+
+                System.out.printf("Echoing %d x %d bytes every %dms through %s while %d downloads run%n",
+                        echoes, size, intervalMs, proxy, bulk);
+                LatencyReport latency = new LatencyReport();
+                long startBytes = downloaded.get();
+                long start = System.nanoTime();
+                try (Socket socket = BenchClient.open(proxyAddress, loopback, echo.getLocalPort(), null, null)) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    byte[] message = new byte[size];
+                    for (int i = 0; i < echoes; i++) {
+                        long begin = System.nanoTime();
+                        out.write(message);
+                        in.readFully(message);
+                        latency.add(System.nanoTime() - begin);
+                        TimeUnit.MILLISECONDS.sleep(intervalMs);
+                    }
+                } catch (IOException e) {
+                    latency.failure();
+                    System.out.println("Echo tunnel failed: " + e.getMessage());
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Downloads: %.1f MB/s%n", (downloaded.get() - startBytes) / 1048576.0 / seconds);
+                System.out.println("Echo latency: " + latency.summary());
+            } finally {
+                for (Socket socket : downloads) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void acceptEach(ServerSocket server, Consumer<Socket> handler) {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                start(() -> handler.accept(socket), server.getLocalPort() + "-session");
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private static void sendForever(Socket socket) {
+        byte[] chunk = new byte[65536];
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                out.write(chunk);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void echo(Socket socket) {
+        byte[] buffer = new byte[4096];
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void drain(Socket socket, AtomicLong downloaded) {
+        byte[] buffer = new byte[65536];
+        try {
+            InputStream in = socket.getInputStream();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                downloaded.addAndGet(n);
+            }
+        } catch (IOException ignored) {
+            // Closed at the end of the run
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.pyatkin.net_6_socks.bench;
+
+import com.pyatkin.net_6_socks.session.HandshakeReader;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Parser cost per request, without sockets or a running proxy.
+ *
+ * Feeds every sample request (SOCKS5 with and without authentication, SOCKS4/4a,
+ * HTTP CONNECT) through {@link HandshakeReader} and its parser {@code --iterations}
+ * times, once as a single read and once in reads of at most {@code --chunk} bytes,
+ * and prints nanoseconds and reads per parse.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.HandshakeBench --iterations=200000 --chunk=1
+ * </pre>
+ */
+public final class HandshakeBench {
+
+    private HandshakeBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 200000;
+        int chunk = 1;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(value);
+            } else if (arg.startsWith("--chunk=")) {
+                chunk = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("HandshakeBench [--iterations=<n>] [--chunk=<max bytes per read>]");
+            }
+        }
+
+        System.out.printf("%-20s %6s %12s %12s %14s %14s%n", "request", "bytes", "ns/parse", "reads/parse",
+                "ns/parse(" + chunk + ")", "reads/parse(" + chunk + ")");
+        // A full unprinted pass over every sample warms up the JIT, so no row is measured cold
+        for (HandshakeSamples.Sample sample : HandshakeSamples.all()) {
+            run(sample, iterations, Integer.MAX_VALUE);
+            run(sample, iterations, chunk);
+        }
+        for (HandshakeSamples.Sample sample : HandshakeSamples.all()) {
+            long[] whole = run(sample, iterations, Integer.MAX_VALUE);
+            long[] chunked = run(sample, iterations, chunk);
+            System.out.printf("%-20s %6d %12.0f %12.2f %14.0f %14.2f%n", sample.name, sample.bytes.length,
+                    (double) whole[0] / iterations, (double) whole[1] / iterations,
+                    (double) chunked[0] / iterations, (double) chunked[1] / iterations);
+        }
+    }
+
+    /**
+     * @return total nanoseconds, socket reads, and the sum of parsed ports so the parse is not optimized away
+     */
+    private static long[] run(HandshakeSamples.Sample sample, int iterations, int chunk) throws IOException {
+        Random random = new Random(1);
+        long reads = 0;
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            HandshakeReader in = new HandshakeReader(new HandshakeSamples.ChunkedInput(sample.bytes, random, chunk));
+            sink += sample.parser.parse(in).port;
+            reads += in.getSocketReads();
+        }
+        return new long[]{System.nanoTime() - start, reads, sink};
+    }
+}
@@ -0,0 +1,173 @@
+package com.pyatkin.net_6_socks.bench;
+
+import com.pyatkin.net_6_socks.session.HandshakeReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded fuzz driver for the client request parsers, without sockets or a running proxy.
+ *
+ * Each iteration takes a sample request and either
+ * <ul>
+ *   <li>feeds it unchanged in random reads of 1 to {@code --max-chunk} bytes, sometimes
+ *       through a reader whose buffer is just large enough, and checks that the parsed
+ *       request and the pipelined bytes left after it match a single-read parse; or</li>
+ *   <li>mutates it (byte changes, truncation, insertions, duplicated ranges) and checks
+ *       that the parser returns, returns null or throws {@link IOException}, nothing else.</li>
+ * </ul>
+ * Failures print the seed, the iteration and the input in hex; the exit code is 1 if
+ * there were any. The same seed replays the same inputs.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.HandshakeFuzz --seed=1 --iterations=200000
+ * </pre>
+ */
+public final class HandshakeFuzz {
+    private static final int MAX_FAILURES_SHOWN = 10;
+
+    private HandshakeFuzz() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = System.nanoTime();
+        int iterations = 200000;
+        int maxChunk = 8;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(value);
+            } else if (arg.startsWith("--max-chunk=")) {
+                maxChunk = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("HandshakeFuzz [--seed=<n>] [--iterations=<n>] [--max-chunk=<bytes>]");
+            }
+        }
+
+        List<HandshakeSamples.Sample> samples = HandshakeSamples.all();
+        String[] expected = new String[samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            HandshakeSamples.Sample sample = samples.get(i);
+            HandshakeReader in = new HandshakeReader(new HandshakeSamples.ChunkedInput(
+                    sample.bytes, null, Integer.MAX_VALUE));
+            expected[i] = HandshakeSamples.describe(sample.parser.parse(in))
+                    + " rest=" + HexFormat.of().formatHex(HandshakeSamples.rest(in));
+        }
+
+        System.out.printf("Fuzzing %d iterations with seed %d%n", iterations, seed);
+        Random random = new Random(seed);
+        int chunked = 0;
+        int parsed = 0;
+        int rejected = 0;
+        int failures = 0;
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int index = random.nextInt(samples.size());
+            HandshakeSamples.Sample sample = samples.get(index);
+            String failure;
+            byte[] input;
+            if (random.nextBoolean()) {
+                chunked++;
+                input = sample.bytes;
+                int bufferSize = random.nextBoolean()
+                        ? input.length - sample.payload : HandshakeReader.BUFFER_SIZE;
+                failure = checkChunked(sample, expected[index], random, maxChunk, bufferSize);
+            } else {
+                input = mutate(sample.bytes, random);
+                String outcome = checkMutated(sample, input, random, maxChunk);
+                failure = outcome.startsWith("failure") ? outcome : null;
+                if ("parsed".equals(outcome)) {
+                    parsed++;
+                } else if ("rejected".equals(outcome)) {
+                    rejected++;
+                }
+            }
+            if (failure != null) {
+                if (++failures <= MAX_FAILURES_SHOWN) {
+                    System.out.printf("FAILED %s, seed %d, iteration %d: %s%n  input: %s%n", sample.name, seed,
+                            iteration, failure, HexFormat.of().formatHex(input));
+                }
+            }
+        }
+        System.out.printf("Done in %.1fs: %d chunked, %d mutated (%d parsed, %d rejected), %d failures%n",
+                (System.nanoTime() - start) / 1e9, chunked, iterations - chunked, parsed, rejected, failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String checkChunked(HandshakeSamples.Sample sample, String expected, Random random, int maxChunk,
+                                       int bufferSize) {
+        try {
+            HandshakeReader in = new HandshakeReader(
+                    new HandshakeSamples.ChunkedInput(sample.bytes, random, maxChunk), bufferSize);
+            String actual = HandshakeSamples.describe(sample.parser.parse(in))
+                    + " rest=" + HexFormat.of().formatHex(HandshakeSamples.rest(in));
+            return expected.equals(actual) ? null
+                    : "buffer " + bufferSize + ": expected " + expected + ", got " + actual;
+        } catch (Exception e) {
+            return "buffer " + bufferSize + ": " + e;
+        }
+    }
+
+    /**
+     * @return "parsed", "rejected" (null or IOException) or a failure description
+     */
+    private static String checkMutated(HandshakeSamples.Sample sample, byte[] input, Random random, int maxChunk) {
+        try {
+            HandshakeReader in = new HandshakeReader(new HandshakeSamples.ChunkedInput(input, random, maxChunk));
+            return sample.parser.parse(in) != null ? "parsed" : "rejected";
+        } catch (IOException e) {
+            return "rejected";
+        } catch (RuntimeException e) {
+            return "failure: " + e;
+        }
+    }
+
+    private static byte[] mutate(byte[] bytes, Random random) {
+        byte[] input = bytes.clone();
+        for (int mutations = 1 + random.nextInt(4); mutations > 0; mutations--) {
+            int at = random.nextInt(input.length);
+            switch (random.nextInt(5)) {
+                case 0:
+                    input[at] = (byte) random.nextInt(256);
+                    break;
+                case 1:
+                    // Length fields and delimiters at their extremes
+                    input[at] = (byte) (random.nextBoolean() ? 0x00 : 0xff);
+                    break;
+                case 2:
+                    input = Arrays.copyOf(input, at);
+                    break;
+                case 3: {
+                    byte[] inserted = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(inserted);
+                    input = splice(input, at, inserted);
+                    break;
+                }
+                default: {
+                    int length = 1 + random.nextInt(input.length - at);
+                    input = splice(input, at, Arrays.copyOfRange(input, at, at + length));
+                    break;
+                }
+            }
+            if (input.length == 0) {
+                break;
+            }
+        }
+        return input;
+    }
+
+    private static byte[] splice(byte[] input, int at, byte[] inserted) {
+        byte[] result = new byte[input.length + inserted.length];
+        System.arraycopy(input, 0, result, 0, at);
+        System.arraycopy(inserted, 0, result, at, inserted.length);
+        System.arraycopy(input, at, result, at + inserted.length, input.length - at);
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+package com.pyatkin.net_6_socks.bench;
+
+import com.pyatkin.net_6_socks.session.HandshakeParsers;
+import com.pyatkin.net_6_socks.session.HandshakeReader;
+import com.pyatkin.net_6_socks.session.Socks5Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Valid client requests of every protocol the proxy accepts, each followed by a few
+ * pipelined payload bytes, for the parser benchmark and fuzz driver.
+ */
+final class HandshakeSamples {
+
+    interface Parser {
+        Socks5Session.SocksRequest parse(HandshakeReader in) throws IOException;
+    }
+
+    static final class Sample {
+        final String name;
+        final Parser parser;
+        final byte[] bytes;
+        final int payload;
+
+        Sample(String name, Parser parser, byte[] request, byte[] payload) {
+            this.name = name;
+            this.parser = parser;
+            this.bytes = Arrays.copyOf(request, request.length + payload.length);
+            System.arraycopy(payload, 0, bytes, request.length, payload.length);
+            this.payload = payload.length;
+        }
+    }
+
+    private HandshakeSamples() {
+    }
+
+    static List<Sample> all() {
+        byte[] get = ascii("GET / HTTP/1.1\r\n");
+        byte[] hello = {0x16, 0x03, 0x01, 0x00, 0x05, 0x01, 0x00, 0x00, 0x01, 0x00};
+        return List.of(
+                new Sample("socks5-ipv4", HandshakeParsers::socks5,
+                        bytes(0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0x00, 0x50), get),
+                new Sample("socks5-auth-domain", HandshakeParsers::socks5,
+                        concat(bytes(0x05, 0x02, 0x00, 0x02, 0x01, 5), ascii("alice"), bytes(6), ascii("secret"),
+                                bytes(0x05, 0x01, 0x00, 0x03, 11), ascii("example.com"), bytes(0x01, 0xbb)),
+                        hello),
+                new Sample("socks5-ipv6", HandshakeParsers::socks5,
+                        bytes(0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x04,
+                                0x20, 0x01, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01, 0x01, 0xbb), hello),
+                new Sample("socks4", HandshakeParsers::socks4,
+                        concat(bytes(0x04, 0x01, 0x00, 0x50, 10, 0, 0, 1), ascii("bob"), bytes(0)), get),
+                new Sample("socks4a", HandshakeParsers::socks4,
+                        concat(bytes(0x04, 0x01, 0x01, 0xbb, 0, 0, 0, 1), ascii("bob"), bytes(0),
+                                ascii("example.com"), bytes(0)), hello),
+                new Sample("http-connect", HandshakeParsers::httpConnect,
+                        ascii("CONNECT example.com:443 HTTP/1.1\r\nHost: example.com:443\r\n"
+                                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+                                + "Proxy-Authorization: Basic YWxpY2U6c2VjcmV0\r\n\r\n"), hello),
+                new Sample("http-connect-long-ua", HandshakeParsers::httpConnect,
+                        ascii("CONNECT example.com:443 HTTP/1.1\r\nUser-Agent: " + "x".repeat(3000) + "\r\n"
+                                + "Proxy-Authorization: Basic YWxpY2U6c2VjcmV0\r\n\r\n"), hello),
+                new Sample("http-connect-ipv6", HandshakeParsers::httpConnect,
+                        ascii("CONNECT [2001:db8::1]:443 HTTP/1.1\r\nHost: [2001:db8::1]:443\r\n\r\n"), hello));
+    }
+
+    /**
+     * The parsed request as text, so results of two parses can be compared.
+     */
+    static String describe(Socks5Session.SocksRequest request) {
+        if (request == null) {
+            return "null";
+        }
+        return request.cmd + " " + request.host + ":" + request.port + " atyp=" + request.addressType
+                + " address=" + Arrays.toString(request.address);
+    }
+
+    /**
+     * Reads what the parser left, as the relay would.
+     */
+    static byte[] rest(HandshakeReader in) throws IOException {
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            rest.write(buffer, 0, n);
+        }
+        return rest.toByteArray();
+    }
+
+    /**
+     * Returns at most a random 1 to {@code maxChunk} bytes per read, like a client
+     * whose request arrives in several TCP segments.
+     */
+    static final class ChunkedInput extends InputStream {
+        private final byte[] bytes;
+        private final Random random;
+        private final int maxChunk;
+        private int pos;
+
+        ChunkedInput(byte[] bytes, Random random, int maxChunk) {
+            this.bytes = bytes;
+            this.random = random;
+            this.maxChunk = maxChunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == bytes.length) {
+                return -1;
+            }
+            int chunk = maxChunk == 1 || maxChunk >= bytes.length ? maxChunk : 1 + random.nextInt(maxChunk);
+            int n = Math.min(Math.min(len, chunk), bytes.length - pos);
+            System.arraycopy(bytes, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunnel setup time through a proxy whose upstream accepts slowly.
+ *
+ * Starts a SOCKS5 upstream on {@code --upstream-port} with an accept backlog of one
+ * that pauses {@code --accept-delay-ms} after every accept, so concurrent connects
+ * overflow the backlog and have their SYN dropped, as behind a busy upstream. Then
+ * {@code --clients} threads open {@code --tunnels} tunnels each through the proxy and
+ * time each until the proxy's reply. Run it against a proxy with
+ * {@code defaultStrategy: redirect} and that upstream, once with
+ * {@code connect.hedgeRedirect} on and once off.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.HedgeBench --proxy=127.0.0.1:1080 \
+ *      --upstream-port=19050 --clients=8 --tunnels=100 --accept-delay-ms=5
+ * </pre>
+ */
+public final class HedgeBench {
+
+    private HedgeBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        int upstreamPort = 19050;
+        int clients = 8;
+        int tunnels = 100;
+        int acceptDelayMs = 5;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--upstream-port=")) {
+                upstreamPort = Integer.parseInt(value);
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(value);
+            } else if (arg.startsWith("--tunnels=")) {
+                tunnels = Integer.parseInt(value);
+            } else if (arg.startsWith("--accept-delay-ms=")) {
+                acceptDelayMs = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("HedgeBench [--proxy=host:port] [--upstream-port=<port>] [--clients=<n>]"
+                        + " [--tunnels=<per client>] [--accept-delay-ms=<ms>]");
+            }
+        }
+
+        InetSocketAddress proxyAddress = BenchClient.address(proxy);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket upstream = new ServerSocket(upstreamPort, 1, loopback)) {
+            int delayMs = acceptDelayMs;
+            Thread acceptor = new Thread(() -> acceptSlowly(upstream, delayMs), "SlowUpstream");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            System.out.printf("Opening %d x %d tunnels through %s, upstream on %d pausing %dms per accept%n",
+                    clients, tunnels, proxy, upstreamPort, acceptDelayMs);
+            LatencyReport setup = new LatencyReport();
+            int perClient = tunnels;
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                Thread client = new Thread(() -> {
+                    for (int j = 0; j < perClient; j++) {
+                        long start = System.nanoTime();
+                        // The upstream ignores the target and echoes
+                        try (Socket socket = BenchClient.open(proxyAddress, loopback, 9, null, null)) {
+                            setup.add(System.nanoTime() - start);
+                            socket.getOutputStream().write(1);
+                            socket.getInputStream().read();
+                        } catch (IOException e) {
+                            setup.failure();
+                        }
+                    }
+                }, "HedgeBenchClient");
+                client.start();
+                threads.add(client);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.println("Tunnel setup: " + setup.summary());
+        }
+    }
+
+    private static void acceptSlowly(ServerSocket upstream, int delayMs) {
+        try {
+            while (true) {
+                Socket socket = upstream.accept();
+                Thread handler = new Thread(() -> serve(socket), "SlowUpstreamSession");
+                handler.setDaemon(true);
+                handler.start();
+                TimeUnit.MILLISECONDS.sleep(delayMs);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    /**
+     * Accepts any SOCKS5 CONNECT without authentication, then echoes.
+     */
+    private static void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            in.readUnsignedByte();
+            in.readFully(new byte[in.readUnsignedByte()]);
+            out.write(new byte[]{0x05, 0x00});
+            in.readFully(new byte[3]);
+            int atyp = in.readUnsignedByte();
+            int length = atyp == 0x01 ? 4 : atyp == 0x04 ? 16 : in.readUnsignedByte();
+            in.readFully(new byte[length + 2]);
+            out.write(new byte[]{0x05, 0x00, 0x00, 0x01, 0, 0, 0, 0, 0, 0});
+            InputStream echo = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = echo.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
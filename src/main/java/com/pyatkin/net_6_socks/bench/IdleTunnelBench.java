@@ -0,0 +1,172 @@
+package com.pyatkin.net_6_socks.bench;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retained heap per idle tunnel in a running proxy.
+ *
+ * Attaches to the proxy process {@code --pid}, forces a GC and reads the used heap, then
+ * opens {@code --tunnels} tunnels through the proxy to local sinks that accept and never
+ * send, and reads the heap again after a GC. Tunnels are spread over {@code --sinks}
+ * sink ports and as many client source addresses (127.0.0.2 upwards), so more tunnels
+ * than one address pair has ephemeral ports can be opened. Every tunnel costs the proxy
+ * two sockets and its relay threads, and this process two sockets: at 100k tunnels both
+ * need {@code ulimit -n} above 200k and the proxy a large {@code kernel.threads-max}.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.IdleTunnelBench --proxy=127.0.0.1:1080 \
+ *      --pid=12345 --tunnels=100000 --sinks=4
+ * </pre>
+ */
+public final class IdleTunnelBench {
+
+    private IdleTunnelBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        String pid = null;
+        int tunnels = 100000;
+        int sinks = 4;
+        int openers = 16;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--pid=")) {
+                pid = value;
+            } else if (arg.startsWith("--tunnels=")) {
+                tunnels = Integer.parseInt(value);
+            } else if (arg.startsWith("--sinks=")) {
+                sinks = Integer.parseInt(value);
+            } else if (arg.startsWith("--openers=")) {
+                openers = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("IdleTunnelBench --pid=<proxy pid> [--proxy=host:port] [--tunnels=<n>]"
+                        + " [--sinks=<ports>] [--openers=<threads>]");
+            }
+        }
+        if (pid == null) {
+            BenchClient.usage("IdleTunnelBench --pid=<proxy pid> [--proxy=host:port] [--tunnels=<n>]"
+                    + " [--sinks=<ports>] [--openers=<threads>]");
+        }
+
+        InetSocketAddress proxyAddress = BenchClient.address(proxy);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Queue<Socket> held = new ConcurrentLinkedQueue<>();
+        List<ServerSocket> sinkSockets = new ArrayList<>();
+        VirtualMachine vm = VirtualMachine.attach(pid);
+        try (JMXConnector jmx = JMXConnectorFactory.connect(new JMXServiceURL(vm.startLocalManagementAgent()))) {
+            MBeanServerConnection proxyVm = jmx.getMBeanServerConnection();
+            for (int i = 0; i < sinks; i++) {
+                ServerSocket sink = new ServerSocket(0, 4096, loopback);
+                sinkSockets.add(sink);
+                Thread acceptor = new Thread(() -> hold(sink, held), "IdleSink");
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+
+            long heapBefore = usedHeap(proxyVm);
+            int threadsBefore = threads(proxyVm);
+            System.out.printf("Proxy heap before: %.1f MB, %d threads; opening %d idle tunnels through %s%n",
+                    heapBefore / 1048576.0, threadsBefore, tunnels, proxy);
+
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger failures = new AtomicInteger();
+            int total = tunnels;
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < openers; t++) {
+                Thread opener = new Thread(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < total) {
+                        ServerSocket sink = sinkSockets.get(i % sinkSockets.size());
+                        try {
+                            held.add(open(proxyAddress, i % sinkSockets.size(), loopback, sink.getLocalPort()));
+                        } catch (IOException e) {
+                            if (failures.incrementAndGet() == 1) {
+                                System.out.println("First failure at tunnel " + i + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                }, "IdleOpener");
+                opener.start();
+                threads.add(opener);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            int opened = total - failures.get();
+            System.out.printf("Opened %d tunnels in %.1fs, %d failed%n", opened,
+                    (System.nanoTime() - start) / 1e9, failures.get());
+
+            // Let the last sessions reach their relay loop before measuring
+            TimeUnit.SECONDS.sleep(2);
+            long heapAfter = usedHeap(proxyVm);
+            int threadsAfter = threads(proxyVm);
+            System.out.printf("Proxy heap after: %.1f MB, %d threads%n", heapAfter / 1048576.0, threadsAfter);
+            if (opened > 0) {
+                System.out.printf("Retained heap per idle tunnel: %.0f bytes, threads per tunnel: %.2f%n",
+                        (heapAfter - heapBefore) / (double) opened, (threadsAfter - threadsBefore) / (double) opened);
+            }
+        } finally {
+            vm.detach();
+            for (Socket socket : held) {
+                socket.close();
+            }
+            for (ServerSocket sink : sinkSockets) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a tunnel from source address 127.0.0.{@code 2 + source}.
+     */
+    private static Socket open(InetSocketAddress proxy, int source, InetAddress target, int port)
+            throws IOException {
+        InetAddress local = InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) (2 + source)});
+        return BenchClient.open(proxy, local, target, port, null, null);
+    }
+
+    private static void hold(ServerSocket sink, Queue<Socket> held) {
+        while (true) {
+            try {
+                held.add(sink.accept());
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static long usedHeap(MBeanServerConnection vm) throws Exception {
+        ObjectName memory = new ObjectName("java.lang:type=Memory");
+        // A few rounds, so what was only just released is gone too
+        for (int i = 0; i < 3; i++) {
+            vm.invoke(memory, "gc", null, null);
+        }
+        return (Long) ((CompositeData) vm.getAttribute(memory, "HeapMemoryUsage")).get("used");
+    }
+
+    private static int threads(MBeanServerConnection vm) throws Exception {
+        return (Integer) vm.getAttribute(new ObjectName("java.lang:type=Threading"), "ThreadCount");
+    }
+}
@@ -0,0 +1,42 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.util.Arrays;
+
+/**
+ * Latencies collected by a benchmark run, printed as percentiles in milliseconds.
+ */
+final class LatencyReport {
+    private long[] nanos = new long[1024];
+    private int count;
+    private int failures;
+
+    synchronized void add(long sampleNanos) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = sampleNanos;
+    }
+
+    synchronized void failure() {
+        failures++;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    synchronized String summary() {
+        if (count == 0) {
+            return "n=0, failures=" + failures;
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return String.format("n=%d, failures=%d, p50=%.2fms, p95=%.2fms, p99=%.2fms, max=%.2fms", count, failures,
+                percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 0.99),
+                sorted[count - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,110 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput through a proxy, one tunnel after another to the same endpoint.
+ *
+ * A local source sends {@code --megabytes} on every tunnel, keeps it open for
+ * {@code --idle-ms} like a keep-alive connection and closes it. Tunnels run one at a
+ * time, so with {@code sockets.autotune} each one is sized from the ones before.
+ * Loopback has no latency of its own; add it with netem, for example
+ * {@code tc qdisc add dev lo root netem delay 25ms}, and compare runs with autotune
+ * on and off.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.ThroughputBench --proxy=127.0.0.1:1080 \
+ *      --tunnels=10 --megabytes=64 --idle-ms=2000
+ * </pre>
+ */
+public final class ThroughputBench {
+
+    private ThroughputBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        int tunnels = 10;
+        int megabytes = 64;
+        int idleMs = 2000;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--tunnels=")) {
+                tunnels = Integer.parseInt(value);
+            } else if (arg.startsWith("--megabytes=")) {
+                megabytes = Integer.parseInt(value);
+            } else if (arg.startsWith("--idle-ms=")) {
+                idleMs = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("ThroughputBench [--proxy=host:port] [--tunnels=<n>] [--megabytes=<per tunnel>]"
+                        + " [--idle-ms=<ms>]");
+            }
+        }
+
+        InetSocketAddress proxyAddress = BenchClient.address(proxy);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        long bytes = megabytes * 1024L * 1024L;
+        try (ServerSocket source = new ServerSocket(0, 50, loopback)) {
+            int idle = idleMs;
+            Thread acceptor = new Thread(() -> serve(source, bytes, idle), "ThroughputSource");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            System.out.printf("Downloading %d x %dMB through %s, %dms idle after each%n",
+                    tunnels, megabytes, proxy, idleMs);
+            LatencyReport transfers = new LatencyReport();
+            byte[] buffer = new byte[65536];
+            for (int i = 0; i < tunnels; i++) {
+                try (Socket socket = BenchClient.open(proxyAddress, loopback, source.getLocalPort(), null, null)) {
+                    InputStream in = socket.getInputStream();
+                    long start = System.nanoTime();
+                    long received = 0;
+                    int n;
+                    while (received < bytes && (n = in.read(buffer)) >= 0) {
+                        received += n;
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    transfers.add(elapsed);
+                    System.out.printf("  tunnel %d: %.1f MB/s%n", i + 1, received / 1048576.0 / (elapsed / 1e9));
+                    // Wait for the source to close, so the proxy records the tunnel before the next one
+                    while (in.read(buffer) >= 0) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    transfers.failure();
+                    System.out.printf("  tunnel %d: %s%n", i + 1, e.getMessage());
+                }
+            }
+            System.out.println("Transfer time: " + transfers.summary());
+        }
+    }
+
+    private static void serve(ServerSocket source, long bytes, int idleMs) {
+        byte[] chunk = new byte[65536];
+        while (true) {
+            try (Socket socket = source.accept()) {
+                OutputStream out = socket.getOutputStream();
+                for (long sent = 0; sent < bytes; sent += chunk.length) {
+                    out.write(chunk, 0, (int) Math.min(chunk.length, bytes - sent));
+                }
+                out.flush();
+                TimeUnit.MILLISECONDS.sleep(idleMs);
+            } catch (IOException e) {
+                if (source.isClosed()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
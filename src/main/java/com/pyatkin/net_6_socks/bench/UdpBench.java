@@ -0,0 +1,136 @@
+package com.pyatkin.net_6_socks.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Datagram rate through a proxy's UDP ASSOCIATE relay.
+ *
+ * Opens one association and sends {@code --packets} datagrams of {@code --size} bytes
+ * to a local UDP echo through it, keeping at most {@code --window} of them unanswered.
+ * Reports the echoed rate, the loss and the round trip of the echoes.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.bench.UdpBench --proxy=127.0.0.1:1080 \
+ *      --packets=200000 --size=512 --window=64
+ * </pre>
+ */
+public final class UdpBench {
+    // RSV(2) FRAG(1) ATYP(1) IPv4(4) PORT(2)
+    private static final int HEADER = 10;
+    private static final long DRAIN_MS = 1000;
+
+    private UdpBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String proxy = "127.0.0.1:1080";
+        int packets = 200000;
+        int size = 512;
+        int window = 64;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--packets=")) {
+                packets = Integer.parseInt(value);
+            } else if (arg.startsWith("--size=")) {
+                size = Integer.parseInt(value);
+            } else if (arg.startsWith("--window=")) {
+                window = Integer.parseInt(value);
+            } else {
+                BenchClient.usage("UdpBench [--proxy=host:port] [--packets=<n>] [--size=<bytes>] [--window=<n>]");
+            }
+        }
+        if (size < Long.BYTES) {
+            BenchClient.usage("UdpBench: --size must hold an 8-byte timestamp");
+        }
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel echo = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+             DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+             Socket control = BenchClient.handshake(BenchClient.address(proxy), null, null, null)) {
+            Thread echoThread = new Thread(() -> echo(echo), "UdpEcho");
+            echoThread.setDaemon(true);
+            echoThread.start();
+
+            int clientPort = ((InetSocketAddress) client.getLocalAddress()).getPort();
+            InetSocketAddress relay = BenchClient.request(control, BenchClient.CMD_UDP_ASSOCIATE, loopback, clientPort);
+            if (relay.getAddress().isAnyLocalAddress()) {
+                relay = new InetSocketAddress(BenchClient.address(proxy).getAddress(), relay.getPort());
+            }
+            client.connect(relay);
+            int echoPort = ((InetSocketAddress) echo.getLocalAddress()).getPort();
+            System.out.printf("Sending %d x %dB datagrams through relay %s, window %d%n",
+                    packets, size, relay, window);
+
+            AtomicLong received = new AtomicLong();
+            LatencyReport rtt = new LatencyReport();
+            Thread receiver = new Thread(() -> receive(client, received, rtt), "UdpReceiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            ByteBuffer datagram = ByteBuffer.allocate(HEADER + size);
+            datagram.put(new byte[]{0, 0, 0, 0x01}).put(loopback.getAddress()).putShort((short) echoPort);
+            long start = System.nanoTime();
+            for (long sent = 0; sent < packets; sent++) {
+                // A lost datagram frees its slot after a while, so the window cannot stall
+                long waitStart = System.nanoTime();
+                while (sent - received.get() >= window
+                        && System.nanoTime() - waitStart < TimeUnit.MILLISECONDS.toNanos(10)) {
+                    Thread.onSpinWait();
+                }
+                datagram.clear().position(HEADER);
+                datagram.putLong(System.nanoTime());
+                datagram.position(0).limit(HEADER + size);
+                client.write(datagram);
+            }
+            long sendNanos = System.nanoTime() - start;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+            while (received.get() < packets && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            long echoed = received.get();
+            System.out.printf("Echoed %d of %d (%.2f%% lost), %.0f datagrams/s, %.1f MB/s each way%n", echoed, packets,
+                    100.0 * (packets - echoed) / packets, echoed / (sendNanos / 1e9),
+                    echoed * (double) size / 1048576 / (sendNanos / 1e9));
+            System.out.println("Round trip: " + rtt.summary());
+        }
+    }
+
+    private static void receive(DatagramChannel client, AtomicLong received, LatencyReport rtt) {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        try {
+            while (true) {
+                buffer.clear();
+                client.read(buffer);
+                // The relay prepends a header for the echo's address
+                rtt.add(System.nanoTime() - buffer.getLong(HEADER));
+                received.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private static void echo(DatagramChannel echo) {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress from = echo.receive(buffer);
+                buffer.flip();
+                echo.send(buffer, from);
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+}
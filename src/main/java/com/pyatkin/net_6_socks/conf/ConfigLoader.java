@@ -5,6 +5,9 @@ import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 
 public class ConfigLoader {
     private static final Logger log = LoggerFactory.getLogger(ConfigLoader.class);
@@ -13,27 +16,50 @@ public class ConfigLoader {
     public static ProxyConfig load() {
         log.info("Loading configuration from {}", CONFIG_FILE);
 
-        Yaml yaml = new Yaml();
         try (InputStream is = ConfigLoader.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
             if (is == null) {
                 throw new RuntimeException(CONFIG_FILE + " not found in classpath resources");
             }
+            return parse(is, CONFIG_FILE);
 
-            ProxyConfig cfg = yaml.loadAs(is, ProxyConfig.class);
-            if (cfg == null) {
-                throw new RuntimeException("Failed to parse " + CONFIG_FILE + " - result is null");
-            }
+        } catch (IllegalArgumentException e) {
+            log.error("Configuration validation failed: {}", e.getMessage());
+            throw new RuntimeException("Invalid configuration: " + e.getMessage(), e);
+        } catch (Exception e) {
+            log.error("Failed to load configuration: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to load configuration from " + CONFIG_FILE, e);
+        }
+    }
+
+    /**
+     * Loads configuration from an external file instead of the classpath.
+     */
+    public static ProxyConfig load(Path file) {
+        log.info("Loading configuration from {}", file.toAbsolutePath());
 
-            cfg.validate();
-            log.info("Configuration loaded successfully");
-            return cfg;
+        try (InputStream is = Files.newInputStream(file)) {
+            return parse(is, file.toString());
 
+        } catch (NoSuchFileException e) {
+            throw new RuntimeException("Configuration file not found: " + file.toAbsolutePath(), e);
         } catch (IllegalArgumentException e) {
             log.error("Configuration validation failed: {}", e.getMessage());
             throw new RuntimeException("Invalid configuration: " + e.getMessage(), e);
         } catch (Exception e) {
             log.error("Failed to load configuration: {}", e.getMessage(), e);
-            throw new RuntimeException("Failed to load configuration from " + CONFIG_FILE, e);
+            throw new RuntimeException("Failed to load configuration from " + file, e);
+        }
+    }
+
+    private static ProxyConfig parse(InputStream is, String source) {
+        Yaml yaml = new Yaml();
+        ProxyConfig cfg = yaml.loadAs(is, ProxyConfig.class);
+        if (cfg == null) {
+            throw new RuntimeException("Failed to parse " + source + " - result is null");
         }
+
+        cfg.validate();
+        log.info("Configuration loaded successfully");
+        return cfg;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,549 @@
+package com.pyatkin.net_6_socks.conf;
+
+import com.pyatkin.net_6_socks.rules.ClientAcl;
+import com.pyatkin.net_6_socks.traffic.SocketTuning;
+import com.pyatkin.net_6_socks.traffic.TrafficSegmenter;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable view of the settings that can change while the server is running.
+ * Sessions take the current snapshot once at CONNECT time and keep using it
+ * for their whole lifetime, so a reload never changes a tunnel mid-flight.
+ */
+public final class ConfigSnapshot {
+    private static final String[] STRATEGIES = {"direct", "redirect", "segment"};
+    // Without TCP_NODELAY, Nagle would merge the very segments the segmenter splits
+    private static final SocketTuning SEGMENT_REMOTE_DEFAULTS = new SocketTuning(true, null, null, null);
+
+    private final long version;
+    private final String defaultStrategy;
+    private final List<InetSocketAddress> upstreams;
+    private final boolean muxUpstream;
+    private final TrafficSegmenter segmenter;
+    private final int maxSessions;
+    private final int handshakeTimeoutMs;
+    private final int connectTimeoutMs;
+    private final int upstreamConnectTimeoutMs;
+    private final boolean adaptiveConnect;
+    private final int connectMinSamples;
+    private final int connectTimeoutFactor;
+    private final int connectMinTimeoutMs;
+    private final boolean hedgeRedirect;
+    private final int hedgeMinMs;
+    private final int relayMaxSec;
+    private final boolean udpEnabled;
+    private final int udpIdleTimeoutSec;
+    private final int udpBatchSize;
+    private final boolean bindEnabled;
+    private final boolean socks4Enabled;
+    private final boolean httpConnectEnabled;
+    private final int bindAcceptTimeoutSec;
+    private final Map<String, SocketTuning> clientSockets = new HashMap<>();
+    private final Map<String, SocketTuning> remoteSockets = new HashMap<>();
+    private final boolean socketAutotune;
+    private final int minBufferBytes;
+    private final int maxBufferBytes;
+    private final boolean warmPoolEnabled;
+    private final int warmPoolMaxSockets;
+    private final int warmPoolPerHost;
+    private final int warmPoolHotDestinations;
+    private final int warmPoolMinRequests;
+    private final int warmPoolMaxIdleSec;
+    private final boolean breakerEnabled;
+    private final int breakerFailureThreshold;
+    private final int breakerOpenSec;
+    private final int breakerMaxOpenSec;
+    private final int slowSessions;
+    private final int slowSessionSampleRate;
+    private final boolean heavyHitters;
+    private final String traceFile;
+    private final boolean muxAccept;
+    private final int muxConnections;
+    private final int muxWindowBytes;
+    private final int muxMaxStreamsPerEdge;
+    private final String muxUsername;
+    private final String muxPassword;
+    private final Map<String, BulkheadLimits> bulkheads;
+    private final boolean relayPrioritize;
+    private final int bulkBytesPerSec;
+    private final int bulkTurns;
+    private final int quantumBytes;
+    private final List<String> shadowRuleFiles;
+    private final int shadowSampleRate;
+    private final int shadowExamples;
+    private final ClientAcl clientAcl;
+    private final int clientConnectsPerSec;
+    private final int clientConnectBurst;
+    private final Map<String, ConfigSnapshot> listeners;
+
+    private ConfigSnapshot(long version, ProxyConfig cfg) {
+        this.version = version;
+        this.defaultStrategy = cfg.strategy.defaultStrategy == null
+                ? "direct" : cfg.strategy.defaultStrategy.toLowerCase();
+
+        List<InetSocketAddress> list = new ArrayList<>();
+        list.add(InetSocketAddress.createUnresolved(cfg.upstream.host, cfg.upstream.port));
+        for (String fallback : cfg.upstream.fallbacks) {
+            int idx = fallback.lastIndexOf(':');
+            list.add(InetSocketAddress.createUnresolved(fallback.substring(0, idx).trim(),
+                    Integer.parseInt(fallback.substring(idx + 1).trim())));
+        }
+        this.upstreams = Collections.unmodifiableList(list);
+        this.muxUpstream = "mux".equals(cfg.upstream.type);
+
+        this.segmenter = new TrafficSegmenter(cfg.segment.blockSize, cfg.segment.segmentSize, cfg.segment.delayMs);
+        this.maxSessions = cfg.limits.maxSessions;
+        this.handshakeTimeoutMs = cfg.timeouts.handshakeMs;
+        this.connectTimeoutMs = cfg.timeouts.connectMs;
+        this.upstreamConnectTimeoutMs = cfg.timeouts.upstreamConnectMs;
+        this.adaptiveConnect = cfg.connect.adaptive;
+        this.connectMinSamples = cfg.connect.minSamples;
+        this.connectTimeoutFactor = cfg.connect.timeoutFactor;
+        this.connectMinTimeoutMs = cfg.connect.minTimeoutMs;
+        this.hedgeRedirect = cfg.connect.hedgeRedirect;
+        this.hedgeMinMs = cfg.connect.hedgeMinMs;
+        this.relayMaxSec = cfg.timeouts.relayMaxSec;
+        this.udpEnabled = cfg.udp.enabled;
+        this.udpIdleTimeoutSec = cfg.udp.idleTimeoutSec;
+        this.udpBatchSize = cfg.udp.batchSize;
+        this.bindEnabled = cfg.bind.enabled;
+        this.bindAcceptTimeoutSec = cfg.bind.acceptTimeoutSec;
+        this.socks4Enabled = cfg.server.socks4;
+        this.httpConnectEnabled = cfg.server.httpConnect;
+
+        ProxyConfig.SocketProfile defaults = cfg.sockets.profiles.get("default");
+        for (String strategy : STRATEGIES) {
+            ProxyConfig.SocketProfile own = cfg.sockets.profiles.get(strategy);
+            SocketTuning builtIn = "segment".equals(strategy) ? SEGMENT_REMOTE_DEFAULTS : SocketTuning.OS_DEFAULTS;
+            clientSockets.put(strategy, tuning(own, true)
+                    .orElse(tuning(defaults, true)));
+            remoteSockets.put(strategy, tuning(own, false)
+                    .orElse(tuning(defaults, false))
+                    .orElse(builtIn));
+        }
+        this.socketAutotune = cfg.sockets.autotune;
+        this.minBufferBytes = cfg.sockets.minBufferBytes;
+        this.maxBufferBytes = cfg.sockets.maxBufferBytes;
+        this.warmPoolEnabled = cfg.warmPool.enabled;
+        this.warmPoolMaxSockets = cfg.warmPool.maxSockets;
+        this.warmPoolPerHost = cfg.warmPool.perHost;
+        this.warmPoolHotDestinations = cfg.warmPool.hotDestinations;
+        this.warmPoolMinRequests = cfg.warmPool.minRequests;
+        this.warmPoolMaxIdleSec = cfg.warmPool.maxIdleSec;
+        this.breakerEnabled = cfg.breaker.enabled;
+        this.breakerFailureThreshold = cfg.breaker.failureThreshold;
+        this.breakerOpenSec = cfg.breaker.openSec;
+        this.breakerMaxOpenSec = cfg.breaker.maxOpenSec;
+        this.slowSessions = cfg.diagnostics.slowSessions;
+        this.slowSessionSampleRate = cfg.diagnostics.sampleRate;
+        this.heavyHitters = cfg.diagnostics.heavyHitters;
+        this.traceFile = cfg.diagnostics.traceFile;
+        this.muxAccept = cfg.mux.accept;
+        this.muxConnections = cfg.mux.connections;
+        this.muxWindowBytes = cfg.mux.windowBytes;
+        this.muxMaxStreamsPerEdge = cfg.mux.maxStreamsPerEdge;
+        this.muxUsername = cfg.mux.username;
+        this.muxPassword = cfg.mux.password;
+
+        Map<String, BulkheadLimits> limits = new HashMap<>();
+        limits.put("direct", new BulkheadLimits(cfg.bulkheads.direct));
+        limits.put("redirect", new BulkheadLimits(cfg.bulkheads.redirect));
+        limits.put("segment", new BulkheadLimits(cfg.bulkheads.segment));
+        limits.put("udp", new BulkheadLimits(cfg.bulkheads.udp));
+        this.bulkheads = Collections.unmodifiableMap(limits);
+
+        this.relayPrioritize = cfg.relay.prioritize;
+        this.bulkBytesPerSec = cfg.relay.bulkBytesPerSec;
+        this.bulkTurns = cfg.relay.bulkTurns;
+        this.quantumBytes = cfg.relay.quantumBytes;
+
+        this.shadowRuleFiles = cfg.shadow.isEnabled() ? Collections.unmodifiableList(Arrays.asList(
+                cfg.shadow.blacklist, cfg.shadow.whitelist, cfg.shadow.redirect, cfg.shadow.segment)) : null;
+        this.shadowSampleRate = cfg.shadow.sampleRate;
+        this.shadowExamples = cfg.shadow.examples;
+        this.clientAcl = new ClientAcl(cfg.clients.allow, cfg.clients.deny);
+        this.clientConnectsPerSec = cfg.clients.connectsPerSec;
+        this.clientConnectBurst = cfg.clients.connectBurst;
+
+        Map<String, ConfigSnapshot> views = new HashMap<>();
+        for (ProxyConfig.Listener listener : cfg.listeners) {
+            views.put(listener.getName(), new ConfigSnapshot(version, cfg.forListener(listener)));
+        }
+        this.listeners = Collections.unmodifiableMap(views);
+    }
+
+    private static SocketTuning tuning(ProxyConfig.SocketProfile profile, boolean clientSide) {
+        ProxyConfig.SocketOptions options = profile == null ? null : clientSide ? profile.client : profile.remote;
+        if (options == null) {
+            return SocketTuning.OS_DEFAULTS;
+        }
+        return new SocketTuning(options.tcpNoDelay, options.keepAlive, options.sendBuffer, options.receiveBuffer);
+    }
+
+    /**
+     * Builds a snapshot from an already validated configuration.
+     */
+    public static ConfigSnapshot of(long version, ProxyConfig cfg) {
+        return new ConfigSnapshot(version, cfg);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * This snapshot as seen by the named listener, with its own strategy and segment
+     * settings; this snapshot itself if no such listener is configured.
+     */
+    public ConfigSnapshot forListener(String name) {
+        return listeners.getOrDefault(name, this);
+    }
+
+    public String getDefaultStrategy() {
+        return defaultStrategy;
+    }
+
+    /**
+     * Upstream proxies in the order they should be tried.
+     */
+    public List<InetSocketAddress> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * True if upstreams are other instances of this proxy reached over multiplexed connections.
+     */
+    public boolean isMuxUpstream() {
+        return muxUpstream;
+    }
+
+    public TrafficSegmenter getSegmenter() {
+        return segmenter;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getHandshakeTimeoutMs() {
+        return handshakeTimeoutMs;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getUpstreamConnectTimeoutMs() {
+        return upstreamConnectTimeoutMs;
+    }
+
+    /**
+     * Whether connect timeouts are derived from each destination's recent connect times.
+     */
+    public boolean isAdaptiveConnect() {
+        return adaptiveConnect;
+    }
+
+    public int getConnectMinSamples() {
+        return connectMinSamples;
+    }
+
+    public int getConnectTimeoutFactor() {
+        return connectTimeoutFactor;
+    }
+
+    public int getConnectMinTimeoutMs() {
+        return connectMinTimeoutMs;
+    }
+
+    /**
+     * Whether a slow connect to an upstream proxy gets a second, racing attempt.
+     */
+    public boolean isHedgeRedirect() {
+        return hedgeRedirect;
+    }
+
+    public int getHedgeMinMs() {
+        return hedgeMinMs;
+    }
+
+    public int getRelayMaxSec() {
+        return relayMaxSec;
+    }
+
+    public boolean isUdpEnabled() {
+        return udpEnabled;
+    }
+
+    public int getUdpIdleTimeoutSec() {
+        return udpIdleTimeoutSec;
+    }
+
+    public int getUdpBatchSize() {
+        return udpBatchSize;
+    }
+
+    public boolean isBindEnabled() {
+        return bindEnabled;
+    }
+
+    public boolean isSocks4Enabled() {
+        return socks4Enabled;
+    }
+
+    public boolean isHttpConnectEnabled() {
+        return httpConnectEnabled;
+    }
+
+    public int getBindAcceptTimeoutSec() {
+        return bindAcceptTimeoutSec;
+    }
+
+    /**
+     * Options for the client-facing socket of a tunnel using {@code strategy}.
+     */
+    public SocketTuning getClientSocketTuning(String strategy) {
+        return clientSockets.getOrDefault(strategy, SocketTuning.OS_DEFAULTS);
+    }
+
+    /**
+     * Options for the target or upstream socket of a tunnel using {@code strategy}.
+     */
+    public SocketTuning getRemoteSocketTuning(String strategy) {
+        return remoteSockets.getOrDefault(strategy, SocketTuning.OS_DEFAULTS);
+    }
+
+    public boolean isSocketAutotune() {
+        return socketAutotune;
+    }
+
+    public int getMinBufferBytes() {
+        return minBufferBytes;
+    }
+
+    public int getMaxBufferBytes() {
+        return maxBufferBytes;
+    }
+
+    public boolean isWarmPoolEnabled() {
+        return warmPoolEnabled;
+    }
+
+    public int getWarmPoolMaxSockets() {
+        return warmPoolMaxSockets;
+    }
+
+    public int getWarmPoolPerHost() {
+        return warmPoolPerHost;
+    }
+
+    public int getWarmPoolHotDestinations() {
+        return warmPoolHotDestinations;
+    }
+
+    public int getWarmPoolMinRequests() {
+        return warmPoolMinRequests;
+    }
+
+    public int getWarmPoolMaxIdleSec() {
+        return warmPoolMaxIdleSec;
+    }
+
+    public boolean isBreakerEnabled() {
+        return breakerEnabled;
+    }
+
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    public int getBreakerOpenSec() {
+        return breakerOpenSec;
+    }
+
+    public int getBreakerMaxOpenSec() {
+        return breakerMaxOpenSec;
+    }
+
+    public int getSlowSessions() {
+        return slowSessions;
+    }
+
+    public int getSlowSessionSampleRate() {
+        return slowSessionSampleRate;
+    }
+
+    public boolean isHeavyHittersEnabled() {
+        return heavyHitters;
+    }
+
+    /**
+     * File receiving session traces for offline replay, or null if tracing is off.
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public boolean isMuxAccept() {
+        return muxAccept;
+    }
+
+    public int getMuxConnections() {
+        return muxConnections;
+    }
+
+    public int getMuxWindowBytes() {
+        return muxWindowBytes;
+    }
+
+    public int getMuxMaxStreamsPerEdge() {
+        return muxMaxStreamsPerEdge;
+    }
+
+    public String getMuxUsername() {
+        return muxUsername;
+    }
+
+    public String getMuxPassword() {
+        return muxPassword;
+    }
+
+    /**
+     * Slot limits of a strategy's bulkhead, or of the UDP one.
+     */
+    public static final class BulkheadLimits {
+        private final int maxSessions;
+        private final int queue;
+        private final int queueTimeoutMs;
+
+        private BulkheadLimits(ProxyConfig.Bulkhead cfg) {
+            this.maxSessions = cfg.maxSessions;
+            this.queue = cfg.queue;
+            this.queueTimeoutMs = cfg.queueTimeoutMs;
+        }
+
+        public int getMaxSessions() {
+            return maxSessions;
+        }
+
+        public int getQueue() {
+            return queue;
+        }
+
+        public int getQueueTimeoutMs() {
+            return queueTimeoutMs;
+        }
+
+        @Override
+        public String toString() {
+            return maxSessions == 0 ? "unlimited" : maxSessions + "+" + queue + "/" + queueTimeoutMs + "ms";
+        }
+    }
+
+    public BulkheadLimits getBulkheadLimits(String strategy) {
+        BulkheadLimits limits = bulkheads.get(strategy);
+        return limits != null ? limits : bulkheads.get("direct");
+    }
+
+    public boolean isRelayPrioritize() {
+        return relayPrioritize;
+    }
+
+    public int getBulkBytesPerSec() {
+        return bulkBytesPerSec;
+    }
+
+    /**
+     * Bulk tunnels writing at once, 0 = one per CPU.
+     */
+    public int getBulkTurns() {
+        return bulkTurns;
+    }
+
+    public int getQuantumBytes() {
+        return quantumBytes;
+    }
+
+    /**
+     * Candidate blacklist, whitelist, redirect and segment files (null entries use the
+     * active file), or null if shadow evaluation is off.
+     */
+    public List<String> getShadowRuleFiles() {
+        return shadowRuleFiles;
+    }
+
+    public int getShadowSampleRate() {
+        return shadowSampleRate;
+    }
+
+    public int getShadowExamples() {
+        return shadowExamples;
+    }
+
+    /**
+     * Client addresses allowed to connect, checked before the handshake.
+     */
+    public ClientAcl getClientAcl() {
+        return clientAcl;
+    }
+
+    /**
+     * Connects per second allowed from one client address, 0 if unlimited.
+     */
+    public int getClientConnectsPerSec() {
+        return clientConnectsPerSec;
+    }
+
+    public int getClientConnectBurst() {
+        return clientConnectBurst;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConfigSnapshot{v%d, defaultStrategy=%s, upstreams=%s%s, segment=%d/%d/%dms, " +
+                        "maxSessions=%d, timeouts=handshake:%dms,connect:%dms,upstream:%dms,relay:%ds, adaptiveConnect=%s, hedge=%s, " +
+                        "protocols=socks5%s%s, udp=%s/idle:%ds/batch:%d, bind=%s/accept:%ds, " +
+                        "sockets=client:%s,remote:%s,autotune:%s, warmPool=%s, breaker=%s, slowSessions=%d/1:%d, heavyHitters=%s, trace=%s, muxAccept=%s, " +
+                        "bulkheads=direct:%s,redirect:%s,segment:%s,udp:%s, relay=%s, shadow=%s, clients=%s%s%s}",
+                version, defaultStrategy, upstreams, muxUpstream ? "/mux:" + muxConnections : "",
+                segmenter.getSegmentBlockSize(), segmenter.getSegmentSize(), segmenter.getSegmentDelayMs(),
+                maxSessions, handshakeTimeoutMs, connectTimeoutMs, upstreamConnectTimeoutMs, relayMaxSec,
+                adaptiveConnect ? String.format("p99x%d/min:%dms/n:%d", connectTimeoutFactor, connectMinTimeoutMs,
+                        connectMinSamples) : "off",
+                hedgeRedirect ? "p95/min:" + hedgeMinMs + "ms" : "off",
+                socks4Enabled ? ",socks4" : "", httpConnectEnabled ? ",http" : "",
+                udpEnabled ? "on" : "off", udpIdleTimeoutSec, udpBatchSize,
+                bindEnabled ? "on" : "off", bindAcceptTimeoutSec,
+                clientSockets, remoteSockets,
+                socketAutotune ? minBufferBytes + "-" + maxBufferBytes : "off",
+                warmPoolEnabled ? String.format("%d/%d per host/hot:%d/min:%d/idle:%ds", warmPoolMaxSockets,
+                        warmPoolPerHost, warmPoolHotDestinations, warmPoolMinRequests, warmPoolMaxIdleSec) : "off",
+                breakerEnabled ? String.format("%d failures/%d-%ds", breakerFailureThreshold,
+                        breakerOpenSec, breakerMaxOpenSec) : "off",
+                slowSessions, slowSessionSampleRate, heavyHitters ? "on" : "off", traceFile != null ? traceFile : "off",
+                muxAccept ? "on/edge:" + (muxMaxStreamsPerEdge > 0 ? muxMaxStreamsPerEdge : "unlimited") : "off",
+                bulkheads.get("direct"), bulkheads.get("redirect"), bulkheads.get("segment"), bulkheads.get("udp"),
+                relayPrioritize ? String.format("bulk:%dB/s/turns:%s/quantum:%d", bulkBytesPerSec,
+                        bulkTurns > 0 ? bulkTurns : "cpus", quantumBytes) : "fifo",
+                shadowRuleFiles != null ? shadowRuleFiles + "/1:" + shadowSampleRate : "off",
+                clientAcl, clientConnectsPerSec > 0
+                        ? String.format("/rate:%d/s,burst:%d", clientConnectsPerSec, clientConnectBurst) : "",
+                listeners.isEmpty() ? "" : ", listeners=" + describeListeners());
+    }
+
+    private String describeListeners() {
+        List<String> lines = new ArrayList<>();
+        new TreeMap<>(listeners).forEach((name, view) -> lines.add(String.format("%s:%s/%d/%d/%dms", name,
+                view.defaultStrategy, view.segmenter.getSegmentBlockSize(), view.segmenter.getSegmentSize(),
+                view.segmenter.getSegmentDelayMs())));
+        return lines.toString();
+    }
+}
@@ -0,0 +1,226 @@
+package com.pyatkin.net_6_socks.conf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Holds the configuration the server was started with plus the current
+ * {@link ConfigSnapshot} of live-reloadable settings.
+ *
+ * When watching a file, changes are re-read, validated and published as a new
+ * snapshot. Settings that only take effect on a new bind (listener, rule files)
+ * are reported as requiring a restart and otherwise ignored; listeners keep the
+ * definitions they are bound with until then.
+ */
+public class LiveConfig {
+    private static final Logger log = LoggerFactory.getLogger(LiveConfig.class);
+    private static final long RELOAD_DEBOUNCE_MS = 250;
+
+    private final ProxyConfig startup;
+    private final AtomicReference<ConfigSnapshot> current;
+    private final String listener;
+    // Guarded by this; listener definitions of the last reload whose bindings match the running ones
+    private List<ProxyConfig.Listener> appliedListeners;
+    private volatile WatchService watchService;
+
+    public LiveConfig(ProxyConfig startup) {
+        this(startup, new AtomicReference<>(ConfigSnapshot.of(1, startup)), null);
+    }
+
+    private LiveConfig(ProxyConfig startup, AtomicReference<ConfigSnapshot> current, String listener) {
+        this.startup = startup;
+        this.current = current;
+        this.listener = listener;
+        this.appliedListeners = startup.listeners;
+    }
+
+    /**
+     * View of this configuration for one listener: {@link #current()} returns the
+     * listener's snapshot, and follows reloads of this one.
+     */
+    public LiveConfig forListener(String name) {
+        return new LiveConfig(startup, current, name);
+    }
+
+    /**
+     * Configuration the server was started with. Used for settings that
+     * cannot change without a restart.
+     */
+    public ProxyConfig startup() {
+        return startup;
+    }
+
+    /**
+     * Current snapshot of live settings.
+     */
+    public ConfigSnapshot current() {
+        ConfigSnapshot snapshot = current.get();
+        return listener == null ? snapshot : snapshot.forListener(listener);
+    }
+
+    /**
+     * Publishes a new, already validated configuration.
+     */
+    public synchronized void apply(ProxyConfig cfg) {
+        List<String> restartRequired = restartRequired(startup, cfg);
+        if (!restartRequired.isEmpty()) {
+            log.warn("Configuration changes require a restart and were NOT applied: {}", restartRequired);
+        }
+        if (restartRequired.contains("listeners")) {
+            // A renamed or removed listener is still bound; its view must not fall back to the top level
+            cfg.listeners = appliedListeners;
+        } else {
+            appliedListeners = cfg.listeners;
+        }
+
+        ConfigSnapshot previous = current.get();
+        ConfigSnapshot next = ConfigSnapshot.of(previous.getVersion() + 1, cfg);
+        current.set(next);
+        log.info("Configuration reloaded: {}", next);
+    }
+
+    /**
+     * Watches the given file and reloads it through {@code loader} whenever it changes.
+     * A failed reload keeps the previous snapshot.
+     */
+    public void watch(Path file, Supplier<ProxyConfig> loader) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path dir = absolute.getParent();
+        Path name = absolute.getFileName();
+
+        WatchService service = FileSystems.getDefault().newWatchService();
+        dir.register(service,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_CREATE);
+        this.watchService = service;
+
+        Thread watcher = new Thread(() -> watchLoop(service, name, loader), "ConfigWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        log.info("Watching {} for configuration changes", absolute);
+    }
+
+    private void watchLoop(WatchService service, Path name, Supplier<ProxyConfig> loader) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (name.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+
+                if (!changed) {
+                    continue;
+                }
+
+                // Editors often write a file in several steps - wait for them to settle
+                TimeUnit.MILLISECONDS.sleep(RELOAD_DEBOUNCE_MS);
+                WatchKey pending;
+                while ((pending = service.poll()) != null) {
+                    pending.pollEvents();
+                    pending.reset();
+                }
+
+                try {
+                    apply(loader.get());
+                } catch (RuntimeException e) {
+                    log.error("Configuration reload failed, keeping previous settings: {}", e.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Configuration watcher stopped");
+        }
+    }
+
+    /**
+     * Stops watching the configuration file.
+     */
+    public void close() {
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                log.debug("Error closing watch service: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists settings that differ between two configurations but can only be
+     * applied by rebinding or restarting the server.
+     */
+    static List<String> restartRequired(ProxyConfig running, ProxyConfig next) {
+        List<String> changed = new ArrayList<>();
+        if (running.server.listenPort != next.server.listenPort) {
+            changed.add("server.listenPort");
+        }
+        if (running.server.reusePort != next.server.reusePort) {
+            changed.add("server.reusePort");
+        }
+        if (running.server.drainTimeoutSec != next.server.drainTimeoutSec
+                || running.server.drainProgressSec != next.server.drainProgressSec) {
+            changed.add("server.drain");
+        }
+        if (running.bind.portRangeStart != next.bind.portRangeStart
+                || running.bind.portRangeEnd != next.bind.portRangeEnd) {
+            changed.add("bind.portRange");
+        }
+        if (running.auth.enabled != next.auth.enabled
+                || !Objects.equals(running.auth.credentialsFile, next.auth.credentialsFile)
+                || running.auth.cacheTtlSec != next.auth.cacheTtlSec) {
+            changed.add("auth");
+        }
+        if (running.relay.poolBytes != next.relay.poolBytes) {
+            changed.add("relay.poolBytes");
+        }
+        if (!Objects.equals(running.state.file, next.state.file)
+                || running.state.intervalSec != next.state.intervalSec
+                || running.state.maxAgeSec != next.state.maxAgeSec) {
+            changed.add("state");
+        }
+        if (!Objects.equals(running.rules.blacklist, next.rules.blacklist)) {
+            changed.add("rules.blacklist");
+        }
+        if (!Objects.equals(running.rules.whitelist, next.rules.whitelist)) {
+            changed.add("rules.whitelist");
+        }
+        if (!Objects.equals(running.rules.redirect, next.rules.redirect)) {
+            changed.add("rules.redirect");
+        }
+        if (!Objects.equals(running.rules.segment, next.rules.segment)) {
+            changed.add("rules.segment");
+        }
+        if (!describeBindings(running).equals(describeBindings(next))) {
+            changed.add("listeners");
+        }
+        return changed;
+    }
+
+    private static List<String> describeBindings(ProxyConfig cfg) {
+        List<String> bindings = new ArrayList<>();
+        for (ProxyConfig.Listener listener : cfg.listeners) {
+            bindings.add(listener.describeBinding());
+        }
+        return bindings;
+    }
+}
@@ -1,33 +1,91 @@
 package com.pyatkin.net_6_socks.conf;
 
+import com.pyatkin.net_6_socks.rules.Cidr;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class ProxyConfig {
     public Server server = new Server();
     public Upstream upstream = new Upstream();
     public Segment segment = new Segment();
     public Strategy strategy = new Strategy();
     public Rules rules = new Rules();
+    public Limits limits = new Limits();
+    public Timeouts timeouts = new Timeouts();
+    public Connect connect = new Connect();
+    public Udp udp = new Udp();
+    public Bind bind = new Bind();
+    public Auth auth = new Auth();
+    public Sockets sockets = new Sockets();
+    public WarmPool warmPool = new WarmPool();
+    public Breaker breaker = new Breaker();
+    public Diagnostics diagnostics = new Diagnostics();
+    public Mux mux = new Mux();
+    public Bulkheads bulkheads = new Bulkheads();
+    public Relay relay = new Relay();
+    public Shadow shadow = new Shadow();
+    public State state = new State();
+    public Clients clients = new Clients();
+    public List<Listener> listeners = new ArrayList<>();  // empty = one listener on server.listenPort
 
     public static class Server {
         public int listenPort = 1080;
+        public boolean reusePort = false;       // SO_REUSEPORT, lets a new process bind before the old one drains
+        public int drainTimeoutSec = 30;        // 0 = wait for all tunnels to finish naturally
+        public int drainProgressSec = 5;
+        public long handoffPid = 0;             // process to drain once our listener is bound (CLI only)
+        public boolean socks4 = true;           // accept SOCKS4/4a on the same port
+        public boolean httpConnect = true;      // accept HTTP CONNECT on the same port
 
         public void validate() {
             if (listenPort < 1 || listenPort > 65535) {
                 throw new IllegalArgumentException("Invalid listenPort: " + listenPort);
             }
+            if (drainTimeoutSec < 0) {
+                throw new IllegalArgumentException("Invalid drainTimeoutSec: " + drainTimeoutSec);
+            }
+            if (drainProgressSec < 1) {
+                throw new IllegalArgumentException("Invalid drainProgressSec: " + drainProgressSec);
+            }
         }
     }
 
     public static class Upstream {
+        public String type = "socks5";                      // socks5 or mux (another instance of this proxy)
         public String host = "127.0.0.1";
         public int port = 9050;
+        public List<String> fallbacks = new ArrayList<>();   // "host:port", tried in order after host:port
 
         public void validate() {
+            if (!"socks5".equals(type) && !"mux".equals(type)) {
+                throw new IllegalArgumentException("Invalid upstream type: " + type + ". Must be socks5 or mux");
+            }
             if (host == null || host.trim().isEmpty()) {
                 throw new IllegalArgumentException("Upstream host cannot be empty");
             }
             if (port < 1 || port > 65535) {
                 throw new IllegalArgumentException("Invalid upstream port: " + port);
             }
+            for (String fallback : fallbacks) {
+                int idx = fallback == null ? -1 : fallback.lastIndexOf(':');
+                if (idx < 1) {
+                    throw new IllegalArgumentException("Invalid upstream fallback: " + fallback + ". Must be host:port");
+                }
+                int fallbackPort;
+                try {
+                    fallbackPort = Integer.parseInt(fallback.substring(idx + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid upstream fallback port: " + fallback);
+                }
+                if (fallbackPort < 1 || fallbackPort > 65535) {
+                    throw new IllegalArgumentException("Invalid upstream fallback port: " + fallback);
+                }
+            }
         }
     }
 
@@ -67,10 +125,504 @@ public class ProxyConfig {
         public String segment = "segment.txt";
     }
 
+    public static class Limits {
+        public int maxSessions = 0;             // 0 = unlimited
+
+        public void validate() {
+            if (maxSessions < 0) {
+                throw new IllegalArgumentException("Invalid maxSessions: " + maxSessions);
+            }
+        }
+    }
+
+    public static class Timeouts {
+        public int handshakeMs = 10000;
+        public int connectMs = 10000;
+        public int upstreamConnectMs = 10000;
+        public int relayMaxSec = 300;
+
+        public void validate() {
+            if (handshakeMs < 0) {
+                throw new IllegalArgumentException("Invalid handshakeMs: " + handshakeMs);
+            }
+            if (connectMs < 0) {
+                throw new IllegalArgumentException("Invalid connectMs: " + connectMs);
+            }
+            if (upstreamConnectMs < 0) {
+                throw new IllegalArgumentException("Invalid upstreamConnectMs: " + upstreamConnectMs);
+            }
+            if (relayMaxSec <= 0) {
+                throw new IllegalArgumentException("Invalid relayMaxSec: " + relayMaxSec);
+            }
+        }
+    }
+
+    public static class Connect {
+        public boolean adaptive = true;         // derive connect timeouts from each destination's recent connects
+        public int minSamples = 8;              // connects seen before a destination's times are trusted
+        public int timeoutFactor = 4;           // timeout = p99 connect time x this, at most timeouts.*ConnectMs
+        public int minTimeoutMs = 1500;         // never shorter; above the 1s SYN retransmit
+        public boolean hedgeRedirect = true;    // second upstream connect once the first passes the upstream's p95
+        public int hedgeMinMs = 50;             // never hedge sooner than this
+
+        public void validate() {
+            if (minSamples < 1) {
+                throw new IllegalArgumentException("Invalid connect.minSamples: " + minSamples);
+            }
+            if (timeoutFactor < 1) {
+                throw new IllegalArgumentException("Invalid connect.timeoutFactor: " + timeoutFactor);
+            }
+            if (minTimeoutMs < 1) {
+                throw new IllegalArgumentException("Invalid connect.minTimeoutMs: " + minTimeoutMs);
+            }
+            if (hedgeMinMs < 1) {
+                throw new IllegalArgumentException("Invalid connect.hedgeMinMs: " + hedgeMinMs);
+            }
+        }
+    }
+
+    public static class Udp {
+        public boolean enabled = true;
+        public int idleTimeoutSec = 60;
+        public int batchSize = 32;              // datagrams drained per readiness event
+
+        public void validate() {
+            if (idleTimeoutSec <= 0) {
+                throw new IllegalArgumentException("Invalid udp.idleTimeoutSec: " + idleTimeoutSec);
+            }
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Invalid udp.batchSize: " + batchSize);
+            }
+        }
+    }
+
+    public static class Bind {
+        public boolean enabled = true;
+        public int portRangeStart = 40000;
+        public int portRangeEnd = 40099;
+        public int acceptTimeoutSec = 60;
+
+        public void validate() {
+            if (portRangeStart < 1 || portRangeEnd > 65535 || portRangeStart > portRangeEnd) {
+                throw new IllegalArgumentException("Invalid bind port range: " + portRangeStart + "-" + portRangeEnd);
+            }
+            if (acceptTimeoutSec <= 0) {
+                throw new IllegalArgumentException("Invalid bind.acceptTimeoutSec: " + acceptTimeoutSec);
+            }
+        }
+    }
+
+    public static class Auth {
+        public boolean enabled = false;         // RFC 1929 username/password
+        public String credentialsFile = "users.txt";
+        public int cacheTtlSec = 300;           // how long a verified password skips the slow hash check
+
+        public void validate() {
+            if (enabled && (credentialsFile == null || credentialsFile.trim().isEmpty())) {
+                throw new IllegalArgumentException("auth.credentialsFile is required when auth is enabled");
+            }
+            if (cacheTtlSec < 0) {
+                throw new IllegalArgumentException("Invalid auth.cacheTtlSec: " + cacheTtlSec);
+            }
+        }
+    }
+
+    public static class SocketOptions {
+        public Boolean tcpNoDelay;              // null = OS default
+        public Boolean keepAlive;
+        public Integer sendBuffer;              // SO_SNDBUF, bytes
+        public Integer receiveBuffer;           // SO_RCVBUF, bytes
+
+        public void validate(String name) {
+            if (sendBuffer != null && sendBuffer <= 0) {
+                throw new IllegalArgumentException("Invalid " + name + ".sendBuffer: " + sendBuffer);
+            }
+            if (receiveBuffer != null && receiveBuffer <= 0) {
+                throw new IllegalArgumentException("Invalid " + name + ".receiveBuffer: " + receiveBuffer);
+            }
+        }
+    }
+
+    public static class SocketProfile {
+        public SocketOptions client = new SocketOptions();
+        public SocketOptions remote = new SocketOptions();
+    }
+
+    public static class Sockets {
+        // "default" applies to every strategy, "direct", "redirect" and "segment" override it per strategy
+        public Map<String, SocketProfile> profiles = new LinkedHashMap<>();
+        public boolean autotune = false;        // size unset buffers from measured throughput and RTT
+        public int minBufferBytes = 64 * 1024;
+        public int maxBufferBytes = 4 * 1024 * 1024;
+
+        public void validate() {
+            for (Map.Entry<String, SocketProfile> entry : profiles.entrySet()) {
+                String name = entry.getKey();
+                if (!name.matches("default|direct|redirect|segment")) {
+                    throw new IllegalArgumentException("Invalid socket profile: " + name +
+                            ". Must be one of: default, direct, redirect, segment");
+                }
+                SocketProfile profile = entry.getValue();
+                if (profile == null) {
+                    throw new IllegalArgumentException("Empty socket profile: " + name);
+                }
+                if (profile.client != null) {
+                    profile.client.validate("sockets.profiles." + name + ".client");
+                }
+                if (profile.remote != null) {
+                    profile.remote.validate("sockets.profiles." + name + ".remote");
+                }
+            }
+            if (minBufferBytes <= 0 || maxBufferBytes < minBufferBytes) {
+                throw new IllegalArgumentException("Invalid sockets buffer range: " +
+                        minBufferBytes + "-" + maxBufferBytes);
+            }
+        }
+    }
+
+    public static class WarmPool {
+        public boolean enabled = false;         // keep pre-connected sockets for hot direct destinations
+        public int maxSockets = 16;             // idle sockets across all destinations
+        public int perHost = 2;                 // idle sockets per host:port
+        public int hotDestinations = 8;         // most requested host:port pairs kept warm
+        public int minRequests = 3;             // requests in the recent window before a pair is hot
+        public int maxIdleSec = 10;             // servers drop idle connections - keep this short
+
+        public void validate() {
+            if (maxSockets < 1 || perHost < 1 || hotDestinations < 1 || minRequests < 1) {
+                throw new IllegalArgumentException("warmPool sizes must be positive");
+            }
+            if (maxIdleSec < 1) {
+                throw new IllegalArgumentException("Invalid warmPool.maxIdleSec: " + maxIdleSec);
+            }
+        }
+    }
+
+    public static class Breaker {
+        public boolean enabled = true;          // fail fast to destinations that keep failing
+        public int failureThreshold = 3;        // consecutive connect failures that open the circuit
+        public int openSec = 5;                 // first backoff, doubled on every trip
+        public int maxOpenSec = 60;
+
+        public void validate() {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("Invalid breaker.failureThreshold: " + failureThreshold);
+            }
+            if (openSec < 1 || maxOpenSec < openSec) {
+                throw new IllegalArgumentException("Invalid breaker backoff: " + openSec + "-" + maxOpenSec + "s");
+            }
+        }
+    }
+
+    public static class Diagnostics {
+        public int slowSessions = 20;           // sessions with the longest setup kept for inspection, 0 = off
+        public int sampleRate = 1;              // consider one in N sessions for the slow-session ring
+        public String traceFile;                // append payload-free tunnel traces here, null = off
+        public boolean heavyHitters = true;     // count top destinations and clients per window
+
+        public void validate() {
+            if (slowSessions < 0) {
+                throw new IllegalArgumentException("Invalid diagnostics.slowSessions: " + slowSessions);
+            }
+            if (sampleRate < 1) {
+                throw new IllegalArgumentException("Invalid diagnostics.sampleRate: " + sampleRate);
+            }
+        }
+    }
+
+    public static class Bulkhead {
+        public int maxSessions;                 // tunnels running at once, 0 = unlimited
+        public int queue;                       // tunnels waiting for a slot, 0 = reject at once when full
+        public int queueTimeoutMs;              // longest wait for a slot before the tunnel is rejected
+
+        public Bulkhead() {
+        }
+
+        public Bulkhead(int maxSessions, int queue, int queueTimeoutMs) {
+            this.maxSessions = maxSessions;
+            this.queue = queue;
+            this.queueTimeoutMs = queueTimeoutMs;
+        }
+
+        public void validate(String name) {
+            if (maxSessions < 0 || queue < 0 || queueTimeoutMs < 0) {
+                throw new IllegalArgumentException("Invalid bulkheads." + name + ": " + maxSessions + "/"
+                        + queue + "/" + queueTimeoutMs + "ms");
+            }
+            if (queue > 0 && queueTimeoutMs == 0) {
+                throw new IllegalArgumentException("bulkheads." + name + ".queueTimeoutMs is required with a queue");
+            }
+        }
+    }
+
+    public static class Bulkheads {
+        // Each strategy gets its own slots and relay threads, assigned right after rule matching
+        public Bulkhead direct = new Bulkhead(2048, 256, 5000);
+        public Bulkhead redirect = new Bulkhead(256, 64, 5000);
+        public Bulkhead segment = new Bulkhead(256, 64, 5000);
+        public Bulkhead udp = new Bulkhead(256, 0, 0);      // UDP associations, whatever their destinations
+
+        public void validate() {
+            if (direct == null || redirect == null || segment == null || udp == null) {
+                throw new IllegalArgumentException("bulkheads.direct, redirect, segment and udp must all be set");
+            }
+            direct.validate("direct");
+            redirect.validate("redirect");
+            segment.validate("segment");
+            udp.validate("udp");
+        }
+    }
+
+    public static class Relay {
+        public boolean prioritize = true;       // bulk tunnels take turns so interactive ones are served first
+        public int bulkBytesPerSec = 262144;    // a tunnel moving more than this in large reads is bulk
+        public int bulkTurns = 0;               // bulk tunnels writing at once, 0 = one per CPU
+        public int quantumBytes = 65536;        // most a bulk tunnel writes per turn
+        public int poolBytes = 16 * 1024 * 1024; // idle relay buffers kept for reuse (startup only)
+
+        public void validate() {
+            if (bulkBytesPerSec < 1024) {
+                throw new IllegalArgumentException("Invalid relay.bulkBytesPerSec: " + bulkBytesPerSec);
+            }
+            if (bulkTurns < 0) {
+                throw new IllegalArgumentException("Invalid relay.bulkTurns: " + bulkTurns);
+            }
+            if (quantumBytes < 8192 || quantumBytes > 1024 * 1024) {
+                throw new IllegalArgumentException("Invalid relay.quantumBytes: " + quantumBytes + ". Must be 8K-1M");
+            }
+            if (poolBytes < 0) {
+                throw new IllegalArgumentException("Invalid relay.poolBytes: " + poolBytes);
+            }
+        }
+    }
+
+    public static class Shadow {
+        // Candidate rule files compared against the active rules; unset ones fall back to rules.*
+        public String blacklist;
+        public String whitelist;
+        public String redirect;
+        public String segment;
+        public int sampleRate = 10;             // compare one in N CONNECTs
+        public int examples = 5;                // example hosts kept per kind of difference
+
+        public boolean isEnabled() {
+            return blacklist != null || whitelist != null || redirect != null || segment != null;
+        }
+
+        public void validate() {
+            if (sampleRate < 1) {
+                throw new IllegalArgumentException("Invalid shadow.sampleRate: " + sampleRate);
+            }
+            if (examples < 0) {
+                throw new IllegalArgumentException("Invalid shadow.examples: " + examples);
+            }
+        }
+    }
+
+    public static class State {
+        public String file;                     // keep learned state here across restarts, null = off
+        public int intervalSec = 60;            // how often it is saved
+        public int maxAgeSec = 3600;            // older entries are discarded when loading
+
+        public void validate() {
+            if (intervalSec < 1) {
+                throw new IllegalArgumentException("Invalid state.intervalSec: " + intervalSec);
+            }
+            if (maxAgeSec < 1) {
+                throw new IllegalArgumentException("Invalid state.maxAgeSec: " + maxAgeSec);
+            }
+        }
+    }
+
+    public static class Clients {
+        // Checked right after accept; the most specific matching prefix wins
+        public List<String> allow = new ArrayList<>();   // IP/CIDR; if set, other clients are rejected
+        public List<String> deny = new ArrayList<>();
+        public int connectsPerSec = 0;          // per client address, 0 = unlimited
+        public int connectBurst = 20;           // connects allowed at once before the rate applies
+
+        public void validate() {
+            if (allow == null || deny == null) {
+                throw new IllegalArgumentException("clients.allow and clients.deny must be lists");
+            }
+            for (String cidr : allow) {
+                validateCidr("clients.allow", cidr);
+            }
+            for (String cidr : deny) {
+                validateCidr("clients.deny", cidr);
+            }
+            if (connectsPerSec < 0) {
+                throw new IllegalArgumentException("Invalid clients.connectsPerSec: " + connectsPerSec);
+            }
+            if (connectBurst < 1) {
+                throw new IllegalArgumentException("Invalid clients.connectBurst: " + connectBurst);
+            }
+        }
+
+        private static void validateCidr(String name, String cidr) {
+            try {
+                Cidr.parse(cidr.trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid " + name + " entry: " + e.getMessage());
+            }
+        }
+    }
+
+    public static class Listener {
+        public String name;                     // JMX and log name, defaults to the port
+        public String bindAddress;              // null = all interfaces
+        public int port;
+        public String defaultStrategy;          // null = strategy.defaultStrategy
+        public ListenerRules rules = new ListenerRules();
+        public Segment segment;                 // null = top-level segment
+
+        public String getName() {
+            return name != null ? name : String.valueOf(port);
+        }
+
+        /**
+         * What a running listener was bound and compiled with; a change needs a restart.
+         */
+        public String describeBinding() {
+            return getName() + "@" + (bindAddress != null ? bindAddress : "*") + ":" + port + " " + rules;
+        }
+
+        public void validate() {
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Invalid listener port: " + port);
+            }
+            if (defaultStrategy != null && !defaultStrategy.matches("direct|redirect|segment")) {
+                throw new IllegalArgumentException("Invalid defaultStrategy of listener " + getName() + ": " +
+                        defaultStrategy + ". Must be one of: direct, redirect, segment");
+            }
+            if (rules == null) {
+                throw new IllegalArgumentException("listener " + getName() + " rules must be a map");
+            }
+            if (segment != null) {
+                segment.validate();
+            }
+        }
+    }
+
+    public static class ListenerRules {
+        // Unset files fall back to rules.*; listeners with the same files share one compiled rule set
+        public String blacklist;
+        public String whitelist;
+        public String redirect;
+        public String segment;
+
+        @Override
+        public String toString() {
+            return "[" + blacklist + ", " + whitelist + ", " + redirect + ", " + segment + "]";
+        }
+    }
+
+    /**
+     * Listeners to bind: the configured ones, or a single one on {@code server.listenPort}
+     * using the top-level strategy, rules and segment settings.
+     */
+    public List<Listener> effectiveListeners() {
+        if (!listeners.isEmpty()) {
+            return listeners;
+        }
+        Listener single = new Listener();
+        single.port = server.listenPort;
+        return List.of(single);
+    }
+
+    /**
+     * This configuration as one listener sees it: its strategy, rule files and segment
+     * settings in place of the top-level ones, every other section shared.
+     */
+    public ProxyConfig forListener(Listener listener) {
+        ProxyConfig view = new ProxyConfig();
+        view.server = server;
+        view.upstream = upstream;
+        view.limits = limits;
+        view.timeouts = timeouts;
+        view.connect = connect;
+        view.udp = udp;
+        view.bind = bind;
+        view.auth = auth;
+        view.sockets = sockets;
+        view.warmPool = warmPool;
+        view.breaker = breaker;
+        view.diagnostics = diagnostics;
+        view.mux = mux;
+        view.bulkheads = bulkheads;
+        view.relay = relay;
+        view.shadow = shadow;
+        view.state = state;
+        view.clients = clients;
+
+        view.strategy = new Strategy();
+        view.strategy.defaultStrategy = listener.defaultStrategy != null
+                ? listener.defaultStrategy : strategy.defaultStrategy;
+        view.segment = listener.segment != null ? listener.segment : segment;
+        view.rules = new Rules();
+        view.rules.blacklist = listener.rules.blacklist != null ? listener.rules.blacklist : rules.blacklist;
+        view.rules.whitelist = listener.rules.whitelist != null ? listener.rules.whitelist : rules.whitelist;
+        view.rules.redirect = listener.rules.redirect != null ? listener.rules.redirect : rules.redirect;
+        view.rules.segment = listener.rules.segment != null ? listener.rules.segment : rules.segment;
+        return view;
+    }
+
+    public static class Mux {
+        public boolean accept = false;          // serve mux connections from edge instances on the listen port
+        public int connections = 2;             // long-lived connections per mux upstream
+        public int windowBytes = 262144;        // per-stream flow control window
+        public int maxStreamsPerEdge = 256;     // streams one edge address may have open on this exit, 0 = unlimited
+        public String username;                 // sent to a mux upstream that requires authentication
+        public String password;
+
+        public void validate() {
+            if (connections < 1) {
+                throw new IllegalArgumentException("Invalid mux.connections: " + connections);
+            }
+            if (windowBytes < 16384 || windowBytes > 16 * 1024 * 1024) {
+                throw new IllegalArgumentException("Invalid mux.windowBytes: " + windowBytes + ". Must be 16K-16M");
+            }
+            if (maxStreamsPerEdge < 0) {
+                throw new IllegalArgumentException("Invalid mux.maxStreamsPerEdge: " + maxStreamsPerEdge);
+            }
+        }
+    }
+
     public void validate() {
         server.validate();
         upstream.validate();
         segment.validate();
         strategy.validate();
+        limits.validate();
+        timeouts.validate();
+        connect.validate();
+        udp.validate();
+        bind.validate();
+        auth.validate();
+        sockets.validate();
+        warmPool.validate();
+        breaker.validate();
+        diagnostics.validate();
+        mux.validate();
+        bulkheads.validate();
+        relay.validate();
+        shadow.validate();
+        state.validate();
+        clients.validate();
+        if (listeners == null) {
+            throw new IllegalArgumentException("listeners must be a list");
+        }
+        Set<String> names = new HashSet<>();
+        Set<String> addresses = new HashSet<>();
+        for (Listener listener : listeners) {
+            listener.validate();
+            if (!names.add(listener.getName())) {
+                throw new IllegalArgumentException("Duplicate listener name: " + listener.getName());
+            }
+            if (!addresses.add(listener.bindAddress + ":" + listener.port)) {
+                throw new IllegalArgumentException("Duplicate listener address: " +
+                        (listener.bindAddress != null ? listener.bindAddress : "*") + ":" + listener.port);
+            }
+        }
     }
 }
\ No newline at end of file
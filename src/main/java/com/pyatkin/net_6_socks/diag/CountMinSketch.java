@@ -0,0 +1,70 @@
+package com.pyatkin.net_6_socks.diag;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min sketch over string keys with lock-free updates.
+ *
+ * Estimates never undercount; they overcount by at most about 2/width of the
+ * total added, with high probability over {@value #DEPTH} rows. The row positions
+ * come from two seeded hashes of the key's characters, not from String.hashCode.
+ */
+final class CountMinSketch {
+    private static final int DEPTH = 4;
+    private static final long SEED1 = 0x243f6a8885a308d3L;
+    private static final long SEED2 = 0x13198a2e03707344L;
+
+    private final int mask;
+    private final int width;
+    private final AtomicLongArray counts;
+
+    /**
+     * @param width counters per row, rounded up to a power of two
+     */
+    CountMinSketch(int width) {
+        this.width = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.mask = this.width - 1;
+        this.counts = new AtomicLongArray(DEPTH * this.width);
+    }
+
+    void add(String key, long n) {
+        long h1 = hash(key, SEED1);
+        long h2 = hash(key, SEED2) | 1;
+        for (int row = 0; row < DEPTH; row++) {
+            counts.addAndGet(row * width + ((int) (h1 + row * h2) & mask), n);
+        }
+    }
+
+    long estimate(String key) {
+        long h1 = hash(key, SEED1);
+        long h2 = hash(key, SEED2) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counts.get(row * width + ((int) (h1 + row * h2) & mask)));
+        }
+        return min;
+    }
+
+    /**
+     * 64-bit hash of the key's characters. Rows combine two of these with independent
+     * seeds (h1 + row * h2), so keys with equal String.hashCode values ("Aa", "BB")
+     * still land apart.
+     */
+    private static long hash(String key, long seed) {
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = Long.rotateLeft((h ^ key.charAt(i)) * 0x9e3779b97f4a7c15L, 29);
+        }
+        return mix(h ^ key.length());
+    }
+
+    // Murmur3 64-bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,202 @@
+package com.pyatkin.net_6_socks.diag;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Top destinations and clients by connections and by bytes, over sliding windows of
+ * one minute, five minutes and one hour, in fixed memory.
+ *
+ * Every finished session is added to a one-minute bucket and a five-minute bucket.
+ * A bucket counts connections and bytes in two Count-Min sketches and remembers a
+ * bounded set of candidate keys; once the set overflows, whoever notices prunes it to
+ * the keys with the largest estimates, unless someone else already is. Recording is
+ * therefore lock-free. A query sums the buckets covering the window, weighting the
+ * oldest one by how much of it still falls inside, and ranks the candidates by their
+ * estimates. Counts are approximate and never under the true value.
+ */
+public class HeavyHitters {
+    public static final List<String> WINDOWS = List.of("1m", "5m", "1h");
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int SKETCH_WIDTH = 1024;
+    private static final int CANDIDATES = 256;
+
+    private final Dimension destinations = new Dimension();
+    private final Dimension clients = new Dimension();
+
+    /**
+     * Adds one finished session; cheap enough to call for every session.
+     */
+    public void record(String destination, String client, long bytes) {
+        long now = System.currentTimeMillis();
+        destinations.add(destination, bytes, now);
+        clients.add(client, bytes, now);
+    }
+
+    /**
+     * Top {@code k} destinations and clients by connections and by bytes over
+     * {@code window}, one of {@link #WINDOWS}.
+     */
+    public List<String> describe(String window, int k) {
+        if (!WINDOWS.contains(window)) {
+            throw new IllegalArgumentException("Unknown window: " + window + ". Must be one of " + WINDOWS);
+        }
+        long now = System.currentTimeMillis();
+        List<String> lines = new ArrayList<>();
+        lines.add("destinations by connections (" + window + "): " + destinations.top(window, k, false, now));
+        lines.add("destinations by bytes (" + window + "): " + destinations.top(window, k, true, now));
+        lines.add("clients by connections (" + window + "): " + clients.top(window, k, false, now));
+        lines.add("clients by bytes (" + window + "): " + clients.top(window, k, true, now));
+        return lines;
+    }
+
+    /**
+     * Destinations or clients: a ring of one-minute buckets for the short windows and
+     * a ring of five-minute buckets for the hour.
+     */
+    private static final class Dimension {
+        // One spare bucket each, for the partially covered oldest one
+        private final Ring minutes = new Ring(MINUTE_MS, 6 + 1);
+        private final Ring fiveMinutes = new Ring(5 * MINUTE_MS, 12 + 1);
+
+        void add(String key, long bytes, long now) {
+            minutes.current(now).add(key, bytes);
+            fiveMinutes.current(now).add(key, bytes);
+        }
+
+        String top(String window, int k, boolean byBytes, long now) {
+            Map<Bucket, Double> weights;
+            switch (window) {
+                case "1m":
+                    weights = minutes.cover(1, now);
+                    break;
+                case "5m":
+                    weights = minutes.cover(5, now);
+                    break;
+                default:
+                    weights = fiveMinutes.cover(12, now);
+                    break;
+            }
+
+            Set<String> keys = new HashSet<>();
+            weights.keySet().forEach(bucket -> keys.addAll(bucket.candidates.keySet()));
+            List<Map.Entry<String, Long>> ranked = new ArrayList<>();
+            for (String key : keys) {
+                double total = 0;
+                for (Map.Entry<Bucket, Double> entry : weights.entrySet()) {
+                    total += entry.getValue() * entry.getKey().estimate(key, byBytes);
+                }
+                if (total >= 1) {
+                    ranked.add(Map.entry(key, Math.round(total)));
+                }
+            }
+            ranked.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            return ranked.subList(0, Math.min(k, ranked.size())).toString();
+        }
+    }
+
+    /**
+     * Fixed number of buckets, reused round-robin by their slot number.
+     */
+    private static final class Ring {
+        private final long slotMs;
+        private final AtomicReferenceArray<Bucket> buckets;
+
+        Ring(long slotMs, int size) {
+            this.slotMs = slotMs;
+            this.buckets = new AtomicReferenceArray<>(size);
+        }
+
+        Bucket current(long now) {
+            long slot = now / slotMs;
+            int index = (int) (slot % buckets.length());
+            while (true) {
+                Bucket bucket = buckets.get(index);
+                if (bucket != null && bucket.slot == slot) {
+                    return bucket;
+                }
+                // The first session of a new slot replaces the stale bucket; losers use the winner's
+                Bucket fresh = new Bucket(slot);
+                if (buckets.compareAndSet(index, bucket, fresh)) {
+                    return fresh;
+                }
+            }
+        }
+
+        /**
+         * Buckets covering the last {@code slots} slots, with the share of each that is
+         * inside: the current one fully, the one just past the window by what is left of it.
+         */
+        Map<Bucket, Double> cover(int slots, long now) {
+            long slot = now / slotMs;
+            double elapsed = (now % slotMs) / (double) slotMs;
+            Map<Bucket, Double> weights = new HashMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                if (bucket == null) {
+                    continue;
+                }
+                long age = slot - bucket.slot;
+                if (age >= 0 && age < slots) {
+                    weights.put(bucket, 1.0);
+                } else if (age == slots) {
+                    weights.put(bucket, 1.0 - elapsed);
+                }
+            }
+            return weights;
+        }
+    }
+
+    private static final class Bucket {
+        final long slot;
+        final CountMinSketch connections = new CountMinSketch(SKETCH_WIDTH);
+        final CountMinSketch bytes = new CountMinSketch(SKETCH_WIDTH);
+        final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+        final ReentrantLock pruning = new ReentrantLock();
+
+        Bucket(long slot) {
+            this.slot = slot;
+        }
+
+        void add(String key, long sessionBytes) {
+            connections.add(key, 1);
+            if (sessionBytes > 0) {
+                bytes.add(key, sessionBytes);
+            }
+            if (candidates.putIfAbsent(key, Boolean.TRUE) == null && candidates.size() > 2 * CANDIDATES
+                    && pruning.tryLock()) {
+                try {
+                    prune();
+                } finally {
+                    pruning.unlock();
+                }
+            }
+        }
+
+        long estimate(String key, boolean byBytes) {
+            return (byBytes ? bytes : connections).estimate(key);
+        }
+
+        /**
+         * Keeps the keys that are among the top by connections or by bytes.
+         */
+        private void prune() {
+            List<String> keys = new ArrayList<>(candidates.keySet());
+            Set<String> keep = new HashSet<>();
+            for (boolean byBytes : new boolean[]{false, true}) {
+                keys.sort((a, b) -> Long.compare(estimate(b, byBytes), estimate(a, byBytes)));
+                keep.addAll(keys.subList(0, Math.min(CANDIDATES, keys.size())));
+            }
+            candidates.keySet().retainAll(keep);
+        }
+    }
+}
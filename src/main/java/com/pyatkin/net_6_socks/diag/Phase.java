@@ -0,0 +1,31 @@
+package com.pyatkin.net_6_socks.diag;
+
+/**
+ * Phases of a session, in the order they normally happen.
+ */
+public enum Phase {
+    HANDSHAKE("handshake"),
+    RULES("rules"),
+    QUEUE("queue"),
+    DNS("dns"),
+    CONNECT("connect"),
+    SEGMENT("segment"),
+    RELAY("relay");
+
+    private final String label;
+
+    Phase(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    /**
+     * True for phases spent before the first byte is relayed.
+     */
+    boolean isSetup() {
+        return this == HANDSHAKE || this == RULES || this == QUEUE || this == DNS || this == CONNECT;
+    }
+}
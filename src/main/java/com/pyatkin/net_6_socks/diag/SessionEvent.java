@@ -0,0 +1,51 @@
+package com.pyatkin.net_6_socks.diag;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A whole SOCKS5 session, recorded by JDK Flight Recorder.
+ */
+@Name("com.pyatkin.net_6_socks.Session")
+@Label("Session")
+@Description("A SOCKS5 session from accept to close")
+@Category("SOCKS5 Proxy")
+@StackTrace(false)
+class SessionEvent extends jdk.jfr.Event {
+    @Label("Client")
+    String client;
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("Matched Rule")
+    String rule;
+
+    @Label("Traffic Class")
+    @Description("interactive, bulk, or mixed if the tunnel went back to interactive")
+    String trafficClass;
+
+    @Label("Setup Time")
+    @Description("Handshake, rules, DNS and connect")
+    @Timespan(Timespan.NANOSECONDS)
+    long setup;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    long bytesReceived;
+}
@@ -0,0 +1,35 @@
+package com.pyatkin.net_6_socks.diag;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One phase of a SOCKS5 session, recorded by JDK Flight Recorder.
+ */
+@Name("com.pyatkin.net_6_socks.SessionPhase")
+@Label("Session Phase")
+@Description("Time spent in one phase of a SOCKS5 session")
+@Category("SOCKS5 Proxy")
+@StackTrace(false)
+class SessionPhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Client")
+    String client;
+
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("Matched Rule")
+    String rule;
+}
@@ -0,0 +1,151 @@
+package com.pyatkin.net_6_socks.diag;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phase-by-phase timing of one session.
+ *
+ * Each phase is bracketed by {@link #begin} and {@link #end}; the durations feed
+ * the slow-session ring and, while a recording is running, JFR events. When
+ * Flight Recorder is off no event is allocated and the cost is a few
+ * {@code nanoTime} calls per session.
+ */
+public class SessionTimeline {
+    private static final Phase[] PHASES = Phase.values();
+    // Never committed; isEnabled() only reads whether a recording wants the event type
+    private static final SessionPhaseEvent PHASE_PROBE = new SessionPhaseEvent();
+    private static final SessionEvent SESSION_PROBE = new SessionEvent();
+
+    private final String client;
+    private final Instant startedAt = Instant.now();
+    private final long[] starts = new long[PHASES.length];
+    private final long[] durations = new long[PHASES.length];
+    private final boolean[] open = new boolean[PHASES.length];
+    private final SessionPhaseEvent[] events = new SessionPhaseEvent[PHASES.length];
+    private final SessionEvent session;
+
+    private String host;
+    private int port;
+    private String strategy;
+    private String rule;
+    private String trafficClass;
+
+    public SessionTimeline(String client) {
+        this.client = client;
+        this.session = SESSION_PROBE.isEnabled() ? new SessionEvent() : null;
+        if (session != null) {
+            session.begin();
+        }
+    }
+
+    public void begin(Phase phase) {
+        int i = phase.ordinal();
+        starts[i] = System.nanoTime();
+        open[i] = true;
+        if (PHASE_PROBE.isEnabled()) {
+            SessionPhaseEvent event = new SessionPhaseEvent();
+            event.begin();
+            events[i] = event;
+        }
+    }
+
+    public void end(Phase phase) {
+        int i = phase.ordinal();
+        if (!open[i]) {
+            return;
+        }
+        durations[i] += System.nanoTime() - starts[i];
+        open[i] = false;
+
+        SessionPhaseEvent event = events[i];
+        if (event == null) {
+            return;
+        }
+        events[i] = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase.label();
+            event.client = client;
+            event.host = host;
+            event.port = port;
+            event.strategy = strategy;
+            event.rule = rule;
+            event.commit();
+        }
+    }
+
+    public void setTarget(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void setDecision(String strategy, String rule) {
+        this.strategy = strategy;
+        this.rule = rule;
+    }
+
+    /**
+     * Interactive, bulk or mixed, once the relay has ended.
+     */
+    public void setTrafficClass(String trafficClass) {
+        this.trafficClass = trafficClass;
+    }
+
+    /**
+     * Time spent before the first relayed byte: handshake, rules, DNS and connect.
+     */
+    public long getSetupNanos() {
+        long total = 0;
+        for (Phase phase : PHASES) {
+            if (phase.isSetup()) {
+                total += durations[phase.ordinal()];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Closes the session event. Called once, when the session ends.
+     */
+    public void finish(long bytesSent, long bytesReceived) {
+        if (session == null) {
+            return;
+        }
+        session.end();
+        if (session.shouldCommit()) {
+            session.client = client;
+            session.host = host;
+            session.port = port;
+            session.strategy = strategy;
+            session.rule = rule;
+            session.trafficClass = trafficClass;
+            session.setup = getSetupNanos();
+            session.bytesSent = bytesSent;
+            session.bytesReceived = bytesReceived;
+            session.commit();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(startedAt).append(' ').append(client).append(" -> ")
+                .append(host != null ? host + ":" + port : "?")
+                .append(" strategy=").append(strategy)
+                .append(" rule=").append(rule != null ? rule : "none")
+                .append(trafficClass != null ? " traffic=" + trafficClass : "")
+                .append(" setup=").append(millis(getSetupNanos())).append("ms [");
+        for (Phase phase : PHASES) {
+            if (phase.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(phase.label()).append('=').append(millis(durations[phase.ordinal()])).append("ms");
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
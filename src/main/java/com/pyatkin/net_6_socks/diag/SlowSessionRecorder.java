@@ -0,0 +1,85 @@
+package com.pyatkin.net_6_socks.diag;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the sessions with the longest setup time (handshake, rules, DNS, connect)
+ * out of a sample of all sessions, with their full phase breakdown.
+ *
+ * Sessions faster than the fastest one kept are rejected without taking the lock,
+ * so once the ring is warm almost every session costs one volatile read.
+ */
+public class SlowSessionRecorder {
+    private static final Logger log = LoggerFactory.getLogger(SlowSessionRecorder.class);
+    private static final Comparator<SessionTimeline> BY_SETUP =
+            Comparator.comparingLong(SessionTimeline::getSetupNanos);
+
+    // Min-heap: the head is the fastest of the slow sessions kept
+    private final PriorityQueue<SessionTimeline> slowest = new PriorityQueue<>(BY_SETUP);
+    private final AtomicLong seen = new AtomicLong();
+    private volatile long admissionNanos;
+    private volatile int lastCapacity;
+
+    /**
+     * Offers a finished session.
+     *
+     * @param capacity   how many sessions to keep, 0 disables the ring
+     * @param sampleRate record one in {@code sampleRate} sessions
+     */
+    public void offer(SessionTimeline timeline, int capacity, int sampleRate) {
+        if (capacity <= 0) {
+            return;
+        }
+        if (sampleRate > 1 && seen.incrementAndGet() % sampleRate != 0) {
+            return;
+        }
+        long setup = timeline.getSetupNanos();
+        if (setup <= admissionNanos && capacity == lastCapacity) {
+            return;
+        }
+
+        synchronized (this) {
+            slowest.add(timeline);
+            while (slowest.size() > capacity) {
+                slowest.poll();
+            }
+            admissionNanos = slowest.size() >= capacity ? slowest.peek().getSetupNanos() : 0;
+            lastCapacity = capacity;
+        }
+    }
+
+    /**
+     * Kept sessions, slowest first.
+     */
+    public synchronized List<String> dump() {
+        List<SessionTimeline> sorted = new ArrayList<>(slowest);
+        sorted.sort(BY_SETUP.reversed());
+        List<String> lines = new ArrayList<>(sorted.size());
+        for (SessionTimeline timeline : sorted) {
+            lines.add(timeline.toString());
+        }
+        return lines;
+    }
+
+    public synchronized void reset() {
+        slowest.clear();
+        admissionNanos = 0;
+    }
+
+    public void logStatistics() {
+        List<String> sessions = dump();
+        if (sessions.isEmpty()) {
+            return;
+        }
+        log.info("=== Slowest Sessions ===");
+        sessions.forEach(session -> log.info("  {}", session));
+        log.info("========================");
+    }
+}
@@ -0,0 +1,159 @@
+package com.pyatkin.net_6_socks.handler;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides on the accepting thread, before any handler thread is involved, whether a
+ * new connection is worth serving: the client ACL first, then a token bucket of
+ * connects per source. A source is an IPv4 address or an IPv6 /64, since one host
+ * usually holds a whole /64 and could otherwise rotate through it.
+ *
+ * Buckets are only kept for sources seen recently. Once {@value #MAX_SOURCES} are
+ * tracked, buckets that have refilled are dropped, since a full bucket is the same
+ * as none; that sweep runs at most once per {@value #SWEEP_INTERVAL_MS} ms. New
+ * sources that still find no room share one overflow bucket, so a flood of fresh
+ * addresses is held to one source's rate rather than let through.
+ */
+public class AcceptFilter {
+    private static final Logger log = LoggerFactory.getLogger(AcceptFilter.class);
+    private static final int MAX_SOURCES = 8192;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    private static final int IPV6_SOURCE_BYTES = 8;
+
+    private final Map<ByteBuffer, Bucket> sources = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep =
+            new AtomicLong(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS));
+    private volatile Bucket overflow;
+    private final AtomicLong denied = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+
+    /**
+     * True if the connection from {@code client} may go on to a handler thread.
+     */
+    public boolean admit(InetAddress client, ConfigSnapshot config) {
+        if (!config.getClientAcl().isOpen() && !config.getClientAcl().permits(client)) {
+            denied.incrementAndGet();
+            log.debug("Client {} denied by ACL", client.getHostAddress());
+            return false;
+        }
+
+        int perSec = config.getClientConnectsPerSec();
+        if (perSec == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        int burst = config.getClientConnectBurst();
+        ByteBuffer source = sourceOf(client);
+        Bucket bucket = sources.get(source);
+        if (bucket == null) {
+            if (sources.size() < MAX_SOURCES || sweep(now, perSec, burst)) {
+                bucket = sources.computeIfAbsent(source, k -> new Bucket(burst, now));
+            } else {
+                bucket = overflowBucket(burst, now);
+            }
+        }
+        if (!bucket.take(now, perSec, burst)) {
+            rateLimited.incrementAndGet();
+            log.debug("Client {} over {} connects/s", client.getHostAddress(), perSec);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The IPv4 address, or the /64 of an IPv6 one.
+     */
+    private static ByteBuffer sourceOf(InetAddress client) {
+        byte[] address = client.getAddress();
+        return ByteBuffer.wrap(address, 0, address.length == 4 ? 4 : IPV6_SOURCE_BYTES).slice();
+    }
+
+    /**
+     * Drops buckets that have refilled, unless that was done less than a sweep interval
+     * ago; true if there is room afterwards.
+     */
+    private boolean sweep(long now, int perSec, int burst) {
+        long last = lastSweep.get();
+        if (now - last >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS) && lastSweep.compareAndSet(last, now)) {
+            sources.values().removeIf(bucket -> bucket.isFull(now, perSec, burst));
+        }
+        return sources.size() < MAX_SOURCES;
+    }
+
+    private Bucket overflowBucket(int burst, long now) {
+        if (overflowed.getAndIncrement() == 0) {
+            log.warn("More than {} client sources connecting - new ones now share one connect budget",
+                    MAX_SOURCES);
+        }
+        Bucket bucket = overflow;
+        if (bucket == null) {
+            synchronized (this) {
+                if (overflow == null) {
+                    overflow = new Bucket(burst, now);
+                }
+                bucket = overflow;
+            }
+        }
+        return bucket;
+    }
+
+    public long getDenied() {
+        return denied.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("denied by ACL=%d, over connect rate=%d, sources tracked=%d, untracked connects=%d",
+                denied.get(), rateLimited.get(), sources.size(), overflowed.get());
+    }
+
+    public void logStatistics() {
+        if (denied.get() == 0 && rateLimited.get() == 0) {
+            return;
+        }
+        log.info("Rejected at accept: {}", this);
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        synchronized boolean take(long now, int perSec, int burst) {
+            refill(now, perSec, burst);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now, int perSec, int burst) {
+            refill(now, perSec, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, int perSec, int burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * perSec / 1e9);
+            lastRefill = now;
+        }
+    }
+}
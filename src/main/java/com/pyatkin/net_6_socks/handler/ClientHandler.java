@@ -1,8 +1,7 @@
 package com.pyatkin.net_6_socks.handler;
 
-import com.pyatkin.net_6_socks.rules.RuleManager;
+import com.pyatkin.net_6_socks.session.SessionContext;
 import com.pyatkin.net_6_socks.session.Socks5Session;
-import com.pyatkin.net_6_socks.traffic.TrafficSegmenter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,24 +11,11 @@ public class ClientHandler implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(ClientHandler.class);
 
     private final Socket client;
-    private final RuleManager rules;
-    private final TrafficSegmenter segmenter;
-    private final String defaultStrategy;
-    private final String upstreamHost;
-    private final int upstreamPort;
+    private final SessionContext context;
 
-    public ClientHandler(Socket client,
-                         RuleManager rules,
-                         TrafficSegmenter segmenter,
-                         String defaultStrategy,
-                         String upstreamHost,
-                         int upstreamPort) {
+    public ClientHandler(Socket client, SessionContext context) {
         this.client = client;
-        this.rules = rules;
-        this.segmenter = segmenter;
-        this.defaultStrategy = defaultStrategy;
-        this.upstreamHost = upstreamHost;
-        this.upstreamPort = upstreamPort;
+        this.context = context;
     }
 
     @Override
@@ -38,14 +24,7 @@ public class ClientHandler implements Runnable {
         log.debug("Starting client handler for: {}", clientAddr);
 
         try {
-            Socks5Session session = new Socks5Session(
-                    client,
-                    rules,
-                    segmenter,
-                    defaultStrategy,
-                    upstreamHost,
-                    upstreamPort
-            );
+            Socks5Session session = new Socks5Session(client, context);
             session.handle();
 
         } catch (Throwable t) {
@@ -62,4 +41,4 @@ public class ClientHandler implements Runnable {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package com.pyatkin.net_6_socks.mux;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.traffic.SocketTuning;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Edge side of the mux transport: a few long-lived connections per mux upstream,
+ * shared by all redirected tunnels.
+ *
+ * A stream goes to the live connection carrying the fewest streams; connections are
+ * opened on demand up to {@code mux.connections} and replaced when they drop.
+ * Connections accepted from edges are tracked here too, so a draining exit can
+ * let idle ones go, along with the streams each edge address has open on this exit.
+ */
+public class MuxClient implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MuxClient.class);
+
+    // Interactive tunnels share the connection, so small frames must not wait for Nagle
+    private static final SocketTuning MUX_DEFAULTS = new SocketTuning(true, true, null, null);
+
+    private final Map<String, List<MuxConnection>> connections = new ConcurrentHashMap<>();
+    private final Map<String, Object> createLocks = new ConcurrentHashMap<>();
+    private final Set<MuxConnection> accepted = ConcurrentHashMap.newKeySet();
+    private final Map<InetAddress, Integer> edgeStreams = new ConcurrentHashMap<>();
+    private final AtomicLong edgeStreamsRefused = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Opens a stream to {@code host:port} through the first reachable mux upstream.
+     */
+    public MuxStream open(String host, int port, ConfigSnapshot config) throws IOException {
+        IOException lastError = null;
+        for (InetSocketAddress upstream : config.getUpstreams()) {
+            try {
+                return connection(upstream, config).openStream(host, port);
+            } catch (IOException e) {
+                log.warn("Mux upstream {}:{} unavailable: {}", upstream.getHostString(), upstream.getPort(),
+                        e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError != null ? lastError : new IOException("No upstream proxy configured");
+    }
+
+    private MuxConnection connection(InetSocketAddress upstream, ConfigSnapshot config) throws IOException {
+        String key = upstream.getHostString() + ":" + upstream.getPort();
+        List<MuxConnection> list = connections.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>());
+        list.removeIf(MuxConnection::isClosed);
+
+        MuxConnection best = leastLoaded(list);
+        if (best != null && (best.activeStreams() == 0 || list.size() >= config.getMuxConnections())) {
+            return best;
+        }
+
+        synchronized (createLocks.computeIfAbsent(key, k -> new Object())) {
+            list.removeIf(MuxConnection::isClosed);
+            best = leastLoaded(list);
+            if (best != null && (best.activeStreams() == 0 || list.size() >= config.getMuxConnections())) {
+                return best;
+            }
+            if (closed) {
+                throw new IOException("Mux client is closed");
+            }
+            MuxConnection created = connect(upstream, config);
+            list.add(created);
+            log.info("Mux connection to {} established ({} open)", key, list.size());
+            return created;
+        }
+    }
+
+    private static MuxConnection leastLoaded(List<MuxConnection> list) {
+        MuxConnection best = null;
+        for (MuxConnection connection : list) {
+            if (!connection.isClosed() && (best == null || connection.activeStreams() < best.activeStreams())) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    private static MuxConnection connect(InetSocketAddress upstream, ConfigSnapshot config) throws IOException {
+        Socket socket = new Socket();
+        try {
+            config.getRemoteSocketTuning("redirect").orElse(MUX_DEFAULTS).apply(socket);
+            socket.connect(new InetSocketAddress(upstream.getHostString(), upstream.getPort()),
+                    config.getUpstreamConnectTimeoutMs());
+            return MuxConnection.connect(socket, config.getMuxWindowBytes(), config.getMuxUsername(),
+                    config.getMuxPassword(), config.getUpstreamConnectTimeoutMs());
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    public void register(MuxConnection connection) {
+        accepted.add(connection);
+    }
+
+    public void unregister(MuxConnection connection) {
+        accepted.remove(connection);
+    }
+
+    /**
+     * Counts a stream opened by {@code edge} over any of its connections.
+     *
+     * @return false if the edge already has {@code max} streams open (0 = no limit)
+     */
+    public boolean tryAcquireEdgeStream(InetAddress edge, int max) {
+        boolean[] acquired = new boolean[1];
+        edgeStreams.compute(edge, (k, count) -> {
+            int current = count != null ? count : 0;
+            if (max > 0 && current >= max) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        if (!acquired[0]) {
+            edgeStreamsRefused.incrementAndGet();
+        }
+        return acquired[0];
+    }
+
+    public void releaseEdgeStream(InetAddress edge) {
+        edgeStreams.computeIfPresent(edge, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Closes accepted connections that carry no streams; the edge reopens elsewhere.
+     */
+    public void closeIdleAccepted() {
+        for (MuxConnection connection : accepted) {
+            if (connection.activeStreams() == 0) {
+                log.info("Closing idle mux connection from {}", connection.getPeer());
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * One line per mux upstream: live connections and the streams they carry.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        connections.forEach((key, list) -> {
+            int streams = 0;
+            int live = 0;
+            for (MuxConnection connection : list) {
+                if (!connection.isClosed()) {
+                    live++;
+                    streams += connection.activeStreams();
+                }
+            }
+            lines.add(key + ": " + live + " connections, " + streams + " streams");
+        });
+        if (!accepted.isEmpty()) {
+            int streams = 0;
+            for (MuxConnection connection : accepted) {
+                streams += connection.activeStreams();
+            }
+            lines.add("accepted: " + accepted.size() + " connections, " + streams + " streams, "
+                    + edgeStreams.size() + " edges, refused over edge limit=" + edgeStreamsRefused.get());
+        }
+        return lines;
+    }
+
+    /**
+     * Closes every mux connection; tunnels still running over them are reset.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (List<MuxConnection> list : connections.values()) {
+            for (MuxConnection connection : list) {
+                connection.close();
+            }
+        }
+        connections.clear();
+        for (MuxConnection connection : accepted) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.pyatkin.net_6_socks.mux;
+
+import com.pyatkin.net_6_socks.auth.Authenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One long-lived TCP connection between two instances of this proxy, carrying many
+ * streams.
+ *
+ * Frames are [TYPE(1), STREAM(4), LENGTH(4), PAYLOAD]. The edge opens a stream with
+ * an OPEN frame naming the target and may send DATA right behind it, without waiting
+ * for an answer; the exit reports a failed connect by resetting the stream. Each
+ * direction of a stream has its own window: a sender never has more unacknowledged
+ * DATA in flight than the receiver announced in its HELLO, and the receiver returns
+ * credit with WINDOW frames as the data is consumed, so one slow stream cannot
+ * stall the others.
+ */
+public class MuxConnection implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MuxConnection.class);
+
+    /**
+     * First byte of a mux connection, never the first byte of SOCKS or HTTP.
+     */
+    public static final int PREFACE = 0xF0;
+    private static final byte[] PREFACE_BYTES = {(byte) PREFACE, 'M', 'U', 'X'};
+    private static final int VERSION = 1;
+
+    static final byte HELLO = 0;
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte WINDOW = 3;
+    static final byte FIN = 4;
+    static final byte RESET = 5;
+
+    static final int MAX_DATA = 16384;
+    private static final int MAX_PAYLOAD = MAX_DATA;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final String peer;
+    private final StreamHandler handler;
+    private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    // The edge uses odd stream ids; only the edge opens streams
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private final int receiveWindow;
+    private int sendWindow;
+    private volatile boolean closed;
+
+    /**
+     * Called on the exit for every stream the edge opens; must not block the reader.
+     */
+    public interface StreamHandler {
+        void onOpen(MuxStream stream, String host, int port);
+    }
+
+    private MuxConnection(Socket socket, InputStream in, OutputStream out, int receiveWindow,
+                          StreamHandler handler) {
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(new BufferedOutputStream(out, MAX_DATA + 9));
+        this.peer = String.valueOf(socket.getRemoteSocketAddress());
+        this.receiveWindow = receiveWindow;
+        this.handler = handler;
+    }
+
+    /**
+     * Edge side: sends the preface and HELLO over a connected socket, waits for the
+     * exit's answer and starts reading frames in the background.
+     */
+    public static MuxConnection connect(Socket socket, int receiveWindow, String username, String password,
+                                        int timeoutMs) throws IOException {
+        MuxConnection connection = new MuxConnection(socket, socket.getInputStream(), socket.getOutputStream(),
+                receiveWindow, null);
+
+        byte[] user = bytes(username);
+        byte[] pass = bytes(password);
+        ByteBuffer hello = ByteBuffer.allocate(1 + 4 + 1 + user.length + 1 + pass.length);
+        hello.put((byte) VERSION).putInt(receiveWindow)
+                .put((byte) user.length).put(user).put((byte) pass.length).put(pass);
+        Arrays.fill(pass, (byte) 0);
+
+        connection.out.write(PREFACE_BYTES);
+        connection.writeFrame(HELLO, 0, hello.array(), 0, hello.capacity());
+
+        socket.setSoTimeout(timeoutMs);
+        byte[] answer = connection.expectHello();
+        socket.setSoTimeout(0);
+        if (answer.length != 5 || answer[0] != 0) {
+            connection.close();
+            throw new IOException("Mux upstream " + connection.peer + " rejected the connection");
+        }
+        connection.sendWindow = ByteBuffer.wrap(answer, 1, 4).getInt();
+
+        Thread reader = new Thread(connection::readLoop, "MuxReader");
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    /**
+     * Exit side: reads the preface and HELLO from an accepted socket and answers it.
+     * The caller then runs {@link #readLoop()} on its own thread.
+     *
+     * @param authenticator checks the edge's credentials, or null to accept any edge
+     */
+    public static MuxConnection accept(Socket socket, InputStream in, OutputStream out, int receiveWindow,
+                                       Authenticator authenticator, StreamHandler handler) throws IOException {
+        MuxConnection connection = new MuxConnection(socket, in, out, receiveWindow, handler);
+
+        byte[] preface = new byte[PREFACE_BYTES.length];
+        connection.in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE_BYTES)) {
+            throw new IOException("Bad mux preface");
+        }
+
+        ByteBuffer hello = ByteBuffer.wrap(connection.expectHello());
+        if (hello.get() != VERSION) {
+            throw new IOException("Unsupported mux version");
+        }
+        connection.sendWindow = hello.getInt();
+        byte[] user = new byte[hello.get() & 0xff];
+        hello.get(user);
+        byte[] pass = new byte[hello.get() & 0xff];
+        hello.get(pass);
+
+        boolean allowed = authenticator == null
+                || authenticator.authenticate(new String(user, StandardCharsets.UTF_8), pass) != null;
+        Arrays.fill(pass, (byte) 0);
+
+        ByteBuffer answer = ByteBuffer.allocate(5).put((byte) (allowed ? 0 : 1)).putInt(receiveWindow);
+        connection.writeFrame(HELLO, 0, answer.array(), 0, 5);
+        if (!allowed) {
+            connection.close();
+            throw new IOException("Mux authentication failed for user "
+                    + new String(user, StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private byte[] expectHello() throws IOException {
+        int type = in.readUnsignedByte();
+        in.readInt();
+        byte[] payload = readPayload();
+        if (type != HELLO) {
+            throw new IOException("Expected mux HELLO, got frame type " + type);
+        }
+        return payload;
+    }
+
+    private byte[] readPayload() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Bad mux frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Opens a stream to {@code host:port}. Returns at once; data may be written
+     * before the exit has connected.
+     */
+    public MuxStream openStream(String host, int port) throws IOException {
+        byte[] name = host.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 255) {
+            throw new IOException("Host name too long for mux: " + host);
+        }
+        int id = nextStreamId.getAndAdd(2);
+        MuxStream stream = new MuxStream(this, id, receiveWindow, sendWindow);
+        streams.put(id, stream);
+
+        ByteBuffer open = ByteBuffer.allocate(3 + name.length).putShort((short) port).put((byte) name.length).put(name);
+        try {
+            writeFrame(OPEN, id, open.array(), 0, open.capacity());
+        } catch (IOException e) {
+            streams.remove(id);
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Reads frames until the connection ends. Runs on a background thread on the edge
+     * and on the accepting session's thread on the exit.
+     */
+    public void readLoop() {
+        try {
+            while (!closed) {
+                int type = in.readUnsignedByte();
+                int id = in.readInt();
+                byte[] payload = readPayload();
+                dispatch(type, id, payload);
+            }
+        } catch (IOException | RuntimeException e) {
+            // RuntimeException: a truncated OPEN/WINDOW payload from a misbehaving peer
+            if (!closed) {
+                log.info("Mux connection {} ended: {}", peer, e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void dispatch(int type, int id, byte[] payload) throws IOException {
+        if (type == OPEN) {
+            if (handler == null || streams.containsKey(id)) {
+                throw new IOException("Unexpected mux OPEN for stream " + id);
+            }
+            ByteBuffer open = ByteBuffer.wrap(payload);
+            int port = open.getShort() & 0xffff;
+            byte[] host = new byte[open.get() & 0xff];
+            open.get(host);
+            MuxStream stream = new MuxStream(this, id, receiveWindow, sendWindow);
+            streams.put(id, stream);
+            handler.onOpen(stream, new String(host, StandardCharsets.UTF_8), port);
+            return;
+        }
+
+        MuxStream stream = streams.get(id);
+        if (stream == null) {
+            // Frames still in flight for a stream this side already closed
+            return;
+        }
+        switch (type) {
+            case DATA:
+                stream.onData(payload);
+                break;
+            case WINDOW:
+                stream.onWindow(ByteBuffer.wrap(payload).getInt());
+                break;
+            case FIN:
+                stream.onFin();
+                break;
+            case RESET:
+                stream.onReset(new String(payload, StandardCharsets.UTF_8));
+                break;
+            default:
+                throw new IOException("Unknown mux frame type " + type);
+        }
+    }
+
+    void writeFrame(byte type, int id, byte[] payload, int off, int len) throws IOException {
+        synchronized (out) {
+            if (closed) {
+                throw new IOException("Mux connection to " + peer + " is closed");
+            }
+            try {
+                out.writeByte(type);
+                out.writeInt(id);
+                out.writeInt(len);
+                out.write(payload, off, len);
+                out.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    void sendWindow(int id, int increment) {
+        try {
+            writeFrame(WINDOW, id, ByteBuffer.allocate(4).putInt(increment).array(), 0, 4);
+        } catch (IOException e) {
+            log.trace("Mux WINDOW for stream {} not sent: {}", id, e.getMessage());
+        }
+    }
+
+    void forget(int id) {
+        streams.remove(id);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int activeStreams() {
+        return streams.size();
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * Closes the TCP connection; every open stream is reset.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (MuxStream stream : streams.values()) {
+            stream.onReset("mux connection closed");
+        }
+        streams.clear();
+    }
+
+    private static byte[] bytes(String text) {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Mux credentials longer than 255 bytes");
+        }
+        return bytes;
+    }
+}
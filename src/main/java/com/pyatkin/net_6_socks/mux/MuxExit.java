@@ -0,0 +1,60 @@
+package com.pyatkin.net_6_socks.mux;
+
+import com.pyatkin.net_6_socks.session.SessionContext;
+import com.pyatkin.net_6_socks.session.Socks5Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Exit side of the mux transport: connects each stream an edge opens to its target.
+ *
+ * Each stream is served by a {@link Socks5Session} the way a direct CONNECT is: only
+ * this instance's blacklist is checked (the edge has applied its own rules), the stream
+ * takes a slot of the direct bulkhead, the connect goes through the circuit breakers,
+ * adaptive timeouts and the warm pool, and the relay is scheduled and bounded like any
+ * other tunnel. An edge address may have at most {@code mux.maxStreamsPerEdge} streams
+ * open across all its connections; further OPENs are reset at once, before any thread is used.
+ */
+public class MuxExit implements MuxConnection.StreamHandler {
+    private static final Logger log = LoggerFactory.getLogger(MuxExit.class);
+
+    private final SessionContext context;
+    private final Socket connection;
+    private final InetAddress edge;
+
+    public MuxExit(SessionContext context, Socket connection) {
+        this.context = context;
+        this.connection = connection;
+        this.edge = connection.getInetAddress();
+    }
+
+    @Override
+    public void onOpen(MuxStream stream, String host, int port) {
+        // Runs on the connection's read loop: nothing here may block
+        MuxClient edgeStreams = context.getMuxClient();
+        int maxStreams = context.getConfig().current().getMuxMaxStreamsPerEdge();
+        if (!edgeStreams.tryAcquireEdgeStream(edge, maxStreams)) {
+            log.warn("Mux stream to {}:{} refused: edge {} already has {} streams", host, port,
+                    edge.getHostAddress(), maxStreams);
+            stream.reset("too many streams");
+            return;
+        }
+        try {
+            context.getBulkheads().forStrategy("direct").getRelayThreads().execute(() -> {
+                try {
+                    new Socks5Session(connection, context).serveMuxStream(stream, host, port);
+                } finally {
+                    edgeStreams.releaseEdgeStream(edge);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Mux stream to {}:{} rejected: {}", host, port, e.getMessage());
+            edgeStreams.releaseEdgeStream(edge);
+            stream.reset("exit overloaded");
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.pyatkin.net_6_socks.mux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * One logical tunnel inside a {@link MuxConnection}, used through plain streams.
+ *
+ * Received DATA is queued as it arrives, up to the window this side announced;
+ * credit goes back to the sender once half of it has been read. Writes block
+ * while the peer's window is used up. Closing the output stream half-closes the
+ * stream (FIN); {@link #close()} also resets it if the peer is still sending.
+ */
+public class MuxStream implements Closeable {
+    private final MuxConnection connection;
+    private final int id;
+    private final int receiveWindow;
+
+    // Guarded by this
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int headOffset;
+    private int buffered;
+    private int unacknowledged;
+    private boolean finReceived;
+    private String resetReason;
+    private int sendWindow;
+    private boolean finSent;
+
+    private final InputStream input = new StreamInput();
+    private final OutputStream output = new StreamOutput();
+
+    MuxStream(MuxConnection connection, int id, int receiveWindow, int sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.receiveWindow = receiveWindow;
+        this.sendWindow = sendWindow;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    void onData(byte[] data) {
+        synchronized (this) {
+            if (finReceived || resetReason != null) {
+                return;
+            }
+            if (buffered + data.length <= receiveWindow) {
+                received.add(data);
+                buffered += data.length;
+                notifyAll();
+                return;
+            }
+        }
+        reset("flow control window exceeded");
+    }
+
+    synchronized void onWindow(int increment) {
+        sendWindow += increment;
+        notifyAll();
+    }
+
+    void onFin() {
+        boolean done;
+        synchronized (this) {
+            finReceived = true;
+            done = finSent;
+            notifyAll();
+        }
+        if (done) {
+            connection.forget(id);
+        }
+    }
+
+    synchronized void onReset(String reason) {
+        if (resetReason == null) {
+            resetReason = reason;
+        }
+        notifyAll();
+        connection.forget(id);
+    }
+
+    /**
+     * Aborts the stream in both directions and tells the peer why.
+     */
+    public void reset(String reason) {
+        synchronized (this) {
+            if (resetReason != null) {
+                return;
+            }
+            resetReason = reason;
+            notifyAll();
+        }
+        connection.forget(id);
+        byte[] payload = reason.getBytes(StandardCharsets.UTF_8);
+        try {
+            connection.writeFrame(MuxConnection.RESET, id, payload, 0, Math.min(payload.length, 255));
+        } catch (IOException ignored) {
+            // The connection is gone, and the stream with it
+        }
+    }
+
+    /**
+     * Sends FIN: no more data from this side.
+     */
+    public void finish() throws IOException {
+        boolean done;
+        synchronized (this) {
+            if (finSent || resetReason != null) {
+                return;
+            }
+            finSent = true;
+            done = finReceived;
+        }
+        connection.writeFrame(MuxConnection.FIN, id, new byte[0], 0, 0);
+        if (done) {
+            connection.forget(id);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            finish();
+        } catch (IOException ignored) {
+        }
+        boolean peerStillSending;
+        synchronized (this) {
+            peerStillSending = !finReceived && resetReason == null;
+        }
+        if (peerStillSending) {
+            reset("closed");
+        }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        int credit = 0;
+        synchronized (this) {
+            while (received.isEmpty()) {
+                if (resetReason != null) {
+                    throw new IOException("Mux stream reset: " + resetReason);
+                }
+                if (finReceived) {
+                    return -1;
+                }
+                await();
+            }
+
+            byte[] head = received.peek();
+            n = Math.min(len, head.length - headOffset);
+            System.arraycopy(head, headOffset, b, off, n);
+            headOffset += n;
+            if (headOffset == head.length) {
+                received.poll();
+                headOffset = 0;
+            }
+            buffered -= n;
+            unacknowledged += n;
+            if (unacknowledged >= receiveWindow / 2) {
+                credit = unacknowledged;
+                unacknowledged = 0;
+            }
+        }
+        if (credit > 0) {
+            connection.sendWindow(id, credit);
+        }
+        return n;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk;
+            synchronized (this) {
+                while (sendWindow == 0 && resetReason == null) {
+                    await();
+                }
+                if (resetReason != null) {
+                    throw new IOException("Mux stream reset: " + resetReason);
+                }
+                if (finSent) {
+                    throw new IOException("Mux stream already finished");
+                }
+                chunk = Math.min(len, Math.min(sendWindow, MuxConnection.MAX_DATA));
+                sendWindow -= chunk;
+            }
+            connection.writeFrame(MuxConnection.DATA, id, b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on mux stream");
+        }
+    }
+
+    private final class StreamInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return MuxStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MuxStream.this) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            MuxStream.this.close();
+        }
+    }
+
+    private final class StreamOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            MuxStream.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MuxStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+}
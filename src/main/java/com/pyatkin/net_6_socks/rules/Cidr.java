@@ -0,0 +1,211 @@
+package com.pyatkin.net_6_socks.rules;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * An IPv4 or IPv6 prefix parsed from "address" or "address/length" text.
+ */
+public final class Cidr {
+    private static final Pattern IPV4_CIDR = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}(/\\d{1,2})?");
+    private static final Pattern IPV6_CIDR = Pattern.compile("[0-9a-fA-F:.]*:[0-9a-fA-F:.]*(/\\d{1,3})?");
+    // Only text of this shape goes to InetAddress.getByName, which sends anything it cannot parse to DNS
+    private static final Pattern IPV6_LITERAL = Pattern.compile("[0-9a-fA-F:.]*:[0-9a-fA-F:.]*(%[0-9A-Za-z._-]+)?");
+    // One part of an inet_aton(3) address: hex, octal or decimal
+    private static final Pattern INET_ATON_PART = Pattern.compile("0[xX][0-9a-fA-F]+|[0-9]+");
+    private static final byte[] IPV4_MAPPED_PREFIX = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final byte[] address;
+    private final int prefixLength;
+
+    private Cidr(byte[] address, int prefixLength) {
+        this.address = address;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * True if {@code text} has the shape of an IP or CIDR literal (it may still be invalid).
+     */
+    public static boolean looksLikeCidr(String text) {
+        if (text.isEmpty() || Character.digit(text.charAt(0), 16) < 0 && text.charAt(0) != ':' && text.charAt(0) != '.') {
+            return false;
+        }
+        return IPV4_CIDR.matcher(text).matches() || IPV6_CIDR.matcher(text).matches();
+    }
+
+    /**
+     * Parses an IP or CIDR literal. Never goes to DNS.
+     *
+     * @throws IllegalArgumentException if the text is not a valid literal
+     */
+    public static Cidr parse(String text) {
+        if (!looksLikeCidr(text)) {
+            throw new IllegalArgumentException("Not an IP or CIDR: " + text);
+        }
+        int slash = text.indexOf('/');
+        byte[] address = parseAddress(slash < 0 ? text : text.substring(0, slash));
+        int prefixLength = slash < 0 ? address.length * 8 : Integer.parseInt(text.substring(slash + 1));
+        if (prefixLength > address.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length in " + text);
+        }
+        return new Cidr(address, prefixLength);
+    }
+
+    /**
+     * Raw bytes of {@code host} if a connect to it would use it as an address rather
+     * than look it up: an IPv6 literal, bracketed or not, or an IPv4 address in any
+     * form the JDK or the system resolver accepts without DNS ("10.1.2.3", "10.1",
+     * "167838211", "0x0a.1.2.3"). Null for a host name. IPv4-mapped IPv6 literals
+     * come back as 4 bytes. Never goes to DNS.
+     */
+    public static byte[] literalAddress(String host) {
+        if (host.isEmpty()) {
+            return null;
+        }
+        if (host.indexOf(':') >= 0) {
+            String text = host.charAt(0) == '[' && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+            if (!IPV6_LITERAL.matcher(text).matches()) {
+                return null;
+            }
+            try {
+                return InetAddress.getByName(text).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        if (Character.digit(host.charAt(0), 10) < 0) {
+            return null;
+        }
+        return parseIpv4Literal(host);
+    }
+
+    /**
+     * IPv4-mapped IPv6 bytes (::ffff:a.b.c.d) as the 4-byte IPv4 address, so IPv4
+     * prefixes match them; any other address unchanged.
+     */
+    public static byte[] unmapped(byte[] address) {
+        if (address == null || address.length != 16) {
+            return address;
+        }
+        for (int i = 0; i < IPV4_MAPPED_PREFIX.length; i++) {
+            if (address[i] != IPV4_MAPPED_PREFIX[i]) {
+                return address;
+            }
+        }
+        return Arrays.copyOfRange(address, 12, 16);
+    }
+
+    /**
+     * The JDK parses 1 to 4 decimal parts itself, the last one filling the remaining
+     * bytes. Anything else goes to the system resolver, whose inet_aton also takes
+     * hex (0x) and octal (leading 0) parts before it would query DNS.
+     */
+    private static byte[] parseIpv4Literal(String text) {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length > 4) {
+            return null;
+        }
+        boolean jdkForm = text.length() <= 15;
+        for (String part : parts) {
+            if (!INET_ATON_PART.matcher(part).matches() || part.length() > 12) {
+                return null;
+            }
+            jdkForm &= part.length() < 2 || Character.digit(part.charAt(1), 10) >= 0;
+        }
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            boolean hex = part.length() > 1 && (part.charAt(1) == 'x' || part.charAt(1) == 'X');
+            if (hex) {
+                values[i] = Long.parseLong(part.substring(2), 16);
+            } else if (!jdkForm && part.length() > 1 && part.charAt(0) == '0') {
+                try {
+                    values[i] = Long.parseLong(part, 8);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                values[i] = Long.parseLong(part);
+            }
+        }
+
+        byte[] address = new byte[4];
+        int last = parts.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (values[i] > 255) {
+                return null;
+            }
+            address[i] = (byte) values[i];
+        }
+        long rest = values[last];
+        if (rest >= 1L << (8 * (4 - last))) {
+            return null;
+        }
+        for (int i = 3; i >= last; i--) {
+            address[i] = (byte) rest;
+            rest >>>= 8;
+        }
+        return address;
+    }
+
+    private static byte[] parseAddress(String text) {
+        if (text.indexOf(':') >= 0) {
+            // InetAddress never resolves text containing ':' - it is an IPv6 literal or an error
+            try {
+                return InetAddress.getByName(text).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+        String[] octets = text.split("\\.");
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int octet = Integer.parseInt(octets[i]);
+            if (octet > 255) {
+                throw new IllegalArgumentException("Invalid IPv4 address: " + text);
+            }
+            address[i] = (byte) octet;
+        }
+        return address;
+    }
+
+    public byte[] getAddress() {
+        return address.clone();
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * True if {@code other} (raw IPv4/IPv6 bytes) lies within this prefix.
+     */
+    public boolean contains(byte[] other) {
+        if (other == null || other.length != address.length) {
+            return false;
+        }
+        int fullBytes = prefixLength >>> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            if (address[i] != other[i]) {
+                return false;
+            }
+        }
+        int rest = prefixLength & 7;
+        if (rest == 0) {
+            return true;
+        }
+        int mask = 0xff << (8 - rest);
+        return ((address[fullBytes] ^ other[fullBytes]) & mask) == 0;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress() + "/" + prefixLength;
+        } catch (UnknownHostException e) {
+            return "invalid";
+        }
+    }
+}
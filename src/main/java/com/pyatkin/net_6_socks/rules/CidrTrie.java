@@ -0,0 +1,177 @@
+package com.pyatkin.net_6_socks.rules;
+
+import java.util.function.BinaryOperator;
+
+/**
+ * Compressed binary (Patricia) trie of address prefixes for one address family.
+ *
+ * Nodes only exist where stored prefixes diverge or end, so a lookup walks at
+ * most one node per stored prefix on the path to the address - usually just a
+ * few - and compares raw address bytes, never strings.
+ */
+public class CidrTrie<V> {
+    private final int addressBits;
+    private Node<V> root;
+    private int size;
+
+    /**
+     * @param addressLength address length in bytes: 4 for IPv4, 16 for IPv6
+     */
+    public CidrTrie(int addressLength) {
+        this.addressBits = addressLength * 8;
+    }
+
+    /**
+     * Stores {@code value} for {@code address/prefixLength}. A value already stored for
+     * the same prefix is combined with the new one through {@code merge}.
+     */
+    public void put(byte[] address, int prefixLength, V value, BinaryOperator<V> merge) {
+        if (address.length * 8 != addressBits || prefixLength < 0 || prefixLength > addressBits) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for " +
+                    address.length + "-byte address");
+        }
+        byte[] key = mask(address, prefixLength);
+
+        if (root == null) {
+            root = new Node<>(key, prefixLength, value);
+            size++;
+            return;
+        }
+
+        Node<V> parent = null;
+        Node<V> node = root;
+        while (true) {
+            int common = commonPrefix(node.key, key, Math.min(node.bits, prefixLength));
+
+            if (common < node.bits) {
+                // The new prefix diverges inside this node's prefix - split it
+                Node<V> replacement;
+                if (common == prefixLength) {
+                    replacement = new Node<>(key, prefixLength, value);
+                    replacement.children[bit(node.key, prefixLength)] = node;
+                } else {
+                    replacement = new Node<>(mask(key, common), common, null);
+                    Node<V> leaf = new Node<>(key, prefixLength, value);
+                    replacement.children[bit(key, common)] = leaf;
+                    replacement.children[bit(node.key, common)] = node;
+                }
+                replaceChild(parent, node, replacement);
+                size++;
+                return;
+            }
+
+            if (node.bits == prefixLength) {
+                if (node.value == null) {
+                    node.value = value;
+                    size++;
+                } else {
+                    node.value = merge.apply(node.value, value);
+                }
+                return;
+            }
+
+            int side = bit(key, node.bits);
+            Node<V> next = node.children[side];
+            if (next == null) {
+                node.children[side] = new Node<>(key, prefixLength, value);
+                size++;
+                return;
+            }
+            parent = node;
+            node = next;
+        }
+    }
+
+    /**
+     * Folds the values of every stored prefix that contains {@code address}, shortest first.
+     */
+    public V reduceMatches(byte[] address, V identity, BinaryOperator<V> op) {
+        if (address.length * 8 != addressBits) {
+            return identity;
+        }
+        V result = identity;
+        Node<V> node = root;
+        while (node != null && covers(node, address)) {
+            if (node.value != null) {
+                result = op.apply(result, node.value);
+            }
+            if (node.bits == addressBits) {
+                break;
+            }
+            node = node.children[bit(address, node.bits)];
+        }
+        return result;
+    }
+
+    /**
+     * Number of stored prefixes.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void replaceChild(Node<V> parent, Node<V> child, Node<V> replacement) {
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.children[0] == child) {
+            parent.children[0] = replacement;
+        } else {
+            parent.children[1] = replacement;
+        }
+    }
+
+    private static boolean covers(Node<?> node, byte[] address) {
+        int fullBytes = node.bits >>> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            if (node.key[i] != address[i]) {
+                return false;
+            }
+        }
+        int rest = node.bits & 7;
+        if (rest == 0) {
+            return true;
+        }
+        int m = 0xff << (8 - rest);
+        return ((node.key[fullBytes] ^ address[fullBytes]) & m) == 0;
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b, int maxBits) {
+        int bits = 0;
+        for (int i = 0; bits < maxBits; i++) {
+            int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0) {
+                bits += Integer.numberOfLeadingZeros(diff) - 24;
+                break;
+            }
+            bits += 8;
+        }
+        return Math.min(bits, maxBits);
+    }
+
+    private static int bit(byte[] key, int index) {
+        return (key[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    private static byte[] mask(byte[] address, int prefixLength) {
+        byte[] masked = address.clone();
+        for (int i = 0; i < masked.length; i++) {
+            int keep = Math.max(0, Math.min(8, prefixLength - i * 8));
+            masked[i] &= (byte) (0xff << (8 - keep));
+        }
+        return masked;
+    }
+
+    private static final class Node<V> {
+        final byte[] key;
+        final int bits;
+        V value;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Node<V>[] children = new Node[2];
+
+        Node(byte[] key, int bits, V value) {
+            this.key = key;
+            this.bits = bits;
+            this.value = value;
+        }
+    }
+}
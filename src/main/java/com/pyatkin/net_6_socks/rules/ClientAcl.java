@@ -0,0 +1,61 @@
+package com.pyatkin.net_6_socks.rules;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Which client addresses may connect at all, checked right after accept.
+ *
+ * Allowed and denied prefixes go into one trie per address family and the most
+ * specific prefix containing the client decides, so a network can be allowed with a
+ * hole denied in it or the other way round. Clients matching no prefix are let in
+ * only when no allow prefixes are configured.
+ */
+public final class ClientAcl {
+    private final CidrTrie<Boolean> v4 = new CidrTrie<>(4);
+    private final CidrTrie<Boolean> v6 = new CidrTrie<>(16);
+    private final boolean defaultAllow;
+    private final int size;
+
+    /**
+     * @throws IllegalArgumentException if an entry is not an IP or CIDR literal
+     */
+    public ClientAcl(List<String> allow, List<String> deny) {
+        // A prefix listed in both is denied
+        for (String text : allow) {
+            add(text.trim(), Boolean.TRUE);
+        }
+        for (String text : deny) {
+            add(text.trim(), Boolean.FALSE);
+        }
+        this.defaultAllow = allow.isEmpty();
+        this.size = v4.size() + v6.size();
+    }
+
+    private void add(String text, Boolean allowed) {
+        Cidr cidr = Cidr.parse(text);
+        byte[] address = cidr.getAddress();
+        CidrTrie<Boolean> trie = address.length == 4 ? v4 : v6;
+        trie.put(address, cidr.getPrefixLength(), allowed, (a, b) -> a && b);
+    }
+
+    public boolean permits(InetAddress client) {
+        byte[] address = client.getAddress();
+        CidrTrie<Boolean> trie = address.length == 4 ? v4 : v6;
+        // Matches come shortest first, so the last one is the most specific
+        Boolean decision = trie.reduceMatches(address, null, (previous, match) -> match);
+        return decision != null ? decision : defaultAllow;
+    }
+
+    /**
+     * True if every client is let in, so the check can be skipped.
+     */
+    public boolean isOpen() {
+        return size == 0;
+    }
+
+    @Override
+    public String toString() {
+        return isOpen() ? "open" : size + " prefixes/default:" + (defaultAllow ? "allow" : "deny");
+    }
+}
@@ -0,0 +1,391 @@
+package com.pyatkin.net_6_socks.rules;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A host regex rule that is compiled only when first needed.
+ *
+ * At load time the source is only checked for structural errors and scanned for the
+ * literal text every match must contain. A host without that text is rejected with
+ * {@code String.contains}, so most rules of a large list are never compiled at all.
+ * Rules that are plain text with optional {@code ^}/{@code $} anchors never need a
+ * {@link Pattern}. The compiled form can be released and is rebuilt on demand.
+ */
+final class RegexRule {
+    private static final Logger log = LoggerFactory.getLogger(RegexRule.class);
+
+    private final String source;
+    // Lowercase ASCII text every matching host contains, or null if none is known
+    private final String literal;
+    // The whole rule is the literal, optionally anchored
+    private final boolean plain;
+    private final boolean anchoredStart;
+    private final boolean anchoredEnd;
+
+    private volatile Pattern pattern;
+    private volatile boolean broken;
+
+    // Tiering state, maintained by RegexRuleList
+    final AtomicInteger windowHits = new AtomicInteger();
+    volatile boolean used;
+    volatile boolean promoted;
+    int lastWindowHits;
+    int idleWindows;
+
+    private RegexRule(String source, LiteralScan scan) {
+        this.source = source;
+        this.literal = scan.literal;
+        this.plain = scan.plain;
+        this.anchoredStart = scan.anchoredStart;
+        this.anchoredEnd = scan.anchoredEnd;
+    }
+
+    /**
+     * Checks the rule's structure without compiling it.
+     *
+     * @throws IllegalArgumentException on unbalanced groups or classes, a dangling
+     *                                  quantifier or a trailing backslash
+     */
+    static RegexRule parse(String source) {
+        checkSyntax(source);
+        return new RegexRule(source, LiteralScan.of(source));
+    }
+
+    String source() {
+        return source;
+    }
+
+    boolean isCompiled() {
+        return pattern != null;
+    }
+
+    void release() {
+        pattern = null;
+    }
+
+    boolean matches(String host) {
+        return matches(host, asciiLower(host));
+    }
+
+    /**
+     * @param lowerHost {@code host} with ASCII letters lowercased, shared across rules
+     */
+    boolean matches(String host, String lowerHost) {
+        if (plain) {
+            if (!anchoredEnd) {
+                return anchoredStart ? lowerHost.startsWith(literal) : lowerHost.contains(literal);
+            }
+            String text = withoutFinalTerminator(lowerHost);
+            return anchoredStart ? text.equals(literal) : text.endsWith(literal);
+        }
+        if (literal != null && !lowerHost.contains(literal)) {
+            return false;
+        }
+        used = true;
+        Pattern p = compiled();
+        return p != null && p.matcher(host).find();
+    }
+
+    private Pattern compiled() {
+        Pattern p = pattern;
+        if (p != null || broken) {
+            return p;
+        }
+        // Two threads may compile the same rule at once; both results are equivalent
+        try {
+            p = Pattern.compile(source, Pattern.CASE_INSENSITIVE);
+            pattern = p;
+            return p;
+        } catch (PatternSyntaxException e) {
+            broken = true;
+            log.warn("Invalid regex rule '{}' disabled: {}", source, e.getDescription());
+            return null;
+        }
+    }
+
+    /**
+     * {@code $} also matches before a line terminator at the very end of the input.
+     */
+    private static String withoutFinalTerminator(String text) {
+        int length = text.length();
+        if (length == 0) {
+            return text;
+        }
+        char last = text.charAt(length - 1);
+        if (last == '\n') {
+            return text.substring(0, length >= 2 && text.charAt(length - 2) == '\r' ? length - 2 : length - 1);
+        }
+        if (last == '\r' || last == '\u0085' || last == '\u2028' || last == '\u2029') {
+            return text.substring(0, length - 1);
+        }
+        return text;
+    }
+
+    /**
+     * Lowercases ASCII letters only, as {@link Pattern#CASE_INSENSITIVE} does.
+     */
+    static String asciiLower(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = text.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return text;
+    }
+
+    private static void checkSyntax(String source) {
+        int depth = 0;
+        int classDepth = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == source.length()) {
+                    throw new IllegalArgumentException("Trailing backslash");
+                }
+                if (source.charAt(i + 1) == 'Q') {
+                    int end = source.indexOf("\\E", i + 2);
+                    i = end < 0 ? source.length() : end + 1;
+                } else {
+                    i++;
+                }
+            } else if (c == '[') {
+                // Classes nest: [a-z&&[^x]]
+                classDepth++;
+                i = classBodyStart(source, i) - 1;
+            } else if (classDepth > 0) {
+                if (c == ']') {
+                    classDepth--;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth < 0) {
+                throw new IllegalArgumentException("Unmatched ')' at index " + i);
+            } else if ((c == '*' || c == '+' || c == '?') && i == 0) {
+                throw new IllegalArgumentException("Dangling quantifier '" + c + "'");
+            }
+        }
+        if (classDepth > 0) {
+            throw new IllegalArgumentException("Unclosed character class");
+        }
+        if (depth != 0) {
+            throw new IllegalArgumentException("Unclosed group");
+        }
+    }
+
+    /**
+     * Index of the first character of the class opened at {@code open} that can close it:
+     * a {@code ]} right after {@code [} or {@code [^} is a literal.
+     */
+    private static int classBodyStart(String s, int open) {
+        int i = open + 1;
+        if (i < s.length() && s.charAt(i) == '^') {
+            i++;
+        }
+        if (i < s.length() && s.charAt(i) == ']') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the longest run of literal characters that every match must contain.
+     * Anything the scan does not understand makes it give up, never guess.
+     */
+    private static final class LiteralScan {
+        // Escapes that stand for a character class or a boundary, never for text
+        private static final String CLASS_ESCAPES = "dDwWsSbBAzZG";
+
+        String literal;
+        boolean plain;
+        boolean anchoredStart;
+        boolean anchoredEnd;
+
+        static LiteralScan of(String source) {
+            LiteralScan scan = new LiteralScan();
+            if (!scan.run(source)) {
+                scan.literal = null;
+                scan.plain = false;
+            }
+            return scan;
+        }
+
+        private boolean run(String s) {
+            StringBuilder best = new StringBuilder();
+            StringBuilder current = new StringBuilder();
+            boolean lastIsLiteral = false;
+            boolean broken = false;
+            int end = s.length();
+
+            int i = 0;
+            if (s.startsWith("^")) {
+                anchoredStart = true;
+                i = 1;
+            }
+            if (end > i && s.charAt(end - 1) == '$' && !escaped(s, end - 1)) {
+                anchoredEnd = true;
+                end--;
+            }
+
+            while (i < end) {
+                char c = s.charAt(i);
+                char appended = 0;
+                switch (c) {
+                    case '\\':
+                        char next = s.charAt(i + 1);
+                        if (Character.isLetterOrDigit(next)) {
+                            if (CLASS_ESCAPES.indexOf(next) < 0) {
+                                return false;
+                            }
+                        } else if (next < 0x80) {
+                            appended = next;
+                        }
+                        i += 2;
+                        break;
+                    case '*':
+                    case '?':
+                    case '{':
+                        // The previous character may be absent
+                        if (lastIsLiteral) {
+                            current.setLength(current.length() - 1);
+                        }
+                        if (c == '{') {
+                            int close = s.indexOf('}', i);
+                            if (close < 0 || close >= end) {
+                                return false;
+                            }
+                            i = close;
+                        }
+                        i = skipQuantifierSuffix(s, i + 1, end);
+                        break;
+                    case '+':
+                        i = skipQuantifierSuffix(s, i + 1, end);
+                        break;
+                    case '(':
+                        if (i + 2 < end && s.charAt(i + 1) == '?'
+                                && (Character.isLetter(s.charAt(i + 2)) || s.charAt(i + 2) == '-')) {
+                            // Inline flags such as (?x) change how the rest is read
+                            return false;
+                        }
+                        i = skipGroup(s, i, end);
+                        if (i < 0) {
+                            return false;
+                        }
+                        break;
+                    case '[':
+                        i = skipClass(s, i, end);
+                        if (i < 0) {
+                            return false;
+                        }
+                        break;
+                    case '|':
+                    case ')':
+                        return false;
+                    case '.':
+                    case '^':
+                    case '$':
+                    case ']':
+                    case '}':
+                        i++;
+                        break;
+                    default:
+                        if (c < 0x80) {
+                            appended = c;
+                        }
+                        i++;
+                }
+
+                if (appended != 0) {
+                    current.append(appended >= 'A' && appended <= 'Z' ? (char) (appended + 'a' - 'A') : appended);
+                    lastIsLiteral = true;
+                    continue;
+                }
+                // Anything else ends the current run
+                broken = true;
+                if (current.length() > best.length()) {
+                    best.setLength(0);
+                    best.append(current);
+                }
+                current.setLength(0);
+                lastIsLiteral = false;
+            }
+
+            if (current.length() > best.length()) {
+                best.setLength(0);
+                best.append(current);
+            }
+            literal = best.length() > 0 ? best.toString() : null;
+            plain = !broken && literal != null;
+            return true;
+        }
+
+        private static boolean escaped(String s, int index) {
+            int backslashes = 0;
+            for (int i = index - 1; i >= 0 && s.charAt(i) == '\\'; i--) {
+                backslashes++;
+            }
+            return backslashes % 2 == 1;
+        }
+
+        private static int skipQuantifierSuffix(String s, int i, int end) {
+            // Lazy (*?) and possessive (*+) forms
+            if (i < end && (s.charAt(i) == '?' || s.charAt(i) == '+')) {
+                return i + 1;
+            }
+            return i;
+        }
+
+        /**
+         * Index after the group opened at {@code start}, or -1 if it does not close.
+         */
+        private static int skipGroup(String s, int start, int end) {
+            int depth = 0;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    i = skipClass(s, i, end) - 1;
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Index after the class opened at {@code start}, or -1 if it does not close.
+         */
+        private static int skipClass(String s, int start, int end) {
+            int depth = 0;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    depth++;
+                    i = classBodyStart(s, i) - 1;
+                } else if (c == ']' && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+}
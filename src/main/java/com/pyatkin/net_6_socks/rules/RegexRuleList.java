@@ -0,0 +1,115 @@
+package com.pyatkin.net_6_socks.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The regex rules of one list, kept in three tiers.
+ *
+ * Cold rules are held as source text and are compiled the first time a host passes
+ * their literal prefilter. Rules that keep matching are promoted to a small hot tier
+ * tried before all others, so busy lookups usually stop after a few rules. A compiled
+ * rule that is not needed for {@code RELEASE_AFTER_WINDOWS} windows drops its
+ * {@code Pattern} again. Tiers are rebuilt at most once per window by whichever
+ * lookup notices the window is over.
+ */
+final class RegexRuleList {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final int RELEASE_AFTER_WINDOWS = 10;
+    private static final int MAX_HOT_RULES = 32;
+    private static final int PROMOTE_MIN_HITS = 16;
+
+    private final RegexRule[] rules;
+    private volatile RegexRule[] hot = new RegexRule[0];
+    private volatile long windowStart = System.nanoTime();
+
+    RegexRuleList(List<RegexRule> rules) {
+        this.rules = rules.toArray(new RegexRule[0]);
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * First rule matching {@code host}, hot rules first, or null.
+     */
+    RegexRule match(String host) {
+        if (rules.length == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart > WINDOW_NANOS) {
+            retier(now);
+        }
+
+        String lowerHost = RegexRule.asciiLower(host);
+        for (RegexRule rule : hot) {
+            if (rule.matches(host, lowerHost)) {
+                rule.windowHits.incrementAndGet();
+                return rule;
+            }
+        }
+        for (RegexRule rule : rules) {
+            if (!rule.promoted && rule.matches(host, lowerHost)) {
+                rule.windowHits.incrementAndGet();
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Promotes the busiest rules of the last window and releases idle compiled ones.
+     */
+    private synchronized void retier(long now) {
+        if (now - windowStart <= WINDOW_NANOS) {
+            return;
+        }
+        windowStart = now;
+
+        List<RegexRule> busy = new ArrayList<>();
+        for (RegexRule rule : rules) {
+            rule.lastWindowHits = rule.windowHits.getAndSet(0);
+            if (rule.lastWindowHits >= PROMOTE_MIN_HITS) {
+                busy.add(rule);
+            }
+
+            if (rule.used || rule.lastWindowHits > 0) {
+                rule.used = false;
+                rule.idleWindows = 0;
+            } else if (rule.isCompiled() && ++rule.idleWindows >= RELEASE_AFTER_WINDOWS) {
+                rule.release();
+            }
+        }
+
+        busy.sort((a, b) -> Integer.compare(b.lastWindowHits, a.lastWindowHits));
+        RegexRule[] next = busy.subList(0, Math.min(MAX_HOT_RULES, busy.size())).toArray(new RegexRule[0]);
+
+        // Every rule stays reachable through one of the two passes while tiers change:
+        // demoted rules are unflagged before the new hot tier is published, promoted
+        // ones are flagged after
+        for (RegexRule rule : hot) {
+            rule.promoted = false;
+        }
+        hot = next;
+        for (RegexRule rule : next) {
+            rule.promoted = true;
+        }
+    }
+
+    int compiledCount() {
+        int compiled = 0;
+        for (RegexRule rule : rules) {
+            if (rule.isCompiled()) {
+                compiled++;
+            }
+        }
+        return compiled;
+    }
+
+    int hotCount() {
+        return hot.length;
+    }
+}
@@ -4,16 +4,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 
 public class RuleManager {
     private static final Logger log = LoggerFactory.getLogger(RuleManager.class);
 
-    private final Map<String, List<Pattern>> rules = new HashMap<>();
+    // Lists in priority order; a list's index is its bit in the CIDR trie values
+    private static final String[] LISTS = {"blacklist", "whitelist", "redirect", "segment"};
+
+    // Regex lines, compiled lazily on first use
+    private final Map<String, RegexRuleList> rules = new HashMap<>();
     private final Map<String, Integer> ruleHitCount = new HashMap<>();
+    private final Map<String, Integer> cidrCount = new HashMap<>();
+    // IP/CIDR lines of all lists; values are bitmasks of the lists containing the prefix
+    private final CidrTrie<Integer> ipv4Rules = new CidrTrie<>(4);
+    private final CidrTrie<Integer> ipv6Rules = new CidrTrie<>(16);
+    // Lines qualified with port= / client=
+    private final RuleTable conditionalRules = new RuleTable();
 
     public RuleManager(String blacklist, String whitelist, String redirect, String segment) {
         log.info("Initializing RuleManager");
@@ -21,6 +30,7 @@ public class RuleManager {
         rules.put("whitelist", loadRules(whitelist, "whitelist"));
         rules.put("redirect", loadRules(redirect, "redirect"));
         rules.put("segment", loadRules(segment, "segment"));
+        conditionalRules.compile(LISTS.length);
 
         // Initialize hit counters
         rules.keySet().forEach(key -> ruleHitCount.put(key, 0));
@@ -28,31 +38,31 @@ public class RuleManager {
         logStatistics();
     }
 
-    private List<Pattern> loadRules(String filePath, String listName) {
-        List<Pattern> patterns = new ArrayList<>();
+    private RegexRuleList loadRules(String filePath, String listName) {
+        List<RegexRule> patterns = new ArrayList<>();
 
         if (filePath == null || filePath.trim().isEmpty()) {
             log.debug("No file specified for {}, using empty rule list", listName);
-            return patterns;
+            return new RegexRuleList(patterns);
         }
 
         // Try to load from filesystem first
         File file = new File(filePath);
         if (file.exists() && file.isFile()) {
             patterns = loadFromFile(file, listName);
-            if (!patterns.isEmpty()) {
-                return patterns;
+            if (!patterns.isEmpty() || cidrCount.containsKey(listName) || hasConditionalRules(listName)) {
+                return new RegexRuleList(patterns);
             }
         }
 
         // Try to load from classpath
         patterns = loadFromClasspath(filePath, listName);
 
-        return patterns;
+        return new RegexRuleList(patterns);
     }
 
-    private List<Pattern> loadFromFile(File file, String listName) {
-        List<Pattern> patterns = new ArrayList<>();
+    private List<RegexRule> loadFromFile(File file, String listName) {
+        List<RegexRule> patterns = new ArrayList<>();
 
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             int lineNumber = 0;
@@ -60,7 +70,7 @@ public class RuleManager {
 
             while ((line = reader.readLine()) != null) {
                 lineNumber++;
-                Pattern pattern = parseLine(line, lineNumber, listName);
+                RegexRule pattern = parseLine(line, lineNumber, listName);
                 if (pattern != null) {
                     patterns.add(pattern);
                 }
@@ -75,8 +85,8 @@ public class RuleManager {
         return patterns;
     }
 
-    private List<Pattern> loadFromClasspath(String resourcePath, String listName) {
-        List<Pattern> patterns = new ArrayList<>();
+    private List<RegexRule> loadFromClasspath(String resourcePath, String listName) {
+        List<RegexRule> patterns = new ArrayList<>();
 
         try (InputStream is = RuleManager.class.getClassLoader().getResourceAsStream(resourcePath)) {
             if (is == null) {
@@ -90,7 +100,7 @@ public class RuleManager {
 
                 while ((line = reader.readLine()) != null) {
                     lineNumber++;
-                    Pattern pattern = parseLine(line, lineNumber, listName);
+                    RegexRule pattern = parseLine(line, lineNumber, listName);
                     if (pattern != null) {
                         patterns.add(pattern);
                     }
@@ -106,7 +116,7 @@ public class RuleManager {
         return patterns;
     }
 
-    private Pattern parseLine(String line, int lineNumber, String listName) {
+    private RegexRule parseLine(String line, int lineNumber, String listName) {
         line = line.trim();
 
         // Skip empty lines and comments
@@ -114,51 +124,131 @@ public class RuleManager {
             return null;
         }
 
+        if (RuleTable.isConditional(line)) {
+            try {
+                conditionalRules.add(listIndex(listName), line);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid conditional rule in {} at line {}: '{}' - {}",
+                        listName, lineNumber, line, e.getMessage());
+            }
+            return null;
+        }
+
+        if (Cidr.looksLikeCidr(line)) {
+            addCidr(line, lineNumber, listName);
+            return null;
+        }
+
+        // Only checked here; compiled when a host first needs it
         try {
-            return Pattern.compile(line, Pattern.CASE_INSENSITIVE);
-        } catch (PatternSyntaxException e) {
+            return RegexRule.parse(line);
+        } catch (IllegalArgumentException e) {
             log.warn("Invalid regex pattern in {} at line {}: '{}' - {}",
                     listName, lineNumber, line, e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Adds an IP or CIDR line ("10.0.0.0/8", "2001:db8::/32", "1.2.3.4") to the trie.
+     */
+    private void addCidr(String line, int lineNumber, String listName) {
+        try {
+            Cidr cidr = Cidr.parse(line);
+            byte[] address = cidr.getAddress();
+            CidrTrie<Integer> trie = address.length == 4 ? ipv4Rules : ipv6Rules;
+            trie.put(address, cidr.getPrefixLength(), 1 << listIndex(listName), (a, b) -> a | b);
+            cidrCount.merge(listName, 1, Integer::sum);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid CIDR in {} at line {}: '{}' - {}", listName, lineNumber, line, e.getMessage());
+        }
+    }
+
+    private static int listIndex(String listName) {
+        return Arrays.asList(LISTS).indexOf(listName);
+    }
+
+    private boolean hasConditionalRules(String listName) {
+        // Not compiled yet while loading - the last added rule tells whether this list has any
+        return conditionalRules.lastList() == listIndex(listName);
+    }
+
     public boolean matches(String listName, String host) {
         if (host == null || host.isEmpty()) {
             return false;
         }
 
-        List<Pattern> patterns = rules.getOrDefault(listName, Collections.emptyList());
-
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(host).find()) {
-                ruleHitCount.merge(listName, 1, Integer::sum);
-                log.debug("Host '{}' matched {} rule: {}", host, listName, pattern.pattern());
-                return true;
-            }
+        RegexRuleList patterns = rules.get(listName);
+        RegexRule rule = patterns != null ? patterns.match(host) : null;
+        if (rule == null) {
+            return false;
         }
 
-        return false;
+        ruleHitCount.merge(listName, 1, Integer::sum);
+        log.debug("Host '{}' matched {} rule: {}", host, listName, rule.source());
+        return true;
     }
 
     public String firstMatch(String host) {
+        return firstMatch(host, null, RuleTable.PORT_ANY, null);
+    }
+
+    /**
+     * Like {@link #firstMatch(String)}, for a destination given as raw IPv4/IPv6 bytes.
+     */
+    public String firstMatch(String host, byte[] address) {
+        return firstMatch(host, address, RuleTable.PORT_ANY, null);
+    }
+
+    /**
+     * First list matching a destination and client. CIDR lines are matched on the raw
+     * address bytes, regex lines on the host text, and conditional lines also on the
+     * destination port and client address. List priority holds across all kinds of line.
+     *
+     * @param address raw IPv4/IPv6 destination, or null for a domain name
+     * @param port    destination port, or {@link RuleTable#PORT_ANY}
+     * @param client  client address, or null if not known
+     */
+    public String firstMatch(String host, byte[] address, int port, InetAddress client) {
         if (host == null || host.isEmpty()) {
             return null;
         }
 
-        // Priority order is important
-        if (matches("blacklist", host)) return "blacklist";
-        if (matches("whitelist", host)) return "whitelist";
-        if (matches("redirect", host)) return "redirect";
-        if (matches("segment", host)) return "segment";
+        // ::ffff:a.b.c.d is an IPv4 destination for IPv4 prefixes
+        address = Cidr.unmapped(address);
+        int cidrLists = 0;
+        if (address != null) {
+            CidrTrie<Integer> trie = address.length == 4 ? ipv4Rules : ipv6Rules;
+            cidrLists = trie.size() == 0 ? 0 : trie.reduceMatches(address, 0, (a, b) -> a | b);
+        }
+        BitSet candidates = conditionalRules.candidates(port, client != null ? client.getAddress() : null);
 
+        // Priority order is important
+        for (int i = 0; i < LISTS.length; i++) {
+            if ((cidrLists & (1 << i)) != 0) {
+                ruleHitCount.merge(LISTS[i], 1, Integer::sum);
+                log.debug("Address '{}' matched {} CIDR rule", host, LISTS[i]);
+                return LISTS[i];
+            }
+            if (matches(LISTS[i], host)) {
+                return LISTS[i];
+            }
+            String conditional = conditionalRules.match(candidates, i, host, address);
+            if (conditional != null) {
+                ruleHitCount.merge(LISTS[i], 1, Integer::sum);
+                log.debug("Host '{}':{} matched {} rule: {}", host, port, LISTS[i], conditional);
+                return LISTS[i];
+            }
+        }
         return null;
     }
 
     private void logStatistics() {
         log.info("=== Rule Statistics ===");
         rules.forEach((name, patterns) ->
-                log.info("  {}: {} rules loaded", name, patterns.size())
+                log.info("  {}: {} rules loaded ({} CIDR, {} conditional)", name,
+                        patterns.size() + cidrCount.getOrDefault(name, 0) + conditionalRules.size(listIndex(name)),
+                        cidrCount.getOrDefault(name, 0), conditionalRules.size(listIndex(name)))
         );
         log.info("======================");
     }
@@ -166,7 +256,8 @@ public class RuleManager {
     public void logHitStatistics() {
         log.info("=== Rule Hit Statistics ===");
         ruleHitCount.forEach((name, count) ->
-                log.info("  {}: {} hits", name, count)
+                log.info("  {}: {} hits ({} of {} regex rules compiled, {} hot)", name, count,
+                        rules.get(name).compiledCount(), rules.get(name).size(), rules.get(name).hotCount())
         );
         log.info("===========================");
     }
@@ -0,0 +1,281 @@
+package com.pyatkin.net_6_socks.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Conditional rules: a host pattern qualified by destination ports and/or client subnets,
+ * e.g. {@code * port=443} or {@code \.example\.com$ client=10.0.0.0/8}.
+ *
+ * Rules are compiled into one index per dimension. The port index maps each port
+ * interval to the set of rules allowing it, the client index is a CIDR trie of rule
+ * sets. A lookup ANDs the two sets, so host patterns - the only dimension that needs
+ * per-rule work - are tried only for rules that already pass on port and client.
+ * Rule ids follow list priority, so the first candidate found in a list wins.
+ */
+public class RuleTable {
+    public static final int PORT_ANY = -1;
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    // Compiled indexes
+    private int[] listStart;
+    private int[] listEnd;
+    private int[] portBreaks = new int[0];
+    private BitSet[] portSets = new BitSet[0];
+    private final BitSet anyClient = new BitSet();
+    private final CidrTrie<BitSet> clientsV4 = new CidrTrie<>(4);
+    private final CidrTrie<BitSet> clientsV6 = new CidrTrie<>(16);
+
+    /**
+     * True if the line carries port= or client= qualifiers and belongs in this table.
+     */
+    public static boolean isConditional(String line) {
+        if (line.indexOf('=') < 0) {
+            return false;
+        }
+        String[] tokens = line.split("\\s+");
+        if (tokens.length < 2) {
+            return false;
+        }
+        for (int i = 1; i < tokens.length; i++) {
+            if (!tokens[i].startsWith("port=") && !tokens[i].startsWith("client=")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses and adds a conditional rule. Rules must be added in list priority order.
+     *
+     * @throws IllegalArgumentException on invalid syntax
+     */
+    public void add(int list, String line) {
+        if (listStart != null) {
+            throw new IllegalStateException("Rule table already compiled");
+        }
+        if (!rules.isEmpty() && rules.get(rules.size() - 1).list > list) {
+            throw new IllegalArgumentException("Rules must be added in list priority order");
+        }
+
+        String[] tokens = line.split("\\s+");
+        Rule rule = new Rule(list, line);
+
+        String host = tokens[0];
+        if ("*".equals(host)) {
+            rule.hostPattern = null;
+        } else if (Cidr.looksLikeCidr(host)) {
+            rule.hostCidr = Cidr.parse(host);
+        } else {
+            rule.hostPattern = RegexRule.parse(host);
+        }
+
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            String value = token.substring(token.indexOf('=') + 1);
+            if (token.startsWith("port=")) {
+                rule.ports = parsePorts(value);
+            } else {
+                List<Cidr> clients = new ArrayList<>();
+                for (String cidr : value.split(",")) {
+                    clients.add(Cidr.parse(cidr));
+                }
+                rule.clients = clients;
+            }
+        }
+
+        rules.add(rule);
+    }
+
+    private static int[] parsePorts(String value) {
+        String[] parts = value.split(",");
+        int[] ranges = new int[parts.length * 2];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            if (from < 1 || to > 65535 || from > to) {
+                throw new IllegalArgumentException("Invalid port range: " + part);
+            }
+            ranges[i * 2] = from;
+            ranges[i * 2 + 1] = to;
+        }
+        return ranges;
+    }
+
+    /**
+     * Builds the per-dimension indexes. Must be called once, after all rules are added.
+     */
+    public void compile(int listCount) {
+        listStart = new int[listCount];
+        listEnd = new int[listCount];
+        Arrays.fill(listStart, rules.size());
+        for (int id = rules.size() - 1; id >= 0; id--) {
+            int list = rules.get(id).list;
+            listStart[list] = id;
+            if (listEnd[list] == 0) {
+                listEnd[list] = id + 1;
+            }
+        }
+
+        compilePorts();
+
+        for (int id = 0; id < rules.size(); id++) {
+            Rule rule = rules.get(id);
+            if (rule.clients == null) {
+                anyClient.set(id);
+                continue;
+            }
+            for (Cidr cidr : rule.clients) {
+                BitSet single = new BitSet();
+                single.set(id);
+                byte[] address = cidr.getAddress();
+                CidrTrie<BitSet> trie = address.length == 4 ? clientsV4 : clientsV6;
+                trie.put(address, cidr.getPrefixLength(), single, RuleTable::union);
+            }
+        }
+    }
+
+    /**
+     * Splits the port space at every range boundary; each interval gets the set of
+     * rules that allow all of its ports.
+     */
+    private void compilePorts() {
+        TreeSet<Integer> breaks = new TreeSet<>();
+        breaks.add(0);
+        for (Rule rule : rules) {
+            if (rule.ports != null) {
+                for (int i = 0; i < rule.ports.length; i += 2) {
+                    breaks.add(rule.ports[i]);
+                    breaks.add(rule.ports[i + 1] + 1);
+                }
+            }
+        }
+
+        portBreaks = breaks.stream().mapToInt(Integer::intValue).toArray();
+        portSets = new BitSet[portBreaks.length];
+        for (int i = 0; i < portSets.length; i++) {
+            portSets[i] = new BitSet(rules.size());
+        }
+
+        for (int id = 0; id < rules.size(); id++) {
+            int[] ports = rules.get(id).ports;
+            if (ports == null) {
+                for (BitSet set : portSets) {
+                    set.set(id);
+                }
+                continue;
+            }
+            for (int i = 0; i < ports.length; i += 2) {
+                int from = Arrays.binarySearch(portBreaks, ports[i]);
+                int to = Arrays.binarySearch(portBreaks, ports[i + 1] + 1);
+                for (int interval = from; interval < to; interval++) {
+                    portSets[interval].set(id);
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * List of the most recently added rule, or -1 if there are none.
+     */
+    public int lastList() {
+        return rules.isEmpty() ? -1 : rules.get(rules.size() - 1).list;
+    }
+
+    public int size(int list) {
+        return listEnd == null ? 0 : Math.max(0, listEnd[list] - listStart[list]);
+    }
+
+    /**
+     * Rules passing the port and client dimensions, or null if none do.
+     *
+     * @param port   destination port, or {@link #PORT_ANY} if unknown - then only rules
+     *               without a port qualifier apply
+     * @param client raw client address, or null if unknown - then only rules without a
+     *               client qualifier apply
+     */
+    public BitSet candidates(int port, byte[] client) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+
+        BitSet clients = anyClient;
+        if (client != null) {
+            CidrTrie<BitSet> trie = client.length == 4 ? clientsV4 : clientsV6;
+            clients = trie.reduceMatches(client, anyClient, RuleTable::union);
+        }
+
+        // Client sets are usually sparse and port sets dense - copy the small one
+        BitSet result = (BitSet) clients.clone();
+        result.and(portSet(port));
+
+        return result.isEmpty() ? null : result;
+    }
+
+    private BitSet portSet(int port) {
+        int idx = port == PORT_ANY ? 0 : Arrays.binarySearch(portBreaks, port);
+        if (idx < 0) {
+            idx = -idx - 2;
+        }
+        return portSets[idx];
+    }
+
+    /**
+     * First candidate rule of {@code list} whose host pattern matches, or null.
+     */
+    public String match(BitSet candidates, int list, String host, byte[] address) {
+        if (candidates == null) {
+            return null;
+        }
+        for (int id = candidates.nextSetBit(listStart[list]);
+             id >= 0 && id < listEnd[list];
+             id = candidates.nextSetBit(id + 1)) {
+            Rule rule = rules.get(id);
+            if (rule.matchesHost(host, address)) {
+                return rule.line;
+            }
+        }
+        return null;
+    }
+
+    private static BitSet union(BitSet a, BitSet b) {
+        BitSet result = (BitSet) a.clone();
+        result.or(b);
+        return result;
+    }
+
+    private static final class Rule {
+        final int list;
+        final String line;
+        RegexRule hostPattern;      // null with hostCidr null = any host
+        Cidr hostCidr;
+        int[] ports;                // [from, to] pairs, null = any port
+        List<Cidr> clients;         // null = any client
+
+        Rule(int list, String line) {
+            this.list = list;
+            this.line = line;
+        }
+
+        boolean matchesHost(String host, byte[] address) {
+            if (hostCidr != null) {
+                return hostCidr.contains(address);
+            }
+            return hostPattern == null || hostPattern.matches(host);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.pyatkin.net_6_socks.rules;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates a candidate rule set next to the active one, on a sample of live CONNECTs.
+ *
+ * The session only counts the connection and, if it is sampled, times the active
+ * lookup and queues the result; a background thread then runs the candidate rules
+ * and records where the two disagree, grouped by "active -> candidate" list with a
+ * few example hosts each. A full queue drops the sample, so a slow candidate never
+ * holds up a CONNECT. Candidate files that are not set fall back to the active ones,
+ * so a change to a single list can be tried on its own.
+ */
+public class ShadowRules {
+    private static final Logger log = LoggerFactory.getLogger(ShadowRules.class);
+    private static final int QUEUE_SIZE = 1024;
+    private static final String NONE = "none";
+
+    private final String[] activeFiles;
+    private final BlockingQueue<Sample> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Candidate candidate;
+    private volatile boolean reloadRequested;
+    private Thread thread;
+
+    /**
+     * @param activeFiles blacklist, whitelist, redirect and segment files of the active rules
+     */
+    public ShadowRules(String... activeFiles) {
+        this.activeFiles = activeFiles.clone();
+    }
+
+    /**
+     * Whether this CONNECT should be compared; cheap enough for every connection.
+     */
+    public boolean sample(ConfigSnapshot config) {
+        if (config.getShadowRuleFiles() == null) {
+            return false;
+        }
+        return connections.getAndIncrement() % config.getShadowSampleRate() == 0;
+    }
+
+    /**
+     * Queues a sampled CONNECT with the active decision and the time the active lookup took.
+     */
+    public void submit(ConfigSnapshot config, String host, byte[] address, int port, InetAddress client,
+                       String activeList, long activeNanos) {
+        ensureStarted();
+        Sample sample = new Sample(resolve(config.getShadowRuleFiles()), config.getShadowExamples(),
+                host, address, port, client, activeList, activeNanos);
+        if (!queue.offer(sample)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private String[] resolve(List<String> candidateFiles) {
+        String[] files = new String[activeFiles.length];
+        for (int i = 0; i < files.length; i++) {
+            String file = candidateFiles.get(i);
+            files[i] = file != null ? file : activeFiles[i];
+        }
+        return files;
+    }
+
+    private synchronized void ensureStarted() {
+        if (thread == null) {
+            thread = new Thread(this::run, "ShadowRules");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                evaluate(queue.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void evaluate(Sample sample) {
+        Candidate current = candidate;
+        if (current == null || reloadRequested || !Arrays.equals(current.files, sample.files)) {
+            reloadRequested = false;
+            log.info("Loading candidate rules: {}", Arrays.toString(sample.files));
+            current = new Candidate(sample.files);
+            candidate = current;
+        }
+
+        try {
+            long start = System.nanoTime();
+            String shadowList = current.rules.firstMatch(sample.host, sample.address, sample.port, sample.client);
+            long shadowNanos = System.nanoTime() - start;
+            current.record(sample, shadowList, shadowNanos);
+        } catch (RuntimeException e) {
+            log.warn("Candidate rules failed on {}: {}", sample.host, e.toString());
+        }
+    }
+
+    /**
+     * Re-reads the candidate files before the next sample and starts the comparison over.
+     */
+    public void reload() {
+        reloadRequested = true;
+    }
+
+    private static final class Sample {
+        final String[] files;
+        final int examples;
+        final String host;
+        final byte[] address;
+        final int port;
+        final InetAddress client;
+        final String activeList;
+        final long activeNanos;
+
+        Sample(String[] files, int examples, String host, byte[] address, int port, InetAddress client,
+               String activeList, long activeNanos) {
+            this.files = files;
+            this.examples = examples;
+            this.host = host;
+            this.address = address;
+            this.port = port;
+            this.client = client;
+            this.activeList = activeList;
+            this.activeNanos = activeNanos;
+        }
+    }
+
+    /**
+     * A loaded candidate rule set and how it compared so far.
+     */
+    private static final class Candidate {
+        final String[] files;
+        final RuleManager rules;
+        final long loadedAt = System.currentTimeMillis();
+
+        // Guarded by this
+        private long evaluated;
+        private long differing;
+        private final Map<String, Difference> differences = new TreeMap<>();
+        private long activeNanosTotal;
+        private long activeNanosMax;
+        private long shadowNanosTotal;
+        private long shadowNanosMax;
+
+        Candidate(String[] files) {
+            this.files = files;
+            this.rules = new RuleManager(files[0], files[1], files[2], files[3]);
+        }
+
+        synchronized void record(Sample sample, String shadowList, long shadowNanos) {
+            evaluated++;
+            activeNanosTotal += sample.activeNanos;
+            activeNanosMax = Math.max(activeNanosMax, sample.activeNanos);
+            shadowNanosTotal += shadowNanos;
+            shadowNanosMax = Math.max(shadowNanosMax, shadowNanos);
+
+            String active = sample.activeList != null ? sample.activeList : NONE;
+            String shadow = shadowList != null ? shadowList : NONE;
+            if (!active.equals(shadow)) {
+                differing++;
+                differences.computeIfAbsent(active + " -> " + shadow, k -> new Difference())
+                        .add(sample.host, sample.examples);
+            }
+        }
+
+        synchronized List<String> describe() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("candidate %s, loaded %ds ago: %d compared, %d differ (%.2f%%)",
+                    Arrays.toString(files), (System.currentTimeMillis() - loadedAt) / 1000, evaluated, differing,
+                    evaluated > 0 ? differing * 100.0 / evaluated : 0.0));
+            lines.add(String.format("rule cost: active avg=%.1fus max=%.1fus, candidate avg=%.1fus max=%.1fus",
+                    average(activeNanosTotal), activeNanosMax / 1e3, average(shadowNanosTotal), shadowNanosMax / 1e3));
+            differences.forEach((category, difference) -> lines.add("  " + category + ": " + difference));
+            return lines;
+        }
+
+        private double average(long totalNanos) {
+            return evaluated > 0 ? totalNanos / 1e3 / evaluated : 0.0;
+        }
+    }
+
+    private static final class Difference {
+        private long count;
+        private final Set<String> examples = new LinkedHashSet<>();
+
+        void add(String host, int maxExamples) {
+            count++;
+            if (examples.size() < maxExamples) {
+                examples.add(host);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return count + " e.g. " + examples;
+        }
+    }
+
+    /**
+     * Comparison so far: totals, rule cost of both sets, and one line per kind of difference.
+     */
+    public List<String> describe() {
+        Candidate current = candidate;
+        List<String> lines = new ArrayList<>();
+        if (current == null) {
+            lines.add("no candidate evaluated yet");
+        } else {
+            lines.addAll(current.describe());
+        }
+        if (dropped.get() > 0) {
+            lines.add("samples dropped (queue full): " + dropped.get());
+        }
+        return lines;
+    }
+
+    public void logStatistics() {
+        if (candidate == null) {
+            return;
+        }
+        log.info("=== Shadow rules ===");
+        describe().forEach(line -> log.info("  {}", line));
+        log.info("====================");
+    }
+}
@@ -0,0 +1,105 @@
+package com.pyatkin.net_6_socks.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded pool of listening ports for the SOCKS5 BIND command.
+ *
+ * Ports come from a fixed range and are handed back as soon as the inbound
+ * connection has been accepted, so BIND traffic can never use more than
+ * {@code end - start + 1} ports, however busy the proxy is.
+ */
+public class BindPortPool {
+    private static final Logger log = LoggerFactory.getLogger(BindPortPool.class);
+
+    private final Deque<Integer> freePorts = new ArrayDeque<>();
+    private final int size;
+
+    public BindPortPool(int start, int end) {
+        for (int port = start; port <= end; port++) {
+            freePorts.add(port);
+        }
+        this.size = freePorts.size();
+        log.debug("BIND port pool: {}-{} ({} ports)", start, end, size);
+    }
+
+    /**
+     * Binds a listening socket on the next free port of the range.
+     * Returns null if every port is leased or taken by another process.
+     */
+    public synchronized Lease acquire(InetAddress bindAddress) {
+        for (int attempt = 0; attempt < freePorts.size(); attempt++) {
+            int port = freePorts.poll();
+            ServerSocket socket = null;
+            try {
+                socket = new ServerSocket();
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(bindAddress, port), 1);
+                return new Lease(socket, port);
+            } catch (IOException e) {
+                // Used by someone else right now - try it again later
+                log.debug("BIND port {} unavailable: {}", port, e.getMessage());
+                closeQuietly(socket);
+                freePorts.add(port);
+            }
+        }
+        return null;
+    }
+
+    private synchronized void release(int port) {
+        freePorts.add(port);
+    }
+
+    public synchronized int available() {
+        return freePorts.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A leased listening socket. Closing it returns the port to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+        private final ServerSocket socket;
+        private final int port;
+        private boolean released;
+
+        private Lease(ServerSocket socket, int port) {
+            this.socket = socket;
+            this.port = port;
+        }
+
+        public ServerSocket socket() {
+            return socket;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            closeQuietly(socket);
+            release(port);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One compartment per strategy, and one for UDP associations: its own tunnel slots,
+ * wait queue and relay threads.
+ *
+ * A tunnel takes a slot of its strategy right after rule matching and keeps it until the
+ * relay ends. When all slots are taken it waits in the strategy's queue for at most
+ * {@code queueTimeoutMs}; when the queue is full too it is rejected at once. Slow
+ * upstreams or segmentation delays therefore fill only their own compartment, and
+ * direct tunnels keep their slots and threads.
+ *
+ * Relay threads come from a bounded pool sized from the compartment's limits, so a
+ * compartment never runs more threads than its slots can use; a task beyond that is
+ * rejected and counted.
+ */
+public class Bulkheads {
+    private static final Logger log = LoggerFactory.getLogger(Bulkheads.class);
+    // A relay thread only runs the shallow copy loop; most of them sit in read() on idle tunnels
+    private static final long RELAY_STACK_BYTES = 256 * 1024;
+    // Two relay directions per tunnel, plus the serving thread of a mux-exit stream
+    private static final int THREADS_PER_SLOT = 3;
+    // Queued mux-exit streams wait on a thread; the spares cover relay threads still
+    // unwinding after their slot was released
+    private static final int SPARE_THREADS = 8;
+    private static final long IDLE_THREAD_SEC = 60;
+
+    private final Map<String, Compartment> compartments = new LinkedHashMap<>();
+
+    public Bulkheads(ConfigSnapshot config) {
+        for (String name : new String[]{"direct", "redirect", "segment", "udp"}) {
+            compartments.put(name, new Compartment(name, config.getBulkheadLimits(name)));
+        }
+    }
+
+    /**
+     * Compartment of {@code strategy}, or of UDP associations for "udp"; strategies
+     * without one share the direct compartment.
+     */
+    public Compartment forStrategy(String strategy) {
+        Compartment compartment = compartments.get(strategy);
+        return compartment != null ? compartment : compartments.get("direct");
+    }
+
+    public static final class Compartment {
+        private final String name;
+        private final ThreadPoolExecutor relayThreads;
+        private final AtomicLong threadRejections = new AtomicLong();
+
+        // Guarded by this
+        private int active;
+        private int waiting;
+        private long admitted;
+        private long rejected;
+        private long timedOut;
+        private long queuedTotal;
+        private long dequeued;
+        private long waitNanosTotal;
+        private long maxWaitNanos;
+
+        private Compartment(String name, ConfigSnapshot.BulkheadLimits limits) {
+            this.name = name;
+            AtomicInteger threads = new AtomicInteger();
+            this.relayThreads = new ThreadPoolExecutor(0, maxThreads(limits), IDLE_THREAD_SEC, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread thread = new Thread(null, r, name + "-relay-" + threads.incrementAndGet(),
+                                RELAY_STACK_BYTES);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, (r, executor) -> {
+                        threadRejections.incrementAndGet();
+                        throw new RejectedExecutionException("All " + executor.getMaximumPoolSize() + " "
+                                + name + " relay threads are busy");
+                    });
+        }
+
+        private static int maxThreads(ConfigSnapshot.BulkheadLimits limits) {
+            if (limits.getMaxSessions() == 0) {
+                return Integer.MAX_VALUE;
+            }
+            return (int) Math.min(Integer.MAX_VALUE,
+                    (long) limits.getMaxSessions() * THREADS_PER_SLOT + limits.getQueue() + SPARE_THREADS);
+        }
+
+        /**
+         * Takes a slot, waiting in the queue if the limits allow it.
+         *
+         * @return false if the tunnel is rejected: queue full or wait timed out
+         */
+        public synchronized boolean acquire(ConfigSnapshot.BulkheadLimits limits) throws InterruptedIOException {
+            // Limits are reloadable; the thread bound follows them
+            int threads = maxThreads(limits);
+            if (relayThreads.getMaximumPoolSize() != threads) {
+                relayThreads.setMaximumPoolSize(threads);
+            }
+            int max = limits.getMaxSessions();
+            if (max == 0 || active < max) {
+                active++;
+                admitted++;
+                return true;
+            }
+            if (waiting >= limits.getQueue()) {
+                rejected++;
+                return false;
+            }
+
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(limits.getQueueTimeoutMs());
+            waiting++;
+            queuedTotal++;
+            try {
+                while (active >= max) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timedOut++;
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a " + name + " slot");
+            } finally {
+                waiting--;
+            }
+
+            long waited = System.nanoTime() - start;
+            waitNanosTotal += waited;
+            dequeued++;
+            maxWaitNanos = Math.max(maxWaitNanos, waited);
+            active++;
+            admitted++;
+            return true;
+        }
+
+        public synchronized void release() {
+            active--;
+            // All waiters: one that is timing out right now must not swallow the wakeup
+            notifyAll();
+        }
+
+        /**
+         * Threads for the two relay directions of this compartment's tunnels. Tasks are
+         * rejected with {@link RejectedExecutionException} once all threads are busy.
+         */
+        public ExecutorService getRelayThreads() {
+            return relayThreads;
+        }
+
+        @Override
+        public synchronized String toString() {
+            int maxThreads = relayThreads.getMaximumPoolSize();
+            return String.format("%s: active=%d, waiting=%d, admitted=%d, queued=%d, rejected=%d, timedOut=%d, "
+                            + "wait avg=%.1fms max=%.1fms, threads=%d/%s, threadRejections=%d",
+                    name, active, waiting, admitted, queuedTotal, rejected, timedOut,
+                    dequeued > 0 ? waitNanosTotal / 1e6 / dequeued : 0.0, maxWaitNanos / 1e6,
+                    relayThreads.getActiveCount(), maxThreads == Integer.MAX_VALUE ? "unlimited" : maxThreads,
+                    threadRejections.get());
+        }
+    }
+
+    /**
+     * One line per strategy with current occupancy and totals since start.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Compartment compartment : compartments.values()) {
+            lines.add(compartment.toString());
+        }
+        return lines;
+    }
+
+    public void logStatistics() {
+        log.info("=== Bulkheads ===");
+        describe().forEach(line -> log.info("  {}", line));
+        log.info("=================");
+    }
+}
@@ -0,0 +1,259 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.state.PersistentState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per host:port circuit breakers for outgoing connects.
+ *
+ * After {@code failureThreshold} consecutive failures a destination is open:
+ * connects to it fail immediately with the last failure for the backoff period,
+ * which doubles on every trip up to a maximum. When the period is over, exactly
+ * one connect is let through as a probe (half-open); its outcome closes the
+ * breaker or opens it again. Only destinations that are failing are tracked.
+ *
+ * Saved state keeps failing destinations across a restart. A restored breaker
+ * stays open for what was left of its backoff and then probes as usual, with its
+ * trip count kept so the next backoff continues to grow.
+ */
+public class CircuitBreakers implements PersistentState {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreakers.class);
+    private static final int MAX_TRACKED_DESTINATIONS = 4096;
+
+    public enum Failure {
+        REFUSED,
+        UNREACHABLE
+    }
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private final AtomicLong trips = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Returns null if a connect to {@code key} may go ahead, otherwise the failure
+     * it should fail fast with.
+     */
+    public Failure check(String key, ConfigSnapshot config) {
+        if (!config.isBreakerEnabled()) {
+            return null;
+        }
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            return null;
+        }
+        Failure failure = breaker.check();
+        if (failure != null) {
+            rejected.incrementAndGet();
+        }
+        return failure;
+    }
+
+    /**
+     * True if the circuit for {@code key} is open or half-open. Unlike {@link #check},
+     * never lets the half-open test connect through, so background work can skip the
+     * destination without using up that test.
+     */
+    public boolean isOpen(String key, ConfigSnapshot config) {
+        if (!config.isBreakerEnabled()) {
+            return false;
+        }
+        Breaker breaker = breakers.get(key);
+        return breaker != null && breaker.state != State.CLOSED;
+    }
+
+    public void onSuccess(String key) {
+        Breaker breaker = breakers.remove(key);
+        if (breaker != null && breaker.state != State.CLOSED) {
+            log.info("Circuit for {} closed after {} trips", key, breaker.trips);
+        }
+    }
+
+    public void onFailure(String key, Failure failure, ConfigSnapshot config) {
+        if (!config.isBreakerEnabled()) {
+            return;
+        }
+        if (breakers.size() >= MAX_TRACKED_DESTINATIONS && !breakers.containsKey(key)) {
+            evict();
+        }
+        Breaker breaker = breakers.computeIfAbsent(key, k -> new Breaker());
+        if (breaker.onFailure(failure, config)) {
+            trips.incrementAndGet();
+            log.warn("Circuit for {} opened for {}s ({}, trip #{})", key,
+                    TimeUnit.NANOSECONDS.toSeconds(breaker.openNanos), failure, breaker.trips);
+        }
+    }
+
+    /**
+     * Makes room by dropping closed breakers first, then any.
+     */
+    private void evict() {
+        int toRemove = MAX_TRACKED_DESTINATIONS / 8;
+        for (Iterator<Breaker> it = breakers.values().iterator(); it.hasNext() && toRemove > 0; ) {
+            if (it.next().state == State.CLOSED) {
+                it.remove();
+                toRemove--;
+            }
+        }
+        for (Iterator<Breaker> it = breakers.values().iterator(); it.hasNext() && toRemove > 0; ) {
+            it.next();
+            it.remove();
+            toRemove--;
+        }
+    }
+
+    public long getTrips() {
+        return trips.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Current state of every tracked destination, for monitoring.
+     */
+    public List<String> describe() {
+        List<String> states = new ArrayList<>();
+        long now = System.nanoTime();
+        breakers.forEach((key, breaker) -> states.add(breaker.describe(key, now)));
+        return states;
+    }
+
+    @Override
+    public String stateSection() {
+        return "breakers";
+    }
+
+    @Override
+    public void saveState(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, Breaker>> entries = new ArrayList<>(breakers.entrySet());
+        long nowNanos = System.nanoTime();
+        long nowMs = System.currentTimeMillis();
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Breaker> entry : entries) {
+            Breaker breaker = entry.getValue();
+            synchronized (breaker) {
+                out.writeUTF(entry.getKey());
+                out.writeByte(breaker.state.ordinal());
+                out.writeInt(breaker.failures);
+                out.writeInt(breaker.trips);
+                out.writeByte(breaker.lastFailure != null ? breaker.lastFailure.ordinal() : -1);
+                out.writeLong(breaker.openNanos);
+                // Monotonic time does not survive a restart; store the end of the backoff as wall time
+                out.writeLong(nowMs + TimeUnit.NANOSECONDS.toMillis(breaker.openUntil - nowNanos));
+                out.writeLong(breaker.lastFailureAtMs);
+            }
+        }
+    }
+
+    @Override
+    public int loadState(DataInputStream in, long maxAgeMs) throws IOException {
+        State[] states = State.values();
+        Failure[] failures = Failure.values();
+        long nowMs = System.currentTimeMillis();
+        int restored = 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            Breaker breaker = new Breaker();
+            State state = states[in.readUnsignedByte()];
+            breaker.failures = in.readInt();
+            breaker.trips = in.readInt();
+            int failure = in.readByte();
+            breaker.lastFailure = failure >= 0 ? failures[failure] : null;
+            breaker.openNanos = in.readLong();
+            long openUntilMs = in.readLong();
+            breaker.lastFailureAtMs = in.readLong();
+            if (nowMs - breaker.lastFailureAtMs > maxAgeMs || breaker.lastFailure == null) {
+                continue;
+            }
+            // A probe that was in flight at shutdown is owed a new one: restore it as open
+            breaker.state = state == State.CLOSED ? State.CLOSED : State.OPEN;
+            breaker.openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, openUntilMs - nowMs));
+            if (breakers.size() < MAX_TRACKED_DESTINATIONS && breakers.putIfAbsent(key, breaker) == null) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    public void logStatistics() {
+        log.info("=== Circuit Breaker Statistics ===");
+        log.info("  trips: {}", trips.get());
+        log.info("  fast-failed connects: {}", rejected.get());
+        describe().forEach(state -> log.info("  {}", state));
+        log.info("==================================");
+    }
+
+    private static final class Breaker {
+        volatile State state = State.CLOSED;
+        int failures;
+        int trips;
+        Failure lastFailure;
+        long openUntil;
+        long openNanos;
+        long lastFailureAtMs;
+
+        synchronized Failure check() {
+            if (state == State.CLOSED) {
+                return null;
+            }
+            if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+                // Let exactly one connect through to test the destination
+                state = State.HALF_OPEN;
+                return null;
+            }
+            return lastFailure;
+        }
+
+        /**
+         * Returns true if this failure opened the circuit.
+         */
+        synchronized boolean onFailure(Failure failure, ConfigSnapshot config) {
+            lastFailure = failure;
+            lastFailureAtMs = System.currentTimeMillis();
+            failures++;
+            if (state == State.CLOSED && failures < config.getBreakerFailureThreshold()) {
+                return false;
+            }
+            if (state == State.OPEN) {
+                // A connect that started before the circuit opened
+                return false;
+            }
+
+            long base = TimeUnit.SECONDS.toNanos(config.getBreakerOpenSec());
+            long max = TimeUnit.SECONDS.toNanos(config.getBreakerMaxOpenSec());
+            openNanos = Math.min(max, base << Math.min(trips, 20));
+            trips++;
+            state = State.OPEN;
+            openUntil = System.nanoTime() + openNanos;
+            return true;
+        }
+
+        synchronized String describe(String key, long now) {
+            String remaining = state == State.OPEN
+                    ? ", retry in " + Math.max(0, TimeUnit.NANOSECONDS.toSeconds(openUntil - now)) + "s" : "";
+            return String.format("%s: %s, failures=%d, trips=%d, last=%s%s",
+                    key, state, failures, trips, lastFailure, remaining);
+        }
+    }
+}
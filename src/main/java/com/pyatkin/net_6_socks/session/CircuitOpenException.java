@@ -0,0 +1,21 @@
+package com.pyatkin.net_6_socks.session;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of connecting to a destination whose circuit breaker is open.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final CircuitBreakers.Failure failure;
+
+    public CircuitOpenException(String destination, CircuitBreakers.Failure failure) {
+        super("Circuit open for " + destination + " (" + failure + ")");
+        this.failure = failure;
+    }
+
+    public CircuitBreakers.Failure getFailure() {
+        return failure;
+    }
+}
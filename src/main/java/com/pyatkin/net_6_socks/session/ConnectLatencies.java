@@ -0,0 +1,214 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.state.PersistentState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent TCP connect times per host:port, and the connect timeout and hedge delay
+ * they imply.
+ *
+ * Each destination keeps its last {@value #SAMPLES} connect times. The timeout is a
+ * multiple of their p99, between the configured minimum and the fixed timeout.
+ * Connects that never finished are recorded as censored samples, at the time they had
+ * run: one that timed out at its timeout, and a first attempt abandoned for a winning
+ * hedge at the time the hedge won. A destination that got slower therefore raises its
+ * own timeout and hedge delay on the next attempts. Until a destination
+ * has enough samples it gets the fixed timeout and is never hedged.
+ */
+public class ConnectLatencies implements PersistentState {
+    private static final Logger log = LoggerFactory.getLogger(ConnectLatencies.class);
+    private static final int MAX_DESTINATIONS = 1024;
+    private static final int SAMPLES = 32;
+
+    // Guarded by this
+    private final Map<String, Samples> destinations = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Samples> eldest) {
+            return size() > MAX_DESTINATIONS;
+        }
+    };
+    private final AtomicLong shortened = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong censored = new AtomicLong();
+
+    /**
+     * Connect timeout for {@code destination}: derived from its connect times, or
+     * {@code fixedMs} if adaptive timeouts are off or too little is known yet.
+     * Never longer than {@code fixedMs}, unless that is 0 (no timeout).
+     */
+    public int timeoutMs(String destination, int fixedMs, ConfigSnapshot config) {
+        if (!config.isAdaptiveConnect()) {
+            return fixedMs;
+        }
+        long p99Micros = percentileMicros(destination, 0.99, config.getConnectMinSamples());
+        if (p99Micros < 0) {
+            return fixedMs;
+        }
+        // A fixed timeout of 0 means none; the derived one is then only bounded below
+        long capMs = fixedMs > 0 ? fixedMs : Integer.MAX_VALUE;
+        long derivedMs = TimeUnit.MICROSECONDS.toMillis(p99Micros) * config.getConnectTimeoutFactor();
+        int timeoutMs = (int) Math.max(config.getConnectMinTimeoutMs(), Math.min(capMs, derivedMs));
+        if (timeoutMs < capMs) {
+            shortened.incrementAndGet();
+        }
+        return timeoutMs;
+    }
+
+    /**
+     * How long to wait for a connect to {@code destination} before starting a second
+     * one, or -1 if it should not be hedged.
+     */
+    public long hedgeAfterMs(String destination, ConfigSnapshot config) {
+        if (!config.isHedgeRedirect()) {
+            return -1;
+        }
+        long p95Micros = percentileMicros(destination, 0.95, config.getConnectMinSamples());
+        if (p95Micros < 0) {
+            return -1;
+        }
+        return Math.max(config.getHedgeMinMs(), TimeUnit.MICROSECONDS.toMillis(p95Micros));
+    }
+
+    public void record(String destination, long connectNanos) {
+        add(destination, connectNanos);
+    }
+
+    /**
+     * Records a connect that had not finished after {@code elapsedNanos}. Its real time is
+     * at least that, so the sample only ever understates the tail.
+     */
+    public void recordCensored(String destination, long elapsedNanos) {
+        censored.incrementAndGet();
+        add(destination, elapsedNanos);
+    }
+
+    private void add(String destination, long connectNanos) {
+        int micros = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(connectNanos));
+        synchronized (this) {
+            destinations.computeIfAbsent(destination, k -> new Samples()).add(micros);
+        }
+    }
+
+    /**
+     * Notes that a second connect was started, and whether it won.
+     */
+    public void onHedge(boolean won) {
+        hedged.incrementAndGet();
+        if (won) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    private synchronized long percentileMicros(String destination, double quantile, int minSamples) {
+        Samples samples = destinations.get(destination);
+        if (samples == null || samples.count < minSamples) {
+            return -1;
+        }
+        return samples.percentile(quantile);
+    }
+
+    /**
+     * Counters, then one line per destination with its p50/p95/p99 connect time.
+     */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("shortened timeouts=%d, hedged connects=%d, won by hedge=%d, censored samples=%d, "
+                        + "hedge threads busy=%d", shortened.get(), hedged.get(), hedgeWins.get(), censored.get(),
+                HedgedConnect.saturated()));
+        destinations.forEach((destination, samples) -> lines.add(String.format(
+                "%s: n=%d, p50=%.1fms, p95=%.1fms, p99=%.1fms", destination, samples.count,
+                samples.percentile(0.5) / 1e3, samples.percentile(0.95) / 1e3, samples.percentile(0.99) / 1e3)));
+        return lines;
+    }
+
+    public void logStatistics() {
+        if (hedged.get() == 0 && shortened.get() == 0) {
+            return;
+        }
+        log.info("Connect times: shortened timeouts={}, hedged connects={}, won by hedge={}, censored samples={}, "
+                + "hedge threads busy={}", shortened.get(), hedged.get(), hedgeWins.get(), censored.get(),
+                HedgedConnect.saturated());
+    }
+
+    @Override
+    public String stateSection() {
+        return "connect";
+    }
+
+    @Override
+    public synchronized void saveState(DataOutputStream out) throws IOException {
+        out.writeInt(destinations.size());
+        for (Map.Entry<String, Samples> entry : destinations.entrySet()) {
+            Samples samples = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(samples.updatedAtMs);
+            out.writeInt(samples.count);
+            for (int i = 0; i < samples.count; i++) {
+                out.writeInt(samples.micros[i]);
+            }
+        }
+    }
+
+    @Override
+    public int loadState(DataInputStream in, long maxAgeMs) throws IOException {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String destination = in.readUTF();
+            long updatedAtMs = in.readLong();
+            int sampleCount = in.readInt();
+            Samples samples = new Samples();
+            for (int j = 0; j < sampleCount; j++) {
+                samples.add(in.readInt());
+            }
+            samples.updatedAtMs = updatedAtMs;
+            if (now - updatedAtMs > maxAgeMs) {
+                continue;
+            }
+            synchronized (this) {
+                if (destinations.putIfAbsent(destination, samples) == null) {
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Ring of the most recent connect times, in microseconds.
+     */
+    private static final class Samples {
+        final int[] micros = new int[SAMPLES];
+        int count;
+        int next;
+        long updatedAtMs;
+
+        void add(int sample) {
+            micros[next] = sample;
+            next = (next + 1) % SAMPLES;
+            count = Math.min(SAMPLES, count + 1);
+            updatedAtMs = System.currentTimeMillis();
+        }
+
+        long percentile(double quantile) {
+            int[] sorted = Arrays.copyOf(micros, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(quantile * count) - 1)];
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.pyatkin.net_6_socks.session;
+
+import java.io.IOException;
+
+/**
+ * The client request parsers without a session around them, for tools that feed
+ * them bytes directly. Nothing is written back and no credentials are checked.
+ */
+public final class HandshakeParsers {
+    private static final byte METHOD_USERNAME_PASSWORD = 0x02;
+
+    private HandshakeParsers() {
+    }
+
+    /**
+     * SOCKS5 greeting, the RFC 1929 request if the client offers username/password,
+     * and the request.
+     *
+     * @return the request, or null if the session would reject it as malformed
+     */
+    public static Socks5Session.SocksRequest socks5(HandshakeReader in) throws IOException {
+        if (Socks5Session.offers(Socks5Session.readMethods(in), METHOD_USERNAME_PASSWORD)) {
+            Socks5Session.readCredentials(in);
+        }
+        return Socks5Session.parseRequest(in);
+    }
+
+    /**
+     * SOCKS4 or SOCKS4a request, version byte included.
+     */
+    public static Socks5Session.SocksRequest socks4(HandshakeReader in) throws IOException {
+        return Socks4Protocol.parse(in);
+    }
+
+    /**
+     * HTTP CONNECT request line and headers.
+     *
+     * @return the target, or null if the request is malformed
+     */
+    public static Socks5Session.SocksRequest httpConnect(HandshakeReader in) throws IOException {
+        HttpConnectProtocol.Request request = HttpConnectProtocol.parse(in);
+        return request != null ? request.target : null;
+    }
+}
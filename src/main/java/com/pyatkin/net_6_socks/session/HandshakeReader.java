@@ -0,0 +1,247 @@
+package com.pyatkin.net_6_socks.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered reader for the handshake phase of a session.
+ *
+ * Every socket read fills as much of one reusable buffer as the kernel has,
+ * so a greeting, request and early payload that arrive together cost a single
+ * read, and messages split across TCP segments are simply waited for.
+ * Bytes left in the buffer after the handshake (optimistic data sent before
+ * the CONNECT reply) are served first when this reader is used as the relay
+ * input, so they go to the remote side without another round trip. After
+ * {@link #detach} the buffer is dropped as soon as those bytes are consumed.
+ */
+public class HandshakeReader extends InputStream {
+    // Largest handshake message is the RFC 1929 request: 1 + 1 + 255 + 1 + 255 bytes;
+    // also bounds SOCKS4 user ids and host names, and the HTTP CONNECT header lines that are kept
+    public static final int BUFFER_SIZE = 1024;
+
+    private static final byte[] DETACHED = new byte[0];
+
+    private final InputStream in;
+    private byte[] buf;
+    private boolean detached;
+    private int pos;
+    private int limit;
+    private long socketReads;
+
+    public HandshakeReader(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Reader with a buffer of {@code bufferSize} bytes, so tools can drive the
+     * compaction and overflow paths with short inputs.
+     */
+    public HandshakeReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Makes sure at least {@code n} bytes are buffered, reading from the socket only if needed.
+     */
+    public void require(int n) throws IOException {
+        if (n > buf.length) {
+            throw new IllegalArgumentException("Message larger than handshake buffer: " + n);
+        }
+        if (limit - pos >= n) {
+            return;
+        }
+        if (pos + n > buf.length) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit - pos < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+            socketReads++;
+            limit += read;
+        }
+    }
+
+    public int readUnsignedByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    public int readUnsignedShort() throws IOException {
+        require(2);
+        int value = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+        pos += 2;
+        return value;
+    }
+
+    public byte[] readBytes(int n) throws IOException {
+        require(n);
+        byte[] bytes = new byte[n];
+        System.arraycopy(buf, pos, bytes, 0, n);
+        pos += n;
+        return bytes;
+    }
+
+    /**
+     * Reads up to the next {@code delimiter} byte, which is consumed but not returned.
+     * Used for the null-terminated SOCKS4 fields.
+     *
+     * @throws IOException if no delimiter arrives within the buffer size
+     */
+    public byte[] readUntil(int delimiter, String what) throws IOException {
+        int end = fillUntil(delimiter);
+        if (end < 0) {
+            throw new IOException(what + " longer than " + buf.length + " bytes");
+        }
+        return take(end);
+    }
+
+    /**
+     * Like {@link #readUntil(int, String)}, but a line that does not fit the buffer is
+     * not an error: its first {@link #capacity()} bytes are returned and the rest of it
+     * is skipped. A returned line of exactly {@link #capacity()} bytes was cut.
+     *
+     * @return the line, or null once more than {@code maxLength} bytes went by without a delimiter
+     */
+    public byte[] readUntil(int delimiter, int maxLength) throws IOException {
+        int end = fillUntil(delimiter);
+        if (end >= 0) {
+            return take(end);
+        }
+
+        byte[] head = new byte[buf.length];
+        System.arraycopy(buf, pos, head, 0, head.length);
+        pos = limit;
+        long skipped = head.length;
+        while (true) {
+            require(1);
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == (byte) delimiter) {
+                    pos = i + 1;
+                    return head;
+                }
+            }
+            skipped += limit - pos;
+            pos = limit;
+            if (skipped > maxLength) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads until {@code delimiter} is buffered and returns its index, or -1 if the
+     * buffer filled up without it.
+     */
+    private int fillUntil(int delimiter) throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = pos + scanned; i < limit; i++) {
+                if (buf[i] == (byte) delimiter) {
+                    return i;
+                }
+            }
+            scanned = limit - pos;
+            if (scanned >= buf.length) {
+                return -1;
+            }
+            require(scanned + 1);
+        }
+    }
+
+    /**
+     * Consumes the bytes up to {@code end} and the byte at it, returning the former.
+     */
+    private byte[] take(int end) {
+        byte[] bytes = new byte[end - pos];
+        System.arraycopy(buf, pos, bytes, 0, bytes.length);
+        pos = end + 1;
+        return bytes;
+    }
+
+    /**
+     * Size of the buffer, the longest message that can be parsed.
+     */
+    public int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * Peeks at the next byte without consuming it.
+     */
+    public int peek() throws IOException {
+        require(1);
+        return buf[pos] & 0xff;
+    }
+
+    /**
+     * Number of bytes already received but not consumed yet.
+     */
+    public int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Number of socket reads performed so far.
+     */
+    public long getSocketReads() {
+        return socketReads;
+    }
+
+    /**
+     * Ends the handshake: no more messages will be parsed, so the buffer is released
+     * once the bytes still in it have been read. Long-lived tunnels then keep nothing.
+     */
+    public void detach() {
+        detached = true;
+        releaseIfDrained();
+    }
+
+    private void releaseIfDrained() {
+        if (detached && pos == limit) {
+            buf = DETACHED;
+            pos = 0;
+            limit = 0;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos < limit) {
+            int b = buf[pos++] & 0xff;
+            releaseIfDrained();
+            return b;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            releaseIfDrained();
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,174 @@
+package com.pyatkin.net_6_socks.session;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP connect that starts a second attempt when the first is slower than usual.
+ *
+ * A SYN lost on the way or queued behind a full accept backlog is only retried by
+ * the kernel after a second or more; a fresh connect started meanwhile usually gets
+ * through at the normal speed. Whichever attempt connects first is used and the
+ * other is closed, which also aborts it if it is still connecting.
+ *
+ * Attempts run on at most {@value #MAX_ATTEMPTS} threads. When they are all busy a
+ * connect runs on the caller's thread without a hedge, and a hedge that finds no free
+ * thread is not started.
+ */
+final class HedgedConnect {
+    private static final int MAX_ATTEMPTS = 64;
+    private static final ExecutorService ATTEMPTS = new ThreadPoolExecutor(0, MAX_ATTEMPTS,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+        Thread thread = new Thread(r, "HedgedConnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong saturated = new AtomicLong();
+
+    /**
+     * Socket that connected first, how long its own attempt took, whether a second
+     * attempt was started, and whether that one won. When the hedge won,
+     * {@code abandonedNanos} is how long the first attempt had run without connecting.
+     */
+    static final class Winner {
+        final Socket socket;
+        final long connectNanos;
+        final boolean hedged;
+        final boolean hedge;
+        final long abandonedNanos;
+
+        Winner(Socket socket, long connectNanos, boolean hedged, boolean hedge, long abandonedNanos) {
+            this.socket = socket;
+            this.connectNanos = connectNanos;
+            this.hedged = hedged;
+            this.hedge = hedge;
+            this.abandonedNanos = abandonedNanos;
+        }
+    }
+
+    interface SocketFactory {
+        Socket create() throws IOException;
+    }
+
+    private HedgedConnect() {
+    }
+
+    /**
+     * Connects {@code first} to {@code address}, and a second socket from
+     * {@code factory} as well if the first has not connected after {@code hedgeAfterMs}.
+     * Each attempt gets {@code timeoutMs}. A first attempt that fails before the hedge
+     * is started fails the call, so the caller can move on to another address.
+     *
+     * @throws IOException the first error, once every started attempt has failed
+     */
+    static Winner connect(Socket first, SocketFactory factory, InetSocketAddress address, int timeoutMs,
+                          long hedgeAfterMs) throws IOException {
+        CompletionService<Winner> attempts = new ExecutorCompletionService<>(ATTEMPTS);
+        long start = System.nanoTime();
+        try {
+            attempts.submit(attempt(first, address, timeoutMs, false));
+        } catch (RejectedExecutionException e) {
+            saturated.incrementAndGet();
+            first.connect(address, timeoutMs);
+            return new Winner(first, System.nanoTime() - start, false, false, -1);
+        }
+        List<Socket> sockets = new ArrayList<>(2);
+        sockets.add(first);
+        int pending = 1;
+        boolean hedged = false;
+        boolean canHedge = true;
+        IOException error = null;
+
+        try {
+            while (pending > 0) {
+                Future<Winner> done = hedged || !canHedge
+                        ? attempts.take() : attempts.poll(hedgeAfterMs, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (startHedge(attempts, factory, sockets, address, timeoutMs)) {
+                        pending++;
+                        hedged = true;
+                    } else {
+                        canHedge = false;
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    Winner winner = done.get();
+                    sockets.remove(winner.socket);
+                    closeAll(sockets);
+                    long abandonedNanos = winner.hedge ? System.nanoTime() - start : -1;
+                    return new Winner(winner.socket, winner.connectNanos, hedged, winner.hedge, abandonedNanos);
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            closeAll(sockets);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Connect to " + address + " interrupted");
+        } catch (IOException | RuntimeException e) {
+            closeAll(sockets);
+            throw e;
+        }
+        closeAll(sockets);
+        throw error;
+    }
+
+    private static boolean startHedge(CompletionService<Winner> attempts, SocketFactory factory, List<Socket> sockets,
+                                      InetSocketAddress address, int timeoutMs) throws IOException {
+        Socket second = factory.create();
+        sockets.add(second);
+        try {
+            attempts.submit(attempt(second, address, timeoutMs, true));
+            return true;
+        } catch (RejectedExecutionException e) {
+            saturated.incrementAndGet();
+            sockets.remove(second);
+            second.close();
+            return false;
+        }
+    }
+
+    /**
+     * Connects that found every attempt thread busy since start.
+     */
+    static long saturated() {
+        return saturated.get();
+    }
+
+    private static Callable<Winner> attempt(Socket socket, InetSocketAddress address, int timeoutMs, boolean hedge) {
+        return () -> {
+            long start = System.nanoTime();
+            socket.connect(address, timeoutMs);
+            return new Winner(socket, System.nanoTime() - start, hedge, hedge, -1);
+        };
+    }
+
+    private static void closeAll(List<Socket> sockets) {
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
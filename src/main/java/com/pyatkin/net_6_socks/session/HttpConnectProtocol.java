@@ -0,0 +1,220 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.rules.Cidr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * HTTP CONNECT requests and responses.
+ *
+ * The request line and headers are read through the session's {@link HandshakeReader},
+ * so anything the client sends right after the blank line (typically a TLS ClientHello)
+ * stays buffered and is relayed first, as with SOCKS5.
+ */
+final class HttpConnectProtocol {
+    private static final int CMD_CONNECT = 0x01;
+    private static final byte ATYP_IPV4 = 0x01;
+    private static final byte ATYP_DOMAIN = 0x03;
+    private static final byte ATYP_IPV6 = 0x04;
+    private static final int MAX_HEADER_LINES = 64;
+    // Longest header line skipped when it does not fit the handshake buffer
+    private static final int MAX_HEADER_LINE = 16 * 1024;
+    private static final String PROXY_AUTHORIZATION = "Proxy-Authorization:";
+
+    private HttpConnectProtocol() {
+    }
+
+    /**
+     * True if {@code firstByte} can start an HTTP request line.
+     */
+    static boolean startsRequest(int firstByte) {
+        return firstByte >= 'A' && firstByte <= 'Z';
+    }
+
+    /**
+     * A request line or needed header too long for the handshake buffer; the client
+     * is answered with {@link #getStatus()} before the connection is closed.
+     */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        TooLargeException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    static final class Request {
+        final Socks5Session.SocksRequest target;
+        final String proxyAuthorization;
+
+        Request(Socks5Session.SocksRequest target, String proxyAuthorization) {
+            this.target = target;
+            this.proxyAuthorization = proxyAuthorization;
+        }
+    }
+
+    /**
+     * Reads the request line and headers. Methods other than CONNECT are returned as
+     * command 0, which is rejected. Returns null if the request is malformed.
+     * Header lines too long for the buffer are skipped, since only
+     * {@code Proxy-Authorization} is used.
+     *
+     * @throws TooLargeException if the request line or {@code Proxy-Authorization} does not
+     *                           fit the buffer, or another header line is longer than 16 KB
+     */
+    static Request parse(HandshakeReader in) throws IOException {
+        byte[] line = in.readUntil('\n', MAX_HEADER_LINE);
+        if (line == null || line.length == in.capacity()) {
+            throw new TooLargeException(414, "HTTP request line longer than " + in.capacity() + " bytes");
+        }
+        String requestLine = text(line);
+        String authorization = null;
+        for (int lines = 0; ; lines++) {
+            line = in.readUntil('\n', MAX_HEADER_LINE);
+            if (line == null) {
+                throw new TooLargeException(431, "HTTP header line longer than " + MAX_HEADER_LINE + " bytes");
+            }
+            String header = text(line);
+            if (header.isEmpty()) {
+                break;
+            }
+            if (lines >= MAX_HEADER_LINES) {
+                throw new IOException("More than " + MAX_HEADER_LINES + " HTTP header lines");
+            }
+            if (header.regionMatches(true, 0, PROXY_AUTHORIZATION, 0, PROXY_AUTHORIZATION.length())) {
+                // Basic credentials always fit; a longer value (a Negotiate token) cannot be checked
+                if (line.length == in.capacity()) {
+                    throw new TooLargeException(431, "Proxy-Authorization longer than " + line.length + " bytes");
+                }
+                authorization = header.substring(PROXY_AUTHORIZATION.length()).trim();
+            }
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        Socks5Session.SocksRequest target = new Socks5Session.SocksRequest();
+        if (!"CONNECT".equals(parts[0])) {
+            target.cmd = 0;
+            target.host = parts[1];
+            return new Request(target, authorization);
+        }
+
+        target.cmd = CMD_CONNECT;
+        if (!parseAuthority(parts[1], target)) {
+            return null;
+        }
+        return new Request(target, authorization);
+    }
+
+    /**
+     * "host:port" or "[v6 address]:port".
+     */
+    private static boolean parseAuthority(String authority, Socks5Session.SocksRequest target) {
+        String host;
+        String port;
+        if (authority.startsWith("[")) {
+            int close = authority.indexOf(']');
+            if (close < 0 || close + 1 >= authority.length() || authority.charAt(close + 1) != ':') {
+                return false;
+            }
+            host = authority.substring(1, close);
+            port = authority.substring(close + 2);
+        } else {
+            int colon = authority.lastIndexOf(':');
+            if (colon < 1 || authority.indexOf(':') != colon) {
+                return false;
+            }
+            host = authority.substring(0, colon);
+            port = authority.substring(colon + 1);
+        }
+
+        try {
+            target.port = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (target.port < 1 || target.port > 65535 || host.isEmpty()) {
+            return false;
+        }
+
+        target.host = host;
+        target.addressType = ATYP_DOMAIN;
+        // IP literals carry raw bytes so CIDR rules apply, as for SOCKS5 IPv4/IPv6 requests
+        target.address = Cidr.literalAddress(host);
+        if (target.address != null) {
+            target.addressType = target.address.length == 4 ? ATYP_IPV4 : ATYP_IPV6;
+        }
+        return true;
+    }
+
+    /**
+     * User name and password from a Basic {@code Proxy-Authorization} value, or null.
+     */
+    static String[] basicCredentials(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = decoded.indexOf(':');
+        return colon < 0 ? null : new String[]{decoded.substring(0, colon), decoded.substring(colon + 1)};
+    }
+
+    static byte[] response(int status) {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        if (status != 200) {
+            sb.append("Content-Length: 0\r\nConnection: close\r\n");
+        }
+        if (status == 405) {
+            sb.append("Allow: CONNECT\r\n");
+        }
+        if (status == 407) {
+            sb.append("Proxy-Authenticate: Basic realm=\"proxy\"\r\n");
+        }
+        return sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "Connection established";
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 405:
+                return "Method Not Allowed";
+            case 407:
+                return "Proxy Authentication Required";
+            case 414:
+                return "URI Too Long";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 504:
+                return "Gateway Timeout";
+            default:
+                return "Bad Gateway";
+        }
+    }
+
+    private static String text(byte[] line) {
+        int length = line.length > 0 && line[line.length - 1] == '\r' ? line.length - 1 : line.length;
+        return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,160 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.auth.Authenticator;
+import com.pyatkin.net_6_socks.conf.LiveConfig;
+import com.pyatkin.net_6_socks.diag.HeavyHitters;
+import com.pyatkin.net_6_socks.diag.SlowSessionRecorder;
+import com.pyatkin.net_6_socks.mux.MuxClient;
+import com.pyatkin.net_6_socks.rules.RuleManager;
+import com.pyatkin.net_6_socks.rules.ShadowRules;
+import com.pyatkin.net_6_socks.state.RecentHosts;
+import com.pyatkin.net_6_socks.trace.TraceWriter;
+import com.pyatkin.net_6_socks.traffic.BufferAutotuner;
+import com.pyatkin.net_6_socks.traffic.RelayScheduler;
+
+/**
+ * Process-wide services shared by all sessions.
+ */
+public class SessionContext {
+    private final RuleManager rules;
+    private final LiveConfig config;
+    private final BindPortPool bindPorts;
+    private final Authenticator authenticator;
+    private final BufferAutotuner bufferAutotuner;
+    private final WarmConnectionPool warmPool;
+    private final CircuitBreakers circuitBreakers;
+    private final SlowSessionRecorder slowSessions;
+    private final MuxClient muxClient;
+    private final TraceWriter traces;
+    private final Bulkheads bulkheads;
+    private final RelayScheduler relayScheduler;
+    private final ShadowRules shadowRules;
+    private final RecentHosts recentHosts;
+    private final HeavyHitters heavyHitters;
+    private final ConnectLatencies connectLatencies;
+
+    public SessionContext(RuleManager rules,
+                          LiveConfig config,
+                          BindPortPool bindPorts,
+                          Authenticator authenticator,
+                          BufferAutotuner bufferAutotuner,
+                          WarmConnectionPool warmPool,
+                          CircuitBreakers circuitBreakers,
+                          SlowSessionRecorder slowSessions,
+                          MuxClient muxClient,
+                          TraceWriter traces,
+                          Bulkheads bulkheads,
+                          RelayScheduler relayScheduler,
+                          ShadowRules shadowRules,
+                          RecentHosts recentHosts,
+                          HeavyHitters heavyHitters,
+                          ConnectLatencies connectLatencies) {
+        this.rules = rules;
+        this.config = config;
+        this.bindPorts = bindPorts;
+        this.authenticator = authenticator;
+        this.bufferAutotuner = bufferAutotuner;
+        this.warmPool = warmPool;
+        this.circuitBreakers = circuitBreakers;
+        this.slowSessions = slowSessions;
+        this.muxClient = muxClient;
+        this.traces = traces;
+        this.bulkheads = bulkheads;
+        this.relayScheduler = relayScheduler;
+        this.shadowRules = shadowRules;
+        this.recentHosts = recentHosts;
+        this.heavyHitters = heavyHitters;
+        this.connectLatencies = connectLatencies;
+    }
+
+    public RuleManager getRules() {
+        return rules;
+    }
+
+    public LiveConfig getConfig() {
+        return config;
+    }
+
+    public BindPortPool getBindPorts() {
+        return bindPorts;
+    }
+
+    /**
+     * Authenticator, or null if authentication is disabled.
+     */
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * Per-endpoint buffer estimates. Kept for the life of the process, across reloads.
+     */
+    public BufferAutotuner getBufferAutotuner() {
+        return bufferAutotuner;
+    }
+
+    public WarmConnectionPool getWarmPool() {
+        return warmPool;
+    }
+
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    public SlowSessionRecorder getSlowSessions() {
+        return slowSessions;
+    }
+
+    /**
+     * Shared connections to mux upstreams, opened on first use.
+     */
+    public MuxClient getMuxClient() {
+        return muxClient;
+    }
+
+    public TraceWriter getTraces() {
+        return traces;
+    }
+
+    /**
+     * Per-strategy tunnel slots and relay threads.
+     */
+    public Bulkheads getBulkheads() {
+        return bulkheads;
+    }
+
+    /**
+     * Interactive/bulk classification and bulk turns, shared by all tunnels.
+     */
+    public RelayScheduler getRelayScheduler() {
+        return relayScheduler;
+    }
+
+    /**
+     * Candidate rule set compared against the active rules off the CONNECT path.
+     */
+    public ShadowRules getShadowRules() {
+        return shadowRules;
+    }
+
+    /**
+     * Host names looked up for outgoing connects, re-resolved after a restart.
+     */
+    public RecentHosts getRecentHosts() {
+        return recentHosts;
+    }
+
+    /**
+     * Top destinations and clients over sliding windows, fed by finished sessions.
+     */
+    public HeavyHitters getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    /**
+     * Recent connect times per destination, for adaptive timeouts and hedged connects.
+     */
+    public ConnectLatencies getConnectLatencies() {
+        return connectLatencies;
+    }
+}
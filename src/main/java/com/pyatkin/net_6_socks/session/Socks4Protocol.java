@@ -0,0 +1,77 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.rules.Cidr;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SOCKS4 and SOCKS4a requests and replies.
+ *
+ * The request is parsed into the same {@link Socks5Session.SocksRequest} as a SOCKS5
+ * one, so rules, strategies and the relay do not know which protocol the client spoke.
+ * Command codes are the same as in SOCKS5; SOCKS4 has no UDP.
+ */
+final class Socks4Protocol {
+    static final int VERSION = 0x04;
+
+    private static final int CMD_CONNECT = 0x01;
+    private static final int CMD_BIND = 0x02;
+    private static final byte ATYP_IPV4 = 0x01;
+    private static final byte ATYP_DOMAIN = 0x03;
+
+    private static final byte REPLY_VERSION = 0x00;
+    private static final byte REQUEST_GRANTED = 0x5A;
+    private static final byte REQUEST_REJECTED = 0x5B;
+
+    private Socks4Protocol() {
+    }
+
+    /**
+     * Parses [VN(1), CD(1), DSTPORT(2), DSTIP(4), USERID, 0] followed by [HOST, 0] for SOCKS4a.
+     * Commands other than CONNECT and BIND are returned as command 0, which is rejected.
+     */
+    static Socks5Session.SocksRequest parse(HandshakeReader in) throws IOException {
+        in.require(8);
+        in.readUnsignedByte();   // VN, already sniffed
+
+        Socks5Session.SocksRequest request = new Socks5Session.SocksRequest();
+        int cmd = in.readUnsignedByte();
+        request.cmd = cmd == CMD_CONNECT || cmd == CMD_BIND ? cmd : 0;
+        request.port = in.readUnsignedShort();
+        byte[] ip = in.readBytes(4);
+        in.readUntil(0, "SOCKS4 user id");
+
+        // SOCKS4a: 0.0.0.x with x != 0 means the host name follows the user id
+        if (ip[0] == 0 && ip[1] == 0 && ip[2] == 0 && ip[3] != 0) {
+            byte[] host = in.readUntil(0, "SOCKS4a host name");
+            if (host.length == 0) {
+                throw new IOException("Empty SOCKS4a host name");
+            }
+            request.addressType = ATYP_DOMAIN;
+            request.host = new String(host, StandardCharsets.US_ASCII);
+            request.address = Cidr.literalAddress(request.host);
+        } else {
+            request.addressType = ATYP_IPV4;
+            request.address = ip;
+            request.host = (ip[0] & 0xff) + "." + (ip[1] & 0xff) + "." + (ip[2] & 0xff) + "." + (ip[3] & 0xff);
+        }
+        return request;
+    }
+
+    /**
+     * [VN(1), CD(1), DSTPORT(2), DSTIP(4)]; only an IPv4 bind address can be reported.
+     */
+    static byte[] reply(boolean granted, InetAddress bindAddr, int bindPort) {
+        byte[] reply = new byte[8];
+        reply[0] = REPLY_VERSION;
+        reply[1] = granted ? REQUEST_GRANTED : REQUEST_REJECTED;
+        reply[2] = (byte) (bindPort >> 8);
+        reply[3] = (byte) bindPort;
+        if (bindAddr != null && bindAddr.getAddress().length == 4) {
+            System.arraycopy(bindAddr.getAddress(), 0, reply, 4, 4);
+        }
+        return reply;
+    }
+}
@@ -1,28 +1,64 @@
 package com.pyatkin.net_6_socks.session;
 
+import com.pyatkin.net_6_socks.auth.AuthenticatedUser;
+import com.pyatkin.net_6_socks.auth.Authenticator;
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.conf.LiveConfig;
+import com.pyatkin.net_6_socks.diag.Phase;
+import com.pyatkin.net_6_socks.diag.SessionTimeline;
+import com.pyatkin.net_6_socks.mux.MuxConnection;
+import com.pyatkin.net_6_socks.mux.MuxExit;
+import com.pyatkin.net_6_socks.mux.MuxStream;
+import com.pyatkin.net_6_socks.rules.Cidr;
 import com.pyatkin.net_6_socks.rules.RuleManager;
+import com.pyatkin.net_6_socks.rules.ShadowRules;
+import com.pyatkin.net_6_socks.trace.SessionTrace;
+import com.pyatkin.net_6_socks.trace.TracedInputStream;
+import com.pyatkin.net_6_socks.traffic.BufferAutotuner;
+import com.pyatkin.net_6_socks.traffic.RateLimiter;
+import com.pyatkin.net_6_socks.traffic.RelayScheduler;
+import com.pyatkin.net_6_socks.traffic.SocketTuning;
+import com.pyatkin.net_6_socks.traffic.ThrottledOutputStream;
 import com.pyatkin.net_6_socks.traffic.TrafficSegmenter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Handles a single SOCKS5 session.
+ * Handles a single client session.
  * Implements SOCKS5 handshake, request parsing, and traffic relaying.
+ * SOCKS4/4a and HTTP CONNECT clients on the same port are told apart by the first
+ * byte and parsed into the same request, so they share rules, strategies and the relay.
  */
 public class Socks5Session {
     private static final Logger log = LoggerFactory.getLogger(Socks5Session.class);
 
     private static final int SOCKS_VERSION = 0x05;
     private static final byte CMD_CONNECT = 0x01;
+    private static final byte CMD_BIND = 0x02;
+    private static final byte CMD_UDP_ASSOCIATE = 0x03;
     private static final byte ATYP_IPV4 = 0x01;
     private static final byte ATYP_DOMAIN = 0x03;
     private static final byte ATYP_IPV6 = 0x04;
 
+    // Authentication methods
+    private static final byte METHOD_NO_AUTH = 0x00;
+    private static final byte METHOD_USERNAME_PASSWORD = 0x02;
+    private static final byte METHOD_NO_ACCEPTABLE = (byte) 0xFF;
+    private static final int AUTH_VERSION = 0x01;
+
     // SOCKS5 reply codes
     private static final byte REPLY_SUCCESS = 0x00;
     private static final byte REPLY_GENERAL_FAILURE = 0x01;
@@ -34,26 +70,47 @@ public class Socks5Session {
     private static final byte REPLY_COMMAND_NOT_SUPPORTED = 0x07;
     private static final byte REPLY_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
 
+    private enum Protocol {
+        SOCKS5,
+        SOCKS4,
+        HTTP_CONNECT,
+        // A stream an edge opened over a mux connection: success needs no reply, failure resets it
+        MUX
+    }
+
     private final Socket client;
+    private final SessionContext context;
     private final RuleManager rules;
-    private final TrafficSegmenter segmenter;
-    private final String defaultStrategy;
-    private final String upstreamHost;
-    private final int upstreamPort;
+    private final LiveConfig liveConfig;
+    private final BindPortPool bindPorts;
     private final SessionStats stats;
 
-    public Socks5Session(Socket client,
-                         RuleManager rules,
-                         TrafficSegmenter segmenter,
-                         String defaultStrategy,
-                         String upstreamHost,
-                         int upstreamPort) {
+    // Settings snapshot taken at CONNECT time, used for the rest of the session
+    private ConfigSnapshot config;
+    // Protocol the client spoke, decides the format of every reply
+    private Protocol protocol = Protocol.SOCKS5;
+    // Set by the handshake when authentication is enabled
+    private AuthenticatedUser user;
+    // Handshake replies held back while the client pipelines its next message
+    private final ByteArrayOutputStream pendingReplies = new ByteArrayOutputStream(64);
+    // Endpoint the remote socket connected to and how long the connect took, for buffer autotuning
+    private String remoteEndpoint;
+    private long connectRttMs;
+    // Phase timings for JFR and the slow-session ring
+    private SessionTimeline timeline;
+    // Payload-free record of the tunnel for offline replay, null unless tracing is on
+    private SessionTrace trace;
+    // Interactive/bulk class of the relayed tunnel, null until the relay starts
+    private RelayScheduler.Tunnel tunnel;
+    // The client side of a mux-exit tunnel, null for every other protocol
+    private MuxStream muxStream;
+
+    public Socks5Session(Socket client, SessionContext context) {
         this.client = client;
-        this.rules = rules;
-        this.segmenter = segmenter;
-        this.defaultStrategy = defaultStrategy;
-        this.upstreamHost = upstreamHost;
-        this.upstreamPort = upstreamPort;
+        this.context = context;
+        this.rules = context.getRules();
+        this.liveConfig = context.getConfig();
+        this.bindPorts = context.getBindPorts();
         this.stats = new SessionStats();
     }
 
@@ -62,88 +119,490 @@ public class Socks5Session {
      */
     public void handle() {
         String clientAddr = client.getRemoteSocketAddress().toString();
-        log.info("Starting SOCKS5 session for client: {}", clientAddr);
+        log.info("Starting session for client: {}", clientAddr);
+        timeline = new SessionTimeline(clientAddr);
 
         try (Socket c = client;
-             InputStream cin = c.getInputStream();
+             HandshakeReader cin = new HandshakeReader(c.getInputStream());
              OutputStream cout = c.getOutputStream()) {
 
             // SOCKS5 handshake
-            performHandshake(cin, cout);
-
-            // Parse connection request
-            SocksRequest request = parseRequest(cin);
+            c.setSoTimeout(liveConfig.current().getHandshakeTimeoutMs());
+            if (cin.peek() == MuxConnection.PREFACE && liveConfig.current().isMuxAccept()) {
+                serveMux(c, cin, cout, clientAddr);
+                return;
+            }
+            timeline.begin(Phase.HANDSHAKE);
+            SocksRequest request = readRequest(cin, cout);
+            timeline.end(Phase.HANDSHAKE);
             if (request == null) {
-                log.error("Failed to parse SOCKS5 request from {}", clientAddr);
-                sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+                log.error("Failed to parse {} request from {}", protocol, clientAddr);
+                sendReply(cout, protocol == Protocol.HTTP_CONNECT
+                        ? REPLY_ADDRESS_TYPE_NOT_SUPPORTED : REPLY_GENERAL_FAILURE, null, 0);
                 return;
             }
+            c.setSoTimeout(0);
+            cin.detach();
+            config = liveConfig.current();
 
-            if (request.cmd != CMD_CONNECT) {
-                log.warn("Unsupported SOCKS5 command: 0x{} from {}",
-                        Integer.toHexString(request.cmd), clientAddr);
-                sendReply(cout, REPLY_COMMAND_NOT_SUPPORTED, null, 0);
+            Authenticator authenticator = context.getAuthenticator();
+            if (user != null && !authenticator.acquireSession(user)) {
+                log.warn("Connection limit ({}) reached for user {}", user.getPolicy().getMaxConnections(), user);
+                sendReply(cout, REPLY_CONNECTION_NOT_ALLOWED, null, 0);
                 return;
             }
 
-            String targetHost = request.host;
-            int targetPort = request.port;
+            try {
+                dispatch(request, c, cin, cout, clientAddr);
+            } finally {
+                if (user != null) {
+                    authenticator.releaseSession(user);
+                }
+            }
 
-            log.info("Connection request: {}:{} from {}", targetHost, targetPort, clientAddr);
+        } catch (IOException e) {
+            log.error("Session error for {}: {}", clientAddr, e.getMessage());
+        } finally {
+            finish(clientAddr);
+        }
+    }
 
-            // Determine strategy based on rules
-            String matchedRule = rules.firstMatch(targetHost);
-            String strategy = determineStrategy(matchedRule);
+    /**
+     * Serves one stream an edge opened over a mux connection, on the calling thread.
+     * The session's client socket is the mux connection and the stream is the tunnel's
+     * client side. The edge has already applied its own rules, so only this instance's
+     * blacklist is checked; everything else is connected and relayed as a direct CONNECT.
+     */
+    public void serveMuxStream(MuxStream stream, String host, int port) {
+        String edgeAddr = client.getRemoteSocketAddress().toString();
+        log.info("Mux stream request: {}:{} from edge {}", host, port, edgeAddr);
+        timeline = new SessionTimeline(edgeAddr);
+        protocol = Protocol.MUX;
+        muxStream = stream;
+        config = liveConfig.current();
 
-            log.info("Applying strategy '{}' for {}:{} (matched rule: {})",
-                    strategy, targetHost, targetPort, matchedRule != null ? matchedRule : "none");
+        try (stream) {
+            timeline.setTarget(host, port);
+            timeline.begin(Phase.RULES);
+            String matchedRule = rules.firstMatch(host, Cidr.literalAddress(host), port, client.getInetAddress());
+            timeline.end(Phase.RULES);
+            if ("blacklist".equals(matchedRule)) {
+                timeline.setDecision("blacklist", matchedRule);
+                log.warn("Mux stream blocked by blacklist: {}:{}", host, port);
+                sendReply(stream.getOutputStream(), REPLY_CONNECTION_NOT_ALLOWED, null, 0);
+                logSession(host, port, "blacklist", 0, 0);
+                return;
+            }
+            timeline.setDecision("direct", matchedRule);
 
-            // Handle blacklist
-            if ("blacklist".equals(strategy)) {
-                log.warn("Connection blocked by blacklist: {}:{}", targetHost, targetPort);
-                sendReply(cout, REPLY_CONNECTION_NOT_ALLOWED, null, 0);
-                logSession(targetHost, targetPort, strategy, 0, 0);
+            Bulkheads.Compartment bulkhead = context.getBulkheads().forStrategy("direct");
+            timeline.begin(Phase.QUEUE);
+            boolean admitted = bulkhead.acquire(config.getBulkheadLimits("direct"));
+            timeline.end(Phase.QUEUE);
+            if (!admitted) {
+                log.warn("Bulkhead 'direct' is full ({}) - rejecting mux stream to {}:{}",
+                        config.getBulkheadLimits("direct"), host, port);
+                sendReply(stream.getOutputStream(), REPLY_GENERAL_FAILURE, null, 0);
                 return;
             }
 
-            // Establish remote connection
-            Socket remote = null;
             try {
-                remote = createRemoteSocket(strategy, targetHost, targetPort);
-                log.info("Connected to remote: {}", remote.getRemoteSocketAddress());
+                connectAndRelay(stream.getInputStream(), stream.getOutputStream(), host, port, "direct", null);
+            } finally {
+                bulkhead.release();
+            }
+        } catch (IOException e) {
+            log.error("Mux stream error for {}:{}: {}", host, port, e.getMessage());
+            stream.reset("exit error");
+        } finally {
+            finish(edgeAddr);
+        }
+    }
+
+    /**
+     * Records the ended session: timeline, slow-session ring and trace.
+     */
+    private void finish(String clientAddr) {
+        log.info("Session ended for client: {} - {}", clientAddr, stats);
+        timeline.finish(stats.getBytesFromClient(), stats.getBytesFromServer());
+        ConfigSnapshot snapshot = config != null ? config : liveConfig.current();
+        context.getSlowSessions().offer(timeline,
+                snapshot.getSlowSessions(), snapshot.getSlowSessionSampleRate());
+        if (trace != null) {
+            context.getTraces().submit(trace);
+        }
+    }
+
+    /**
+     * Serves an edge instance's mux connection on this thread until it closes.
+     */
+    private void serveMux(Socket c, HandshakeReader cin, OutputStream cout, String clientAddr) throws IOException {
+        ConfigSnapshot snapshot = liveConfig.current();
+        MuxConnection mux = MuxConnection.accept(c, cin, cout, snapshot.getMuxWindowBytes(),
+                context.getAuthenticator(), new MuxExit(context, c));
+        c.setSoTimeout(0);
+        snapshot.getClientSocketTuning("redirect").apply(c);
+        log.info("Serving mux connection from {}", clientAddr);
+        context.getMuxClient().register(mux);
+        try {
+            mux.readLoop();
+        } finally {
+            context.getMuxClient().unregister(mux);
+        }
+    }
+
+    private void dispatch(SocksRequest request, Socket c, InputStream cin, OutputStream cout, String clientAddr)
+            throws IOException {
+        switch (request.cmd) {
+            case CMD_CONNECT:
+                handleConnect(request, cin, cout, clientAddr);
+                break;
+            case CMD_BIND:
+                handleBind(request, c, cin, cout, clientAddr);
+                break;
+            case CMD_UDP_ASSOCIATE:
+                handleUdpAssociate(request, c, cin, cout, clientAddr);
+                break;
+            default:
+                log.warn("Unsupported {} command: 0x{} from {}",
+                        protocol, Integer.toHexString(request.cmd), clientAddr);
+                sendReply(cout, REPLY_COMMAND_NOT_SUPPORTED, null, 0);
+        }
+    }
+
+    /**
+     * Handles CONNECT: applies rules, connects to the target and relays the TCP stream.
+     */
+    private void handleConnect(SocksRequest request, InputStream cin, OutputStream cout, String clientAddr)
+            throws IOException {
+        String targetHost = request.host;
+        int targetPort = request.port;
+
+        log.info("Connection request: {}:{} from {}", targetHost, targetPort, clientAddr);
+
+        // Determine strategy based on rules
+        timeline.setTarget(targetHost, targetPort);
+        timeline.begin(Phase.RULES);
+        ShadowRules shadow = context.getShadowRules();
+        boolean sampled = shadow.sample(config);
+        long rulesStart = sampled ? System.nanoTime() : 0;
+        String matchedRule = rules.firstMatch(targetHost, request.address, targetPort, client.getInetAddress());
+        if (sampled) {
+            shadow.submit(config, targetHost, request.address, targetPort, client.getInetAddress(),
+                    matchedRule, System.nanoTime() - rulesStart);
+        }
+        String strategy = determineStrategy(matchedRule);
+        timeline.end(Phase.RULES);
+        timeline.setDecision(strategy, matchedRule);
+
+        log.info("Applying strategy '{}' for {}:{} (matched rule: {})",
+                strategy, targetHost, targetPort, matchedRule != null ? matchedRule : "none");
+
+        // Handle blacklist
+        if ("blacklist".equals(strategy)) {
+            log.warn("Connection blocked by blacklist: {}:{}", targetHost, targetPort);
+            sendReply(cout, REPLY_CONNECTION_NOT_ALLOWED, null, 0);
+            logSession(targetHost, targetPort, strategy, 0, 0);
+            return;
+        }
+
+        // Each strategy runs in its own compartment, so a slow path cannot hold the others' slots
+        Bulkheads.Compartment bulkhead = context.getBulkheads().forStrategy(strategy);
+        timeline.begin(Phase.QUEUE);
+        boolean admitted = bulkhead.acquire(config.getBulkheadLimits(strategy));
+        timeline.end(Phase.QUEUE);
+        if (!admitted) {
+            log.warn("Bulkhead '{}' is full ({}) - rejecting {}:{}",
+                    strategy, config.getBulkheadLimits(strategy), targetHost, targetPort);
+            sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+            return;
+        }
+
+        try {
+            if ("redirect".equals(strategy) && config.isMuxUpstream()) {
+                handleMuxConnect(cin, cout, targetHost, targetPort, strategy, matchedRule);
+            } else {
+                connectAndRelay(cin, cout, targetHost, targetPort, strategy, matchedRule);
+            }
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Connects to the target or upstream for {@code strategy} and relays the tunnel.
+     */
+    private void connectAndRelay(InputStream cin, OutputStream cout, String targetHost, int targetPort,
+                                 String strategy, String matchedRule) throws IOException {
+
+        // Establish remote connection
+        Socket remote = null;
+        try {
+            remote = createRemoteSocket(strategy, targetHost, targetPort);
+            log.info("Connected to remote: {}", remote.getRemoteSocketAddress());
+
+            if (protocol != Protocol.MUX) {
+                // A mux connection is shared by many streams and keeps its own options
+                config.getClientSocketTuning(strategy).apply(client);
+            }
+            log.info("Socket options for {}:{} - client [{}], remote [{}]", targetHost, targetPort,
+                    SocketTuning.describe(client), SocketTuning.describe(remote));
+
+            sendReply(cout, REPLY_SUCCESS, remote.getLocalAddress(), remote.getLocalPort());
+            trace = context.getTraces().begin(config, targetHost, targetPort, strategy, timeline.getSetupNanos());
+
+            // Relay traffic
+            timeline.begin(Phase.RELAY);
+            relayTraffic(cin, cout, remote, strategy, matchedRule);
+            timeline.end(Phase.RELAY);
+
+            stats.markEnd();
+            if (config.isSocketAutotune()) {
+                // Only the time data was moving: a keep-alive tunnel idles far longer than it transfers
+                context.getBufferAutotuner().record(remoteEndpoint,
+                        Math.max(stats.getBytesFromClient(), stats.getBytesFromServer()),
+                        TimeUnit.NANOSECONDS.toMillis(tunnel.getActiveNanos()), connectRttMs);
+            }
+            logSession(targetHost, targetPort, strategy,
+                    stats.getBytesFromClient(), stats.getBytesFromServer());
+
+        } catch (CircuitOpenException e) {
+            log.warn("Failing fast: {}", e.getMessage());
+            sendReply(cout, e.getFailure() == CircuitBreakers.Failure.REFUSED
+                    ? REPLY_CONNECTION_REFUSED : REPLY_HOST_UNREACHABLE, null, 0);
+        } catch (UnknownHostException e) {
+            log.error("Unknown host: {}", targetHost);
+            sendReply(cout, REPLY_HOST_UNREACHABLE, null, 0);
+        } catch (ConnectException e) {
+            log.error("Connection refused: {}:{}", targetHost, targetPort);
+            sendReply(cout, REPLY_CONNECTION_REFUSED, null, 0);
+        } catch (IOException e) {
+            log.error("Failed to connect to {}:{} - {}", targetHost, targetPort, e.getMessage());
+            sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+        } finally {
+            if (remote != null && !remote.isClosed()) {
+                try {
+                    remote.close();
+                } catch (IOException e) {
+                    log.debug("Error closing remote socket: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Redirects through a mux upstream. The stream opens without a round trip, so
+     * success is reported at once and a failed connect on the exit ends the tunnel
+     * instead of producing an error reply.
+     */
+    private void handleMuxConnect(InputStream cin, OutputStream cout, String targetHost, int targetPort,
+                                  String strategy, String matchedRule) throws IOException {
+        MuxStream stream;
+        timeline.begin(Phase.CONNECT);
+        try {
+            stream = context.getMuxClient().open(targetHost, targetPort, config);
+        } catch (IOException e) {
+            log.error("Failed to open mux stream to {}:{} - {}", targetHost, targetPort, e.getMessage());
+            sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+            return;
+        } finally {
+            timeline.end(Phase.CONNECT);
+        }
+
+        try (stream) {
+            config.getClientSocketTuning(strategy).apply(client);
+            sendReply(cout, REPLY_SUCCESS, null, 0);
+            trace = context.getTraces().begin(config, targetHost, targetPort, strategy, timeline.getSetupNanos());
+
+            timeline.begin(Phase.RELAY);
+            relayStreams(cin, cout, stream.getInputStream(), stream.getOutputStream(), strategy, matchedRule);
+            timeline.end(Phase.RELAY);
+
+            stats.markEnd();
+            logSession(targetHost, targetPort, strategy,
+                    stats.getBytesFromClient(), stats.getBytesFromServer());
+        }
+    }
 
-                sendReply(cout, REPLY_SUCCESS, remote.getLocalAddress(), remote.getLocalPort());
+    /**
+     * Handles BIND: listens on a leased port for one inbound connection from the
+     * expected peer and relays it like a CONNECT tunnel.
+     */
+    private void handleBind(SocksRequest request, Socket control, InputStream cin, OutputStream cout,
+                            String clientAddr) throws IOException {
+        if (!config.isBindEnabled()) {
+            log.warn("BIND disabled - rejecting {}", clientAddr);
+            sendReply(cout, REPLY_COMMAND_NOT_SUPPORTED, null, 0);
+            return;
+        }
+
+        String expectedHost = request.host;
+        log.info("BIND request: expecting {}:{} for {}", expectedHost, request.port, clientAddr);
+
+        // Rules apply to the peer the client expects to connect back
+        String matchedRule = rules.firstMatch(expectedHost, request.address, request.port, client.getInetAddress());
+        if ("blacklist".equals(determineStrategy(matchedRule))) {
+            log.warn("BIND blocked by blacklist: {}", expectedHost);
+            sendReply(cout, REPLY_CONNECTION_NOT_ALLOWED, null, 0);
+            logSession(expectedHost, request.port, "blacklist", 0, 0);
+            return;
+        }
+
+        Set<InetAddress> expectedPeers = resolveExpectedPeers(expectedHost);
+        if (expectedPeers == null) {
+            sendReply(cout, REPLY_HOST_UNREACHABLE, null, 0);
+            return;
+        }
+
+        BindPortPool.Lease lease = bindPorts.acquire(control.getLocalAddress());
+        if (lease == null) {
+            log.error("No free BIND port ({} in pool) for {}", bindPorts.size(), clientAddr);
+            sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+            return;
+        }
 
-                // Relay traffic
-                relayTraffic(cin, cout, remote, strategy, matchedRule);
+        Socket peer = null;
+        try {
+            ServerSocket listener = lease.socket();
+            sendReply(cout, REPLY_SUCCESS, control.getLocalAddress(), listener.getLocalPort());
 
-                stats.markEnd();
-                logSession(targetHost, targetPort, strategy,
-                        stats.getBytesFromClient(), stats.getBytesFromServer());
+            peer = acceptExpectedPeer(listener, expectedPeers);
+            // The port goes back to the pool as soon as the peer is in
+            lease.close();
 
-            } catch (UnknownHostException e) {
-                log.error("Unknown host: {}", targetHost);
-                sendReply(cout, REPLY_HOST_UNREACHABLE, null, 0);
-            } catch (ConnectException e) {
-                log.error("Connection refused: {}:{}", targetHost, targetPort);
-                sendReply(cout, REPLY_CONNECTION_REFUSED, null, 0);
+            log.info("BIND accepted {} for {}", peer.getRemoteSocketAddress(), clientAddr);
+            config.getClientSocketTuning("direct").apply(control);
+            config.getRemoteSocketTuning("direct").apply(peer);
+            sendReply(cout, REPLY_SUCCESS, peer.getInetAddress(), peer.getPort());
+
+            // Splice into the same relay used by CONNECT
+            relayTraffic(cin, cout, peer, "direct", matchedRule);
+
+            stats.markEnd();
+            logSession(peer.getInetAddress().getHostAddress(), peer.getPort(), "bind",
+                    stats.getBytesFromClient(), stats.getBytesFromServer());
+
+        } catch (SocketTimeoutException e) {
+            log.warn("BIND for {} timed out after {}s", clientAddr, config.getBindAcceptTimeoutSec());
+            sendReply(cout, REPLY_TTL_EXPIRED, null, 0);
+        } finally {
+            lease.close();
+            closeQuietly(peer);
+        }
+    }
+
+    /**
+     * Addresses allowed to connect to a BIND port, or an empty set for any peer.
+     * Returns null if the expected host cannot be resolved.
+     */
+    private Set<InetAddress> resolveExpectedPeers(String host) {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            if (addresses.length == 1 && addresses[0].isAnyLocalAddress()) {
+                return Collections.emptySet();
+            }
+            return new HashSet<>(Arrays.asList(addresses));
+        } catch (UnknownHostException e) {
+            log.error("Unknown BIND peer: {}", host);
+            return null;
+        }
+    }
+
+    private Socket acceptExpectedPeer(ServerSocket listener, Set<InetAddress> expectedPeers) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getBindAcceptTimeoutSec());
+
+        while (true) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("BIND accept timed out");
+            }
+            listener.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingMs));
+
+            Socket peer = listener.accept();
+            InetAddress peerAddress = peer.getInetAddress();
+            if (!expectedPeers.isEmpty() && !expectedPeers.contains(peerAddress)) {
+                log.warn("BIND rejected unexpected peer {}", peer.getRemoteSocketAddress());
+                closeQuietly(peer);
+                continue;
+            }
+            if ("blacklist".equals(rules.firstMatch(peerAddress.getHostAddress(), peerAddress.getAddress(),
+                    peer.getPort(), client.getInetAddress()))) {
+                log.warn("BIND rejected blacklisted peer {}", peer.getRemoteSocketAddress());
+                closeQuietly(peer);
+                continue;
+            }
+            return peer;
+        }
+    }
+
+    /**
+     * Handles UDP ASSOCIATE: opens a datagram relay that lives as long as the
+     * TCP control connection stays open.
+     */
+    private void handleUdpAssociate(SocksRequest request, Socket control, InputStream cin, OutputStream cout,
+                                    String clientAddr) throws IOException {
+        if (!config.isUdpEnabled()) {
+            log.warn("UDP ASSOCIATE disabled - rejecting {}", clientAddr);
+            sendReply(cout, REPLY_COMMAND_NOT_SUPPORTED, null, 0);
+            return;
+        }
+
+        // Associations have their own compartment: their destinations are only known per datagram
+        Bulkheads.Compartment bulkhead = context.getBulkheads().forStrategy("udp");
+        if (!bulkhead.acquire(config.getBulkheadLimits("udp"))) {
+            log.warn("Bulkhead 'udp' is full ({}) - rejecting UDP ASSOCIATE from {}",
+                    config.getBulkheadLimits("udp"), clientAddr);
+            sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+            return;
+        }
+
+        // DST.ADDR/DST.PORT carry the address the client will send from; only the port is trusted,
+        // the address is always the one of the control connection
+        UdpAssociation association = new UdpAssociation(
+                control.getInetAddress(), request.port, rules, config, stats, this::determineStrategy);
+
+        try (association) {
+            InetSocketAddress relayAddr;
+            try {
+                relayAddr = association.open(control.getLocalAddress());
             } catch (IOException e) {
-                log.error("Failed to connect to {}:{} - {}", targetHost, targetPort, e.getMessage());
+                log.error("Failed to open UDP relay for {}: {}", clientAddr, e.getMessage());
                 sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
-            } finally {
-                if (remote != null && !remote.isClosed()) {
+                return;
+            }
+
+            // The association ends when the client closes the control connection; the watcher
+            // runs on the udp compartment's bounded threads and ends once the session closes it
+            Future<?> controlWatcher;
+            try {
+                controlWatcher = bulkhead.getRelayThreads().submit(() -> {
                     try {
-                        remote.close();
+                        while (cin.read() >= 0) {
+                            // Nothing is expected on the control connection after the reply
+                        }
                     } catch (IOException e) {
-                        log.debug("Error closing remote socket: {}", e.getMessage());
+                        log.trace("UDP control connection ended: {}", e.getMessage());
+                    } finally {
+                        association.close();
                     }
-                }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("UDP association for {} not started: {}", clientAddr, e.getMessage());
+                sendReply(cout, REPLY_GENERAL_FAILURE, null, 0);
+                return;
             }
 
-        } catch (IOException e) {
-            log.error("Session error for {}: {}", clientAddr, e.getMessage());
+            log.info("UDP association for {} relaying on {}", clientAddr, relayAddr);
+            sendReply(cout, REPLY_SUCCESS, relayAddr.getAddress(), relayAddr.getPort());
+
+            association.run();
+            controlWatcher.cancel(true);
+
+            stats.markEnd();
+            logSession(control.getInetAddress().getHostAddress(), association.getClientPort(), "udp",
+                    stats.getBytesFromClient(), stats.getBytesFromServer());
         } finally {
-            log.info("Session ended for client: {} - {}", clientAddr, stats);
+            bulkhead.release();
         }
     }
 
@@ -154,24 +613,73 @@ public class Socks5Session {
                               String strategy, String matchedRule) throws IOException {
 
         try (InputStream rin = remote.getInputStream();
-             OutputStream rout = remote.getOutputStream()) {
+             OutputStream remoteOut = protocol == Protocol.MUX ? halfClosing(remote) : remote.getOutputStream()) {
+            relayStreams(cin, cout, rin, remoteOut, strategy, matchedRule);
+        }
+    }
 
-            CountDownLatch latch = new CountDownLatch(2);
+    /**
+     * Output of {@code remote} whose close only shuts down the sending side, so the
+     * answer to a half-closed request still comes back. Used for mux streams, where
+     * the edge resets the stream once its own client is gone.
+     */
+    private static OutputStream halfClosing(Socket remote) throws IOException {
+        return new FilterOutputStream(remote.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!remote.isClosed()) {
+                    remote.shutdownOutput();
+                }
+            }
+        };
+    }
+
+    /**
+     * Relays traffic between the client and a remote side given as plain streams.
+     */
+    private void relayStreams(InputStream clientIn, OutputStream cout, InputStream remoteIn, OutputStream remoteOut,
+                              String strategy, String matchedRule) {
+        // Trace taps see what each side sent, before segmentation or throttling
+        InputStream cin = trace != null ? new TracedInputStream(clientIn, trace.getFromClient()) : clientIn;
+        InputStream rin = trace != null ? new TracedInputStream(remoteIn, trace.getFromServer()) : remoteIn;
+
+        // Per-user bandwidth quota covers both directions
+        RateLimiter limiter = user != null ? user.getBandwidthLimiter() : null;
+        OutputStream rout = limiter != null ? new ThrottledOutputStream(remoteOut, limiter) : remoteOut;
+        OutputStream clientOut = limiter != null ? new ThrottledOutputStream(cout, limiter) : cout;
+
+        TrafficSegmenter segmenter = config.getSegmenter();
+        RelayScheduler.Tunnel tunnel = context.getRelayScheduler().open(config.isRelayPrioritize(),
+                config.getBulkBytesPerSec(), config.getBulkTurns(), config.getQuantumBytes());
+        this.tunnel = tunnel;
+        CountDownLatch latch = new CountDownLatch(2);
+        // Relay threads come from the strategy's bulkhead; BIND tunnels use the direct one
+        ExecutorService threads = context.getBulkheads().forStrategy(strategy).getRelayThreads();
 
-            // Client -> Server thread
-            Thread clientToServer = new Thread(() -> {
+        // Client -> Server thread
+        Future<?> clientToServer;
+        Future<?> serverToClient;
+        try {
+            clientToServer = threads.submit(() -> {
                 try {
                     boolean shouldSegment = shouldApplySegmentation(strategy, matchedRule);
 
                     if (shouldSegment) {
                         log.debug("Applying traffic segmentation");
+                        timeline.begin(Phase.SEGMENT);
                         long bytes = segmenter.segmentedCopy(cin, rout, 0);
+                        timeline.end(Phase.SEGMENT);
                         stats.addClientBytes(bytes);
                         // Continue with normal copy for remaining data
-                        bytes = segmenter.copyStream(cin, rout, bytes);
+                        bytes = segmenter.copyStream(cin, rout, bytes, tunnel);
                         stats.addClientBytes(bytes - stats.getBytesFromClient());
                     } else {
-                        long bytes = segmenter.copyStream(cin, rout, 0);
+                        long bytes = segmenter.copyStream(cin, rout, 0, tunnel);
                         stats.addClientBytes(bytes);
                     }
                 } catch (IOException e) {
@@ -180,36 +688,43 @@ public class Socks5Session {
                     closeQuietly(rout);
                     latch.countDown();
                 }
-            }, "ClientToServer");
+            });
 
             // Server -> Client thread
-            Thread serverToClient = new Thread(() -> {
+            serverToClient = threads.submit(() -> {
                 try {
-                    long bytes = segmenter.copyStream(rin, cout, 0);
+                    long bytes = segmenter.copyStream(rin, clientOut, 0, tunnel);
                     stats.addServerBytes(bytes);
                 } catch (IOException e) {
                     log.trace("Server->Client relay ended: {}", e.getMessage());
                 } finally {
-                    closeQuietly(cout);
+                    closeQuietly(clientOut);
                     latch.countDown();
                 }
-            }, "ServerToClient");
-
-            clientToServer.start();
-            serverToClient.start();
+            });
+        } catch (RejectedExecutionException e) {
+            // The compartment's thread bound is reached; the session closes both sides
+            log.warn("Relay not started: {}", e.getMessage());
+            closeQuietly(rout);
+            closeQuietly(clientOut);
+            tunnel.close();
+            return;
+        }
 
-            // Wait for both relay threads to finish (with timeout)
-            try {
-                boolean finished = latch.await(5, TimeUnit.MINUTES);
-                if (!finished) {
-                    log.warn("Relay timeout - interrupting threads");
-                    clientToServer.interrupt();
-                    serverToClient.interrupt();
-                }
-            } catch (InterruptedException e) {
-                log.warn("Relay interrupted");
-                Thread.currentThread().interrupt();
+        // Wait for both relay threads to finish (with timeout)
+        try {
+            boolean finished = latch.await(config.getRelayMaxSec(), TimeUnit.SECONDS);
+            if (!finished) {
+                log.warn("Relay timeout - interrupting threads");
+                clientToServer.cancel(true);
+                serverToClient.cancel(true);
             }
+        } catch (InterruptedException e) {
+            log.warn("Relay interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            tunnel.close();
+            timeline.setTrafficClass(tunnel.getLabel());
         }
     }
 
@@ -218,22 +733,165 @@ public class Socks5Session {
      */
     private Socket createRemoteSocket(String strategy, String host, int port) throws IOException {
         if ("redirect".equals(strategy)) {
-            log.debug("Redirecting to upstream proxy: {}:{}", upstreamHost, upstreamPort);
-            return new Socket(upstreamHost, upstreamPort);
+            return connectUpstream(strategy, host, port);
+        }
+
+        checkCircuit(host + ":" + port);
+
+        if ("direct".equals(strategy) && config.isWarmPoolEnabled()) {
+            Socket warm = context.getWarmPool().acquire(host, port);
+            if (warm != null) {
+                log.debug("Using pre-connected socket to: {}:{}", host, port);
+                context.getCircuitBreakers().onSuccess(host + ":" + port);
+                remoteEndpoint = host;
+                return warm;
+            }
         }
 
         log.debug("Direct connection to: {}:{}", host, port);
+        return connectTuned(strategy, host, host, port, config.getConnectTimeoutMs(), false);
+    }
+
+    /**
+     * Fails fast if the destination's circuit breaker is open.
+     */
+    private void checkCircuit(String destination) throws CircuitOpenException {
+        CircuitBreakers.Failure open = context.getCircuitBreakers().check(destination, config);
+        if (open != null) {
+            throw new CircuitOpenException(destination, open);
+        }
+    }
+
+    /**
+     * Opens a socket with the remote options of {@code strategy} applied before connecting,
+     * so buffer sizes are reflected in the window scale negotiated in the handshake.
+     * The name is resolved separately so DNS and TCP connect show up as distinct phases.
+     * The timeout comes from the destination's recent connect times, at most
+     * {@code fixedTimeoutMs}; with {@code hedge}, a connect slower than the destination's
+     * p95 gets a second, racing attempt. The outcome feeds the destination's circuit
+     * breaker and connect times.
+     */
+    private Socket connectTuned(String strategy, String endpoint, String host, int port, int fixedTimeoutMs,
+                                boolean hedge) throws IOException {
+        CircuitBreakers breakers = context.getCircuitBreakers();
+        ConnectLatencies latencies = context.getConnectLatencies();
+        String destination = host + ":" + port;
+        SocketTuning tuning = remoteTuning(strategy, endpoint);
+        int timeoutMs = latencies.timeoutMs(destination, fixedTimeoutMs, config);
         Socket socket = new Socket();
-        socket.connect(new InetSocketAddress(host, port), 10000); // 10 second timeout
-        return socket;
+        try {
+            tuning.apply(socket);
+            timeline.begin(Phase.DNS);
+            context.getRecentHosts().record(host);
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            timeline.end(Phase.DNS);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+
+            long hedgeAfterMs = hedge ? latencies.hedgeAfterMs(destination, config) : -1;
+            timeline.begin(Phase.CONNECT);
+            long start = System.nanoTime();
+            long connectNanos;
+            try {
+                if (hedgeAfterMs >= 0) {
+                    HedgedConnect.Winner winner = HedgedConnect.connect(socket, () -> {
+                        Socket second = new Socket();
+                        tuning.apply(second);
+                        return second;
+                    }, address, timeoutMs, hedgeAfterMs);
+                    socket = winner.socket;
+                    // The winner's own time, not ours: ours includes the wait before the hedge
+                    connectNanos = winner.connectNanos;
+                    latencies.record(destination, connectNanos);
+                    if (winner.abandonedNanos >= 0) {
+                        latencies.recordCensored(destination, winner.abandonedNanos);
+                    }
+                    if (winner.hedged) {
+                        latencies.onHedge(winner.hedge);
+                    }
+                } else {
+                    socket.connect(address, timeoutMs);
+                    connectNanos = System.nanoTime() - start;
+                    latencies.record(destination, connectNanos);
+                }
+            } catch (SocketTimeoutException e) {
+                latencies.recordCensored(destination, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+                throw e;
+            } finally {
+                timeline.end(Phase.CONNECT);
+            }
+            // One round trip to the endpoint, as the buffer autotuner sizes for it
+            connectRttMs = TimeUnit.NANOSECONDS.toMillis(connectNanos);
+            remoteEndpoint = endpoint;
+            breakers.onSuccess(destination);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            breakers.onFailure(destination, e instanceof ConnectException
+                    ? CircuitBreakers.Failure.REFUSED : CircuitBreakers.Failure.UNREACHABLE, config);
+            throw e;
+        }
+    }
+
+    /**
+     * Remote options for {@code strategy}; with autotuning on, buffer sizes that are not
+     * pinned in the profile come from earlier tunnels to the same endpoint.
+     */
+    private SocketTuning remoteTuning(String strategy, String endpoint) {
+        SocketTuning tuning = config.getRemoteSocketTuning(strategy);
+        if (!config.isSocketAutotune() || tuning.hasBufferSizes()) {
+            return tuning;
+        }
+        BufferAutotuner autotuner = context.getBufferAutotuner();
+        int bytes = autotuner.recommend(endpoint, config.getMinBufferBytes(), config.getMaxBufferBytes());
+        if (bytes > 0) {
+            log.debug("Autotuned buffers for {}: {} bytes", endpoint, bytes);
+            return tuning.withDefaultBuffers(bytes);
+        }
+        return tuning;
+    }
+
+    /**
+     * Connects to the first reachable upstream proxy, in configured order, and asks it
+     * to connect on to {@code host:port}.
+     */
+    private Socket connectUpstream(String strategy, String host, int port) throws IOException {
+        IOException lastError = null;
+
+        for (InetSocketAddress upstream : config.getUpstreams()) {
+            log.debug("Redirecting to upstream proxy: {}:{}", upstream.getHostString(), upstream.getPort());
+            String destination = upstream.getHostString() + ":" + upstream.getPort();
+            try {
+                checkCircuit(destination);
+                Socket socket = connectTuned(strategy, destination, upstream.getHostString(), upstream.getPort(),
+                        config.getUpstreamConnectTimeoutMs(), true);
+                try {
+                    Socks5Upstream.connect(socket, host, port, config.getUpstreamConnectTimeoutMs());
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    throw e;
+                }
+                return socket;
+            } catch (IOException e) {
+                log.warn("Upstream {}:{} unavailable: {}", upstream.getHostString(), upstream.getPort(), e.getMessage());
+                lastError = e;
+            }
+        }
+
+        throw lastError != null ? lastError : new IOException("No upstream proxy configured");
     }
 
     /**
      * Determines if traffic segmentation should be applied.
      */
     private boolean shouldApplySegmentation(String strategy, String matchedRule) {
+        if (protocol == Protocol.MUX) {
+            // The edge decided the strategy; the exit only connects
+            return false;
+        }
         return "segment".equals(strategy) ||
-                (matchedRule == null && "segment".equals(defaultStrategy));
+                (matchedRule == null && "segment".equals(defaultStrategy()));
     }
 
     /**
@@ -244,135 +902,295 @@ public class Socks5Session {
         if ("whitelist".equals(matchedRule)) return "direct";
         if ("redirect".equals(matchedRule)) return "redirect";
         if ("segment".equals(matchedRule)) return "segment";
-        return defaultStrategy;
+        return defaultStrategy();
+    }
+
+    /**
+     * Default strategy for this session: the user's override if any, otherwise the global one.
+     */
+    private String defaultStrategy() {
+        if (user != null && user.getPolicy().getDefaultStrategy() != null) {
+            return user.getPolicy().getDefaultStrategy();
+        }
+        return config.getDefaultStrategy();
     }
 
     /**
      * Logs session information.
      */
     private void logSession(String host, int port, String strategy, long bytesSent, long bytesReceived) {
-        log.info("[SESSION] {}:{} -> strategy={}, bytesSent={}, bytesReceived={}, duration={}ms",
-                host, port, strategy, bytesSent, bytesReceived, stats.getDurationMs());
+        if (liveConfig.current().isHeavyHittersEnabled()) {
+            context.getHeavyHitters().record(host, client.getInetAddress().getHostAddress(),
+                    bytesSent + bytesReceived);
+        }
+        String traffic = tunnel != null ? ", traffic=" + tunnel.getLabel() : "";
+        if (protocol == Protocol.MUX) {
+            log.info("[SESSION] {}:{} -> strategy=mux-exit, bytesSent={}, bytesReceived={}, duration={}ms{}, edge={}",
+                    host, port, bytesSent, bytesReceived, stats.getDurationMs(), traffic,
+                    client.getInetAddress().getHostAddress());
+            return;
+        }
+        if (user != null) {
+            log.info("[SESSION] {}:{} -> strategy={}, bytesSent={}, bytesReceived={}, duration={}ms{}, user={}",
+                    host, port, strategy, bytesSent, bytesReceived, stats.getDurationMs(), traffic, user);
+            return;
+        }
+        log.info("[SESSION] {}:{} -> strategy={}, bytesSent={}, bytesReceived={}, duration={}ms{}",
+                host, port, strategy, bytesSent, bytesReceived, stats.getDurationMs(), traffic);
+    }
+
+    /**
+     * Detects the client's protocol from its first byte and reads its request,
+     * authenticating the client where the protocol allows it.
+     */
+    private SocksRequest readRequest(HandshakeReader in, OutputStream out) throws IOException {
+        int first = in.peek();
+        ConfigSnapshot snapshot = liveConfig.current();
+
+        if (first == SOCKS_VERSION) {
+            performHandshake(in, out);
+            return parseRequest(in);
+        }
+        if (first == Socks4Protocol.VERSION && snapshot.isSocks4Enabled()) {
+            protocol = Protocol.SOCKS4;
+            SocksRequest request = Socks4Protocol.parse(in);
+            if (context.getAuthenticator() != null) {
+                // SOCKS4 carries only a user id, there is no password to check
+                sendReply(out, REPLY_CONNECTION_NOT_ALLOWED, null, 0);
+                throw new IOException("SOCKS4 client rejected - authentication is required");
+            }
+            return request;
+        }
+        if (HttpConnectProtocol.startsRequest(first) && snapshot.isHttpConnectEnabled()) {
+            protocol = Protocol.HTTP_CONNECT;
+            HttpConnectProtocol.Request request;
+            try {
+                request = HttpConnectProtocol.parse(in);
+            } catch (HttpConnectProtocol.TooLargeException e) {
+                pendingReplies.write(HttpConnectProtocol.response(e.getStatus()));
+                flushReplies(out);
+                throw e;
+            }
+            if (request != null && context.getAuthenticator() != null) {
+                authenticateHttp(request.proxyAuthorization, out);
+            }
+            return request != null ? request.target : null;
+        }
+        throw new IOException("Unsupported protocol (first byte 0x" + Integer.toHexString(first) + ")");
+    }
+
+    /**
+     * Checks Basic {@code Proxy-Authorization} credentials; answers 407 if they are missing or wrong.
+     */
+    private void authenticateHttp(String authorization, OutputStream out) throws IOException {
+        String[] credentials = HttpConnectProtocol.basicCredentials(authorization);
+        AuthenticatedUser authenticated = null;
+        if (credentials != null) {
+            byte[] password = credentials[1].getBytes(StandardCharsets.UTF_8);
+            authenticated = context.getAuthenticator().authenticate(credentials[0], password);
+            Arrays.fill(password, (byte) 0);
+        }
+        if (authenticated == null) {
+            pendingReplies.write(HttpConnectProtocol.response(407));
+            flushReplies(out);
+            throw new IOException(credentials == null
+                    ? "HTTP client sent no Basic credentials"
+                    : "Authentication failed for user " + credentials[0]);
+        }
+        user = authenticated;
     }
 
     /**
      * Performs SOCKS5 handshake.
      */
-    private void performHandshake(InputStream in, OutputStream out) throws IOException {
-        // Client sends: [VER(1), NMETHODS(1), METHODS(1-255)]
-        byte[] header = new byte[2];
-        if (in.read(header) != 2) {
-            throw new IOException("Failed to read handshake header");
+    private void performHandshake(HandshakeReader in, OutputStream out) throws IOException {
+        byte[] methods = readMethods(in);
+
+        // Server responds: [VER(1), METHOD(1)]
+        Authenticator authenticator = context.getAuthenticator();
+        if (authenticator == null) {
+            queueReply(in, out, new byte[]{SOCKS_VERSION, METHOD_NO_AUTH});
+            log.debug("SOCKS5 handshake completed");
+            return;
+        }
+
+        if (!offers(methods, METHOD_USERNAME_PASSWORD)) {
+            queueReply(in, out, new byte[]{SOCKS_VERSION, METHOD_NO_ACCEPTABLE});
+            flushReplies(out);
+            throw new IOException("Client does not offer username/password authentication");
         }
 
-        int version = header[0] & 0xff;
+        queueReply(in, out, new byte[]{SOCKS_VERSION, METHOD_USERNAME_PASSWORD});
+
+        authenticate(in, out, authenticator);
+        log.debug("SOCKS5 handshake completed for user {}", user);
+    }
+
+    /**
+     * RFC 1929 username/password sub-negotiation.
+     */
+    private void authenticate(HandshakeReader in, OutputStream out, Authenticator authenticator)
+            throws IOException {
+        byte[][] credentials = readCredentials(in);
+        byte[] username = credentials[0];
+        byte[] password = credentials[1];
+
+        String name = new String(username, StandardCharsets.UTF_8);
+        AuthenticatedUser authenticated = authenticator.authenticate(name, password);
+        Arrays.fill(password, (byte) 0);
+
+        // Server responds: [VER(1), STATUS(1)], any non-zero status closes the connection
+        queueReply(in, out, new byte[]{AUTH_VERSION, (byte) (authenticated != null ? 0x00 : 0x01)});
+
+        if (authenticated == null) {
+            flushReplies(out);
+            throw new IOException("Authentication failed for user " + name);
+        }
+        user = authenticated;
+    }
+
+    /**
+     * Reads the greeting [VER(1), NMETHODS(1), METHODS(1-255)] and returns the offered methods.
+     */
+    static byte[] readMethods(HandshakeReader in) throws IOException {
+        int version = in.readUnsignedByte();
         if (version != SOCKS_VERSION) {
             throw new IOException("Unsupported SOCKS version: " + version);
         }
 
-        int nMethods = header[1] & 0xff;
+        int nMethods = in.readUnsignedByte();
         if (nMethods < 1) {
             throw new IOException("No authentication methods provided");
         }
+        return in.readBytes(nMethods);
+    }
+
+    /**
+     * Reads [VER(1), ULEN(1), UNAME(1-255), PLEN(1), PASSWD(1-255)] and returns the
+     * user name and password.
+     */
+    static byte[][] readCredentials(HandshakeReader in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != AUTH_VERSION) {
+            throw new IOException("Unsupported auth sub-negotiation version: " + version);
+        }
 
-        // Read and discard authentication methods
-        byte[] methods = new byte[nMethods];
-        if (in.read(methods) != nMethods) {
-            throw new IOException("Failed to read authentication methods");
+        int uLen = in.readUnsignedByte();
+        if (uLen < 1) {
+            throw new IOException("Invalid username length");
         }
+        byte[] username = in.readBytes(uLen);
 
-        // Server responds: [VER(1), METHOD(1)]
-        // We only support NO_AUTHENTICATION (0x00)
-        out.write(new byte[]{SOCKS_VERSION, 0x00});
-        out.flush();
+        int pLen = in.readUnsignedByte();
+        return new byte[][]{username, in.readBytes(pLen)};
+    }
 
-        log.debug("SOCKS5 handshake completed");
+    static boolean offers(byte[] methods, byte method) {
+        for (byte m : methods) {
+            if (m == method) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Parses SOCKS5 connection request.
      */
-    private SocksRequest parseRequest(InputStream in) throws IOException {
+    static SocksRequest parseRequest(HandshakeReader in) throws IOException {
         // Request: [VER(1), CMD(1), RSV(1), ATYP(1), DST.ADDR(var), DST.PORT(2)]
-        byte[] header = new byte[4];
-        if (in.read(header) != 4) {
-            log.error("Failed to read request header");
-            return null;
-        }
-
-        int version = header[0] & 0xff;
+        in.require(4);
+        int version = in.readUnsignedByte();
         if (version != SOCKS_VERSION) {
             log.error("Invalid SOCKS version in request: {}", version);
             return null;
         }
 
         SocksRequest request = new SocksRequest();
-        request.cmd = header[1];
-        byte addrType = header[3];
+        request.cmd = in.readUnsignedByte();
+        in.readUnsignedByte();   // RSV
+        byte addrType = (byte) in.readUnsignedByte();
+        request.addressType = addrType;
 
         // Parse destination address
         if (addrType == ATYP_IPV4) {
-            byte[] addr = new byte[4];
-            if (in.read(addr) != 4) {
-                log.error("Failed to read IPv4 address");
-                return null;
-            }
-            request.host = String.format("%d.%d.%d.%d",
-                    addr[0] & 0xff, addr[1] & 0xff, addr[2] & 0xff, addr[3] & 0xff);
+            byte[] addr = in.readBytes(4);
+            request.address = addr;
+            request.host = (addr[0] & 0xff) + "." + (addr[1] & 0xff) + "." + (addr[2] & 0xff) + "." + (addr[3] & 0xff);
 
         } else if (addrType == ATYP_DOMAIN) {
-            int len = in.read();
+            int len = in.readUnsignedByte();
             if (len < 1) {
                 log.error("Invalid domain length");
                 return null;
             }
-
-            byte[] domain = new byte[len];
-            if (in.read(domain) != len) {
-                log.error("Failed to read domain name");
-                return null;
-            }
-            request.host = new String(domain);
+            request.host = new String(in.readBytes(len), StandardCharsets.US_ASCII);
+            // An IP literal sent as a name is still an address for CIDR rules
+            request.address = Cidr.literalAddress(request.host);
 
         } else if (addrType == ATYP_IPV6) {
-            // IPv6 support
-            byte[] addr = new byte[16];
-            if (in.read(addr) != 16) {
-                log.error("Failed to read IPv6 address");
-                return null;
-            }
-            try {
-                request.host = InetAddress.getByAddress(addr).getHostAddress();
-            } catch (UnknownHostException e) {
-                log.error("Invalid IPv6 address");
-                return null;
-            }
+            byte[] addr = in.readBytes(16);
+            request.address = addr;
+            request.host = InetAddress.getByAddress(addr).getHostAddress();
+
         } else {
             log.error("Unsupported address type: 0x{}", Integer.toHexString(addrType));
             return null;
         }
 
         // Parse destination port
-        byte[] portBytes = new byte[2];
-        if (in.read(portBytes) != 2) {
-            log.error("Failed to read port");
-            return null;
-        }
-        request.port = ((portBytes[0] & 0xff) << 8) | (portBytes[1] & 0xff);
+        request.port = in.readUnsignedShort();
 
-        log.debug("Parsed request: cmd=0x{}, host={}, port={}",
-                Integer.toHexString(request.cmd), request.host, request.port);
+        log.debug("Parsed request: cmd=0x{}, host={}, port={}, pipelined={} bytes",
+                Integer.toHexString(request.cmd), request.host, request.port, in.buffered());
 
         return request;
     }
 
+    /**
+     * Queues a handshake reply. When the client has already pipelined its next
+     * message the reply is held back and leaves together with the next one.
+     */
+    private void queueReply(HandshakeReader in, OutputStream out, byte[] reply) throws IOException {
+        pendingReplies.write(reply);
+        if (in.buffered() == 0) {
+            flushReplies(out);
+        }
+    }
+
+    private void flushReplies(OutputStream out) throws IOException {
+        if (pendingReplies.size() > 0) {
+            pendingReplies.writeTo(out);
+            pendingReplies.reset();
+        }
+        out.flush();
+    }
+
     /**
      * Sends SOCKS5 reply to client.
      */
     private void sendReply(OutputStream out, byte replyCode, InetAddress bindAddr, int bindPort)
             throws IOException {
 
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream buffer = pendingReplies;
+
+        if (protocol == Protocol.MUX) {
+            // The edge already told its client the stream is open
+            if (replyCode != REPLY_SUCCESS) {
+                muxStream.reset(muxResetReason(replyCode));
+            }
+            return;
+        }
+        if (protocol == Protocol.SOCKS4) {
+            buffer.write(Socks4Protocol.reply(replyCode == REPLY_SUCCESS, bindAddr, bindPort));
+            flushReplies(out);
+            return;
+        }
+        if (protocol == Protocol.HTTP_CONNECT) {
+            buffer.write(HttpConnectProtocol.response(httpStatus(replyCode)));
+            flushReplies(out);
+            return;
+        }
 
         buffer.write(SOCKS_VERSION);  // VER
         buffer.write(replyCode);       // REP
@@ -395,12 +1213,42 @@ public class Socks5Session {
         buffer.write((bindPort >> 8) & 0xff);
         buffer.write(bindPort & 0xff);
 
-        out.write(buffer.toByteArray());
-        out.flush();
+        // Goes out together with any handshake reply still held back
+        flushReplies(out);
 
         log.debug("Sent reply: code=0x{}", Integer.toHexString(replyCode));
     }
 
+    private static int httpStatus(byte replyCode) {
+        switch (replyCode) {
+            case REPLY_SUCCESS:
+                return 200;
+            case REPLY_CONNECTION_NOT_ALLOWED:
+                return 403;
+            case REPLY_TTL_EXPIRED:
+                return 504;
+            case REPLY_COMMAND_NOT_SUPPORTED:
+                return 405;
+            case REPLY_ADDRESS_TYPE_NOT_SUPPORTED:
+                return 400;
+            default:
+                return 502;
+        }
+    }
+
+    private static String muxResetReason(byte replyCode) {
+        switch (replyCode) {
+            case REPLY_CONNECTION_NOT_ALLOWED:
+                return "blocked";
+            case REPLY_HOST_UNREACHABLE:
+                return "host unreachable";
+            case REPLY_CONNECTION_REFUSED:
+                return "connection refused";
+            default:
+                return "connect failed";
+        }
+    }
+
     /**
      * Closes stream quietly without throwing exceptions.
      */
@@ -420,5 +1268,7 @@ public class Socks5Session {
         public int cmd;
         public String host;
         public int port;
+        public byte addressType;
+        public byte[] address;      // raw address for IPv4/IPv6, null for domain names
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.pyatkin.net_6_socks.session;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client side of a SOCKS5 CONNECT to an upstream proxy such as Tor.
+ *
+ * The target is always sent as a domain name so the upstream resolves it;
+ * only the no-authentication method is offered.
+ */
+final class Socks5Upstream {
+    private static final int VERSION = 0x05;
+    private static final int METHOD_NO_AUTH = 0x00;
+    private static final int CMD_CONNECT = 0x01;
+    private static final int ATYP_IPV4 = 0x01;
+    private static final int ATYP_DOMAIN = 0x03;
+    private static final int ATYP_IPV6 = 0x04;
+
+    private Socks5Upstream() {
+    }
+
+    /**
+     * Asks the upstream behind {@code socket} to connect to {@code host:port}.
+     * Greeting and request are sent together, so this costs one round trip.
+     *
+     * @throws IOException if the upstream refuses or answers something unexpected
+     */
+    static void connect(Socket socket, String host, int port, int timeoutMs) throws IOException {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        if (name.length > 255) {
+            throw new IOException("Host name too long for SOCKS5: " + host);
+        }
+
+        byte[] request = new byte[3 + 4 + 1 + name.length + 2];
+        request[0] = VERSION;
+        request[1] = 1;
+        request[2] = METHOD_NO_AUTH;
+        request[3] = VERSION;
+        request[4] = CMD_CONNECT;
+        request[5] = 0;
+        request[6] = ATYP_DOMAIN;
+        request[7] = (byte) name.length;
+        System.arraycopy(name, 0, request, 8, name.length);
+        request[8 + name.length] = (byte) (port >> 8);
+        request[9 + name.length] = (byte) port;
+
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeoutMs);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (in.readUnsignedByte() != VERSION || in.readUnsignedByte() != METHOD_NO_AUTH) {
+                throw new IOException("Upstream requires authentication");
+            }
+
+            // Reply: [VER(1), REP(1), RSV(1), ATYP(1), BND.ADDR(var), BND.PORT(2)]
+            int version = in.readUnsignedByte();
+            int reply = in.readUnsignedByte();
+            in.readUnsignedByte();
+            int addressType = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Bad SOCKS5 reply version from upstream: " + version);
+            }
+            int addressLength;
+            if (addressType == ATYP_IPV4) {
+                addressLength = 4;
+            } else if (addressType == ATYP_IPV6) {
+                addressLength = 16;
+            } else if (addressType == ATYP_DOMAIN) {
+                addressLength = in.readUnsignedByte();
+            } else {
+                throw new IOException("Bad address type in upstream reply: " + addressType);
+            }
+            in.skipNBytes(addressLength + 2);
+
+            if (reply != 0) {
+                throw new IOException("Upstream refused " + host + ":" + port + " (reply 0x"
+                        + Integer.toHexString(reply) + ")");
+            }
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.rules.Cidr;
+import com.pyatkin.net_6_socks.rules.RuleManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Datagram relay for a single SOCKS5 UDP ASSOCIATE.
+ *
+ * The client sends encapsulated datagrams to a dedicated client-facing channel.
+ * Everything leaving towards targets goes through one outbound channel, which
+ * is the NAT mapping of this association: replies are relayed back only from
+ * endpoints the client has sent to. Both channels share one selector, and up to
+ * {@code batchSize} datagrams are drained per wakeup. The direct buffer for a wakeup
+ * comes from a pool shared by all associations and goes back before the next select,
+ * so idle associations hold none.
+ */
+public class UdpAssociation implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(UdpAssociation.class);
+
+    private static final byte ATYP_IPV4 = 0x01;
+    private static final byte ATYP_DOMAIN = 0x03;
+    private static final byte ATYP_IPV6 = 0x04;
+
+    private static final int MAX_DATAGRAM = 65535;
+    // Room for the largest header we prepend on the way back: RSV(2) FRAG(1) ATYP(1) IPv6(16) PORT(2)
+    private static final int REPLY_HEADER_ROOM = 22;
+    private static final int MAX_CACHED_DESTINATIONS = 1024;
+    private static final int MAX_PEERS = 4096;
+    private static final int BUFFER_SIZE = REPLY_HEADER_ROOM + MAX_DATAGRAM;
+    // Buffers kept for reuse; more are only needed while more associations relay at the same moment
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final ConcurrentLinkedDeque<ByteBuffer> FREE_BUFFERS = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private final InetAddress clientAddress;
+    private final RuleManager rules;
+    private final ConfigSnapshot config;
+    private final SessionStats stats;
+    private final Function<String, String> strategyResolver;
+
+    // host:port -> decision, so rules and DNS are evaluated once per destination, not per datagram
+    private final Map<String, Destination> destinations = boundedMap(MAX_CACHED_DESTINATIONS);
+    // remote endpoints the client has sent to; replies from anything else are dropped
+    private final Map<InetSocketAddress, Boolean> peers = boundedMap(MAX_PEERS);
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private int clientPort;
+    private ByteBuffer buffer;
+    private Selector selector;
+    private DatagramChannel clientChannel;
+    private DatagramChannel remoteChannel;
+    private long lastActivityNanos;
+    private long droppedDatagrams;
+
+    public UdpAssociation(InetAddress clientAddress,
+                          int declaredClientPort,
+                          RuleManager rules,
+                          ConfigSnapshot config,
+                          SessionStats stats,
+                          Function<String, String> strategyResolver) {
+        this.clientAddress = clientAddress;
+        this.clientPort = declaredClientPort;
+        this.rules = rules;
+        this.config = config;
+        this.stats = stats;
+        this.strategyResolver = strategyResolver;
+    }
+
+    /**
+     * Binds the relay channels and returns the address the client must send datagrams to.
+     */
+    public InetSocketAddress open(InetAddress bindAddress) throws IOException {
+        selector = Selector.open();
+
+        clientChannel = DatagramChannel.open();
+        clientChannel.bind(new InetSocketAddress(bindAddress, 0));
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, SelectionKey.OP_READ);
+
+        remoteChannel = DatagramChannel.open();
+        remoteChannel.bind(null);
+        remoteChannel.configureBlocking(false);
+        remoteChannel.register(selector, SelectionKey.OP_READ);
+
+        return (InetSocketAddress) clientChannel.getLocalAddress();
+    }
+
+    /**
+     * Relays datagrams until the association is closed or stays idle for too long.
+     */
+    public void run() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(config.getUdpIdleTimeoutSec());
+        lastActivityNanos = System.nanoTime();
+
+        try {
+            while (!closed.get()) {
+                long idleFor = System.nanoTime() - lastActivityNanos;
+                if (idleFor >= idleNanos) {
+                    log.info("UDP association for {} expired after {}s idle",
+                            clientAddress.getHostAddress(), config.getUdpIdleTimeoutSec());
+                    break;
+                }
+
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleNanos - idleFor)));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                if (!keys.hasNext()) {
+                    continue;
+                }
+                buffer = takeBuffer();
+                try {
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.channel() == clientChannel) {
+                            drainClient();
+                        } else {
+                            drainRemote();
+                        }
+                    }
+                } finally {
+                    giveBuffer(buffer);
+                    buffer = null;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            log.trace("UDP association closed");
+        } catch (IOException e) {
+            if (!closed.get()) {
+                log.error("UDP relay error for {}: {}", clientAddress.getHostAddress(), e.getMessage());
+            }
+        } finally {
+            close();
+            if (droppedDatagrams > 0) {
+                log.debug("UDP association for {} dropped {} datagrams",
+                        clientAddress.getHostAddress(), droppedDatagrams);
+            }
+        }
+    }
+
+    /**
+     * Client -> target: strips the SOCKS header and forwards the payload.
+     */
+    private void drainClient() throws IOException {
+        int batch = config.getUdpBatchSize();
+        for (int i = 0; i < batch; i++) {
+            buffer.clear();
+            SocketAddress source = clientChannel.receive(buffer);
+            if (source == null) {
+                return;
+            }
+            lastActivityNanos = System.nanoTime();
+            buffer.flip();
+
+            if (!acceptFromClient((InetSocketAddress) source)) {
+                droppedDatagrams++;
+                continue;
+            }
+
+            InetSocketAddress target = parseHeader();
+            if (target == null) {
+                droppedDatagrams++;
+                continue;
+            }
+
+            int payload = buffer.remaining();
+            peers.put(target, Boolean.TRUE);
+            remoteChannel.send(buffer, target);
+            stats.addClientBytes(payload);
+        }
+    }
+
+    /**
+     * Target -> client: prepends the SOCKS header in front of the received payload.
+     */
+    private void drainRemote() throws IOException {
+        int batch = config.getUdpBatchSize();
+        for (int i = 0; i < batch; i++) {
+            buffer.clear();
+            buffer.position(REPLY_HEADER_ROOM);
+            SocketAddress received = remoteChannel.receive(buffer);
+            if (received == null) {
+                return;
+            }
+            lastActivityNanos = System.nanoTime();
+
+            InetSocketAddress source = (InetSocketAddress) received;
+            if (clientPort == 0 || !peers.containsKey(source)) {
+                droppedDatagrams++;
+                continue;
+            }
+
+            int end = buffer.position();
+            int payload = end - REPLY_HEADER_ROOM;
+            byte[] addr = source.getAddress().getAddress();
+            int start = REPLY_HEADER_ROOM - (4 + addr.length + 2);
+
+            buffer.position(start);
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0);
+            buffer.put(addr.length == 4 ? ATYP_IPV4 : ATYP_IPV6);
+            buffer.put(addr);
+            buffer.putShort((short) source.getPort());
+            buffer.limit(end).position(start);
+
+            clientChannel.send(buffer, new InetSocketAddress(clientAddress, clientPort));
+            stats.addServerBytes(payload);
+        }
+    }
+
+    private boolean acceptFromClient(InetSocketAddress source) {
+        if (!clientAddress.equals(source.getAddress())) {
+            return false;
+        }
+        if (clientPort == 0) {
+            // The client did not declare its port - lock onto the first datagram
+            clientPort = source.getPort();
+            return true;
+        }
+        return clientPort == source.getPort();
+    }
+
+    /**
+     * Parses [RSV(2), FRAG(1), ATYP(1), DST.ADDR, DST.PORT] and leaves the buffer at the payload.
+     * Returns null if the datagram must be dropped.
+     */
+    private InetSocketAddress parseHeader() {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        buffer.getShort();                  // RSV
+        if (buffer.get() != 0) {
+            // Fragmentation is optional in RFC 1928 and not supported
+            return null;
+        }
+
+        byte addrType = buffer.get();
+        String host;
+        byte[] rawAddr = null;
+
+        if (addrType == ATYP_IPV4 || addrType == ATYP_IPV6) {
+            int len = addrType == ATYP_IPV4 ? 4 : 16;
+            if (buffer.remaining() < len + 2) {
+                return null;
+            }
+            rawAddr = new byte[len];
+            buffer.get(rawAddr);
+            try {
+                host = InetAddress.getByAddress(rawAddr).getHostAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        } else if (addrType == ATYP_DOMAIN) {
+            if (buffer.remaining() < 1) {
+                return null;
+            }
+            int len = buffer.get() & 0xff;
+            if (len < 1 || buffer.remaining() < len + 2) {
+                return null;
+            }
+            byte[] domain = new byte[len];
+            buffer.get(domain);
+            host = new String(domain, StandardCharsets.US_ASCII);
+            rawAddr = Cidr.literalAddress(host);
+        } else {
+            return null;
+        }
+
+        int port = buffer.getShort() & 0xffff;
+
+        // Rules may be qualified by port, so the decision is cached per host and port
+        String key = host + ':' + port;
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            destination = resolve(host, rawAddr, port);
+            destinations.put(key, destination);
+        }
+        if (destination.address == null) {
+            return null;
+        }
+        return new InetSocketAddress(destination.address, port);
+    }
+
+    /**
+     * Applies rules to a new destination and resolves it.
+     */
+    private Destination resolve(String host, byte[] rawAddr, int port) {
+        String matchedRule = rules.firstMatch(host, rawAddr, port, clientAddress);
+        String strategy = strategyResolver.apply(matchedRule);
+
+        if ("blacklist".equals(strategy)) {
+            log.warn("UDP datagrams to {} blocked by blacklist", host);
+            return Destination.BLOCKED;
+        }
+        if ("redirect".equals(strategy)) {
+            // Upstream proxies are reached over TCP only, datagrams cannot follow them
+            log.warn("UDP datagrams to {} dropped - redirect is not supported for UDP", host);
+            return Destination.BLOCKED;
+        }
+
+        try {
+            InetAddress address = rawAddr != null ? InetAddress.getByAddress(rawAddr) : InetAddress.getByName(host);
+            log.debug("UDP destination {} -> {} (strategy={}, rule={})", host, address.getHostAddress(),
+                    strategy, matchedRule != null ? matchedRule : "none");
+            return new Destination(address);
+        } catch (UnknownHostException e) {
+            log.warn("UDP destination {} cannot be resolved", host);
+            return Destination.BLOCKED;
+        }
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer pooled = FREE_BUFFERS.pollFirst();
+        if (pooled == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooledBuffers.decrementAndGet();
+        return pooled;
+    }
+
+    private static void giveBuffer(ByteBuffer released) {
+        if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+        // Most recently used first, it is the one most likely still in cache
+        FREE_BUFFERS.offerFirst(released);
+    }
+
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    @Override
+    public void close() {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        closeQuietly(clientChannel);
+        closeQuietly(remoteChannel);
+        closeQuietly(selector);
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static <K, V> Map<K, V> boundedMap(int maxSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Rule and DNS decision for one destination host.
+     */
+    private static final class Destination {
+        static final Destination BLOCKED = new Destination(null);
+
+        final InetAddress address;
+
+        Destination(InetAddress address) {
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.pyatkin.net_6_socks.session;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import com.pyatkin.net_6_socks.conf.LiveConfig;
+import com.pyatkin.net_6_socks.state.PersistentState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-connected remote sockets for the most requested direct destinations.
+ *
+ * Every direct CONNECT is counted per host:port; counts decay over time, so the
+ * hot set follows recent traffic. A background thread keeps up to
+ * {@code perHost} idle connections open to each hot pair, probes them for
+ * liveness and drops them after {@code maxIdleSec}. A session that finds an
+ * idle socket skips the TCP handshake to the target entirely.
+ *
+ * The connects themselves run on a few connector threads, one destination at a
+ * time each, so a hot destination that stopped answering delays only its own
+ * refill. Destinations whose circuit breaker is open are not refilled.
+ *
+ * Servers that speak first (SMTP, FTP, SSH) would have their greeting consumed
+ * by the probe, so such pairs are detected and never pooled again.
+ *
+ * Demand counts and the speak-first pairs are saved across restarts, so the pool
+ * warms the previous hot set right away instead of waiting for it to build up.
+ */
+public class WarmConnectionPool implements AutoCloseable, PersistentState {
+    private static final Logger log = LoggerFactory.getLogger(WarmConnectionPool.class);
+
+    private static final long MAINTENANCE_INTERVAL_MS = 1000;
+    private static final long DECAY_INTERVAL_MS = 30_000;
+    private static final int MAX_TRACKED_DESTINATIONS = 1024;
+    private static final int PROBE_TIMEOUT_MS = 1;
+    private static final int CONNECTORS = 4;
+
+    private final LiveConfig config;
+    private final CircuitBreakers circuitBreakers;
+    private final ScheduledExecutorService maintenance;
+    private final ExecutorService connectors;
+
+    // Guarded by this
+    private final Map<String, Demand> demand = boundedMap(MAX_TRACKED_DESTINATIONS);
+    // Values are the wall time the pair was found to speak first
+    private final Map<String, Long> serverSpeaksFirst = boundedMap(MAX_TRACKED_DESTINATIONS);
+    private final Map<String, Deque<IdleSocket>> idle = new HashMap<>();
+    // Destinations with a refill queued or running
+    private final Set<String> refilling = new HashSet<>();
+    private int idleCount;
+    private long lastDecay = System.nanoTime();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public WarmConnectionPool(LiveConfig config, CircuitBreakers circuitBreakers) {
+        this.config = config;
+        this.circuitBreakers = circuitBreakers;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WarmPool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connectors = Executors.newFixedThreadPool(CONNECTORS, r -> {
+            Thread thread = new Thread(r, "WarmPoolConnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain,
+                MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a request for {@code host:port} and returns an already connected socket
+     * to it, or null if none is pooled.
+     */
+    public Socket acquire(String host, int port) {
+        String key = host + ":" + port;
+        Socket socket = null;
+
+        synchronized (this) {
+            Demand d = demand.computeIfAbsent(key, k -> new Demand(host, port));
+            d.requests++;
+            d.lastRequestMs = System.currentTimeMillis();
+
+            Deque<IdleSocket> sockets = idle.get(key);
+            while (sockets != null && !sockets.isEmpty()) {
+                IdleSocket candidate = sockets.poll();
+                idleCount--;
+                if (isUsable(key, candidate)) {
+                    socket = candidate.socket;
+                    break;
+                }
+                discard(candidate.socket);
+            }
+        }
+
+        if (socket == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        // Replace the socket just handed out without waiting for the next tick
+        requestRefill(key);
+        return socket;
+    }
+
+    /**
+     * Cheap check on the hot path: anything readable on an idle socket means
+     * the server spoke first (or already closed), so it cannot be handed out.
+     */
+    private boolean isUsable(String key, IdleSocket candidate) {
+        long maxIdleNanos = TimeUnit.SECONDS.toNanos(config.current().getWarmPoolMaxIdleSec());
+        if (System.nanoTime() - candidate.openedAt > maxIdleNanos || candidate.socket.isClosed()) {
+            return false;
+        }
+        try {
+            if (candidate.socket.getInputStream().available() > 0) {
+                serverSpeaksFirst.put(key, System.currentTimeMillis());
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void maintain() {
+        try {
+            ConfigSnapshot snapshot = config.current();
+            if (!snapshot.isWarmPoolEnabled()) {
+                clear();
+                return;
+            }
+
+            expireAndProbe(snapshot);
+            List<String> hot = hotDestinations(snapshot);
+            dropCold(hot);
+            for (String key : hot) {
+                requestRefill(key);
+            }
+        } catch (RuntimeException e) {
+            log.error("Warm pool maintenance failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Closes idle sockets that are too old, closed by the server, or that received data.
+     * Sockets are taken out of the pool while probed, so a probe never reads from a
+     * socket a session is already using.
+     */
+    private void expireAndProbe(ConfigSnapshot snapshot) {
+        long maxIdleNanos = TimeUnit.SECONDS.toNanos(snapshot.getWarmPoolMaxIdleSec());
+        List<IdleSocket> toProbe = new ArrayList<>();
+
+        synchronized (this) {
+            for (Deque<IdleSocket> sockets : idle.values()) {
+                for (IdleSocket candidate : sockets) {
+                    if (System.nanoTime() - candidate.openedAt > maxIdleNanos) {
+                        discard(candidate.socket);
+                    } else {
+                        toProbe.add(candidate);
+                    }
+                }
+                idleCount -= sockets.size();
+                sockets.clear();
+            }
+        }
+
+        for (IdleSocket candidate : toProbe) {
+            if (!probe(candidate)) {
+                discard(candidate.socket);
+                continue;
+            }
+            synchronized (this) {
+                idle.computeIfAbsent(candidate.key, k -> new ArrayDeque<>()).add(candidate);
+                idleCount++;
+            }
+        }
+    }
+
+    /**
+     * A blocking read with a tiny timeout is the only way to see a FIN on a plain socket.
+     * Timing out means the connection is alive and silent, which is what we want.
+     */
+    private boolean probe(IdleSocket candidate) {
+        Socket socket = candidate.socket;
+        try {
+            socket.setSoTimeout(PROBE_TIMEOUT_MS);
+            InputStream in = socket.getInputStream();
+            int read = in.read();
+            if (read >= 0) {
+                synchronized (this) {
+                    serverSpeaksFirst.put(candidate.key, System.currentTimeMillis());
+                }
+                log.debug("{} sends data before the client - not pooling it", candidate.key);
+            }
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Most requested pairs with enough recent demand, most requested first.
+     */
+    private synchronized List<String> hotDestinations(ConfigSnapshot snapshot) {
+        long now = System.nanoTime();
+        if (now - lastDecay > TimeUnit.MILLISECONDS.toNanos(DECAY_INTERVAL_MS)) {
+            lastDecay = now;
+            for (Iterator<Demand> it = demand.values().iterator(); it.hasNext(); ) {
+                Demand d = it.next();
+                d.requests /= 2;
+                if (d.requests == 0) {
+                    it.remove();
+                }
+            }
+        }
+
+        List<Map.Entry<String, Demand>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Demand> entry : demand.entrySet()) {
+            if (entry.getValue().requests >= snapshot.getWarmPoolMinRequests()
+                    && !serverSpeaksFirst.containsKey(entry.getKey())) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(b.getValue().requests, a.getValue().requests));
+
+        List<String> hot = new ArrayList<>();
+        for (int i = 0; i < candidates.size() && i < snapshot.getWarmPoolHotDestinations(); i++) {
+            hot.add(candidates.get(i).getKey());
+        }
+        return hot;
+    }
+
+    private synchronized void dropCold(List<String> hot) {
+        for (Iterator<Map.Entry<String, Deque<IdleSocket>>> it = idle.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Deque<IdleSocket>> entry = it.next();
+            if (!hot.contains(entry.getKey())) {
+                for (IdleSocket candidate : entry.getValue()) {
+                    idleCount--;
+                    discard(candidate.socket);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Queues a refill of {@code key} on the connector threads, unless one is already
+     * queued or running.
+     */
+    private void requestRefill(String key) {
+        synchronized (this) {
+            if (!refilling.add(key)) {
+                return;
+            }
+        }
+        try {
+            connectors.execute(() -> {
+                try {
+                    refill(key);
+                } finally {
+                    synchronized (this) {
+                        refilling.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.trace("Warm pool closed, not refilling {}", key);
+            synchronized (this) {
+                refilling.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Opens connections to {@code key} until it has {@code perHost} idle sockets or
+     * the pool is full. Runs on a connector thread, one at a time per destination.
+     */
+    private void refill(String key) {
+        ConfigSnapshot snapshot = config.current();
+        if (!snapshot.isWarmPoolEnabled()) {
+            return;
+        }
+
+        while (true) {
+            Demand target;
+            synchronized (this) {
+                target = demand.get(key);
+                Deque<IdleSocket> sockets = idle.get(key);
+                int have = sockets == null ? 0 : sockets.size();
+                if (target == null || serverSpeaksFirst.containsKey(key)
+                        || have >= snapshot.getWarmPoolPerHost()
+                        || idleCount >= snapshot.getWarmPoolMaxSockets()) {
+                    return;
+                }
+            }
+            if (circuitBreakers.isOpen(key, snapshot)) {
+                log.debug("Circuit for {} is open - not refilling it", key);
+                return;
+            }
+
+            Socket socket = new Socket();
+            try {
+                snapshot.getRemoteSocketTuning("direct").apply(socket);
+                socket.connect(new InetSocketAddress(target.host, target.port), snapshot.getConnectTimeoutMs());
+            } catch (IOException e) {
+                log.debug("Warm connection to {} failed: {}", key, e.getMessage());
+                discard(socket);
+                return;
+            }
+
+            opened.incrementAndGet();
+            synchronized (this) {
+                // Other destinations may have filled the pool while we were connecting
+                if (idleCount >= snapshot.getWarmPoolMaxSockets()) {
+                    discard(socket);
+                    return;
+                }
+                idle.computeIfAbsent(key, k -> new ArrayDeque<>()).add(new IdleSocket(key, socket));
+                idleCount++;
+            }
+        }
+    }
+
+    private synchronized void clear() {
+        for (Deque<IdleSocket> sockets : idle.values()) {
+            for (IdleSocket candidate : sockets) {
+                discard(candidate.socket);
+            }
+        }
+        idle.clear();
+        idleCount = 0;
+    }
+
+    private void discard(Socket socket) {
+        discarded.incrementAndGet();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void logStatistics() {
+        log.info("=== Warm Pool Statistics ===");
+        log.info("  hits: {}", hits.get());
+        log.info("  misses: {}", misses.get());
+        log.info("  connections opened: {}", opened.get());
+        log.info("  connections discarded: {}", discarded.get());
+        log.info("============================");
+    }
+
+    @Override
+    public String stateSection() {
+        return "warmpool";
+    }
+
+    @Override
+    public synchronized void saveState(DataOutputStream out) throws IOException {
+        out.writeInt(demand.size());
+        for (Demand d : demand.values()) {
+            out.writeUTF(d.host);
+            out.writeShort(d.port);
+            out.writeLong(d.requests);
+            out.writeLong(d.lastRequestMs);
+        }
+        out.writeInt(serverSpeaksFirst.size());
+        for (Map.Entry<String, Long> entry : serverSpeaksFirst.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    @Override
+    public int loadState(DataInputStream in, long maxAgeMs) throws IOException {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Demand d = new Demand(in.readUTF(), in.readUnsignedShort());
+            d.requests = in.readLong();
+            d.lastRequestMs = in.readLong();
+            if (now - d.lastRequestMs <= maxAgeMs) {
+                synchronized (this) {
+                    if (demand.putIfAbsent(d.host + ":" + d.port, d) == null) {
+                        restored++;
+                    }
+                }
+            }
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long detectedMs = in.readLong();
+            if (now - detectedMs <= maxAgeMs) {
+                synchronized (this) {
+                    if (serverSpeaksFirst.putIfAbsent(key, detectedMs) == null) {
+                        restored++;
+                    }
+                }
+            }
+        }
+        return restored;
+    }
+
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        connectors.shutdownNow();
+        clear();
+    }
+
+    private static <K, V> Map<K, V> boundedMap(int maxSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static final class Demand {
+        final String host;
+        final int port;
+        long requests;
+        long lastRequestMs;
+
+        Demand(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private static final class IdleSocket {
+        final String key;
+        final Socket socket;
+        final long openedAt = System.nanoTime();
+
+        IdleSocket(String key, Socket socket) {
+            this.key = key;
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.pyatkin.net_6_socks.state;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * In-process state worth keeping across a restart, saved as one section of the
+ * {@link StateStore} file.
+ */
+public interface PersistentState {
+
+    /**
+     * Name of the section; a file section with an unknown name is skipped.
+     */
+    String stateSection();
+
+    void saveState(DataOutputStream out) throws IOException;
+
+    /**
+     * Merges saved entries into the live state. Entries last updated more than
+     * {@code maxAgeMs} ago are discarded; entries the process already has win.
+     *
+     * @return number of entries restored
+     */
+    int loadState(DataInputStream in, long maxAgeMs) throws IOException;
+}
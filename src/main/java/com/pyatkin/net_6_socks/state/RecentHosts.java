@@ -0,0 +1,95 @@
+package com.pyatkin.net_6_socks.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Host names recently resolved for outgoing connects.
+ *
+ * Only the names are saved, not the answers, which would be stale after a restart.
+ * Loading resolves the saved names again, most recent first, so the resolver caches
+ * (the JVM's and the system's) are warm before clients ask for them.
+ */
+public class RecentHosts implements PersistentState {
+    private static final Logger log = LoggerFactory.getLogger(RecentHosts.class);
+    private static final int MAX_HOSTS = 512;
+
+    // Guarded by this; values are the wall time of the last lookup
+    private final Map<String, Long> hosts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    /**
+     * Notes a host name about to be resolved; address literals are ignored.
+     */
+    public void record(String host) {
+        if (isLiteral(host)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            hosts.put(host, now);
+        }
+    }
+
+    // No top-level domain is numeric, and only IPv6 literals contain a colon
+    private static boolean isLiteral(String host) {
+        return host.isEmpty() || Character.isDigit(host.charAt(host.length() - 1)) || host.indexOf(':') >= 0;
+    }
+
+    @Override
+    public String stateSection() {
+        return "hosts";
+    }
+
+    @Override
+    public synchronized void saveState(DataOutputStream out) throws IOException {
+        out.writeInt(hosts.size());
+        for (Map.Entry<String, Long> entry : hosts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    @Override
+    public int loadState(DataInputStream in, long maxAgeMs) throws IOException {
+        long now = System.currentTimeMillis();
+        List<String> names = new ArrayList<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String host = in.readUTF();
+            long lastLookupMs = in.readLong();
+            if (now - lastLookupMs <= maxAgeMs) {
+                names.add(host);
+                synchronized (this) {
+                    hosts.putIfAbsent(host, lastLookupMs);
+                }
+            }
+        }
+
+        int resolved = 0;
+        // Saved least recent first
+        for (int i = names.size() - 1; i >= 0; i--) {
+            try {
+                InetAddress.getAllByName(names.get(i));
+                resolved++;
+            } catch (UnknownHostException e) {
+                log.debug("Saved host {} no longer resolves", names.get(i));
+            }
+        }
+        return resolved;
+    }
+}
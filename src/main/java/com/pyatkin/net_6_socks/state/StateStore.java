@@ -0,0 +1,162 @@
+package com.pyatkin.net_6_socks.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps learned state (endpoint estimates, failing destinations, hot destinations,
+ * recent host names) in a local file so that a restarted proxy does not start cold.
+ *
+ * The file is a small binary one: magic, format version, save time, then one named,
+ * length-prefixed section per {@link PersistentState}. A section nobody claims or
+ * cannot parse is skipped on its own; a file of another version or older than
+ * {@code maxAgeSec} is ignored as a whole. Saves go to a temporary file that then
+ * atomically replaces the old one, so a crash mid-save leaves the previous state intact.
+ *
+ * Loading runs on the store's own thread while the proxy is already accepting
+ * connections; sessions started before it finishes simply see a cold cache.
+ */
+public class StateStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(StateStore.class);
+    private static final int MAGIC = 0x4E365753;    // "N6WS"
+    private static final int VERSION = 1;
+    private static final int MAX_SECTION_BYTES = 16 * 1024 * 1024;
+
+    private final Path file;
+    private final int intervalSec;
+    private final long maxAgeMs;
+    private final Map<String, PersistentState> sections = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public StateStore(Path file, int intervalSec, int maxAgeSec, List<PersistentState> states) {
+        this.file = file;
+        this.intervalSec = intervalSec;
+        this.maxAgeMs = TimeUnit.SECONDS.toMillis(maxAgeSec);
+        for (PersistentState state : states) {
+            sections.put(state.stateSection(), state);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "StateStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the saved state in the background, then saves every {@code intervalSec}.
+     */
+    public void start() {
+        scheduler.execute(this::load);
+        scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            log.info("No saved state at {}, starting cold", file);
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                log.warn("{} is not a state file, ignoring it", file);
+                return;
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                log.warn("Ignoring state file {}: format version {}, expected {}", file, version, VERSION);
+                return;
+            }
+            long ageMs = System.currentTimeMillis() - in.readLong();
+            if (ageMs > maxAgeMs) {
+                log.info("Saved state in {} is {}s old, starting cold", file, TimeUnit.MILLISECONDS.toSeconds(ageMs));
+                return;
+            }
+
+            List<String> restored = new ArrayList<>();
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_SECTION_BYTES) {
+                    throw new IOException("Bad length " + length + " of section " + name);
+                }
+                byte[] payload = in.readNBytes(length);
+                if (payload.length < length) {
+                    throw new EOFException("Section " + name + " is truncated");
+                }
+                PersistentState state = sections.get(name);
+                if (state == null) {
+                    continue;
+                }
+                try {
+                    int entries = state.loadState(new DataInputStream(new ByteArrayInputStream(payload)), maxAgeMs);
+                    restored.add(name + "=" + entries);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Skipping unreadable section {} of {}: {}", name, file, e.toString());
+                }
+            }
+            log.info("Restored state from {} ({}s old): {}", file, TimeUnit.MILLISECONDS.toSeconds(ageMs), restored);
+        } catch (IOException e) {
+            log.warn("Failed to read state file {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to save state to {}: {}", file, e.toString());
+        }
+    }
+
+    private void save() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeShort(sections.size());
+            for (PersistentState state : sections.values()) {
+                ByteArrayOutputStream section = new ByteArrayOutputStream();
+                state.saveState(new DataOutputStream(section));
+                out.writeUTF(state.stateSection());
+                out.writeInt(section.size());
+                section.writeTo(out);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.debug("State saved to {}", file);
+    }
+
+    /**
+     * Stops the periodic saves and saves one last time.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveQuietly();
+    }
+}
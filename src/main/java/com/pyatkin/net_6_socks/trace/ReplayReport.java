@@ -0,0 +1,114 @@
+package com.pyatkin.net_6_socks.trace;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Latency and throughput of one replay run, savable as a properties file so that
+ * two builds can be compared on the same trace.
+ */
+class ReplayReport {
+    private final List<double[]> results = new ArrayList<>();
+    private int failed;
+    private long bytes;
+
+    /**
+     * @param setupMs    proxy connect plus SOCKS handshake
+     * @param ttfbMs     first byte from the target after the tunnel was up, negative if none was expected
+     * @param lagMs      how much longer the tunnel took than the recorded schedule allows
+     */
+    synchronized void success(double setupMs, double ttfbMs, double lagMs, long transferred) {
+        results.add(new double[]{setupMs, ttfbMs, lagMs});
+        bytes += transferred;
+    }
+
+    synchronized void failure() {
+        failed++;
+    }
+
+    synchronized Map<String, Double> summarize(double wallSeconds) {
+        Map<String, Double> metrics = new TreeMap<>();
+        metrics.put("sessions", (double) results.size());
+        metrics.put("failed", (double) failed);
+        percentiles(metrics, "setup", 0);
+        percentiles(metrics, "ttfb", 1);
+        percentiles(metrics, "lag", 2);
+        metrics.put("bytes", (double) bytes);
+        metrics.put("wall.sec", wallSeconds);
+        metrics.put("throughput.mbps", wallSeconds > 0 ? bytes * 8 / wallSeconds / 1e6 : 0);
+        return metrics;
+    }
+
+    private void percentiles(Map<String, Double> metrics, String name, int column) {
+        double[] values = results.stream().mapToDouble(r -> r[column]).filter(v -> v >= 0).sorted().toArray();
+        if (values.length == 0) {
+            return;
+        }
+        metrics.put(name + ".p50.ms", percentile(values, 50));
+        metrics.put(name + ".p95.ms", percentile(values, 95));
+        metrics.put(name + ".p99.ms", percentile(values, 99));
+        metrics.put(name + ".max.ms", values[values.length - 1]);
+    }
+
+    private static double percentile(double[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static void print(Map<String, Double> metrics, PrintStream out) {
+        metrics.forEach((key, value) -> out.printf(Locale.ROOT, "%-18s %12.2f%n", key, value));
+    }
+
+    /**
+     * Prints each metric next to its value in {@code baseline}. For latencies a negative
+     * delta is an improvement, for throughput a positive one.
+     */
+    static void compare(Map<String, Double> baseline, Map<String, Double> metrics, PrintStream out) {
+        out.printf(Locale.ROOT, "%-18s %12s %12s %9s%n", "metric", "baseline", "current", "delta");
+        for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            double after = entry.getValue();
+            String delta = before == 0 ? "" : String.format(Locale.ROOT, "%+8.1f%%", (after - before) / before * 100);
+            out.printf(Locale.ROOT, "%-18s %12.2f %12.2f %9s%n", entry.getKey(), before, after, delta);
+        }
+    }
+
+    static void save(Map<String, Double> metrics, Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+                out.write(entry.getKey() + "=" + String.format(Locale.ROOT, "%.3f", entry.getValue()));
+                out.newLine();
+            }
+        }
+    }
+
+    static Map<String, Double> load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+        Map<String, Double> metrics = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                metrics.put(key, Double.parseDouble(properties.getProperty(key)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad value for " + key + " in " + path);
+            }
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,123 @@
+package com.pyatkin.net_6_socks.trace;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local target for replayed tunnels: plays the server side of each recorded session.
+ *
+ * A replayed client starts its tunnel with the 4-byte index of its session in the
+ * trace. The sink then sends the recorded server reads on schedule, discards what the
+ * client sends, and closes once both sides are done, as the real server did.
+ */
+class ReplaySink implements Closeable {
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    private final List<SessionTrace> sessions;
+    private final double speed;
+    private final ServerSocket server;
+
+    ReplaySink(List<SessionTrace> sessions, double speed) throws IOException {
+        this.sessions = sessions;
+        this.speed = speed;
+        // Wildcard address, so every loopback address reaches the sink
+        this.server = new ServerSocket();
+        server.bind(new InetSocketAddress(0), 1024);
+
+        Thread acceptor = new Thread(this::acceptLoop, "ReplaySink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread thread = new Thread(() -> serve(socket), "ReplaySinkSession");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int index = in.readInt();
+            if (index < 0 || index >= sessions.size()) {
+                return;
+            }
+            long start = System.nanoTime();
+            SessionTrace trace = sessions.get(index);
+
+            Thread reader = new Thread(() -> discard(in, trace.getFromClient().totalBytes()), "ReplaySinkReader");
+            reader.setDaemon(true);
+            reader.start();
+
+            play(trace.getFromServer(), socket.getOutputStream(), start, speed);
+            reader.join(READ_TIMEOUT_MS);
+        } catch (IOException e) {
+            // The proxy closed the tunnel early; the client side reports it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void discard(InputStream in, long expected) {
+        byte[] buffer = new byte[65536];
+        long received = 0;
+        try {
+            while (received < expected) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    return;
+                }
+                received += n;
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes every event of {@code direction} at its recorded offset, scaled by {@code speed}.
+     */
+    static void play(SessionTrace.Direction direction, OutputStream out, long startNanos, double speed)
+            throws IOException, InterruptedException {
+        byte[] chunk = new byte[65536];
+        for (int i = 0; i < direction.size(); i++) {
+            long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(direction.offsetMs(i)) / speed);
+            long waitNanos = due - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            int remaining = direction.bytes(i);
+            while (remaining > 0) {
+                int n = Math.min(remaining, chunk.length);
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,209 @@
+package com.pyatkin.net_6_socks.trace;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shape of one tunnel without its payload: target, strategy, setup time and the size
+ * and timing of every read in each direction.
+ *
+ * One line per session in the trace file:
+ * <pre>
+ * startEpochMs  host  port  strategy  setupUs  C=ms:bytes,...  S=ms:bytes,...
+ * </pre>
+ * Offsets are milliseconds since the tunnel was established. Reads within the
+ * same millisecond are merged, so a bulk download costs at most one event per
+ * millisecond rather than one per socket read.
+ */
+public final class SessionTrace {
+    static final String HEADER = "# net_6_socks trace v1";
+    private static final int MAX_EVENTS = 8192;
+
+    private final String path;
+    private final long startEpochMs;
+    private final String host;
+    private final int port;
+    private final String strategy;
+    private final long setupMicros;
+    private final Direction fromClient;
+    private final Direction fromServer;
+
+    SessionTrace(String path, String host, int port, String strategy, long setupNanos) {
+        this.path = path;
+        this.startEpochMs = System.currentTimeMillis();
+        this.host = host;
+        this.port = port;
+        this.strategy = strategy;
+        this.setupMicros = TimeUnit.NANOSECONDS.toMicros(setupNanos);
+        long relayStartNanos = System.nanoTime();
+        this.fromClient = new Direction(relayStartNanos);
+        this.fromServer = new Direction(relayStartNanos);
+    }
+
+    private SessionTrace(long startEpochMs, String host, int port, String strategy, long setupMicros,
+                         Direction fromClient, Direction fromServer) {
+        this.path = null;
+        this.startEpochMs = startEpochMs;
+        this.host = host;
+        this.port = port;
+        this.strategy = strategy;
+        this.setupMicros = setupMicros;
+        this.fromClient = fromClient;
+        this.fromServer = fromServer;
+    }
+
+    /**
+     * Reads of one direction. Appended to by its relay thread; the lock only matters
+     * if a timed-out relay thread is still running when the trace is written.
+     */
+    public static final class Direction {
+        private final long originNanos;
+        private int[] offsetsMs = new int[16];
+        private int[] sizes = new int[16];
+        private int count;
+        private long bytes;
+
+        Direction(long originNanos) {
+            this.originNanos = originNanos;
+        }
+
+        /**
+         * Records {@code n} bytes read at {@code atNanos}, a {@link System#nanoTime()} value.
+         */
+        synchronized void record(int n, long atNanos) {
+            int offset = (int) TimeUnit.NANOSECONDS.toMillis(atNanos - originNanos);
+            add(offset, n);
+        }
+
+        private void add(int offsetMs, int n) {
+            bytes += n;
+            if (count > 0 && (offsetsMs[count - 1] == offsetMs || count == MAX_EVENTS)) {
+                sizes[count - 1] += n;
+                return;
+            }
+            if (count == offsetsMs.length) {
+                offsetsMs = Arrays.copyOf(offsetsMs, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            offsetsMs[count] = offsetMs;
+            sizes[count] = n;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public int offsetMs(int i) {
+            return offsetsMs[i];
+        }
+
+        public int bytes(int i) {
+            return sizes[i];
+        }
+
+        public long totalBytes() {
+            return bytes;
+        }
+
+        private synchronized void format(StringBuilder sb) {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(offsetsMs[i]).append(':').append(sizes[i]);
+            }
+        }
+
+        private static Direction parse(String field, String prefix) {
+            if (!field.startsWith(prefix)) {
+                throw new IllegalArgumentException("Expected " + prefix + " in trace line");
+            }
+            Direction direction = new Direction(0);
+            String events = field.substring(prefix.length());
+            if (events.isEmpty()) {
+                return direction;
+            }
+            for (String event : events.split(",")) {
+                int colon = event.indexOf(':');
+                direction.add(Integer.parseInt(event.substring(0, colon)),
+                        Integer.parseInt(event.substring(colon + 1)));
+            }
+            return direction;
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    public long getStartEpochMs() {
+        return startEpochMs;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public long getSetupMicros() {
+        return setupMicros;
+    }
+
+    public Direction getFromClient() {
+        return fromClient;
+    }
+
+    public Direction getFromServer() {
+        return fromServer;
+    }
+
+    /**
+     * Milliseconds between the tunnel being established and the last recorded read.
+     */
+    public int getDurationMs() {
+        int last = 0;
+        if (fromClient.count > 0) {
+            last = fromClient.offsetsMs[fromClient.count - 1];
+        }
+        if (fromServer.count > 0) {
+            last = Math.max(last, fromServer.offsetsMs[fromServer.count - 1]);
+        }
+        return last;
+    }
+
+    String format() {
+        StringBuilder sb = new StringBuilder(64 + 12 * (fromClient.count + fromServer.count));
+        sb.append(startEpochMs).append('\t').append(host).append('\t').append(port).append('\t')
+                .append(strategy).append('\t').append(setupMicros).append("\tC=");
+        fromClient.format(sb);
+        sb.append("\tS=");
+        fromServer.format(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Parses one line written by {@link TraceWriter}.
+     *
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static SessionTrace parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 7) {
+            throw new IllegalArgumentException("Expected 7 fields in trace line, got " + fields.length);
+        }
+        try {
+            return new SessionTrace(Long.parseLong(fields[0]), fields[1], Integer.parseInt(fields[2]), fields[3],
+                    Long.parseLong(fields[4]), Direction.parse(fields[5], "C="), Direction.parse(fields[6], "S="));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bad trace line: " + e.getMessage());
+        }
+    }
+}
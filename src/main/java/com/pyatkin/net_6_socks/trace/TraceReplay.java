@@ -0,0 +1,246 @@
+package com.pyatkin.net_6_socks.trace;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-drives a recorded trace through a running proxy against a local {@link ReplaySink}.
+ *
+ * Every recorded tunnel is replayed at its original start offset, with the client and
+ * server reads of the trace sent on their original schedule, divided by {@code --speed}.
+ * Targets are replaced by the sink: sessions recorded with the {@code segment} strategy
+ * go to {@code --segment-address} (127.0.0.2 by default), everything else to 127.0.0.1,
+ * so a proxy with that address in its segment list reproduces the strategy mix.
+ * Blacklisted sessions carried no data and are skipped.
+ *
+ * <pre>
+ * java -cp net_6_socks.jar com.pyatkin.net_6_socks.trace.TraceReplay --trace=trace.log \
+ *      --proxy=127.0.0.1:1080 --speed=10 --save=new.properties --baseline=old.properties
+ * </pre>
+ */
+public final class TraceReplay {
+    private static final int SOCKS_VERSION = 0x05;
+    private static final int READ_TIMEOUT_MS = 120000;
+
+    private final List<SessionTrace> sessions;
+    private final InetSocketAddress proxy;
+    private final double speed;
+    private final InetAddress segmentAddress;
+    private final ReplayReport report = new ReplayReport();
+
+    private TraceReplay(List<SessionTrace> sessions, InetSocketAddress proxy, double speed,
+                        InetAddress segmentAddress) {
+        this.sessions = sessions;
+        this.proxy = proxy;
+        this.speed = speed;
+        this.segmentAddress = segmentAddress;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String trace = null;
+        String proxy = "127.0.0.1:1080";
+        double speed = 1;
+        String segmentAddress = "127.0.0.2";
+        int limit = Integer.MAX_VALUE;
+        String save = null;
+        String baseline = null;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--trace=")) {
+                trace = value;
+            } else if (arg.startsWith("--proxy=")) {
+                proxy = value;
+            } else if (arg.startsWith("--speed=")) {
+                speed = Double.parseDouble(value);
+            } else if (arg.startsWith("--segment-address=")) {
+                segmentAddress = value;
+            } else if (arg.startsWith("--limit=")) {
+                limit = Integer.parseInt(value);
+            } else if (arg.startsWith("--save=")) {
+                save = value;
+            } else if (arg.startsWith("--baseline=")) {
+                baseline = value;
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(2);
+            }
+        }
+        if (trace == null || speed <= 0) {
+            System.err.println("Usage: TraceReplay --trace=<file> [--proxy=host:port] [--speed=<factor>]"
+                    + " [--segment-address=<ip>] [--limit=<sessions>] [--save=<report>] [--baseline=<report>]");
+            System.exit(2);
+        }
+
+        List<SessionTrace> sessions = load(Paths.get(trace), limit);
+        int colon = proxy.lastIndexOf(':');
+        InetSocketAddress proxyAddress = new InetSocketAddress(proxy.substring(0, colon),
+                Integer.parseInt(proxy.substring(colon + 1)));
+
+        System.out.printf("Replaying %d sessions from %s through %s at %sx%n", sessions.size(), trace, proxy, speed);
+        Map<String, Double> metrics = new TraceReplay(sessions, proxyAddress, speed,
+                InetAddress.getByName(segmentAddress)).run();
+
+        ReplayReport.print(metrics, System.out);
+        if (baseline != null) {
+            System.out.println();
+            ReplayReport.compare(ReplayReport.load(Paths.get(baseline)), metrics, System.out);
+        }
+        if (save != null) {
+            ReplayReport.save(metrics, Paths.get(save));
+        }
+    }
+
+    private static List<SessionTrace> load(Path path, int limit) throws IOException {
+        List<SessionTrace> sessions = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    SessionTrace session = SessionTrace.parse(line);
+                    if (!"blacklist".equals(session.getStrategy())) {
+                        sessions.add(session);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        // The writer appends sessions as they end; replay them in the order they started
+        sessions.sort(Comparator.comparingLong(SessionTrace::getStartEpochMs));
+        return sessions.size() > limit ? new ArrayList<>(sessions.subList(0, limit)) : sessions;
+    }
+
+    private Map<String, Double> run() throws IOException, InterruptedException {
+        if (sessions.isEmpty()) {
+            return report.summarize(0);
+        }
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (ReplaySink sink = new ReplaySink(sessions, speed)) {
+            long firstStart = sessions.get(0).getStartEpochMs();
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions.size(); i++) {
+                SessionTrace session = sessions.get(i);
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(session.getStartEpochMs() - firstStart) / speed);
+                long waitNanos = due - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                int index = i;
+                pool.submit(() -> replay(index, session, sink.getPort()));
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.DAYS);
+            return report.summarize((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private void replay(int index, SessionTrace session, int sinkPort) {
+        InetAddress target = "segment".equals(session.getStrategy())
+                ? segmentAddress : InetAddress.getLoopbackAddress();
+        long connectStart = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(proxy, READ_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            if (!connect(in, out, target, sinkPort)) {
+                report.failure();
+                return;
+            }
+            long relayStart = System.nanoTime();
+            double setupMs = (relayStart - connectStart) / 1e6;
+
+            // The sink learns which recorded session to play from the first four bytes
+            out.writeInt(index);
+            Thread writer = new Thread(() -> {
+                try {
+                    ReplaySink.play(session.getFromClient(), out, relayStart, speed);
+                } catch (IOException | InterruptedException e) {
+                    // Reported by the reading side
+                }
+            }, "ReplayWriter");
+            writer.setDaemon(true);
+            writer.start();
+
+            long firstByte = -1;
+            long received = 0;
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (firstByte < 0 && n > 0) {
+                    firstByte = System.nanoTime();
+                }
+                received += n;
+            }
+            writer.join(READ_TIMEOUT_MS);
+            long end = System.nanoTime();
+
+            if (received < session.getFromServer().totalBytes()) {
+                report.failure();
+                return;
+            }
+            double ttfbMs = firstByte < 0 ? -1 : (firstByte - relayStart) / 1e6;
+            double lagMs = (end - relayStart) / 1e6 - session.getDurationMs() / speed;
+            report.success(setupMs, ttfbMs, Math.max(0, lagMs),
+                    received + session.getFromClient().totalBytes());
+        } catch (IOException e) {
+            report.failure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * SOCKS5 no-auth greeting and CONNECT to the sink; true if the proxy granted it.
+     */
+    private static boolean connect(DataInputStream in, DataOutputStream out, InetAddress target, int port)
+            throws IOException {
+        out.write(new byte[]{SOCKS_VERSION, 1, 0});
+        out.flush();
+        if (in.readUnsignedByte() != SOCKS_VERSION || in.readUnsignedByte() != 0) {
+            return false;
+        }
+
+        byte[] address = target.getAddress();
+        out.write(new byte[]{SOCKS_VERSION, 1, 0, (byte) (address.length == 4 ? 1 : 4)});
+        out.write(address);
+        out.writeShort(port);
+        out.flush();
+
+        in.readUnsignedByte();
+        int reply = in.readUnsignedByte();
+        in.readUnsignedByte();
+        int addressType = in.readUnsignedByte();
+        in.skipNBytes((addressType == 4 ? 16 : addressType == 3 ? in.readUnsignedByte() : 4) + 2);
+        return reply == 0;
+    }
+}
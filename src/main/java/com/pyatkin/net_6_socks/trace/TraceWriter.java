@@ -0,0 +1,154 @@
+package com.pyatkin.net_6_socks.trace;
+
+import com.pyatkin.net_6_socks.conf.ConfigSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends finished session traces to {@code diagnostics.traceFile} from a background
+ * thread, so sessions never wait on the disk.
+ *
+ * If the writer falls behind, traces are dropped and counted rather than queued without
+ * bound. Changing the file in a reload switches to the new file for later sessions.
+ */
+public class TraceWriter {
+    private static final Logger log = LoggerFactory.getLogger(TraceWriter.class);
+    private static final int QUEUE_SIZE = 4096;
+
+    private final BlockingQueue<SessionTrace> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Starts a trace for a tunnel that has just been established, or returns null if
+     * tracing is off.
+     */
+    public SessionTrace begin(ConfigSnapshot config, String host, int port, String strategy, long setupNanos) {
+        String path = config.getTraceFile();
+        if (path == null || closed) {
+            return null;
+        }
+        return new SessionTrace(path, host, port, strategy, setupNanos);
+    }
+
+    /**
+     * Queues a finished trace for writing.
+     */
+    public void submit(SessionTrace trace) {
+        ensureStarted();
+        if (!queue.offer(trace)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private synchronized void ensureStarted() {
+        if (thread == null && !closed) {
+            thread = new Thread(this::run, "TraceWriter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        String currentPath = null;
+        BufferedWriter out = null;
+        try {
+            while (!closed || !queue.isEmpty()) {
+                SessionTrace trace = queue.poll(1, TimeUnit.SECONDS);
+                if (trace == null) {
+                    continue;
+                }
+                if (!trace.getPath().equals(currentPath)) {
+                    closeQuietly(out);
+                    out = null;
+                    currentPath = trace.getPath();
+                    try {
+                        out = open(Paths.get(currentPath));
+                        log.info("Writing session traces to {}", currentPath);
+                    } catch (IOException e) {
+                        log.error("Cannot open trace file {}: {}", currentPath, e.getMessage());
+                    }
+                }
+                if (out == null) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                try {
+                    out.write(trace.format());
+                    out.newLine();
+                    written.incrementAndGet();
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to write trace to {}: {}", currentPath, e.getMessage());
+                    closeQuietly(out);
+                    out = null;
+                    currentPath = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static BufferedWriter open(Path path) throws IOException {
+        boolean fresh = !Files.exists(path) || Files.size(path) == 0;
+        BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (fresh) {
+            out.write(SessionTrace.HEADER);
+            out.newLine();
+        }
+        return out;
+    }
+
+    private static void closeQuietly(BufferedWriter out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Writes out what is queued and stops the writer thread.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (this) {
+            closed = true;
+            writer = thread;
+        }
+        if (writer != null) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void logStatistics() {
+        if (written.get() > 0 || dropped.get() > 0) {
+            log.info("Session traces: {} written, {} dropped", written.get(), dropped.get());
+        }
+    }
+}
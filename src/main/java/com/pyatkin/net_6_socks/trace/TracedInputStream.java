@@ -0,0 +1,76 @@
+package com.pyatkin.net_6_socks.trace;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records the size and time of every burst read into one direction of a {@link SessionTrace}.
+ *
+ * The relay reads a burst in several calls: a blocking read, then whatever is available.
+ * Reads are summed until the stream has nothing more queued - a read shorter than asked,
+ * {@link #available()} returning 0, or the end of the stream - and recorded as one read
+ * at the time the burst began.
+ */
+public class TracedInputStream extends FilterInputStream {
+    private final SessionTrace.Direction direction;
+    private int burstBytes;
+    private long burstStartNanos;
+
+    public TracedInputStream(InputStream in, SessionTrace.Direction direction) {
+        super(in);
+        this.direction = direction;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            add(1);
+        } else {
+            endBurst();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            add(n);
+        }
+        if (n < len) {
+            endBurst();
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        int available = in.available();
+        if (available <= 0) {
+            endBurst();
+        }
+        return available;
+    }
+
+    @Override
+    public void close() throws IOException {
+        endBurst();
+        super.close();
+    }
+
+    private void add(int n) {
+        if (burstBytes == 0) {
+            burstStartNanos = System.nanoTime();
+        }
+        burstBytes += n;
+    }
+
+    private void endBurst() {
+        if (burstBytes > 0) {
+            direction.record(burstBytes, burstStartNanos);
+            burstBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import com.pyatkin.net_6_socks.state.PersistentState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sizes socket buffers per endpoint from throughput and latency measured on
+ * earlier tunnels to the same endpoint.
+ *
+ * The target is twice the bandwidth-delay product. A tunnel limited by its own
+ * buffer measures roughly buffer / RTT, so the doubling lets a buffer-bound
+ * endpoint grow with each bulk transfer until the path, not the buffer, is the
+ * limit; fast-but-near endpoints shrink back towards the minimum. Throughput is taken
+ * over the time data was moving, so a tunnel kept open idle after a transfer does not
+ * look like a slow one.
+ */
+public class BufferAutotuner implements PersistentState {
+    private static final int MAX_ENDPOINTS = 1024;
+    // Short transfers finish inside slow start and say nothing about the path
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+    private static final long MIN_SAMPLE_MS = 100;
+    private static final double SMOOTHING = 0.5;
+
+    private final Map<String, Estimate> estimates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+            return size() > MAX_ENDPOINTS;
+        }
+    };
+
+    /**
+     * Buffer size for a new tunnel to {@code endpoint}, or 0 if nothing was measured yet.
+     */
+    public synchronized int recommend(String endpoint, int minBytes, int maxBytes) {
+        Estimate estimate = estimates.get(endpoint);
+        return estimate != null ? target(estimate, minBytes, maxBytes) : 0;
+    }
+
+    private static int target(Estimate estimate, int minBytes, int maxBytes) {
+        if (estimate.bytesPerSec == 0 || estimate.rttMs == 0) {
+            return 0;
+        }
+        double bdp = estimate.bytesPerSec * estimate.rttMs / 1000.0;
+        long target = (long) (2 * bdp);
+        return (int) Math.max(minBytes, Math.min(maxBytes, target));
+    }
+
+    /**
+     * Records a finished tunnel. {@code transferMs} is the time it was moving data,
+     * {@code rttMs} the connect time, one round trip.
+     */
+    public synchronized void record(String endpoint, long bytes, long transferMs, long rttMs) {
+        Estimate estimate = estimates.computeIfAbsent(endpoint, k -> new Estimate());
+        if (rttMs > 0) {
+            estimate.rttMs = smooth(estimate.rttMs, rttMs);
+        }
+        if (bytes >= MIN_SAMPLE_BYTES && transferMs >= MIN_SAMPLE_MS) {
+            estimate.bytesPerSec = smooth(estimate.bytesPerSec, bytes * 1000.0 / transferMs);
+        }
+        estimate.updatedAtMs = System.currentTimeMillis();
+    }
+
+    /**
+     * One line per endpoint with its estimates and the buffer it would get within
+     * {@code minBytes}..{@code maxBytes}, 0 while nothing was measured.
+     */
+    public synchronized List<String> describe(int minBytes, int maxBytes) {
+        List<String> lines = new ArrayList<>();
+        estimates.forEach((endpoint, estimate) -> lines.add(String.format("%s: %.0f KB/s, rtt=%.1fms, buffer=%d",
+                endpoint, estimate.bytesPerSec / 1024, estimate.rttMs, target(estimate, minBytes, maxBytes))));
+        return lines;
+    }
+
+    @Override
+    public String stateSection() {
+        return "autotune";
+    }
+
+    @Override
+    public synchronized void saveState(DataOutputStream out) throws IOException {
+        out.writeInt(estimates.size());
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            Estimate estimate = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeDouble(estimate.bytesPerSec);
+            out.writeDouble(estimate.rttMs);
+            out.writeLong(estimate.updatedAtMs);
+        }
+    }
+
+    @Override
+    public int loadState(DataInputStream in, long maxAgeMs) throws IOException {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String endpoint = in.readUTF();
+            Estimate estimate = new Estimate();
+            estimate.bytesPerSec = in.readDouble();
+            estimate.rttMs = in.readDouble();
+            estimate.updatedAtMs = in.readLong();
+            if (now - estimate.updatedAtMs > maxAgeMs) {
+                continue;
+            }
+            synchronized (this) {
+                if (estimates.putIfAbsent(endpoint, estimate) == null) {
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    private static double smooth(double previous, double sample) {
+        return previous == 0 ? sample : previous + SMOOTHING * (sample - previous);
+    }
+
+    private static final class Estimate {
+        double bytesPerSec;
+        double rttMs;
+        long updatedAtMs;
+    }
+}
@@ -0,0 +1,75 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay buffers shared by all tunnels, in power-of-two sizes from 2 KB to 1 MB.
+ *
+ * A tunnel takes a buffer only while it has data to move and gives it back before it
+ * blocks again, so idle tunnels hold none. Returned buffers are kept for reuse up to
+ * {@code maxPooledBytes} in total; beyond that they are left to the GC.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 2048;
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private final long maxPooledBytes;
+    private final List<ConcurrentLinkedDeque<byte[]>> free = new ArrayList<>(CLASSES);
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            free.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    /**
+     * A buffer of at least {@code size} bytes (capped at {@link #MAX_SIZE}); pass it to
+     * {@link #give} when done.
+     */
+    public byte[] take(int size) {
+        int index = classOf(size);
+        byte[] buffer = free.get(index).pollFirst();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.length);
+            reused.incrementAndGet();
+        } else {
+            buffer = new byte[MIN_SIZE << index];
+            allocated.incrementAndGet();
+        }
+        inUseBytes.addAndGet(buffer.length);
+        return buffer;
+    }
+
+    public void give(byte[] buffer) {
+        inUseBytes.addAndGet(-buffer.length);
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        // Most recently used first, it is the one most likely still in cache
+        free.get(classOf(buffer.length)).offerFirst(buffer);
+    }
+
+    private static int classOf(int size) {
+        int clamped = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+        return 32 - Integer.numberOfLeadingZeros(clamped - 1) - MIN_SHIFT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("buffers: in use=%dKB, pooled=%dKB of %dKB, allocated=%d, reused=%d",
+                inUseBytes.get() / 1024, pooledBytes.get() / 1024, maxPooledBytes / 1024,
+                allocated.get(), reused.get());
+    }
+}
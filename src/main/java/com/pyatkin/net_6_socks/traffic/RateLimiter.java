@@ -0,0 +1,53 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by several streams. Callers may go into debt and then
+ * sleep it off, so large writes are never split.
+ */
+public class RateLimiter {
+    private final long bytesPerSec;
+    private final long burstBytes;
+    private double tokens;
+    private long lastRefill;
+
+    public RateLimiter(long bytesPerSec) {
+        if (bytesPerSec <= 0) {
+            throw new IllegalArgumentException("bytesPerSec must be positive");
+        }
+        this.bytesPerSec = bytesPerSec;
+        this.burstBytes = bytesPerSec;  // one second of traffic
+        this.tokens = burstBytes;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes {@code bytes} tokens, sleeping if the bucket is in debt.
+     */
+    public void acquire(int bytes) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burstBytes, tokens + (now - lastRefill) * bytesPerSec / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSec) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Rate limiter interrupted");
+            }
+        }
+    }
+
+    public long getBytesPerSec() {
+        return bytesPerSec;
+    }
+}
@@ -0,0 +1,278 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells interactive tunnels from bulk ones by what they move, and makes bulk tunnels
+ * take turns when relay threads compete for the CPU.
+ *
+ * Interactive tunnels write as soon as they read, with no coordination at all. A bulk
+ * tunnel has to hold one of {@code bulkTurns} turns while it writes and moves at most
+ * {@code quantumBytes} per turn; turns are handed out in arrival order. As long as
+ * fewer bulk tunnels are writing than there are turns nobody waits, so the scheduler
+ * only acts on a saturated box, and then keeps the remaining cores for interactive
+ * traffic instead of letting every bulk thread compete with it.
+ */
+public class RelayScheduler {
+    private static final Logger log = LoggerFactory.getLogger(RelayScheduler.class);
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // Quiet windows before a bulk tunnel counts as interactive again
+    private static final int QUIET_WINDOWS = 2;
+    // Many small reads are chatter (games, RPC), not a transfer, however fast they come
+    private static final int MIN_BULK_READ = 1024;
+    // A turn held by a write stuck on a slow receiver must not stall other bulk tunnels for long
+    private static final long MAX_TURN_WAIT_MS = 20;
+    // A longer pause between reads is idle time, not a transfer waiting on its window
+    private static final long ACTIVE_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final BufferPool buffers;
+    private final Turns turns = new Turns();
+    private final AtomicInteger interactiveTunnels = new AtomicInteger();
+    private final AtomicInteger bulkTunnels = new AtomicInteger();
+    private final AtomicLong becameBulk = new AtomicLong();
+    private final AtomicLong turnsTaken = new AtomicLong();
+    private final AtomicLong turnsWaited = new AtomicLong();
+    private final AtomicLong turnWaitNanos = new AtomicLong();
+    private final AtomicLong turnsSkipped = new AtomicLong();
+
+    public RelayScheduler(BufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Starts tracking a tunnel that is about to relay.
+     *
+     * @param prioritize      make the tunnel take turns while it is bulk
+     * @param bulkBytesPerSec rate at which the tunnel counts as bulk
+     * @param bulkTurns       bulk tunnels writing at once, 0 = one per CPU
+     * @param quantumBytes    most a bulk tunnel writes per turn
+     */
+    public Tunnel open(boolean prioritize, int bulkBytesPerSec, int bulkTurns, int quantumBytes) {
+        turns.resize(bulkTurns > 0 ? bulkTurns : Runtime.getRuntime().availableProcessors());
+        interactiveTunnels.incrementAndGet();
+        return new Tunnel(prioritize, bulkBytesPerSec, quantumBytes);
+    }
+
+    public enum TrafficClass {
+        INTERACTIVE, BULK
+    }
+
+    /**
+     * Classification and write path of one tunnel; both relay directions share it.
+     */
+    public final class Tunnel {
+        private final boolean prioritize;
+        private final int bulkBytesPerSec;
+        private final int quantumBytes;
+
+        private volatile TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+        // Guarded by this
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+        private int windowReads;
+        private int quietWindows;
+        private boolean wasBulk;
+        private boolean returned;
+        private boolean closed;
+        private long lastReadNanos;
+        private long activeNanos;
+
+        private Tunnel(boolean prioritize, int bulkBytesPerSec, int quantumBytes) {
+            this.prioritize = prioritize;
+            this.bulkBytesPerSec = bulkBytesPerSec;
+            this.quantumBytes = quantumBytes;
+        }
+
+        public boolean isBulk() {
+            return trafficClass == TrafficClass.BULK;
+        }
+
+        public int getQuantumBytes() {
+            return quantumBytes;
+        }
+
+        /**
+         * Relay buffer from the shared pool, held only while there is data to move.
+         */
+        public byte[] takeBuffer(int size) {
+            return buffers.take(size);
+        }
+
+        public void giveBuffer(byte[] buffer) {
+            buffers.give(buffer);
+        }
+
+        /**
+         * Classifies the {@code length} bytes just read and writes them, taking a turn
+         * first if the tunnel is bulk.
+         */
+        public void write(OutputStream out, byte[] buffer, int length) throws IOException {
+            observe(length);
+            if (!prioritize || !isBulk()) {
+                out.write(buffer, 0, length);
+                out.flush();
+                return;
+            }
+            for (int offset = 0; offset < length; offset += quantumBytes) {
+                boolean held = takeTurn();
+                try {
+                    out.write(buffer, offset, Math.min(quantumBytes, length - offset));
+                    out.flush();
+                } finally {
+                    if (held) {
+                        turns.release();
+                    }
+                }
+            }
+        }
+
+        private synchronized void observe(int length) {
+            long now = System.nanoTime();
+            if (lastReadNanos != 0 && now - lastReadNanos < ACTIVE_GAP_NANOS) {
+                activeNanos += now - lastReadNanos;
+            }
+            lastReadNanos = now;
+            windowBytes += length;
+            windowReads++;
+            long elapsed = now - windowStart;
+            if (elapsed < WINDOW_NANOS) {
+                return;
+            }
+
+            long rate = windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            boolean bulkWindow = rate >= bulkBytesPerSec && windowBytes / windowReads >= MIN_BULK_READ;
+            if (bulkWindow) {
+                quietWindows = 0;
+                reclassify(TrafficClass.BULK);
+            } else {
+                // An idle gap counts as every window it spans, so a keystroke after a download is not queued
+                quietWindows += (int) Math.min(QUIET_WINDOWS, elapsed / WINDOW_NANOS);
+                if (quietWindows >= QUIET_WINDOWS) {
+                    reclassify(TrafficClass.INTERACTIVE);
+                }
+            }
+            windowStart = now;
+            windowBytes = 0;
+            windowReads = 0;
+        }
+
+        private void reclassify(TrafficClass next) {
+            if (trafficClass == next || closed) {
+                return;
+            }
+            trafficClass = next;
+            if (next == TrafficClass.BULK) {
+                interactiveTunnels.decrementAndGet();
+                bulkTunnels.incrementAndGet();
+                if (!wasBulk) {
+                    becameBulk.incrementAndGet();
+                }
+                wasBulk = true;
+            } else {
+                bulkTunnels.decrementAndGet();
+                interactiveTunnels.incrementAndGet();
+                returned = true;
+            }
+        }
+
+        /**
+         * Time the tunnel spent moving data, in either direction: the gaps between its
+         * reads, leaving out pauses of a second or more.
+         */
+        public synchronized long getActiveNanos() {
+            return activeNanos;
+        }
+
+        /**
+         * Class over the tunnel's life: interactive, bulk, or mixed if it went back
+         * to interactive after being bulk.
+         */
+        public synchronized String getLabel() {
+            return !wasBulk ? "interactive" : returned ? "mixed" : "bulk";
+        }
+
+        /**
+         * Stops counting the tunnel. Called once, when both directions are done.
+         */
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            (trafficClass == TrafficClass.BULK ? bulkTunnels : interactiveTunnels).decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for a bulk turn, but never longer than {@link #MAX_TURN_WAIT_MS}.
+     *
+     * @return whether a turn was taken and has to be released
+     */
+    private boolean takeTurn() throws InterruptedIOException {
+        turnsTaken.incrementAndGet();
+        if (turns.tryAcquire()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean held = turns.tryAcquire(MAX_TURN_WAIT_MS, TimeUnit.MILLISECONDS);
+            turnsWaited.incrementAndGet();
+            turnWaitNanos.addAndGet(System.nanoTime() - start);
+            if (!held) {
+                turnsSkipped.incrementAndGet();
+            }
+            return held;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a bulk turn");
+        }
+    }
+
+    /**
+     * Fair semaphore whose size follows {@code relay.bulkTurns} across reloads.
+     */
+    private static final class Turns extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int size;
+
+        Turns() {
+            super(0, true);
+        }
+
+        synchronized void resize(int newSize) {
+            if (newSize > size) {
+                release(newSize - size);
+            } else if (newSize < size) {
+                // Turns held right now are returned as usual and simply not handed out again
+                reducePermits(size - newSize);
+            }
+            size = newSize;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+
+    public String describe() {
+        long waited = turnsWaited.get();
+        return String.format("tunnels: interactive=%d, bulk=%d; became bulk=%d; bulk turns=%d: taken=%d, "
+                        + "waited=%d (avg %.2fms), skipped=%d; %s",
+                interactiveTunnels.get(), bulkTunnels.get(), becameBulk.get(), turns.size(), turnsTaken.get(),
+                waited, waited > 0 ? turnWaitNanos.get() / 1e6 / waited : 0.0, turnsSkipped.get(), buffers);
+    }
+
+    public void logStatistics() {
+        log.info("Relay scheduling - {}", describe());
+    }
+}
@@ -0,0 +1,87 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket options for one side of a tunnel. A null option keeps the OS default.
+ *
+ * Buffer sizes must be applied before connect to affect the TCP window scale,
+ * so remote sockets are tuned while still unconnected.
+ */
+public final class SocketTuning {
+    public static final SocketTuning OS_DEFAULTS = new SocketTuning(null, null, null, null);
+
+    private final Boolean tcpNoDelay;
+    private final Boolean keepAlive;
+    private final Integer sendBuffer;
+    private final Integer receiveBuffer;
+
+    public SocketTuning(Boolean tcpNoDelay, Boolean keepAlive, Integer sendBuffer, Integer receiveBuffer) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    /**
+     * Options of {@code this}, with anything left unset taken from {@code fallback}.
+     */
+    public SocketTuning orElse(SocketTuning fallback) {
+        return new SocketTuning(
+                tcpNoDelay != null ? tcpNoDelay : fallback.tcpNoDelay,
+                keepAlive != null ? keepAlive : fallback.keepAlive,
+                sendBuffer != null ? sendBuffer : fallback.sendBuffer,
+                receiveBuffer != null ? receiveBuffer : fallback.receiveBuffer);
+    }
+
+    /**
+     * Fills buffer sizes that are not pinned explicitly.
+     */
+    public SocketTuning withDefaultBuffers(int bytes) {
+        return new SocketTuning(tcpNoDelay, keepAlive,
+                sendBuffer != null ? sendBuffer : bytes,
+                receiveBuffer != null ? receiveBuffer : bytes);
+    }
+
+    public boolean hasBufferSizes() {
+        return sendBuffer != null && receiveBuffer != null;
+    }
+
+    public void apply(Socket socket) throws SocketException {
+        if (tcpNoDelay != null) {
+            socket.setTcpNoDelay(tcpNoDelay);
+        }
+        if (keepAlive != null) {
+            socket.setKeepAlive(keepAlive);
+        }
+        if (sendBuffer != null) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+        if (receiveBuffer != null) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+    }
+
+    /**
+     * Options as the kernel actually applied them (Linux doubles buffer sizes, and caps them).
+     */
+    public static String describe(Socket socket) {
+        try {
+            return String.format("nodelay=%s, keepalive=%s, sndbuf=%d, rcvbuf=%d",
+                    socket.getTcpNoDelay(), socket.getKeepAlive(),
+                    socket.getSendBufferSize(), socket.getReceiveBufferSize());
+        } catch (SocketException e) {
+            return "unavailable";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{nodelay=%s, keepalive=%s, sndbuf=%s, rcvbuf=%s}",
+                tcpNoDelay != null ? tcpNoDelay : "os",
+                keepAlive != null ? keepAlive : "os",
+                sendBuffer != null ? sendBuffer : "os",
+                receiveBuffer != null ? receiveBuffer : "os");
+    }
+}
@@ -0,0 +1,29 @@
+package com.pyatkin.net_6_socks.traffic;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream whose writes are paced by a shared {@link RateLimiter}.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+    private final RateLimiter limiter;
+
+    public ThrottledOutputStream(OutputStream out, RateLimiter limiter) {
+        super(out);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        limiter.acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        limiter.acquire(len);
+        out.write(b, off, len);
+    }
+}
@@ -9,6 +9,8 @@ import java.io.OutputStream;
 
 public class TrafficSegmenter {
     private static final Logger log = LoggerFactory.getLogger(TrafficSegmenter.class);
+    // Holds a keystroke, an RPC or a small TLS record whole; kept for the tunnel's life
+    private static final int HEAD_SIZE = 512;
 
     private final int segmentBlockSize;
     private final int segmentSize;
@@ -102,6 +104,75 @@ public class TrafficSegmenter {
         return totalBytes;
     }
 
+    /**
+     * Copies until end of stream through {@code tunnel}, which classifies the traffic and
+     * makes bulk writes take turns.
+     *
+     * While the stream is idle the copy blocks on a {@value #HEAD_SIZE}-byte buffer of its
+     * own, the only memory an idle direction holds. A burst that fits is written straight
+     * from it: one read, since a short read means nothing more was queued. A burst that
+     * fills it takes a pooled buffer, moves whatever the stream has ready, and gives the
+     * buffer back as soon as nothing more is pending. The pooled size doubles on every read
+     * that fills it, up to the tunnel's quantum, and halves after every burst, so a stream
+     * that keeps data coming grows and one that goes quiet shrinks back.
+     */
+    public long copyStream(InputStream in, OutputStream out, long bytesTransferred,
+                           RelayScheduler.Tunnel tunnel) throws IOException {
+        long totalBytes = bytesTransferred;
+        int size = BufferPool.MIN_SIZE;
+        byte[] head = new byte[HEAD_SIZE];
+
+        try {
+            int headRead;
+            while ((headRead = in.read(head)) >= 0) {
+                if (headRead < head.length) {
+                    tunnel.write(out, head, headRead);
+                    totalBytes += headRead;
+                    continue;
+                }
+                byte[] buffer = tunnel.takeBuffer(size);
+                try {
+                    System.arraycopy(head, 0, buffer, 0, headRead);
+                    int bytesRead = headRead + readReady(in, buffer, headRead);
+                    while (true) {
+                        tunnel.write(out, buffer, bytesRead);
+                        totalBytes += bytesRead;
+                        if (bytesRead == buffer.length && size < tunnel.getQuantumBytes()) {
+                            size = Math.min(size * 2, tunnel.getQuantumBytes());
+                            tunnel.giveBuffer(buffer);
+                            buffer = tunnel.takeBuffer(size);
+                        }
+                        bytesRead = readReady(in, buffer, 0);
+                        if (bytesRead <= 0) {
+                            break;
+                        }
+                    }
+                } finally {
+                    tunnel.giveBuffer(buffer);
+                }
+                if (size > BufferPool.MIN_SIZE) {
+                    size /= 2;
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed or error - this is normal for proxy connections
+            log.trace("Stream copy ended: {}", e.getMessage());
+        }
+
+        return totalBytes;
+    }
+
+    /**
+     * Reads what {@code in} can deliver without blocking, 0 if nothing is pending.
+     */
+    private static int readReady(InputStream in, byte[] buffer, int offset) throws IOException {
+        int ready = in.available();
+        if (ready <= 0 || offset == buffer.length) {
+            return 0;
+        }
+        return in.read(buffer, offset, Math.min(ready, buffer.length - offset));
+    }
+
     public int getSegmentBlockSize() {
         return segmentBlockSize;
     }